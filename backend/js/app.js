@@ -5,6 +5,7 @@ const stopButton = document.getElementById('stopMacroBtn');
 const serverStatus = document.getElementById('serverStatus');
 const captureMouseButton = document.getElementById('captureMouseBtn');
 const mouseStatus = document.getElementById('mouseStatus');
+const recordMouseButton = document.getElementById('recordMouseBtn');
 const aiPrompt = document.getElementById('aiPrompt');
 const aiGenerateButton = document.getElementById('aiGenerateBtn');
 const aiMicButton = document.getElementById('aiMicBtn');
@@ -16,13 +17,22 @@ const API_BASE_URL = window.location.origin.startsWith('http')
 const RUN_ENDPOINT = `${API_BASE_URL}/macros/run`;
 const STOP_ENDPOINT = `${API_BASE_URL}/macros/stop`;
 const MOUSE_ENDPOINT = `${API_BASE_URL}/mouse/position`;
+const MOUSE_STREAM_ENDPOINT = `${API_BASE_URL}/mouse/stream`;
+const RECORD_ENDPOINT = `${API_BASE_URL}/macros/record`;
 const AI_ENDPOINT = `${API_BASE_URL}/ai/generate`;
+const AI_STREAM_ENDPOINT = `${API_BASE_URL}/ai/generate/stream`;
 
 const PRESS_KEY_OPTIONS = [
   ['Enter', 'ENTER'],
   ['Esc', 'ESCAPE'],
   ['Ctrl + L', 'CTRL_L']
 ];
+const EASING_OPTIONS = [
+  ['linear', 'LINEAR'],
+  ['ease in', 'EASE_IN'],
+  ['ease out', 'EASE_OUT'],
+  ['ease in-out', 'EASE_IN_OUT']
+];
 const CLICK_BUTTON_OPTIONS = [
   ['Left', 'LEFT'],
   ['Right', 'RIGHT']
@@ -126,6 +136,33 @@ const CUSTOM_BLOCKS = [
       return { kind: 'ACTION', type: 'MOUSE_MOVE_TO', x, y };
     }
   },
+  {
+    type: 'macro_mouse_glide',
+    category: 'Actions',
+    block: {
+      init() {
+        this.appendDummyInput()
+          .appendField('glide mouse to x')
+          .appendField(new Blockly.FieldNumber(0, 0), 'X')
+          .appendField('y')
+          .appendField(new Blockly.FieldNumber(0, 0), 'Y')
+          .appendField('over')
+          .appendField(new Blockly.FieldNumber(500, 0), 'MS')
+          .appendField('ms')
+          .appendField(new Blockly.FieldDropdown(EASING_OPTIONS), 'EASING');
+        this.setPreviousStatement(true);
+        this.setNextStatement(true);
+        this.setColour(210);
+      }
+    },
+    toCommand(block) {
+      const x = Number(block.getFieldValue('X')) || 0;
+      const y = Number(block.getFieldValue('Y')) || 0;
+      const durationMs = Number(block.getFieldValue('MS')) || 0;
+      const easing = block.getFieldValue('EASING') || 'LINEAR';
+      return { kind: 'ACTION', type: 'MOUSE_GLIDE', x, y, durationMs, easing };
+    }
+  },
   {
     type: 'macro_mouse_click',
     category: 'Actions',
@@ -289,6 +326,7 @@ const TOOLBOX_CONFIG = [
       'macro_ctrl_key',
       'macro_mouse_wiggle',
       'macro_mouse_move_to',
+      'macro_mouse_glide',
       'macro_mouse_click',
       'macro_type_text',
       'macro_wait_ms',
@@ -434,7 +472,14 @@ function applyCapturedMousePosition(position = lastMousePosition) {
   setServerStatus(`Captured position: ${x}, ${y}`);
 }
 
+// Browser screen coordinates are scaled by the page zoom and display DPI, so
+// they only stand in when the server's stream is not connected.
+let mouseStreamConnected = false;
+
 window.addEventListener('mousemove', (event) => {
+  if (mouseStreamConnected) {
+    return;
+  }
   lastMousePosition = { x: event.screenX, y: event.screenY };
   setMouseStatus(Math.round(event.screenX), Math.round(event.screenY));
 });
@@ -458,6 +503,10 @@ async function fetchMousePosition() {
 }
 
 captureMouseButton?.addEventListener('click', async () => {
+  if (mouseStreamConnected && lastMousePosition) {
+    applyCapturedMousePosition(lastMousePosition);
+    return;
+  }
   if (window.location.origin.startsWith('http')) {
     const position = await fetchMousePosition();
     if (position) {
@@ -468,10 +517,87 @@ captureMouseButton?.addEventListener('click', async () => {
   applyCapturedMousePosition(lastMousePosition);
 });
 
+let recordingMouse = false;
+
+async function toggleMouseRecording() {
+  const action = recordingMouse ? 'stop' : 'start';
+  try {
+    const response = await fetch(`${RECORD_ENDPOINT}/${action}`, {
+      method: 'POST',
+      headers: { 'Content-Type': 'application/json' },
+      body: '{}'
+    });
+    const data = await response.json().catch(() => null);
+    if (!response.ok) {
+      throw new Error(data?.message || `Record ${action} failed: ${response.status}`);
+    }
+    recordingMouse = !recordingMouse;
+    recordMouseButton.textContent = recordingMouse ? 'Stop recording' : 'Record mouse';
+    if (recordingMouse) {
+      setServerStatus('Recording mouse...');
+      return;
+    }
+    // The recording is a complete macro request; Run picks it up from here.
+    exportOutput.textContent = JSON.stringify(
+      { steps: data.steps, pacing: data.pacing }, null, 2);
+    setServerStatus(`Recorded ${data.points} points in ${Math.round(data.durationMs / 100) / 10}s.`);
+  } catch (error) {
+    setServerStatus(error?.message || 'Recording failed.', true);
+  }
+}
+
+recordMouseButton?.addEventListener('click', toggleMouseRecording);
+
+function connectMouseStream() {
+  const source = new EventSource(MOUSE_STREAM_ENDPOINT);
+  source.addEventListener('open', () => {
+    mouseStreamConnected = true;
+  });
+  source.addEventListener('position', (event) => {
+    const data = JSON.parse(event.data);
+    lastMousePosition = { x: data.x, y: data.y };
+    setMouseStatus(data.x, data.y);
+  });
+  // EventSource reconnects on its own; until then the mousemove fallback
+  // keeps the status line alive.
+  source.addEventListener('error', () => {
+    mouseStreamConnected = false;
+  });
+}
+
 if (window.location.origin.startsWith('http')) {
-  setInterval(() => {
-    fetchMousePosition();
-  }, 500);
+  connectMouseStream();
+}
+
+async function readEventStream(response, onEvent) {
+  const reader = response.body.getReader();
+  const decoder = new TextDecoder();
+  let buffer = '';
+  while (true) {
+    const { value, done } = await reader.read();
+    if (done) {
+      break;
+    }
+    buffer += decoder.decode(value, { stream: true });
+    let boundary = buffer.indexOf('\n\n');
+    while (boundary !== -1) {
+      const chunk = buffer.slice(0, boundary);
+      buffer = buffer.slice(boundary + 2);
+      let event = 'message';
+      let data = '';
+      for (const line of chunk.split('\n')) {
+        if (line.startsWith('event:')) {
+          event = line.slice(6).trim();
+        } else if (line.startsWith('data:')) {
+          data += line.slice(5).trim();
+        }
+      }
+      if (data) {
+        onEvent(event, JSON.parse(data));
+      }
+      boundary = buffer.indexOf('\n\n');
+    }
+  }
 }
 
 async function generateJsonFromPrompt() {
@@ -485,7 +611,7 @@ async function generateJsonFromPrompt() {
   }
   setAiStatus('Generating...');
   try {
-    const response = await fetch(AI_ENDPOINT, {
+    const response = await fetch(AI_STREAM_ENDPOINT, {
       method: 'POST',
       headers: { 'Content-Type': 'application/json' },
       body: JSON.stringify({ prompt })
@@ -493,9 +619,23 @@ async function generateJsonFromPrompt() {
     if (!response.ok) {
       throw new Error(`AI failed: ${response.status}`);
     }
-    const data = await response.json();
-    exportOutput.textContent = JSON.stringify(data, null, 2);
-    setAiStatus('Generated.');
+    const steps = [];
+    let failure = null;
+    await readEventStream(response, (event, data) => {
+      if (event === 'step') {
+        steps.push(data.step);
+        exportOutput.textContent = JSON.stringify({ steps }, null, 2);
+        setAiStatus(`Generating... ${steps.length} steps`);
+      } else if (event === 'done') {
+        exportOutput.textContent = JSON.stringify(data, null, 2);
+        setAiStatus(data.cached ? 'Generated (cached).' : 'Generated.');
+      } else if (event === 'error') {
+        failure = data.error || data.message;
+      }
+    });
+    if (failure) {
+      throw new Error(`AI failed: ${failure}`);
+    }
   } catch (error) {
     setAiStatus(error?.message || 'AI failed.', true);
   }
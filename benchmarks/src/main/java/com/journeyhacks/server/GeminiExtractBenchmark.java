@@ -0,0 +1,65 @@
+package com.journeyhacks.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeminiExtractBenchmark {
+  @Param({"small-response.json", "fenced-response.json"})
+  public String sample;
+
+  private String body;
+  private Map<String, Object> json;
+  private String text;
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setup() throws IOException {
+    try (InputStream in = GeminiExtractBenchmark.class.getResourceAsStream("/gemini/" + sample)) {
+      if (in == null) {
+        throw new IOException("Missing sample " + sample);
+      }
+      body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+    json = Json.MAPPER.readValue(body, Map.class);
+    text = MacroServer.extractGeminiText(json);
+  }
+
+  @Benchmark
+  public String extractText() {
+    return MacroServer.extractGeminiText(json);
+  }
+
+  @Benchmark
+  public String extractJson() {
+    return MacroServer.extractJsonObject(text);
+  }
+
+  // Full post-response path from callGemini: body -> Map -> text -> steps Map.
+  @Benchmark
+  @SuppressWarnings("unchecked")
+  public Map<String, Object> parseResponse() throws IOException {
+    Map<String, Object> parsed = Json.MAPPER.readValue(body, Map.class);
+    String jsonText = MacroServer.extractJsonObject(MacroServer.extractGeminiText(parsed));
+    return Json.MAPPER.readValue(jsonText, Map.class);
+  }
+}
@@ -0,0 +1,103 @@
+package com.journeyhacks.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class MacroRequestParseBenchmark {
+  @Param({"1000", "100000"})
+  public int steps;
+
+  private byte[] payload;
+  private byte[] smilePayload;
+  private final MacroReader reader = new MacroReader(Long.MAX_VALUE, 32, Integer.MAX_VALUE);
+
+  @Setup
+  public void setup() throws IOException {
+    payload = generatePayload(steps);
+    smilePayload = new ObjectMapper(new SmileFactory())
+        .writeValueAsBytes(Json.MAPPER.readValue(payload, Map.class));
+  }
+
+  // How RunHandler used to read: readBody() into a String, then bind.
+  @Benchmark
+  public MacroServer.MacroRequest readViaString() throws IOException {
+    String body = new String(payload, StandardCharsets.UTF_8);
+    return Json.MAPPER.readValue(body, MacroServer.MacroRequest.class);
+  }
+
+  @Benchmark
+  public MacroServer.MacroRequest readViaBytes() throws IOException {
+    return Json.MAPPER.readValue(payload, MacroServer.MacroRequest.class);
+  }
+
+  @Benchmark
+  public MacroProgram readAndCompile() throws IOException {
+    MacroServer.MacroRequest request = Json.MAPPER.readValue(payload, MacroServer.MacroRequest.class);
+    return MacroProgram.compile(request.steps);
+  }
+
+  // Mirrors RunHandler: steps are compiled straight from the parser.
+  @Benchmark
+  public MacroProgram streamAndCompile() throws IOException {
+    return reader.read(new ByteArrayInputStream(payload), null).program;
+  }
+
+  @Benchmark
+  public MacroProgram streamSmileAndCompile() throws IOException {
+    return reader.read(new ByteArrayInputStream(smilePayload), MacroReader.SMILE_TYPE).program;
+  }
+
+  static byte[] generatePayload(int count) {
+    StringBuilder sb = new StringBuilder(count * 64);
+    sb.append("{\"steps\":[");
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      switch (i % 5) {
+        case 0:
+          sb.append("{\"kind\":\"ACTION\",\"type\":\"MOUSE_MOVE_TO\",\"x\":").append(i % 1920)
+              .append(",\"y\":").append(i % 1080).append('}');
+          break;
+        case 1:
+          sb.append("{\"kind\":\"ACTION\",\"type\":\"MOUSE_CLICK\",\"button\":\"LEFT\",\"count\":1}");
+          break;
+        case 2:
+          sb.append("{\"kind\":\"ACTION\",\"type\":\"TYPE_TEXT\",\"text\":\"hello world ").append(i).append("\"}");
+          break;
+        case 3:
+          sb.append("{\"kind\":\"ACTION\",\"type\":\"WAIT_MS\",\"ms\":250}");
+          break;
+        default:
+          sb.append("{\"kind\":\"CONTROL\",\"type\":\"REPEAT\",\"count\":3,\"steps\":[")
+              .append("{\"kind\":\"ACTION\",\"type\":\"MOUSE_MOVE\",\"dx\":10,\"dy\":0},")
+              .append("{\"kind\":\"ACTION\",\"type\":\"PRESS_KEY\",\"key\":\"ENTER\"}]}");
+          break;
+      }
+    }
+    sb.append("]}");
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
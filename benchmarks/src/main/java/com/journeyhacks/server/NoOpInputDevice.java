@@ -0,0 +1,94 @@
+package com.journeyhacks.server;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+// Headless stand-in for java.awt.Robot. Events only bump a counter so the
+// JIT cannot discard the calls that produce them.
+final class NoOpInputDevice implements InputDevice {
+  private final Point pointer = new Point(0, 0);
+  long events;
+
+  @Override
+  public void mouseMove(int x, int y) {
+    pointer.x = x;
+    pointer.y = y;
+    events++;
+  }
+
+  @Override
+  public void mousePress(int buttons) {
+    events++;
+  }
+
+  @Override
+  public void mouseRelease(int buttons) {
+    events++;
+  }
+
+  @Override
+  public void keyPress(int keyCode) {
+    events++;
+  }
+
+  @Override
+  public void keyRelease(int keyCode) {
+    events++;
+  }
+
+  @Override
+  public Point pointerLocation() {
+    return new Point(pointer);
+  }
+
+  @Override
+  public void setAutoDelay(int ms) {
+  }
+
+  @Override
+  public boolean setClipboard(String text) {
+    events++;
+    return true;
+  }
+
+  @Override
+  public String clipboardText() {
+    return "";
+  }
+
+  @Override
+  public void openUrl(String url) {
+    events++;
+  }
+
+  @Override
+  public int fetch(String method, String url, String body, long timeoutNanos) {
+    events++;
+    return 200;
+  }
+
+  @Override
+  public int runCommand(List<String> command, long timeoutNanos) {
+    events++;
+    return 0;
+  }
+
+  @Override
+  public int pixelColor(int x, int y) {
+    events++;
+    return 0;
+  }
+
+  @Override
+  public BufferedImage capture(int x, int y, int width, int height) {
+    events++;
+    return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+  }
+
+  @Override
+  public Dimension screenSize() {
+    return new Dimension(1920, 1080);
+  }
+}
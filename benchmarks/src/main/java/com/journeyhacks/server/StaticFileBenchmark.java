@@ -0,0 +1,100 @@
+package com.journeyhacks.server;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class StaticFileBenchmark {
+  @Param({"/index.html", "/js/app.js"})
+  public String path;
+
+  // "disk" reads the file per request; "memory" serves the cached copy.
+  @Param({"disk", "memory"})
+  public String mode;
+
+  private Path root;
+  private HttpServer server;
+  private StaticAssets assets;
+  private HttpClient client;
+  private HttpRequest request;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    root = Files.createTempDirectory("macro-ui");
+    Files.createDirectories(root.resolve("js"));
+    Files.writeString(root.resolve("index.html"), filler("<div class=\"row\">cell</div>\n", 2 * 1024));
+    Files.writeString(root.resolve("js/app.js"), filler("const value = compute(input, 42);\n", 20 * 1024));
+
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    MacroServer.StaticHandler handler = new MacroServer.StaticHandler(root);
+    if ("memory".equals(mode)) {
+      assets = new StaticAssets(root);
+      handler = new MacroServer.StaticHandler(root, assets, 0);
+    }
+    server.createContext("/", handler);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+
+    client = HttpClient.newHttpClient();
+    request = HttpRequest.newBuilder()
+        .uri(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path))
+        .GET()
+        .build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    server.stop(0);
+    if (assets != null) {
+      assets.close();
+    }
+    try (Stream<Path> files = Files.walk(root)) {
+      files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public int fetch() throws IOException, InterruptedException {
+    HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    return response.body().length;
+  }
+
+  private static String filler(String line, int bytes) {
+    StringBuilder sb = new StringBuilder(bytes + line.length());
+    while (sb.length() < bytes) {
+      sb.append(line);
+    }
+    return sb.toString();
+  }
+}
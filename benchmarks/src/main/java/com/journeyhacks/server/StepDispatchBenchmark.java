@@ -0,0 +1,63 @@
+package com.journeyhacks.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StepDispatchBenchmark {
+  @Param({"10", "100"})
+  public int outer;
+
+  @Param({"100", "1000"})
+  public int inner;
+
+  private List<Map<String, Object>> steps;
+  private MacroProgram program;
+  private NoOpInputDevice input;
+  private MacroEngine engine;
+  private final AtomicBoolean running = new AtomicBoolean(true);
+
+  @Setup
+  public void setup() {
+    List<Map<String, Object>> body = List.of(
+        Map.of("kind", "ACTION", "type", "MOUSE_MOVE", "dx", 5, "dy", -5),
+        Map.of("kind", "ACTION", "type", "MOUSE_MOVE_TO", "x", 100, "y", 200),
+        Map.of("kind", "ACTION", "type", "MOUSE_CLICK", "button", "LEFT", "count", 1),
+        Map.of("kind", "ACTION", "type", "PRESS_KEY", "key", "ENTER"),
+        Map.of("kind", "ACTION", "type", "CTRL_KEY", "key", "C"));
+    steps = List.of(Map.of("kind", "CONTROL", "type", "REPEAT", "count", outer, "steps", List.of(
+        Map.of("kind", "CONTROL", "type", "REPEAT", "count", inner, "steps", body))));
+    program = MacroProgram.compile(steps, Pacing.MAX_THROUGHPUT);
+    input = new NoOpInputDevice();
+    engine = new MacroEngine(input);
+  }
+
+  @Benchmark
+  public MacroProgram compile() {
+    return MacroProgram.compile(steps, Pacing.MAX_THROUGHPUT);
+  }
+
+  @Benchmark
+  public long run() {
+    engine.run(program, running);
+    return input.events;
+  }
+}
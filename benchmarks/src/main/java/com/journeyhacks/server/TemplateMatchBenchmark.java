@@ -0,0 +1,91 @@
+package com.journeyhacks.server;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// FIND_IMAGE on a synthetic 1920x1080 "desktop": a full search versus
+// re-checking the cached match, plus the grayscale conversion every search
+// starts with.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TemplateMatchBenchmark {
+  @Param({"1.0", "0.8,1.0,1.25"})
+  public String scales;
+
+  private BufferedImage capture;
+  private TemplateMatcher.Gray screen;
+  private TemplateMatcher.Template template;
+  private TemplateMatcher.Match match;
+
+  @Setup
+  public void setup() {
+    capture = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = capture.createGraphics();
+    Random random = new Random(1);
+    g.setColor(new Color(230, 230, 235));
+    g.fillRect(0, 0, 1920, 1080);
+    for (int i = 0; i < 400; i++) {
+      g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+      g.fillRect(random.nextInt(1900), random.nextInt(1060), 10 + random.nextInt(200), 8 + random.nextInt(60));
+    }
+    g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 14));
+    g.setColor(Color.BLACK);
+    for (int i = 0; i < 300; i++) {
+      g.drawString("Button " + i, random.nextInt(1850), 15 + random.nextInt(1060));
+    }
+    g.setColor(new Color(30, 120, 220));
+    g.fillRoundRect(1337, 777, 120, 40, 10, 10);
+    g.setColor(Color.WHITE);
+    g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 16));
+    g.drawString("Submit", 1365, 803);
+    g.dispose();
+
+    String[] parts = scales.split(",");
+    double[] factors = new double[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      factors[i] = Double.parseDouble(parts[i]);
+    }
+    BufferedImage button = new BufferedImage(120, 40, BufferedImage.TYPE_INT_RGB);
+    button.createGraphics().drawImage(capture.getSubimage(1337, 777, 120, 40), 0, 0, null);
+    screen = TemplateMatcher.Gray.of(capture);
+    template = new TemplateMatcher.Template(TemplateMatcher.Gray.of(button), factors);
+    match = TemplateMatcher.find(screen, template);
+    if (match == null || match.x != 1337 || match.y != 777) {
+      throw new IllegalStateException("template not found where it was drawn");
+    }
+  }
+
+  @Benchmark
+  public TemplateMatcher.Gray grayscale() {
+    return TemplateMatcher.Gray.of(capture);
+  }
+
+  @Benchmark
+  public TemplateMatcher.Match find() {
+    return TemplateMatcher.find(screen, template);
+  }
+
+  @Benchmark
+  public TemplateMatcher.Match verifyCached() {
+    return TemplateMatcher.verify(screen, template, match);
+  }
+}
@@ -0,0 +1,64 @@
+package com.journeyhacks.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TypeCharBenchmark {
+  private static final String SAMPLE =
+      "The quick brown fox jumps over the lazy dog. THE QUICK BROWN FOX! 0123456789 ~!@#$%^&*()_+{}|:\"<>?";
+
+  private NoOpInputDevice input;
+  private MacroEngine engine;
+  private MacroProgram typed;
+  private MacroProgram pasted;
+  private final AtomicBoolean running = new AtomicBoolean(true);
+
+  @Setup
+  public void setup() {
+    input = new NoOpInputDevice();
+    engine = new MacroEngine(input);
+    typed = MacroProgram.compile(
+        List.of(Map.of("type", "TYPE_TEXT", "text", SAMPLE, "mode", "TYPE")), Pacing.MAX_THROUGHPUT);
+    pasted = MacroProgram.compile(
+        List.of(Map.of("type", "TYPE_TEXT", "text", SAMPLE, "mode", "PASTE")), Pacing.MAX_THROUGHPUT);
+  }
+
+  @Benchmark
+  public int lookupSample() {
+    int acc = 0;
+    for (int i = 0; i < SAMPLE.length(); i++) {
+      acc += Keystrokes.lookup(SAMPLE.charAt(i));
+    }
+    return acc;
+  }
+
+  @Benchmark
+  public long typeSample() {
+    engine.run(typed, running);
+    return input.events;
+  }
+
+  @Benchmark
+  public long pasteSample() {
+    engine.run(pasted, running);
+    return input.events;
+  }
+}
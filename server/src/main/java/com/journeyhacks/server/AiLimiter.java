@@ -0,0 +1,135 @@
+package com.journeyhacks.server;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Caps concurrent upstream AI calls. Tasks beyond maxConcurrent wait in a
+// bounded queue for up to maxWaitMs; past that they fail fast with a
+// Saturated carrying the HTTP status and a Retry-After hint, so no caller
+// ever holds a thread while waiting.
+final class AiLimiter {
+  static final class Saturated extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+    final long retryAfterSeconds;
+
+    Saturated(int status, String message, long retryAfterSeconds) {
+      super(message, null, false, false);
+      this.status = status;
+      this.retryAfterSeconds = retryAfterSeconds;
+    }
+  }
+
+  private static final class Pending<T> {
+    final Supplier<CompletableFuture<T>> task;
+    final CompletableFuture<T> result;
+
+    Pending(Supplier<CompletableFuture<T>> task, CompletableFuture<T> result) {
+      this.task = task;
+      this.result = result;
+    }
+  }
+
+  private static final Metrics.CounterFamily REJECTED = Metrics.counter(
+      "ai_limiter_rejections_total", "AI calls refused by the limiter, by response status.", "code");
+
+  private final int maxConcurrent;
+  private final int maxQueued;
+  private final long maxWaitMs;
+  private final Semaphore permits;
+  private final Queue<Pending<?>> waiting = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queued = new AtomicInteger();
+  // Exponentially weighted average call time, for Retry-After estimates.
+  private volatile double averageMs = 2000;
+
+  AiLimiter(int maxConcurrent, int maxQueued, long maxWaitMs) {
+    this.maxConcurrent = Math.max(1, maxConcurrent);
+    this.maxQueued = Math.max(0, maxQueued);
+    this.maxWaitMs = maxWaitMs;
+    this.permits = new Semaphore(this.maxConcurrent);
+  }
+
+  <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+    if (permits.tryAcquire()) {
+      return start(task);
+    }
+    if (queued.incrementAndGet() > maxQueued) {
+      queued.decrementAndGet();
+      REJECTED.labels("429").inc();
+      return CompletableFuture.failedFuture(
+          new Saturated(429, "Too many AI requests in flight.", retryAfterSeconds()));
+    }
+    CompletableFuture<T> result = new CompletableFuture<>();
+    Pending<T> pending = new Pending<>(task, result);
+    waiting.add(pending);
+    // The wait limit covers the time in the queue only; once started, a
+    // call runs to completion.
+    CompletableFuture.delayedExecutor(maxWaitMs, TimeUnit.MILLISECONDS).execute(() -> {
+      if (waiting.remove(pending)) {
+        queued.decrementAndGet();
+        REJECTED.labels("503").inc();
+        result.completeExceptionally(
+            new Saturated(503, "Timed out waiting for an AI slot.", retryAfterSeconds()));
+      }
+    });
+    drain();
+    return result;
+  }
+
+  int active() {
+    return maxConcurrent - permits.availablePermits();
+  }
+
+  int queued() {
+    return queued.get();
+  }
+
+  private <T> CompletableFuture<T> start(Supplier<CompletableFuture<T>> task) {
+    long startedAt = System.nanoTime();
+    CompletableFuture<T> future;
+    try {
+      future = task.get();
+    } catch (RuntimeException e) {
+      future = CompletableFuture.failedFuture(e);
+    }
+    return future.whenComplete((value, error) -> {
+      double elapsedMs = (System.nanoTime() - startedAt) / 1_000_000.0;
+      averageMs = averageMs * 0.8 + elapsedMs * 0.2;
+      permits.release();
+      drain();
+    });
+  }
+
+  private void drain() {
+    while (!waiting.isEmpty() && permits.tryAcquire()) {
+      Pending<?> next = waiting.poll();
+      if (next == null) {
+        permits.release();
+        return;
+      }
+      queued.decrementAndGet();
+      run(next);
+    }
+  }
+
+  private <T> void run(Pending<T> pending) {
+    start(pending.task).whenComplete((value, error) -> {
+      if (error != null) {
+        pending.result.completeExceptionally(error);
+      } else {
+        pending.result.complete(value);
+      }
+    });
+  }
+
+  private long retryAfterSeconds() {
+    double waitMs = averageMs * (queued.get() + 1) / maxConcurrent;
+    return Math.max(1, (long) Math.ceil(waitMs / 1000));
+  }
+}
@@ -0,0 +1,206 @@
+package com.journeyhacks.server;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Bounded LRU + TTL cache for /ai/generate responses, with single-flight:
+// concurrent requests for the same key share one upstream call. Entries are
+// optionally mirrored to a JSON file so they survive restarts.
+final class AiResponseCache {
+  static final class Result {
+    final Map<String, Object> value;
+    final boolean cached;
+    final boolean shared;
+
+    Result(Map<String, Object> value, boolean cached, boolean shared) {
+      this.value = value;
+      this.cached = cached;
+      this.shared = shared;
+    }
+  }
+
+  static final class Entry {
+    public String key;
+    public long storedAt;
+    public Map<String, Object> value;
+  }
+
+  private final int maxEntries;
+  private final long ttlMillis;
+  private final Path file;
+  private final LinkedHashMap<String, Entry> entries;
+  private final Map<String, CompletableFuture<Map<String, Object>>> inFlight = new ConcurrentHashMap<>();
+  private final Object saveLock = new Object();
+  private long version;
+  private long savedVersion;
+
+  AiResponseCache(int maxEntries, long ttlSeconds, Path file) {
+    this.maxEntries = Math.max(0, maxEntries);
+    this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+    this.file = file;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > AiResponseCache.this.maxEntries;
+      }
+    };
+    load();
+  }
+
+  static String key(String prompt, String model, String systemPromptVersion) {
+    String normalized = prompt.trim().replaceAll("\\s+", " ");
+    return model + "|" + systemPromptVersion + "|" + normalized;
+  }
+
+  CompletableFuture<Result> get(String key, boolean fresh,
+      Supplier<CompletableFuture<Map<String, Object>>> loader) {
+    if (!fresh) {
+      Map<String, Object> hit = lookup(key);
+      if (hit != null) {
+        return CompletableFuture.completedFuture(new Result(hit, true, false));
+      }
+    }
+    CompletableFuture<Map<String, Object>> mine = new CompletableFuture<>();
+    CompletableFuture<Map<String, Object>> leader = inFlight.putIfAbsent(key, mine);
+    if (leader != null) {
+      return leader.thenApply(value -> new Result(value, false, true));
+    }
+    // Another leader may have finished between our lookup and putIfAbsent.
+    Map<String, Object> hit = fresh ? null : lookup(key);
+    if (hit != null) {
+      inFlight.remove(key, mine);
+      mine.complete(hit);
+      return CompletableFuture.completedFuture(new Result(hit, true, false));
+    }
+    CompletableFuture<Map<String, Object>> upstream;
+    try {
+      upstream = loader.get();
+    } catch (RuntimeException e) {
+      upstream = CompletableFuture.failedFuture(e);
+    }
+    upstream.whenComplete((value, error) -> {
+      if (error == null && cacheable(value)) {
+        store(key, value);
+      }
+      inFlight.remove(key, mine);
+      if (error != null) {
+        mine.completeExceptionally(error);
+      } else {
+        mine.complete(value);
+      }
+    });
+    return mine.thenApply(value -> new Result(value, false, false));
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  Map<String, Object> peek(String key) {
+    return lookup(key);
+  }
+
+  void put(String key, Map<String, Object> value) {
+    if (cacheable(value)) {
+      store(key, value);
+    }
+  }
+
+  private synchronized Map<String, Object> lookup(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (expired(entry, System.currentTimeMillis())) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.value;
+  }
+
+  private void store(String key, Map<String, Object> value) {
+    if (maxEntries == 0) {
+      return;
+    }
+    Entry entry = new Entry();
+    entry.key = key;
+    entry.storedAt = System.currentTimeMillis();
+    entry.value = value;
+    List<Entry> snapshot;
+    long snapshotVersion;
+    synchronized (this) {
+      entries.put(key, entry);
+      snapshot = file == null ? null : new ArrayList<>(entries.values());
+      snapshotVersion = ++version;
+    }
+    if (snapshot != null) {
+      save(snapshot, snapshotVersion);
+    }
+  }
+
+  private boolean expired(Entry entry, long now) {
+    return ttlMillis > 0 && now - entry.storedAt > ttlMillis;
+  }
+
+  // Responses without steps are upstream failures dressed as 200s; retrying
+  // them is more useful than replaying them.
+  static boolean cacheable(Map<String, Object> value) {
+    return value.get("steps") instanceof List && !value.containsKey("raw");
+  }
+
+  private void load() {
+    if (file == null || !Files.exists(file)) {
+      return;
+    }
+    try {
+      List<Entry> stored = Json.MAPPER.readValue(file.toFile(), new TypeReference<List<Entry>>() {});
+      long now = System.currentTimeMillis();
+      synchronized (this) {
+        for (Entry entry : stored) {
+          if (entry.key != null && entry.value != null && !expired(entry, now)) {
+            entries.put(entry.key, entry);
+          }
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("AI cache file ignored: " + e.getMessage());
+    }
+  }
+
+  // Writes outside the cache lock so lookups never wait on disk; a snapshot
+  // older than the last one written is dropped.
+  private void save(List<Entry> snapshot, long snapshotVersion) {
+    synchronized (saveLock) {
+      if (snapshotVersion <= savedVersion) {
+        return;
+      }
+      savedVersion = snapshotVersion;
+      write(snapshot);
+    }
+  }
+
+  private void write(List<Entry> snapshot) {
+    try {
+      Path parent = file.toAbsolutePath().getParent();
+      if (parent != null) {
+        Files.createDirectories(parent);
+      }
+      Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+      Json.MAPPER.writeValue(temp.toFile(), snapshot);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.out.println("AI cache save failed: " + e.getMessage());
+    }
+  }
+}
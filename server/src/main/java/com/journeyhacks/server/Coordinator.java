@@ -0,0 +1,285 @@
+package com.journeyhacks.server;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+// Coordinator mode: a registry of other MacroServer instances ("agents")
+// and fan-out calls to them. All calls go through one HttpClient, which
+// keeps HTTP/1.1 connections to each agent open between calls, and are
+// asynchronous, so dispatching to N agents takes about as long as the
+// slowest one. Every call has a timeout and per-agent failures are part of
+// the result rather than failing the whole call.
+final class Coordinator {
+  private static final Pattern ID = Pattern.compile("[A-Za-z0-9._-]{1,64}");
+  // Taken by the /agents/run and /agents/stop paths.
+  private static final Set<String> RESERVED = Set.of("run", "stop");
+  private static final Set<String> FINISHED = Set.of("COMPLETED", "CANCELLED", "FAILED");
+  private static final long POLL_MS = 100;
+  private static final Metrics.HistogramFamily CALLS = Metrics.histogram(
+      "agent_request_duration_seconds", "Coordinator calls to agents by call and outcome.", "call", "outcome");
+
+  static final class Agent {
+    final String id;
+    final URI url;
+    final long registeredAt = System.currentTimeMillis();
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    volatile long lastMs = -1;
+    volatile long lastSeenAt;
+    volatile String lastError;
+
+    Agent(String id, URI url) {
+      this.id = id;
+      this.url = url;
+    }
+
+    Map<String, Object> summary() {
+      Map<String, Object> summary = new LinkedHashMap<>();
+      summary.put("id", id);
+      summary.put("url", url.toString());
+      summary.put("active", active.get());
+      summary.put("requests", requests.get());
+      summary.put("failures", failures.get());
+      summary.put("registeredAt", registeredAt);
+      if (lastSeenAt != 0) {
+        summary.put("lastSeenAt", lastSeenAt);
+        summary.put("lastMs", lastMs);
+      }
+      if (lastError != null) {
+        summary.put("lastError", lastError);
+      }
+      return summary;
+    }
+  }
+
+  private final HttpClient client;
+  private final Duration timeout;
+  private final Duration stopTimeout;
+  private final Map<String, Agent> agents = new LinkedHashMap<>();
+  private int nextId = 1;
+
+  Coordinator(List<String> urls, long timeoutMs, long stopTimeoutMs) {
+    this.timeout = Duration.ofMillis(timeoutMs);
+    this.stopTimeout = Duration.ofMillis(stopTimeoutMs);
+    this.client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(stopTimeout)
+        .build();
+    for (String url : urls) {
+      register(null, url);
+    }
+  }
+
+  // Throws IllegalArgumentException for a bad id or URL or a taken id.
+  synchronized Agent register(String id, String url) {
+    if (id == null || id.isBlank()) {
+      do {
+        id = "agent-" + nextId++;
+      } while (agents.containsKey(id));
+    } else if (!ID.matcher(id).matches() || RESERVED.contains(id)) {
+      throw new IllegalArgumentException("id must be 1-64 letters, digits, '.', '_' or '-', and not run or stop");
+    } else if (agents.containsKey(id)) {
+      throw new IllegalArgumentException("agent " + id + " is already registered");
+    }
+    Agent agent = new Agent(id, baseUrl(url));
+    agents.put(id, agent);
+    return agent;
+  }
+
+  synchronized boolean remove(String id) {
+    return agents.remove(id) != null;
+  }
+
+  synchronized List<Map<String, Object>> list() {
+    List<Map<String, Object>> list = new ArrayList<>();
+    for (Agent agent : agents.values()) {
+      list.add(agent.summary());
+    }
+    return list;
+  }
+
+  synchronized int size() {
+    return agents.size();
+  }
+
+  // ids is a comma-separated list; otherwise the count least busy agents
+  // are picked, or all of them when count is null.
+  synchronized List<Agent> select(String ids, Integer count) {
+    List<Agent> selected = new ArrayList<>();
+    if (ids != null && !ids.isBlank()) {
+      for (String id : ids.split(",")) {
+        Agent agent = agents.get(id.trim());
+        if (agent == null) {
+          throw new IllegalArgumentException("unknown agent " + id.trim());
+        }
+        if (!selected.contains(agent)) {
+          selected.add(agent);
+        }
+      }
+      return selected;
+    }
+    selected.addAll(agents.values());
+    if (count == null) {
+      return selected;
+    }
+    if (count < 1 || count > selected.size()) {
+      throw new IllegalArgumentException("count must be between 1 and " + selected.size());
+    }
+    selected.sort(Comparator.comparingInt(agent -> agent.active.get()));
+    return new ArrayList<>(selected.subList(0, count));
+  }
+
+  // POSTs body to path (with its query) on each agent. With waitMs > 0, each
+  // run that was accepted is then followed until it finishes or waitMs has
+  // passed, and its final summary is added as "run".
+  CompletableFuture<List<Map<String, Object>>> dispatch(List<Agent> targets, String path, byte[] body,
+      String contentType, long waitMs) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+    List<CompletableFuture<Map<String, Object>>> calls = new ArrayList<>();
+    for (Agent agent : targets) {
+      HttpRequest request = HttpRequest.newBuilder(agent.url.resolve(path))
+          .timeout(timeout)
+          .header("Content-Type", contentType == null ? "application/json" : contentType)
+          .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+          .build();
+      CompletableFuture<Map<String, Object>> call = call(agent, "run", request);
+      if (waitMs > 0) {
+        call = call.thenCompose(result -> {
+          Object runId = result.get("response") instanceof Map ? ((Map<?, ?>) result.get("response")).get("runId") : null;
+          if (!Integer.valueOf(200).equals(result.get("status")) || runId == null) {
+            return CompletableFuture.completedFuture(result);
+          }
+          return follow(agent, runId.toString(), deadline).thenApply(run -> {
+            result.put("run", run);
+            return result;
+          });
+        });
+      }
+      calls.add(call);
+    }
+    return all(calls);
+  }
+
+  // POST /macros/stop on every agent at once, each bounded by the stop
+  // timeout, so the whole call returns within about that long.
+  CompletableFuture<List<Map<String, Object>>> stopAll() {
+    List<CompletableFuture<Map<String, Object>>> calls = new ArrayList<>();
+    for (Agent agent : select(null, null)) {
+      HttpRequest request = HttpRequest.newBuilder(agent.url.resolve("/macros/stop"))
+          .timeout(stopTimeout)
+          .POST(HttpRequest.BodyPublishers.noBody())
+          .build();
+      calls.add(call(agent, "stop", request));
+    }
+    return all(calls);
+  }
+
+  // Polls GET /macros/runs/{id} until the run has finished or the deadline
+  // has passed; the last summary seen gets "finished" set accordingly.
+  private CompletableFuture<Map<String, Object>> follow(Agent agent, String runId, long deadline) {
+    HttpRequest request = HttpRequest.newBuilder(agent.url.resolve("/macros/runs/" + runId))
+        .timeout(timeout)
+        .GET()
+        .build();
+    return call(agent, "poll", request).thenCompose(result -> {
+      Object response = result.get("response");
+      if (!Integer.valueOf(200).equals(result.get("status")) || !(response instanceof Map)) {
+        return CompletableFuture.completedFuture(result);
+      }
+      @SuppressWarnings("unchecked")
+      Map<String, Object> run = (Map<String, Object>) response;
+      boolean finished = FINISHED.contains(String.valueOf(run.get("state")));
+      if (finished || System.nanoTime() - deadline >= 0) {
+        run.put("finished", finished);
+        return CompletableFuture.completedFuture(run);
+      }
+      CompletableFuture<Map<String, Object>> next = new CompletableFuture<>();
+      CompletableFuture.delayedExecutor(POLL_MS, TimeUnit.MILLISECONDS).execute(
+          () -> follow(agent, runId, deadline).whenComplete((value, error) -> next.complete(value)));
+      return next;
+    });
+  }
+
+  // Never completes exceptionally: a failed call is a result with "error".
+  private CompletableFuture<Map<String, Object>> call(Agent agent, String call, HttpRequest request) {
+    long started = System.nanoTime();
+    agent.active.incrementAndGet();
+    agent.requests.incrementAndGet();
+    return client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).handle((response, error) -> {
+      agent.active.decrementAndGet();
+      long elapsed = System.nanoTime() - started;
+      Map<String, Object> result = new LinkedHashMap<>();
+      result.put("agent", agent.id);
+      result.put("ms", Math.round(elapsed / 10_000.0) / 100.0);
+      agent.lastMs = TimeUnit.NANOSECONDS.toMillis(elapsed);
+      if (error != null) {
+        Throwable cause = error.getCause() != null ? error.getCause() : error;
+        String message = cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+        result.put("error", message);
+        agent.failures.incrementAndGet();
+        agent.lastError = message;
+        CALLS.labels(call, "error").observeSince(started);
+        return result;
+      }
+      agent.lastSeenAt = System.currentTimeMillis();
+      result.put("status", response.statusCode());
+      result.put("response", parse(response.body()));
+      if (response.statusCode() >= 300) {
+        agent.failures.incrementAndGet();
+        agent.lastError = "HTTP " + response.statusCode();
+      } else {
+        agent.lastError = null;
+      }
+      CALLS.labels(call, response.statusCode() < 300 ? "ok" : response.statusCode() >= 500 ? "5xx" : "4xx")
+          .observeSince(started);
+      return result;
+    });
+  }
+
+  private static CompletableFuture<List<Map<String, Object>>> all(
+      List<CompletableFuture<Map<String, Object>>> calls) {
+    return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+      List<Map<String, Object>> results = new ArrayList<>(calls.size());
+      for (CompletableFuture<Map<String, Object>> call : calls) {
+        results.add(call.join());
+      }
+      return results;
+    });
+  }
+
+  private static Object parse(String body) {
+    try {
+      return Json.MAPPER.readValue(body, Object.class);
+    } catch (Exception e) {
+      return body;
+    }
+  }
+
+  private static URI baseUrl(String url) {
+    URI uri;
+    try {
+      uri = URI.create(url == null ? "" : url.trim());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("invalid agent url " + url);
+    }
+    if (!"http".equals(uri.getScheme()) && !"https".equals(uri.getScheme()) || uri.getHost() == null) {
+      throw new IllegalArgumentException("agent url must be http(s)://host:port, got " + url);
+    }
+    return URI.create(uri.getScheme() + "://" + uri.getRawAuthority() + "/");
+  }
+}
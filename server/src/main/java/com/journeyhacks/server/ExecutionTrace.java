@@ -0,0 +1,110 @@
+package com.journeyhacks.server;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// The last few thousand executed steps, for /macros/progress. The input
+// thread is the only writer and records into preallocated parallel arrays,
+// so recording never allocates, locks or waits. Readers tail the buffer by
+// sequence number; each slot carries the sequence it holds, checked before
+// and after copying it out, so a record overwritten mid-read is dropped
+// instead of returned torn.
+final class ExecutionTrace implements MacroEngine.StepListener {
+  static final class Record {
+    final long sequence;
+    final MacroRun run;
+    final MacroProgram program;
+    final int pc;
+    final int op;
+    final long started;
+    final long finished;
+    final int outcome;
+
+    Record(long sequence, MacroRun run, MacroProgram program, int pc, int op, long started, long finished,
+        int outcome) {
+      this.sequence = sequence;
+      this.run = run;
+      this.program = program;
+      this.pc = pc;
+      this.op = op;
+      this.started = started;
+      this.finished = finished;
+      this.outcome = outcome;
+    }
+  }
+
+  private final int mask;
+  // sequence + 1 of the record in each slot; 0 while it is being written.
+  private final AtomicLongArray versions;
+  private final MacroRun[] runs;
+  private final MacroProgram[] programs;
+  private final int[] pcs;
+  private final int[] ops;
+  private final long[] starts;
+  private final long[] ends;
+  private final int[] outcomes;
+  // Sequence of the next record; published after each write.
+  private final AtomicLong head = new AtomicLong();
+  private long next;
+  private MacroRun run;
+  private MacroProgram program;
+
+  // capacity is rounded up to a power of two.
+  ExecutionTrace(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.mask = size - 1;
+    this.versions = new AtomicLongArray(size);
+    this.runs = new MacroRun[size];
+    this.programs = new MacroProgram[size];
+    this.pcs = new int[size];
+    this.ops = new int[size];
+    this.starts = new long[size];
+    this.ends = new long[size];
+    this.outcomes = new int[size];
+  }
+
+  int capacity() {
+    return mask + 1;
+  }
+
+  // Called on the input thread before it executes program for run.
+  void enter(MacroRun run, MacroProgram program) {
+    this.run = run;
+    this.program = program;
+  }
+
+  @Override
+  public void step(int pc, int op, long started, long finished, int outcome) {
+    long sequence = next++;
+    int slot = (int) sequence & mask;
+    versions.setOpaque(slot, 0);
+    VarHandle.storeStoreFence();
+    runs[slot] = run;
+    programs[slot] = program;
+    pcs[slot] = pc;
+    ops[slot] = op;
+    starts[slot] = started;
+    ends[slot] = finished;
+    outcomes[slot] = outcome;
+    versions.setRelease(slot, sequence + 1);
+    head.setRelease(sequence + 1);
+  }
+
+  // Sequence the next record will get; records before it may be read.
+  long head() {
+    return head.getAcquire();
+  }
+
+  // Null if the record has been overwritten (or not yet written).
+  Record read(long sequence) {
+    int slot = (int) sequence & mask;
+    if (versions.getAcquire(slot) != sequence + 1) {
+      return null;
+    }
+    Record record = new Record(sequence, runs[slot], programs[slot], pcs[slot], ops[slot], starts[slot],
+        ends[slot], outcomes[slot]);
+    VarHandle.loadLoadFence();
+    return versions.getOpaque(slot) == sequence + 1 ? record : null;
+  }
+}
@@ -0,0 +1,368 @@
+package com.journeyhacks.server;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Every Gemini call goes through here. Calls take a token from a bucket
+// refilled at --gemini-rpm; a 429 with Retry-After (or a RetryInfo
+// retryDelay in the body) also pauses the bucket until then, so queued
+// calls do not hit a quota that is known to be exhausted. 429, 5xx and
+// connection failures are retried with full-jitter exponential backoff, no
+// sooner than Retry-After. Consecutive failures open a circuit breaker:
+// calls then fail at once with 503 until a single probe after the open
+// period succeeds. A 404 moves on to the next model in the fallback list;
+// that model is then skipped for a while. Waits are scheduled, not slept,
+// and a call gives up rather than wait longer than --gemini-max-wait; the
+// refusals are AiLimiter.Saturated, so they reach the client with the
+// status and Retry-After they carry.
+final class GeminiClient {
+  private static final Metrics.HistogramFamily CALLS = Metrics.histogram(
+      "gemini_request_duration_seconds", "Gemini round trip by call and outcome.", "call", "outcome");
+  private static final Metrics.CounterFamily RETRIES = Metrics.counter(
+      "gemini_retries_total", "Gemini calls retried, by the outcome that caused it.", "outcome");
+  private static final Metrics.CounterFamily FALLBACKS = Metrics.counter(
+      "gemini_model_fallbacks_total", "Calls moved to a fallback model after a 404, by the missing model.", "model");
+  private static final Metrics.CounterFamily REFUSED = Metrics.counter(
+      "gemini_refused_total", "Gemini calls refused without being sent, by reason.", "reason");
+  private static final Metrics.Counter BREAKER_OPENS = Metrics.counter(
+      "gemini_breaker_opens_total", "Times the Gemini circuit breaker opened.").labels();
+  private static final long MISSING_MODEL_NANOS = TimeUnit.MINUTES.toNanos(10);
+  private static final Pattern RETRY_DELAY = Pattern.compile("\"retryDelay\"\\s*:\\s*\"(\\d+(?:\\.\\d+)?)s\"");
+
+  static final class Options {
+    int requestsPerMinute = 60;
+    int burst = 10;
+    int maxRetries = 3;
+    long backoffMs = 500;
+    long maxBackoffMs = 8_000;
+    long maxWaitMs = 20_000;
+    int breakerFailures = 5;
+    long breakerOpenMs = 30_000;
+  }
+
+  final HttpClient http;
+  private final List<String> models;
+  private final Options options;
+  private final Map<String, Long> missingUntil = new ConcurrentHashMap<>();
+  // Token bucket. tokens goes negative while calls are waiting for one.
+  private double tokens;
+  private long refilledAt = System.nanoTime();
+  private long pausedUntil = refilledAt;
+  // Circuit breaker. openUntil is 0 while closed.
+  private int failures;
+  private long openUntil;
+  private boolean probing;
+
+  // models is the primary model followed by its fallbacks.
+  GeminiClient(HttpClient http, List<String> models, Options options) {
+    this.http = http;
+    this.models = List.copyOf(models);
+    this.options = options;
+    this.tokens = options.burst;
+  }
+
+  List<String> models() {
+    return models;
+  }
+
+  // 0 closed, 1 open, 2 waiting for the probe's answer.
+  synchronized int breakerState() {
+    return openUntil == 0 ? 0 : probing ? 2 : 1;
+  }
+
+  // A call that does not depend on the model.
+  <T> CompletableFuture<HttpResponse<T>> send(String call, HttpRequest request, HttpResponse.BodyHandler<T> body) {
+    CompletableFuture<Served<T>> result = new CompletableFuture<>();
+    attempt(call, model -> request, body, false, firstModel(), 0, result);
+    return result.thenApply(served -> served.response);
+  }
+
+  static final class Served<T> {
+    final String model;
+    final HttpResponse<T> response;
+
+    Served(String model, HttpResponse<T> response) {
+      this.model = model;
+      this.response = response;
+    }
+  }
+
+  // Builds the request for a model, starting with the first one not known
+  // to be missing. Completes with the last response, whatever its status,
+  // once it is not worth retrying; fails with AiLimiter.Saturated when the
+  // call is refused and with the I/O error when retries run out.
+  <T> CompletableFuture<Served<T>> send(String call, Function<String, HttpRequest> request,
+      HttpResponse.BodyHandler<T> body) {
+    CompletableFuture<Served<T>> result = new CompletableFuture<>();
+    attempt(call, request, body, true, firstModel(), 0, result);
+    return result;
+  }
+
+  private <T> void attempt(String call, Function<String, HttpRequest> request, HttpResponse.BodyHandler<T> body,
+      boolean fallback, int model, int attempt, CompletableFuture<Served<T>> result) {
+    long now = System.nanoTime();
+    long closedIn = admit(now);
+    if (closedIn > 0) {
+      REFUSED.labels("breaker").inc();
+      result.completeExceptionally(refusal(503, "Gemini is failing; calls resume in about "
+          + seconds(closedIn) + " s.", closedIn));
+      return;
+    }
+    long wait = reserve(now);
+    if (wait < 0) {
+      abandonProbe();
+      REFUSED.labels("rate").inc();
+      long retryIn = -wait;
+      result.completeExceptionally(refusal(429, "Gemini rate limit reached (--gemini-rpm="
+          + options.requestsPerMinute + ").", retryIn));
+      return;
+    }
+    String name = models.get(model);
+    Runnable send = () -> {
+      long started = System.nanoTime();
+      HttpRequest built;
+      try {
+        built = request.apply(name);
+      } catch (RuntimeException e) {
+        abandonProbe();
+        result.completeExceptionally(e);
+        return;
+      }
+      http.sendAsync(built, body).whenComplete((response, error) -> {
+        record(call, started, response);
+        try {
+          handle(call, request, body, fallback, model, attempt, result, response, error);
+        } catch (RuntimeException e) {
+          result.completeExceptionally(e);
+        }
+      });
+    };
+    if (wait == 0) {
+      send.run();
+    } else {
+      CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS).execute(send);
+    }
+  }
+
+  private <T> void handle(String call, Function<String, HttpRequest> request, HttpResponse.BodyHandler<T> body,
+      boolean fallback, int model, int attempt, CompletableFuture<Served<T>> result, HttpResponse<T> response,
+      Throwable error) {
+    String name = models.get(model);
+    if (fallback && error == null && response.statusCode() == 404 && model + 1 < models.size()) {
+      succeeded();
+      discard(response);
+      missingUntil.put(name, System.nanoTime() + MISSING_MODEL_NANOS);
+      FALLBACKS.labels(name).inc();
+      System.out.println("Gemini model " + name + " not found; trying " + models.get(model + 1));
+      attempt(call, request, body, true, model + 1, attempt, result);
+      return;
+    }
+    int status = error == null ? response.statusCode() : 0;
+    boolean retryable = error != null || status == 429 || status == 500 || status == 502
+        || status == 503 || status == 504;
+    if (!retryable) {
+      succeeded();
+      if (fallback && status == 404) {
+        missingUntil.put(name, System.nanoTime() + MISSING_MODEL_NANOS);
+      } else if (fallback && status >= 200 && status < 300) {
+        missingUntil.remove(name);
+      }
+      result.complete(new Served<>(name, response));
+      return;
+    }
+    failed();
+    long retryAfter = error == null ? retryAfter(response) : 0;
+    if (status == 429 && retryAfter > 0) {
+      pause(System.nanoTime() + retryAfter);
+    }
+    long backoff = options.backoffMs << Math.min(attempt, 20);
+    long delay = Math.max(retryAfter,
+        TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(Math.min(backoff, options.maxBackoffMs) + 1)));
+    if (attempt >= options.maxRetries || delay > TimeUnit.MILLISECONDS.toNanos(options.maxWaitMs)) {
+      if (error != null) {
+        result.completeExceptionally(error instanceof CompletionException ? error : new CompletionException(error));
+      } else if (status == 429) {
+        discard(response);
+        result.completeExceptionally(refusal(429, "Gemini quota exceeded.",
+            Math.max(retryAfter, TimeUnit.SECONDS.toNanos(1))));
+      } else {
+        result.complete(new Served<>(name, response));
+      }
+      return;
+    }
+    if (response != null) {
+      discard(response);
+    }
+    RETRIES.labels(error != null ? "error" : status == 429 ? "429" : "5xx").inc();
+    CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS)
+        .execute(() -> attempt(call, request, body, fallback, model, attempt + 1, result));
+  }
+
+  private int firstModel() {
+    long now = System.nanoTime();
+    for (int i = 0; i < models.size() - 1; i++) {
+      Long until = missingUntil.get(models.get(i));
+      if (until == null || until - now <= 0) {
+        return i;
+      }
+    }
+    return models.size() - 1;
+  }
+
+  // Nanos until the breaker lets calls through again, or 0 to go ahead.
+  // After the open period exactly one call (the probe) is let through.
+  private synchronized long admit(long now) {
+    if (openUntil == 0) {
+      return 0;
+    }
+    if (now - openUntil < 0) {
+      return openUntil - now;
+    }
+    if (probing) {
+      return TimeUnit.SECONDS.toNanos(1);
+    }
+    probing = true;
+    return 0;
+  }
+
+  // The probe was never sent. Only the probe gets past admit while probing.
+  private synchronized void abandonProbe() {
+    probing = false;
+  }
+
+  private synchronized void succeeded() {
+    failures = 0;
+    openUntil = 0;
+    probing = false;
+  }
+
+  private synchronized void failed() {
+    failures++;
+    if (probing || (openUntil == 0 && failures >= options.breakerFailures)) {
+      if (openUntil == 0) {
+        System.out.println("Gemini circuit breaker open after " + failures + " failures");
+      }
+      openUntil = Math.max(1, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.breakerOpenMs));
+      probing = false;
+      BREAKER_OPENS.inc();
+    }
+  }
+
+  // Reserves a token and returns how long to wait for it, or, when that
+  // would be longer than maxWaitMs, reserves nothing and returns minus the
+  // wait.
+  private synchronized long reserve(long now) {
+    if (options.requestsPerMinute <= 0) {
+      return Math.max(0, pausedUntil - now);
+    }
+    double nanosPerToken = 60e9 / options.requestsPerMinute;
+    tokens = Math.min(options.burst, tokens + (now - refilledAt) / nanosPerToken);
+    refilledAt = now;
+    long wait = Math.max(pausedUntil - now, tokens >= 1 ? 0 : (long) ((1 - tokens) * nanosPerToken));
+    if (wait > TimeUnit.MILLISECONDS.toNanos(options.maxWaitMs)) {
+      return -wait;
+    }
+    tokens -= 1;
+    return Math.max(0, wait);
+  }
+
+  private synchronized void pause(long until) {
+    if (until - pausedUntil > 0) {
+      pausedUntil = until;
+    }
+  }
+
+  // Retry-After in seconds or as an HTTP date, else a RetryInfo retryDelay
+  // in the body; 0 when there is neither.
+  private static long retryAfter(HttpResponse<?> response) {
+    String header = response.headers().firstValue("Retry-After").orElse(null);
+    if (header != null) {
+      try {
+        return TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(header.trim())));
+      } catch (NumberFormatException e) {
+        try {
+          ZonedDateTime at = ZonedDateTime.parse(header.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+          return Math.max(0, Duration.between(ZonedDateTime.now(), at).toNanos());
+        } catch (DateTimeParseException ignored) {
+          // Fall through to the body.
+        }
+      }
+    }
+    if (response.body() instanceof String) {
+      Matcher matcher = RETRY_DELAY.matcher((String) response.body());
+      if (matcher.find()) {
+        return (long) (Double.parseDouble(matcher.group(1)) * 1e9);
+      }
+    }
+    return 0;
+  }
+
+  private static void discard(HttpResponse<?> response) {
+    if (response.body() instanceof AutoCloseable) {
+      try {
+        ((AutoCloseable) response.body()).close();
+      } catch (Exception ignored) {
+        // The connection is dropped either way.
+      }
+    }
+  }
+
+  private static AiLimiter.Saturated refusal(int status, String message, long retryInNanos) {
+    return new AiLimiter.Saturated(status, message, seconds(retryInNanos));
+  }
+
+  private static long seconds(long nanos) {
+    return Math.max(1, (nanos + 999_999_999) / 1_000_000_000);
+  }
+
+  private static void record(String call, long started, HttpResponse<?> response) {
+    String outcome;
+    if (response == null) {
+      outcome = "error";
+    } else if (response.statusCode() >= 200 && response.statusCode() < 300) {
+      outcome = "ok";
+    } else if (response.statusCode() == 404 || response.statusCode() == 429) {
+      outcome = Integer.toString(response.statusCode());
+    } else {
+      outcome = response.statusCode() >= 500 ? "5xx" : "4xx";
+    }
+    CALLS.labels(call, outcome).observeSince(started);
+  }
+
+  // For callers on a worker thread, such as the streaming call: waits for
+  // send and rethrows its failure unwrapped.
+  static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      while (cause instanceof CompletionException && cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package com.journeyhacks.server;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+// The subset of java.awt.Robot (plus the clipboard, browser, HTTP and local
+// commands) the macro engine drives. Kept as an interface so the engine can run against a
+// stand-in where there is no desktop session.
+interface InputDevice {
+  void mouseMove(int x, int y);
+
+  void mousePress(int buttons);
+
+  void mouseRelease(int buttons);
+
+  void keyPress(int keyCode);
+
+  void keyRelease(int keyCode);
+
+  Point pointerLocation();
+
+  void setAutoDelay(int ms);
+
+  boolean setClipboard(String text);
+
+  // The clipboard text, "" if the clipboard is empty, or null if it holds
+  // something else or cannot be read (it is then not touched).
+  String clipboardText();
+
+  void openUrl(String url);
+
+  // The response status; throws if no response arrives within the timeout.
+  int fetch(String method, String url, String body, long timeoutNanos);
+
+  // The exit code; throws if the command cannot start or outlives the
+  // timeout (it is then killed).
+  int runCommand(List<String> command, long timeoutNanos);
+
+  // 0xRRGGBB, or -1 if the screen cannot be read.
+  int pixelColor(int x, int y);
+
+  // Null if the screen cannot be read.
+  BufferedImage capture(int x, int y, int width, int height);
+
+  Dimension screenSize();
+}
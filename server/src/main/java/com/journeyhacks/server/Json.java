@@ -0,0 +1,20 @@
+package com.journeyhacks.server;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Map;
+
+// The shared ObjectMapper. It lives in its own class so that building it, a
+// few hundred milliseconds on a cold JVM, happens when JSON is first needed
+// rather than when MacroServer loads.
+final class Json {
+  static final ObjectMapper MAPPER = new ObjectMapper()
+      .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+  // For readValue into a Map<String, Object> without an unchecked cast.
+  static final TypeReference<Map<String, Object>> OBJECT = new TypeReference<>() {
+  };
+
+  private Json() {
+  }
+}
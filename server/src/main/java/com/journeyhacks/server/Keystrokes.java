@@ -0,0 +1,70 @@
+package com.journeyhacks.server;
+
+import java.awt.event.KeyEvent;
+
+// char -> (key code, shift) lookup. Printable ASCII is filled in up front;
+// anything else is resolved on first use and cached in the same array.
+// Entries are (keyCode << 1 | shift) + 1, so 0 means "not resolved yet" and
+// UNDEFINED means there is no key for the char. A lone '\r' is Enter, but
+// the '\r' of a "\r\n" pair is SKIP, so CRLF text presses Enter once per line.
+final class Keystrokes {
+  static final int UNDEFINED = -1;
+  static final int SKIP = 0;
+  // Shifted symbols are typed as Shift plus the key under them on a US
+  // layout; several (e.g. '?', '%') have no key code of their own.
+  private static final String SHIFT_CHARS = "~!@#$%^&*()_+{}|:\"<>?";
+  private static final String SHIFT_BASES = "`1234567890-=[]\\;',./";
+  private static final int[] TABLE = new int[Character.MAX_VALUE + 1];
+
+  static {
+    for (char ch = ' '; ch <= '~'; ch++) {
+      int shifted = SHIFT_CHARS.indexOf(ch);
+      TABLE[ch] = shifted >= 0
+          ? encode(KeyEvent.getExtendedKeyCodeForChar(SHIFT_BASES.charAt(shifted)), true)
+          : resolve(ch);
+    }
+    TABLE['\n'] = encode(KeyEvent.VK_ENTER, false);
+    TABLE['\r'] = encode(KeyEvent.VK_ENTER, false);
+    TABLE['\t'] = encode(KeyEvent.VK_TAB, false);
+  }
+
+  private Keystrokes() {
+  }
+
+  static int lookup(CharSequence text, int i) {
+    char ch = text.charAt(i);
+    if (ch == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+      return SKIP;
+    }
+    return lookup(ch);
+  }
+
+  static int lookup(char ch) {
+    int entry = TABLE[ch];
+    if (entry == 0) {
+      entry = resolve(ch);
+      TABLE[ch] = entry;
+    }
+    return entry;
+  }
+
+  static int keyCode(int entry) {
+    return (entry - 1) >>> 1;
+  }
+
+  static boolean shift(int entry) {
+    return ((entry - 1) & 1) != 0;
+  }
+
+  private static int resolve(char ch) {
+    int keyCode = KeyEvent.getExtendedKeyCodeForChar(ch);
+    if (keyCode == KeyEvent.VK_UNDEFINED) {
+      return UNDEFINED;
+    }
+    return encode(keyCode, Character.isUpperCase(ch));
+  }
+
+  private static int encode(int keyCode, boolean shift) {
+    return ((keyCode << 1) | (shift ? 1 : 0)) + 1;
+  }
+}
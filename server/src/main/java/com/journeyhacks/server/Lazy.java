@@ -0,0 +1,65 @@
+package com.journeyhacks.server;
+
+import java.util.function.Supplier;
+
+// A subsystem created on first use, at most once. A failed start is kept
+// and reported to every later caller as Unavailable, which handlers turn
+// into a 503 instead of retrying on each request.
+final class Lazy<T> implements Supplier<T> {
+  static final class Unavailable extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    // Set once logged, so a failure passed on by a dependent subsystem is
+    // not logged again.
+    private boolean reported;
+
+    Unavailable(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+  private final String name;
+  private final Supplier<T> factory;
+  private volatile T value;
+  private volatile Unavailable failure;
+
+  Lazy(String name, Supplier<T> factory) {
+    this.name = name;
+    this.factory = factory;
+  }
+
+  @Override
+  public T get() {
+    T current = value;
+    if (current != null) {
+      return current;
+    }
+    synchronized (this) {
+      if (value == null) {
+        if (failure != null) {
+          throw failure;
+        }
+        long started = System.nanoTime();
+        try {
+          value = factory.get();
+        } catch (RuntimeException e) {
+          failure = e instanceof Unavailable
+              ? (Unavailable) e
+              : new Unavailable(name + " is unavailable: " + e.getMessage(), e);
+          if (!failure.reported) {
+            failure.reported = true;
+            System.out.println(failure.getMessage());
+          }
+          throw failure;
+        }
+        System.out.println("Started " + name + " in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+      }
+      return value;
+    }
+  }
+
+  // True once created; lets gauges report without forcing a start.
+  boolean ready() {
+    return value != null;
+  }
+}
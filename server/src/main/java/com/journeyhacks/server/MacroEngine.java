@@ -0,0 +1,648 @@
+package com.journeyhacks.server;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// Runs one program at a time; pacing and scheduler state belong to the
+// current run.
+final class MacroEngine {
+  private static final Metrics.Histogram[] STEP_TIMES = stepTimes();
+  // regionHash() of a screen that cannot be read.
+  private static final long UNREADABLE = 0;
+  private static final int PASTE_MODIFIER = System.getProperty("os.name", "").startsWith("Mac")
+      ? KeyEvent.VK_META
+      : KeyEvent.VK_CONTROL;
+  private static final long CLIPBOARD_RESTORE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  static final StepListener METRICS = (pc, op, started, finished, outcome) ->
+      STEP_TIMES[op].observeNanos(finished - started);
+
+  // Told about each executed step, with start and end times on the run's
+  // scheduler clock. The pacing delay after a step is not part of it.
+  // Called on the input thread, so implementations must be quick.
+  interface StepListener {
+    int OK = 0;
+    // The run was stopped during the step, which may not have finished.
+    int STOPPED = 1;
+    // The step threw, ending the run as FAILED.
+    int FAILED = 2;
+
+    void step(int pc, int op, long started, long finished, int outcome);
+
+    default StepListener andThen(StepListener next) {
+      return (pc, op, started, finished, outcome) -> {
+        step(pc, op, started, finished, outcome);
+        next.step(pc, op, started, finished, outcome);
+      };
+    }
+  }
+
+  // Threads for the async side effects of every engine.
+  private static final class Tasks {
+    static final ExecutorService POOL = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "macro-task");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  // The async steps one run has started, by MacroProgram.Task handle. A
+  // streamed run shares one across its segments. cancelAll() is for when
+  // the run ends: it cancels every step still pending and interrupts the
+  // ones executing, so a fetch is abandoned and a command killed.
+  static final class AsyncSteps {
+    private static final int PRUNE_AT = 64;
+    private Pending[] slots = new Pending[0];
+    private final List<Pending> started = new ArrayList<>();
+
+    private Pending get(int handle) {
+      return handle < slots.length ? slots[handle] : null;
+    }
+
+    private void start(int handle, Runnable work, Executor executor) {
+      if (handle >= slots.length) {
+        slots = Arrays.copyOf(slots, Math.max(handle + 1, 2 * slots.length));
+      }
+      if (started.size() >= PRUNE_AT) {
+        started.removeIf(pending -> pending.result.isDone());
+      }
+      Pending pending = new Pending(work);
+      slots[handle] = pending;
+      started.add(pending);
+      executor.execute(pending);
+    }
+
+    private List<Pending> all() {
+      List<Pending> all = new ArrayList<>();
+      for (Pending pending : slots) {
+        if (pending != null) {
+          all.add(pending);
+        }
+      }
+      return all;
+    }
+
+    void cancelAll() {
+      for (Pending pending : started) {
+        pending.cancel();
+      }
+      started.clear();
+      Arrays.fill(slots, null);
+    }
+  }
+
+  private static final class Pending implements Runnable {
+    final CompletableFuture<Void> result = new CompletableFuture<>();
+    private final Runnable work;
+    private Thread thread;
+
+    Pending(Runnable work) {
+      this.work = work;
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        if (result.isDone()) {
+          return;
+        }
+        thread = Thread.currentThread();
+      }
+      try {
+        work.run();
+        result.complete(null);
+      } catch (Throwable e) {
+        result.completeExceptionally(e);
+      } finally {
+        synchronized (this) {
+          thread = null;
+        }
+        // A cancel that raced the end of work must not reach the pool's
+        // next task.
+        Thread.interrupted();
+      }
+    }
+
+    synchronized void cancel() {
+      if (result.cancel(false) && thread != null) {
+        thread.interrupt();
+      }
+    }
+  }
+
+  private final InputDevice input;
+  private final Function<AtomicBoolean, StepScheduler> schedulers;
+  private final StepListener listener;
+  private final Executor tasks;
+  private Pacing pacing;
+  private StepScheduler scheduler;
+  private AsyncSteps async;
+
+  MacroEngine(InputDevice input) {
+    this(input, StepScheduler::new, METRICS);
+  }
+
+  MacroEngine(InputDevice input, Function<AtomicBoolean, StepScheduler> schedulers, StepListener listener) {
+    this(input, schedulers, listener, command -> Tasks.POOL.execute(command));
+  }
+
+  // tasks runs async steps; the simulator runs them in place.
+  MacroEngine(InputDevice input, Function<AtomicBoolean, StepScheduler> schedulers, StepListener listener,
+      Executor tasks) {
+    this.input = input;
+    this.schedulers = schedulers;
+    this.listener = listener;
+    this.tasks = tasks;
+  }
+
+  boolean run(MacroProgram program, AtomicBoolean running) {
+    return run(program, running, new AtomicLong());
+  }
+
+  // Returns true if the program ran to the end, false if it was stopped.
+  // progress is advanced by the number of executed steps; a REPEAT counts
+  // once, when its last iteration ends. Async steps still pending when it
+  // returns are cancelled.
+  boolean run(MacroProgram program, AtomicBoolean running, AtomicLong progress) {
+    AsyncSteps steps = new AsyncSteps();
+    try {
+      return run(program, running, progress, steps);
+    } finally {
+      steps.cancelAll();
+    }
+  }
+
+  // Runs with async steps the caller owns and cancels, so later programs
+  // can AWAIT what this one started.
+  boolean run(MacroProgram program, AtomicBoolean running, AtomicLong progress, AsyncSteps steps) {
+    pacing = program.pacing;
+    scheduler = schedulers.apply(running);
+    input.setAutoDelay(pacing.inputDelayMs);
+    async = steps;
+    int[] ops = program.ops;
+    int[] arg0 = program.arg0;
+    int[] arg1 = program.arg1;
+    String[] text = program.text;
+    int[] delay = program.delay;
+    long stepDelay = pacing.stepDelayNanos;
+    int[] remaining = new int[program.maxDepth];
+    int depth = 0;
+    int pc = 0;
+    long executed = progress.get();
+    while (pc < ops.length && running.get()) {
+      long started = scheduler.now();
+      try {
+        switch (ops[pc]) {
+          case MacroProgram.MOUSE_MOVE:
+            moveMouseBy(arg0[pc], arg1[pc]);
+            break;
+          case MacroProgram.MOUSE_MOVE_TO:
+            input.mouseMove(arg0[pc], arg1[pc]);
+            break;
+          case MacroProgram.MOUSE_CLICK:
+            clickMouse(arg0[pc], arg1[pc]);
+            break;
+          case MacroProgram.TYPE_TEXT:
+            typeText(text[pc], arg0[pc]);
+            break;
+          case MacroProgram.WAIT_MS:
+            scheduler.delay(Pacing.millis(arg0[pc]));
+            break;
+          case MacroProgram.PRESS_KEY:
+            pressKey(arg0[pc], arg1[pc]);
+            break;
+          case MacroProgram.OPEN_URL: {
+            String url = text[pc];
+            sideEffect(program.task[pc], () -> input.openUrl(url));
+            break;
+          }
+          case MacroProgram.HTTP_FETCH: {
+            MacroProgram.Task task = program.task[pc];
+            sideEffect(task, () -> fetch(task));
+            break;
+          }
+          case MacroProgram.RUN_COMMAND: {
+            MacroProgram.Task task = program.task[pc];
+            sideEffect(task, () -> runCommand(task));
+            break;
+          }
+          case MacroProgram.AWAIT:
+            await(program.task[pc], "AWAIT " + text[pc], Collections.singletonList(async.get(arg0[pc])));
+            break;
+          case MacroProgram.JOIN:
+            await(program.task[pc], "JOIN", async.all());
+            break;
+          case MacroProgram.MOUSE_GLIDE:
+            glide(program.motion[pc], arg0[pc], arg1[pc]);
+            break;
+          case MacroProgram.MOUSE_PATH:
+            followPath(program.motion[pc]);
+            break;
+          case MacroProgram.WAIT_PIXEL:
+            awaitPixel(program.screenWait[pc]);
+            break;
+          case MacroProgram.WAIT_REGION_CHANGES:
+            awaitRegionChange(program.screenWait[pc]);
+            break;
+          case MacroProgram.WAIT_REGION_STABLE:
+            awaitRegionStable(program.screenWait[pc]);
+            break;
+          case MacroProgram.FIND_IMAGE:
+            findImage(program.imageSearch[pc], 0, 0);
+            break;
+          case MacroProgram.CLICK_IMAGE:
+            findImage(program.imageSearch[pc], arg0[pc], arg1[pc]);
+            break;
+          case MacroProgram.REPEAT:
+            remaining[depth++] = arg0[pc];
+            pc++;
+            continue;
+          case MacroProgram.END:
+            if (--remaining[depth - 1] > 0) {
+              pc = arg1[pc] + 1;
+              continue;
+            }
+            depth--;
+            break;
+          default:
+            break;
+        }
+      } catch (RuntimeException e) {
+        if (!running.get()) {
+          // A blocking step the stop interrupted, not a failure.
+          listener.step(pc, ops[pc], started, scheduler.now(), StepListener.STOPPED);
+          return false;
+        }
+        listener.step(pc, ops[pc], started, scheduler.now(), StepListener.FAILED);
+        throw e;
+      }
+      listener.step(pc, ops[pc], started, scheduler.now(), running.get() ? StepListener.OK : StepListener.STOPPED);
+      progress.lazySet(++executed);
+      scheduler.delay(delay[pc] < 0 ? stepDelay : Pacing.millis(delay[pc]));
+      pc++;
+    }
+    return pc >= ops.length && running.get();
+  }
+
+  // A null task (a plain OPEN_URL) or one without a handle runs here, on the
+  // input thread; otherwise it is started and its outcome left in its slot.
+  private void sideEffect(MacroProgram.Task task, Runnable work) {
+    if (task == null || task.handle < 0) {
+      try {
+        work.run();
+      } catch (RuntimeException e) {
+        if (task == null || task.failOnError) {
+          throw e;
+        }
+      }
+      return;
+    }
+    async.start(task.handle, work, tasks);
+  }
+
+  private void fetch(MacroProgram.Task task) {
+    int status = input.fetch(task.method, task.url, task.body, task.timeoutNanos);
+    if (status >= 400) {
+      throw new IllegalStateException("HTTP_FETCH " + task.method + " " + task.url + " answered " + status);
+    }
+  }
+
+  private void runCommand(MacroProgram.Task task) {
+    int exit = input.runCommand(task.command, task.timeoutNanos);
+    if (exit != 0) {
+      throw new IllegalStateException("RUN_COMMAND " + task.command.get(0) + " exited with " + exit);
+    }
+  }
+
+  // Blocks the input thread until the given async steps are done, the
+  // wait's timeout passes or the run is stopped (RunQueue interrupts the
+  // input thread). A slot whose step has not run yet counts as done.
+  private void await(MacroProgram.Task wait, String what, List<Pending> pending) {
+    long deadline = System.nanoTime() + wait.timeoutNanos;
+    for (Pending step : pending) {
+      if (step == null) {
+        continue;
+      }
+      try {
+        step.result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        if (scheduler.running.get()) {
+          Thread.currentThread().interrupt();
+        }
+        return;
+      } catch (TimeoutException e) {
+        if (wait.failOnTimeout) {
+          throw new IllegalStateException(what + " timed out after "
+              + TimeUnit.NANOSECONDS.toMillis(wait.timeoutNanos) + " ms");
+        }
+        return;
+      } catch (ExecutionException e) {
+        if (wait.failOnError) {
+          Throwable cause = e.getCause();
+          throw new IllegalStateException(what + ": " + cause.getMessage(), cause);
+        }
+      }
+    }
+  }
+
+  // Execution time of a step, excluding the pacing delay after it.
+  private static Metrics.Histogram[] stepTimes() {
+    Metrics.HistogramFamily family = Metrics.histogram(
+        "macro_step_duration_seconds", "Execution time per macro step type.", "type");
+    Metrics.Histogram[] times = new Metrics.Histogram[MacroProgram.opCount()];
+    for (int op = 0; op < times.length; op++) {
+      times[op] = family.labels(MacroProgram.opName(op));
+    }
+    return times;
+  }
+
+  private void moveMouseBy(int dx, int dy) {
+    Point point = input.pointerLocation();
+    input.mouseMove(point.x + dx, point.y + dy);
+  }
+
+  // One mouseMove per frame, each on its own absolute deadline, so the glide
+  // takes its duration no matter how long the individual moves take.
+  private void glide(MacroProgram.Motion motion, int x, int y) {
+    Point start = input.pointerLocation();
+    long dx = x - start.x;
+    long dy = y - start.y;
+    int[] progress = motion.progress;
+    int lastX = start.x;
+    int lastY = start.y;
+    for (int i = 0; i < progress.length; i++) {
+      if (!scheduler.delay(motion.frameNanos)) {
+        return;
+      }
+      int nextX = start.x + (int) (dx * progress[i] / MacroProgram.PROGRESS_ONE);
+      int nextY = start.y + (int) (dy * progress[i] / MacroProgram.PROGRESS_ONE);
+      if (nextX != lastX || nextY != lastY) {
+        input.mouseMove(nextX, nextY);
+        lastX = nextX;
+        lastY = nextY;
+      }
+    }
+  }
+
+  private void followPath(MacroProgram.Motion motion) {
+    int[] xs = motion.xs;
+    int[] ys = motion.ys;
+    input.mouseMove(xs[0], ys[0]);
+    for (int i = 1; i < xs.length; i++) {
+      if (!scheduler.delay(motion.frameNanos)) {
+        return;
+      }
+      if (xs[i] != xs[i - 1] || ys[i] != ys[i - 1]) {
+        input.mouseMove(xs[i], ys[i]);
+      }
+    }
+  }
+
+  // Screen waits poll on the run's scheduler, so they stop with the run. If
+  // the device cannot read the screen (a simulation), a condition counts as
+  // met when first checked; a stable wait still lasts its stableMs.
+  private void awaitPixel(MacroProgram.ScreenWait wait) {
+    long deadline = scheduler.now() + wait.timeoutNanos;
+    while (true) {
+      int color = input.pixelColor(wait.x, wait.y);
+      if (color < 0 || colorMatches(color, wait.color, wait.tolerance)) {
+        return;
+      }
+      if (scheduler.now() - deadline >= 0) {
+        timedOut(wait, "WAIT_UNTIL_PIXEL at " + wait.x + "," + wait.y);
+        return;
+      }
+      if (!scheduler.delay(wait.intervalNanos)) {
+        return;
+      }
+    }
+  }
+
+  private void awaitRegionChange(MacroProgram.ScreenWait wait) {
+    long deadline = scheduler.now() + wait.timeoutNanos;
+    long baseline = regionHash(wait);
+    if (baseline == UNREADABLE) {
+      return;
+    }
+    while (scheduler.now() - deadline < 0) {
+      if (!scheduler.delay(wait.intervalNanos)) {
+        return;
+      }
+      if (regionHash(wait) != baseline) {
+        return;
+      }
+    }
+    timedOut(wait, "WAIT_UNTIL_REGION_CHANGES at " + region(wait));
+  }
+
+  private void awaitRegionStable(MacroProgram.ScreenWait wait) {
+    long deadline = scheduler.now() + wait.timeoutNanos;
+    long last = regionHash(wait);
+    long since = scheduler.now();
+    while (scheduler.now() - since < wait.stableNanos) {
+      if (scheduler.now() - deadline >= 0) {
+        timedOut(wait, "WAIT_UNTIL_REGION_STABLE at " + region(wait));
+        return;
+      }
+      if (!scheduler.delay(wait.intervalNanos)) {
+        return;
+      }
+      long hash = regionHash(wait);
+      if (hash != last) {
+        last = hash;
+        since = scheduler.now();
+      }
+    }
+  }
+
+  // Moves to the center of the match, then clicks count times (none for
+  // FIND_IMAGE). Searches are retried on the poll interval until the
+  // timeout; a zero timeout means a single look.
+  private void findImage(MacroProgram.ImageSearch search, int mask, int count) {
+    long deadline = scheduler.now() + search.timeoutNanos;
+    int x = search.x;
+    int y = search.y;
+    int width = search.width;
+    int height = search.height;
+    if (width == 0) {
+      Dimension screen = input.screenSize();
+      width = screen.width;
+      height = screen.height;
+    }
+    double best = 0;
+    while (true) {
+      BufferedImage image = input.capture(x, y, width, height);
+      if (image == null) {
+        return;
+      }
+      TemplateMatcher.Match match = locate(search, TemplateMatcher.Gray.of(image));
+      if (match != null && match.score >= search.threshold) {
+        input.mouseMove(x + match.centerX(), y + match.centerY());
+        if (count > 0) {
+          clickMouse(mask, count);
+        }
+        return;
+      }
+      if (match != null) {
+        best = Math.max(best, match.score);
+      }
+      if (scheduler.now() - deadline >= 0) {
+        if (search.failOnTimeout) {
+          throw new IllegalStateException(String.format(Locale.ROOT,
+              "image not found in %d,%d %dx%d (best score %.3f, threshold %.3f)",
+              x, y, width, height, best, search.threshold));
+        }
+        return;
+      }
+      if (!scheduler.delay(search.intervalNanos)) {
+        return;
+      }
+    }
+  }
+
+  // Checks the last match first; only a miss there costs a full search.
+  private static TemplateMatcher.Match locate(MacroProgram.ImageSearch search, TemplateMatcher.Gray screen) {
+    TemplateMatcher.Match last = search.last;
+    if (last != null) {
+      TemplateMatcher.Match match = TemplateMatcher.verify(screen, search.template, last);
+      if (match != null && match.score >= search.threshold) {
+        search.last = match;
+        return match;
+      }
+    }
+    TemplateMatcher.Match match = TemplateMatcher.find(screen, search.template);
+    if (match != null && match.score >= search.threshold) {
+      search.last = match;
+    }
+    return match;
+  }
+
+  private static boolean colorMatches(int actual, int expected, int tolerance) {
+    return Math.abs(((actual >> 16) & 0xFF) - ((expected >> 16) & 0xFF)) <= tolerance
+        && Math.abs(((actual >> 8) & 0xFF) - ((expected >> 8) & 0xFF)) <= tolerance
+        && Math.abs((actual & 0xFF) - (expected & 0xFF)) <= tolerance;
+  }
+
+  // A 64-bit FNV-1a hash of the captured pixels; only the hash is kept
+  // between polls. UNREADABLE if the screen cannot be read.
+  private long regionHash(MacroProgram.ScreenWait wait) {
+    BufferedImage image = input.capture(wait.x, wait.y, wait.width, wait.height);
+    if (image == null) {
+      return UNREADABLE;
+    }
+    long hash = 0xcbf29ce484222325L;
+    if (image.getRaster().getDataBuffer() instanceof DataBufferInt) {
+      // Robot captures are TYPE_INT_RGB; hash the backing array directly.
+      for (int pixel : ((DataBufferInt) image.getRaster().getDataBuffer()).getData()) {
+        hash = (hash ^ (pixel & 0xFFFFFF)) * 0x100000001b3L;
+      }
+    } else {
+      for (int pixel : image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth())) {
+        hash = (hash ^ (pixel & 0xFFFFFF)) * 0x100000001b3L;
+      }
+    }
+    return hash == UNREADABLE ? 1 : hash;
+  }
+
+  private static String region(MacroProgram.ScreenWait wait) {
+    return wait.x + "," + wait.y + " " + wait.width + "x" + wait.height;
+  }
+
+  private void timedOut(MacroProgram.ScreenWait wait, String what) {
+    if (wait.failOnTimeout) {
+      throw new IllegalStateException(what + " timed out after "
+          + TimeUnit.NANOSECONDS.toMillis(wait.timeoutNanos) + " ms");
+    }
+  }
+
+  private void clickMouse(int mask, int count) {
+    for (int i = 0; i < count; i++) {
+      input.mousePress(mask);
+      input.mouseRelease(mask);
+      if (!scheduler.delay(pacing.clickDelayNanos)) {
+        break;
+      }
+    }
+  }
+
+  private void typeText(String text, int mode) {
+    if (text.isEmpty()) {
+      return;
+    }
+    if (pastes(text, mode, pacing)) {
+      // Only pasted when the user's clipboard can be put back afterwards.
+      String saved = input.clipboardText();
+      if (saved != null && input.setClipboard(text)) {
+        pressKey(KeyEvent.VK_V, PASTE_MODIFIER);
+        // The target reads the clipboard when it handles the key, not
+        // when the key is sent.
+        scheduler.delay(CLIPBOARD_RESTORE_NANOS);
+        input.setClipboard(saved);
+        return;
+      }
+    }
+    long charDelay = pacing.charDelayNanos;
+    boolean shiftDown = false;
+    try {
+      for (int i = 0; i < text.length(); i++) {
+        int entry = Keystrokes.lookup(text, i);
+        if (entry == Keystrokes.UNDEFINED || entry == Keystrokes.SKIP) {
+          continue;
+        }
+        // Shift stays held across a run of shifted characters.
+        boolean shift = Keystrokes.shift(entry);
+        if (shift != shiftDown) {
+          if (shift) {
+            input.keyPress(KeyEvent.VK_SHIFT);
+          } else {
+            input.keyRelease(KeyEvent.VK_SHIFT);
+          }
+          shiftDown = shift;
+        }
+        int keyCode = Keystrokes.keyCode(entry);
+        input.keyPress(keyCode);
+        input.keyRelease(keyCode);
+        if (!scheduler.delay(charDelay)) {
+          break;
+        }
+      }
+    } finally {
+      if (shiftDown) {
+        input.keyRelease(KeyEvent.VK_SHIFT);
+      }
+    }
+  }
+
+  static boolean pastes(String text, int mode, Pacing pacing) {
+    return mode == MacroProgram.TEXT_PASTE
+        || (mode == MacroProgram.TEXT_AUTO && text.length() > pacing.pasteThreshold);
+  }
+
+  private void pressKey(int keyCode, int modifier) {
+    if (modifier != 0) {
+      input.keyPress(modifier);
+    }
+    input.keyPress(keyCode);
+    input.keyRelease(keyCode);
+    if (modifier != 0) {
+      input.keyRelease(modifier);
+    }
+  }
+}
@@ -0,0 +1,314 @@
+package com.journeyhacks.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Peephole pass over a step list, run before compiling. It rewrites the
+// list into a shorter one that leaves the pointer, keyboard and screen in the
+// same state, dropping the pacing delay (and Robot auto-delay) of every step
+// it removes:
+// - consecutive MOUSE_MOVEs are summed, and a MOUSE_MOVE after a
+//   MOUSE_MOVE_TO is folded into its target;
+// - a MOUSE_MOVE or MOUSE_MOVE_TO directly followed by a MOUSE_MOVE_TO or
+//   MOUSE_PATH (which starts by jumping to its first point) is dropped;
+// - consecutive WAIT_MS are summed;
+// - REPEATs with count 1 are inlined and empty ones removed;
+// - SET_MODE/START, zero moves, zero waits and empty TYPE_TEXT are removed.
+// Only steps made of the fields a rule knows about are touched, so anything
+// unusual is left for the compiler to accept or report. A step's own
+// "delayMs" is kept: a step carrying one is never removed or merged into
+// the next.
+final class MacroOptimizer {
+  private static final int MAX_REWRITES = 100;
+  private static final Set<String> MOVE_FIELDS = Set.of("type", "kind", "delayMs", "dx", "dy");
+  private static final Set<String> MOVE_TO_FIELDS = Set.of("type", "kind", "delayMs", "x", "y");
+  private static final Set<String> WAIT_FIELDS = Set.of("type", "kind", "delayMs", "ms");
+  private static final Set<String> TEXT_FIELDS = Set.of("type", "kind", "delayMs", "text", "mode");
+  private static final Set<String> REPEAT_FIELDS = Set.of("type", "kind", "count", "steps");
+
+  static final class Result {
+    final List<Map<String, Object>> steps;
+    final int before;
+    final int after;
+    final long savedNanos;
+    final List<String> rewrites;
+
+    Result(List<Map<String, Object>> steps, int before, int after, long savedNanos, List<String> rewrites) {
+      this.steps = steps;
+      this.before = before;
+      this.after = after;
+      this.savedNanos = savedNanos;
+      this.rewrites = rewrites;
+    }
+
+    Map<String, Object> report() {
+      Map<String, Object> report = new LinkedHashMap<>();
+      report.put("before", before);
+      report.put("after", after);
+      report.put("removed", before - after);
+      report.put("estimatedSavedMs", Math.round(savedNanos / 1_000.0) / 1_000.0);
+      report.put("rewrites", rewrites);
+      return report;
+    }
+  }
+
+  // A step and where it came from in the original list.
+  private static final class Node {
+    final Object step;
+    final String path;
+
+    Node(Object step, String path) {
+      this.step = step;
+      this.path = path;
+    }
+  }
+
+  private final long stepNanos;
+  private final long eventNanos;
+  private final List<String> rewrites = new ArrayList<>();
+  private int droppedRewrites;
+  private int before;
+  private long savedNanos;
+
+  private MacroOptimizer(Pacing pacing) {
+    this.stepNanos = pacing.stepDelayNanos;
+    this.eventNanos = Pacing.millis(pacing.inputDelayMs);
+  }
+
+  // The given steps are not modified; rewritten steps are new maps.
+  @SuppressWarnings("unchecked")
+  static Result optimize(List<Map<String, Object>> steps, Pacing pacing) {
+    MacroOptimizer optimizer = new MacroOptimizer(pacing);
+    List<Object> optimized = optimizer.unwrap(optimizer.optimize(steps, "steps", 1));
+    if (optimizer.droppedRewrites > 0) {
+      optimizer.rewrites.add(optimizer.droppedRewrites + " more rewrite(s) not shown");
+    }
+    List<Map<String, Object>> result = (List<Map<String, Object>>) (List<?>) optimized;
+    return new Result(result, optimizer.before, count(optimized), optimizer.savedNanos, optimizer.rewrites);
+  }
+
+  // times is how often the list runs, for the saving estimate.
+  private List<Node> optimize(List<?> steps, String path, long times) {
+    List<Node> out = new ArrayList<>();
+    if (steps == null) {
+      return out;
+    }
+    for (int i = 0; i < steps.size(); i++) {
+      before++;
+      Object raw = steps.get(i);
+      String at = path + "[" + i + "]";
+      if (!(raw instanceof Map) || !"REPEAT".equals(type(raw)) || !(field(raw, "steps") instanceof List)) {
+        push(out, new Node(raw, at), times);
+        continue;
+      }
+      Map<?, ?> step = (Map<?, ?>) raw;
+      // A missing count means 1, as in the compiler.
+      Integer count = step.get("count") == null ? Integer.valueOf(1) : integer(step, "count");
+      long iterations = count == null ? 1 : Math.max(1, count);
+      List<Node> body = optimize((List<?>) step.get("steps"), at + ".steps", saturatedMultiply(times, iterations));
+      if (count != null && plain(step, REPEAT_FIELDS)) {
+        if (body.isEmpty()) {
+          // END still runs once, with its pacing delay.
+          save(times, stepNanos, at + ": removed empty REPEAT");
+          continue;
+        }
+        if (iterations == 1) {
+          save(times, stepNanos, at + ": inlined REPEAT with count 1");
+          for (Node node : body) {
+            push(out, node, times);
+          }
+          continue;
+        }
+      }
+      Map<String, Object> copy = copy(step);
+      copy.put("steps", unwrap(body));
+      push(out, new Node(copy, at), times);
+    }
+    return out;
+  }
+
+  // Appends node to out, first removing it if it has no effect and then
+  // combining it with the step before it for as long as a rule applies.
+  private void push(List<Node> out, Node node, long times) {
+    Object step = node.step;
+    String type = type(step);
+    if (removable(step, type)) {
+      save(times, stepNanos + ("MOUSE_MOVE".equals(type) ? eventNanos : 0),
+          node.path + ": removed " + type + " (no effect)");
+      return;
+    }
+    Node last = out.isEmpty() ? null : out.get(out.size() - 1);
+    String lastType = last == null ? null : type(last.step);
+    if (last == null || !(last.step instanceof Map) || field(last.step, "delayMs") != null) {
+      out.add(node);
+      return;
+    }
+    if ("MOUSE_MOVE".equals(type) && plainMove(step, type) && plainMove(last.step, lastType)) {
+      boolean relative = "MOUSE_MOVE".equals(lastType);
+      String xField = relative ? "dx" : "x";
+      String yField = relative ? "dy" : "y";
+      long x = (long) value(last.step, xField) + value(step, "dx");
+      long y = (long) value(last.step, yField) + value(step, "dy");
+      if (x == (int) x && y == (int) y) {
+        Map<String, Object> merged = copy((Map<?, ?>) step);
+        merged.put("type", lastType);
+        merged.remove("dx");
+        merged.remove("dy");
+        merged.put(xField, (int) x);
+        merged.put(yField, (int) y);
+        out.remove(out.size() - 1);
+        save(times, stepNanos + eventNanos, node.path + ": merged into " + last.path);
+        push(out, new Node(merged, last.path), times);
+        return;
+      }
+    }
+    if (("MOUSE_MOVE_TO".equals(type) || "MOUSE_PATH".equals(type)) && plainMove(last.step, lastType)) {
+      out.remove(out.size() - 1);
+      save(times, stepNanos + eventNanos, last.path + ": removed " + lastType + ", overridden by " + node.path);
+      push(out, node, times);
+      return;
+    }
+    if ("WAIT_MS".equals(type) && plain(step, WAIT_FIELDS)
+        && "WAIT_MS".equals(lastType) && plain(last.step, WAIT_FIELDS)) {
+      long ms = (long) Math.max(0, value(last.step, "ms")) + Math.max(0, value(step, "ms"));
+      if (ms == (int) ms) {
+        Map<String, Object> merged = copy((Map<?, ?>) step);
+        merged.put("ms", (int) ms);
+        out.remove(out.size() - 1);
+        save(times, stepNanos, node.path + ": merged into " + last.path);
+        push(out, new Node(merged, last.path), times);
+        return;
+      }
+    }
+    out.add(node);
+  }
+
+  private static boolean removable(Object step, String type) {
+    if (!(step instanceof Map) || type == null || field(step, "delayMs") != null) {
+      return false;
+    }
+    switch (type) {
+      case "SET_MODE":
+      case "START":
+        return true;
+      case "MOUSE_MOVE":
+        return plainMove(step, type) && value(step, "dx") == 0 && value(step, "dy") == 0;
+      case "WAIT_MS":
+        return plain(step, WAIT_FIELDS) && value(step, "ms") <= 0;
+      case "TYPE_TEXT": {
+        Object text = field(step, "text");
+        return plain(step, TEXT_FIELDS) && (text == null || "".equals(text));
+      }
+      default:
+        return false;
+    }
+  }
+
+  private void save(long times, long nanos, String rewrite) {
+    savedNanos = saturatedAdd(savedNanos, saturatedMultiply(times, nanos));
+    if (rewrites.size() < MAX_REWRITES) {
+      rewrites.add(rewrite);
+    } else {
+      droppedRewrites++;
+    }
+  }
+
+  // Only the known fields, each an int where one is expected (or absent,
+  // which the compiler reads as 0).
+  private static boolean plain(Object step, Set<String> fields) {
+    Map<?, ?> map = (Map<?, ?>) step;
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      Object key = entry.getKey();
+      if (!fields.contains(key)) {
+        return false;
+      }
+      Object value = entry.getValue();
+      boolean numeric = !"type".equals(key) && !"kind".equals(key) && !"steps".equals(key)
+          && !"text".equals(key) && !"mode".equals(key);
+      if (numeric && value != null && integer(map, key) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // A MOUSE_MOVE or MOUSE_MOVE_TO with both operands and no other fields.
+  // One missing an operand is left alone for the compiler to reject.
+  private static boolean plainMove(Object step, String type) {
+    if ("MOUSE_MOVE".equals(type)) {
+      return plain(step, MOVE_FIELDS) && integer((Map<?, ?>) step, "dx") != null
+          && integer((Map<?, ?>) step, "dy") != null;
+    }
+    if ("MOUSE_MOVE_TO".equals(type)) {
+      return plain(step, MOVE_TO_FIELDS) && integer((Map<?, ?>) step, "x") != null
+          && integer((Map<?, ?>) step, "y") != null;
+    }
+    return false;
+  }
+
+  private static Integer integer(Map<?, ?> step, Object field) {
+    Object value = step.get(field);
+    if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      return ((Number) value).intValue();
+    }
+    if (value instanceof Long && (Long) value == ((Long) value).intValue()) {
+      return ((Long) value).intValue();
+    }
+    return null;
+  }
+
+  private static int value(Object step, String field) {
+    Integer value = integer((Map<?, ?>) step, field);
+    return value == null ? 0 : value;
+  }
+
+  private static Object field(Object step, String field) {
+    return ((Map<?, ?>) step).get(field);
+  }
+
+  private static String type(Object step) {
+    Object type = step instanceof Map ? ((Map<?, ?>) step).get("type") : null;
+    return type == null ? null : type.toString();
+  }
+
+  private static Map<String, Object> copy(Map<?, ?> step) {
+    Map<String, Object> copy = new LinkedHashMap<>();
+    for (Map.Entry<?, ?> entry : step.entrySet()) {
+      copy.put(String.valueOf(entry.getKey()), entry.getValue());
+    }
+    return copy;
+  }
+
+  private List<Object> unwrap(List<Node> nodes) {
+    List<Object> steps = new ArrayList<>(nodes.size());
+    for (Node node : nodes) {
+      steps.add(node.step);
+    }
+    return steps;
+  }
+
+  private static int count(List<?> steps) {
+    int total = 0;
+    for (Object step : steps) {
+      total++;
+      if ("REPEAT".equals(type(step)) && field(step, "steps") instanceof List) {
+        total += count((List<?>) field(step, "steps"));
+      }
+    }
+    return total;
+  }
+
+  private static long saturatedAdd(long a, long b) {
+    long sum = a + b;
+    return sum < 0 ? Long.MAX_VALUE : sum;
+  }
+
+  private static long saturatedMultiply(long a, long b) {
+    long high = Math.multiplyHigh(a, b);
+    long low = a * b;
+    return high != 0 || low < 0 ? Long.MAX_VALUE : low;
+  }
+}
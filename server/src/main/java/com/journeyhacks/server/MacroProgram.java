@@ -0,0 +1,1040 @@
+package com.journeyhacks.server;
+
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.imageio.ImageIO;
+
+// Flat, pre-validated instruction form of a macro. REPEAT blocks become a
+// REPEAT/END pair whose operands point at each other, so the executor walks
+// the arrays with a program counter and a small loop-counter stack. A step's
+// optional "delayMs" replaces the pacing's inter-step delay after it; -1 in
+// delay[] means "use the pacing default". MOUSE_GLIDE and MOUSE_PATH carry
+// their precomputed frames in motion[]; WAIT_UNTIL_* steps carry their
+// condition in screenWait[], and FIND_IMAGE/CLICK_IMAGE their prepared
+// template in imageSearch[]. Side effects (OPEN_URL, HTTP_FETCH,
+// RUN_COMMAND) and the AWAIT/JOIN steps that wait for them carry a Task.
+final class MacroProgram {
+  static final int NOP = 0;
+  static final int MOUSE_MOVE = 1;
+  static final int MOUSE_MOVE_TO = 2;
+  static final int MOUSE_CLICK = 3;
+  static final int TYPE_TEXT = 4;
+  static final int WAIT_MS = 5;
+  static final int PRESS_KEY = 6;
+  static final int OPEN_URL = 7;
+  static final int REPEAT = 8;
+  static final int END = 9;
+  static final int MOUSE_GLIDE = 10;
+  static final int MOUSE_PATH = 11;
+  static final int WAIT_PIXEL = 12;
+  static final int WAIT_REGION_CHANGES = 13;
+  static final int WAIT_REGION_STABLE = 14;
+  static final int FIND_IMAGE = 15;
+  static final int CLICK_IMAGE = 16;
+  static final int HTTP_FETCH = 17;
+  static final int RUN_COMMAND = 18;
+  static final int AWAIT = 19;
+  static final int JOIN = 20;
+
+  private static final String[] OP_NAMES = {
+      "NOP", "MOUSE_MOVE", "MOUSE_MOVE_TO", "MOUSE_CLICK", "TYPE_TEXT",
+      "WAIT_MS", "PRESS_KEY", "OPEN_URL", "REPEAT", "END", "MOUSE_GLIDE", "MOUSE_PATH",
+      "WAIT_UNTIL_PIXEL", "WAIT_UNTIL_REGION_CHANGES", "WAIT_UNTIL_REGION_STABLE", "FIND_IMAGE", "CLICK_IMAGE",
+      "HTTP_FETCH", "RUN_COMMAND", "AWAIT", "JOIN"
+  };
+
+  static final int DEFAULT_FPS = 60;
+  static final int MAX_FPS = 240;
+  private static final int MAX_FRAMES = 100_000;
+  // Fixed-point scale for glide progress.
+  static final int PROGRESS_ONE = 1 << 16;
+
+  private static final int LINEAR = 0;
+  private static final int EASE_IN = 1;
+  private static final int EASE_OUT = 2;
+  private static final int EASE_IN_OUT = 3;
+
+  static final int DEFAULT_WAIT_TIMEOUT_MS = 10_000;
+  static final int DEFAULT_POLL_INTERVAL_MS = 50;
+  static final int DEFAULT_STABLE_MS = 500;
+  private static final int MIN_POLL_INTERVAL_MS = 5;
+  // Region waits hash a fresh capture on every poll, so keep them small.
+  private static final int MAX_REGION_PIXELS = 1 << 20;
+  static final double DEFAULT_MATCH_THRESHOLD = 0.9;
+  private static final int MAX_TEMPLATE_SIDE = 512;
+  private static final int MAX_SCALES = 8;
+  static final int DEFAULT_FETCH_TIMEOUT_MS = 10_000;
+  static final int DEFAULT_COMMAND_TIMEOUT_MS = 30_000;
+  static final int DEFAULT_AWAIT_TIMEOUT_MS = 30_000;
+  private static final Set<String> FETCH_METHODS = Set.of("GET", "POST", "PUT", "PATCH", "DELETE", "HEAD");
+
+  static final int TEXT_AUTO = 0;
+  static final int TEXT_TYPE = 1;
+  static final int TEXT_PASTE = 2;
+
+  final int[] ops;
+  final int[] arg0;
+  final int[] arg1;
+  final String[] text;
+  final int[] delay;
+  final Motion[] motion;
+  final ScreenWait[] screenWait;
+  final ImageSearch[] imageSearch;
+  final Task[] task;
+  final int maxDepth;
+  final int stepCount;
+  final long totalSteps;
+  final Pacing pacing;
+  // stepPath() tables, built the first time a path is asked for: the
+  // enclosing REPEAT of each instruction (-1 at the top) and its index there.
+  private volatile int[] parents;
+  private int[] indexes;
+
+  // Frames of a MOUSE_GLIDE or MOUSE_PATH, one every frameNanos. A glide
+  // starts wherever the pointer is, so it stores eased progress per frame
+  // (0..PROGRESS_ONE) and the engine scales it; a path is absolute, so it
+  // stores the points themselves, starting at the first waypoint.
+  static final class Motion {
+    final long frameNanos;
+    final int[] progress;
+    final int[] xs;
+    final int[] ys;
+
+    Motion(long frameNanos, int[] progress, int[] xs, int[] ys) {
+      this.frameNanos = frameNanos;
+      this.progress = progress;
+      this.xs = xs;
+      this.ys = ys;
+    }
+  }
+
+  // A WAIT_UNTIL_* condition on a screen rectangle (1x1 for a pixel). The
+  // engine checks it every intervalNanos until it holds or timeoutNanos has
+  // passed; a timeout fails the run unless failOnTimeout is false.
+  static final class ScreenWait {
+    final int x;
+    final int y;
+    final int width;
+    final int height;
+    final int color;
+    final int tolerance;
+    final long stableNanos;
+    final long intervalNanos;
+    final long timeoutNanos;
+    final boolean failOnTimeout;
+
+    ScreenWait(int x, int y, int width, int height, int color, int tolerance, long stableNanos,
+        long intervalNanos, long timeoutNanos, boolean failOnTimeout) {
+      this.x = x;
+      this.y = y;
+      this.width = width;
+      this.height = height;
+      this.color = color;
+      this.tolerance = tolerance;
+      this.stableNanos = stableNanos;
+      this.intervalNanos = intervalNanos;
+      this.timeoutNanos = timeoutNanos;
+      this.failOnTimeout = failOnTimeout;
+    }
+  }
+
+  // A FIND_IMAGE/CLICK_IMAGE search. The region is in screen coordinates;
+  // width 0 means the whole screen. Until timeoutNanos has passed the
+  // search is retried every intervalNanos. The last match is kept and
+  // checked first next time, so a step inside a REPEAT only searches the
+  // whole region again once the image has moved.
+  static final class ImageSearch {
+    final int x;
+    final int y;
+    final int width;
+    final int height;
+    final TemplateMatcher.Template template;
+    final double threshold;
+    final long intervalNanos;
+    final long timeoutNanos;
+    final boolean failOnTimeout;
+    volatile TemplateMatcher.Match last;
+
+    ImageSearch(int x, int y, int width, int height, TemplateMatcher.Template template, double threshold,
+        long intervalNanos, long timeoutNanos, boolean failOnTimeout) {
+      this.x = x;
+      this.y = y;
+      this.width = width;
+      this.height = height;
+      this.template = template;
+      this.threshold = threshold;
+      this.intervalNanos = intervalNanos;
+      this.timeoutNanos = timeoutNanos;
+      this.failOnTimeout = failOnTimeout;
+    }
+  }
+
+  // A side effect, or the wait for some. An OPEN_URL, HTTP_FETCH or
+  // RUN_COMMAND with "async" or an "id" runs off the input thread and leaves
+  // its outcome in slot handle (-1: it runs in place). AWAIT waits for the
+  // slot of one id, JOIN for every slot, both for at most timeoutNanos. A
+  // failure (an exception, an HTTP status of 400 or more, a non-zero exit
+  // code) fails the run where it is seen unless failOnError is false.
+  static final class Task {
+    final int handle;
+    final String method;
+    final String url;
+    final String body;
+    final List<String> command;
+    final long timeoutNanos;
+    final boolean failOnTimeout;
+    final boolean failOnError;
+
+    Task(int handle, String method, String url, String body, List<String> command, long timeoutNanos,
+        boolean failOnTimeout, boolean failOnError) {
+      this.handle = handle;
+      this.method = method;
+      this.url = url;
+      this.body = body;
+      this.command = command;
+      this.timeoutNanos = timeoutNanos;
+      this.failOnTimeout = failOnTimeout;
+      this.failOnError = failOnError;
+    }
+  }
+
+  private MacroProgram(int[] ops, int[] arg0, int[] arg1, String[] text, int[] delay, Motion[] motion,
+      ScreenWait[] screenWait, ImageSearch[] imageSearch, Task[] task, int maxDepth, int stepCount,
+      long totalSteps, Pacing pacing) {
+    this.ops = ops;
+    this.arg0 = arg0;
+    this.arg1 = arg1;
+    this.text = text;
+    this.delay = delay;
+    this.motion = motion;
+    this.screenWait = screenWait;
+    this.imageSearch = imageSearch;
+    this.task = task;
+    this.maxDepth = maxDepth;
+    this.stepCount = stepCount;
+    this.totalSteps = totalSteps;
+    this.pacing = pacing;
+  }
+
+  int size() {
+    return ops.length;
+  }
+
+  // The step an instruction came from, e.g. "steps[2].steps[0]"; END maps
+  // to its REPEAT.
+  String stepPath(int pc) {
+    int[] parent = parents;
+    if (parent == null) {
+      parent = indexSteps();
+    }
+    StringBuilder path = new StringBuilder();
+    for (int at = pc; at >= 0; at = parent[at]) {
+      path.insert(0, "steps[" + indexes[at] + "]").insert(0, parent[at] >= 0 ? "." : "");
+    }
+    return path.toString();
+  }
+
+  private synchronized int[] indexSteps() {
+    if (parents != null) {
+      return parents;
+    }
+    int[] parent = new int[ops.length];
+    int[] index = new int[ops.length];
+    int[] open = new int[maxDepth + 1];
+    int[] next = new int[maxDepth + 1];
+    int depth = 0;
+    for (int pc = 0; pc < ops.length; pc++) {
+      if (ops[pc] == END) {
+        depth--;
+        parent[pc] = parent[arg1[pc]];
+        index[pc] = index[arg1[pc]];
+        continue;
+      }
+      parent[pc] = depth == 0 ? -1 : open[depth - 1];
+      index[pc] = next[depth]++;
+      if (ops[pc] == REPEAT) {
+        open[depth] = pc;
+        next[++depth] = 0;
+      }
+    }
+    indexes = index;
+    parents = parent;
+    return parent;
+  }
+
+  static int opCount() {
+    return OP_NAMES.length;
+  }
+
+  static String opName(int op) {
+    return OP_NAMES[op];
+  }
+
+  static MacroProgram compile(List<Map<String, Object>> steps) {
+    return compile(steps, Pacing.DEFAULT);
+  }
+
+  static MacroProgram compile(List<Map<String, Object>> steps, Pacing pacing) {
+    return compile(steps, pacing, new Handles());
+  }
+
+  // For programs run one after another as one run, e.g. streamed steps:
+  // sharing handles lets an AWAIT name an id a previous program started.
+  static MacroProgram compile(List<Map<String, Object>> steps, Pacing pacing, Handles handles) {
+    Compiler compiler = new Compiler(Integer.MAX_VALUE);
+    compiler.handles = handles;
+    long totalSteps = compiler.emitAll(steps, "steps", 0);
+    return compiler.build(totalSteps, pacing);
+  }
+
+  // Slot of each async step "id"; anonymous async steps get their own.
+  static final class Handles {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private int next;
+  }
+
+  // Builds a program one step at a time. Besides compiling a parsed step
+  // list, it lets MacroReader feed steps straight from a parser: a REPEAT is
+  // opened with beginRepeat, its body emitted, then closed with endRepeat.
+  static final class Compiler {
+    private final int maxInstructions;
+    private int[] ops = new int[16];
+    private int[] arg0 = new int[16];
+    private int[] arg1 = new int[16];
+    private String[] text = new String[16];
+    private int[] delay = new int[16];
+    private Motion[] motion = new Motion[16];
+    private ScreenWait[] screenWait = new ScreenWait[16];
+    private ImageSearch[] imageSearch = new ImageSearch[16];
+    private Task[] task = new Task[16];
+    private Handles handles = new Handles();
+    private int size;
+    private int maxDepth;
+    private int stepCount;
+    // Lenient mode, for simulation: problems that would fail the compile are
+    // collected here instead, and each instruction remembers its step path.
+    private final List<String> warnings;
+    private String[] paths;
+    private String path;
+
+    Compiler(int maxInstructions) {
+      this(maxInstructions, null);
+    }
+
+    Compiler(int maxInstructions, List<String> warnings) {
+      this.maxInstructions = maxInstructions;
+      this.warnings = warnings;
+      this.paths = warnings == null ? null : new String[16];
+    }
+
+    // The step an instruction came from; only kept in lenient mode.
+    String path(int pc) {
+      return paths == null || pc >= size ? null : paths[pc];
+    }
+
+    // A whole top-level step list; returns what emitAll does.
+    long emitSteps(List<?> steps) {
+      return emitAll(steps, "steps", 0);
+    }
+
+    // Returns the number of steps the list executes with REPEATs expanded,
+    // saturating at Long.MAX_VALUE.
+    private long emitAll(List<?> steps, String path, int depth) {
+      if (steps == null) {
+        return 0;
+      }
+      long total = 0;
+      for (int i = 0; i < steps.size(); i++) {
+        total = saturatedAdd(total, emit(steps.get(i), path + "[" + i + "]", depth));
+      }
+      return total;
+    }
+
+    @SuppressWarnings("unchecked")
+    long emit(Object raw, String path, int depth) {
+      if (!(raw instanceof Map)) {
+        throw new IllegalArgumentException(path + ": step must be an object");
+      }
+      Map<String, Object> step = (Map<String, Object>) raw;
+      Object typeValue = step.get("type");
+      if (typeValue == null) {
+        throw new IllegalArgumentException(path + ": missing type");
+      }
+      String type = typeValue.toString();
+      if ("REPEAT".equals(type)) {
+        return emitRepeat(step, path, depth);
+      }
+      this.path = path;
+      int stepDelay = step.containsKey("delayMs") ? Math.max(0, asInt(step, "delayMs", path)) : -1;
+      stepCount++;
+      switch (type) {
+        case "MOUSE_MOVE":
+          add(MOUSE_MOVE, requiredInt(step, "dx", path), requiredInt(step, "dy", path), null);
+          break;
+        case "MOUSE_MOVE_TO":
+          add(MOUSE_MOVE_TO, requiredInt(step, "x", path), requiredInt(step, "y", path), null);
+          break;
+        case "MOUSE_CLICK":
+          add(MOUSE_CLICK, buttonMask(step, path), Math.max(1, asInt(step, "count", path)), null);
+          break;
+        case "TYPE_TEXT": {
+          String value = asString(step.get("text"));
+          add(TYPE_TEXT, textMode(step, path), 0, value == null ? "" : value);
+          break;
+        }
+        case "WAIT_MS":
+          add(WAIT_MS, Math.max(0, asInt(step, "ms", path)), 0, null);
+          break;
+        case "CTRL_KEY":
+          add(PRESS_KEY, ctrlKeyCode(step, path), KeyEvent.VK_CONTROL, null);
+          break;
+        case "PRESS_KEY":
+          emitPressKey(step, path);
+          break;
+        case "OPEN_URL": {
+          int at = add(OPEN_URL, 0, 0, url(step, path));
+          if (async(step, path)) {
+            task[at] = new Task(handle(step, path), null, text[at], null, null, 0, true, false);
+          }
+          break;
+        }
+        case "HTTP_FETCH":
+          emitFetch(step, path);
+          break;
+        case "RUN_COMMAND":
+          emitCommand(step, path);
+          break;
+        case "AWAIT":
+          emitAwait(step, path);
+          break;
+        case "JOIN": {
+          int at = add(JOIN, 0, 0, null);
+          task[at] = new Task(-1, null, null, null, null,
+              Pacing.millis(optionalInt(step, "timeoutMs", DEFAULT_AWAIT_TIMEOUT_MS, path)),
+              failOn(step, "onTimeout", path), failOn(step, "onError", path));
+          break;
+        }
+        case "MOUSE_GLIDE":
+          emitGlide(step, path);
+          break;
+        case "MOUSE_PATH":
+          emitPath(step, path);
+          break;
+        case "WAIT_UNTIL_PIXEL":
+          emitScreenWait(WAIT_PIXEL, step, path);
+          break;
+        case "WAIT_UNTIL_REGION_CHANGES":
+          emitScreenWait(WAIT_REGION_CHANGES, step, path);
+          break;
+        case "WAIT_UNTIL_REGION_STABLE":
+          emitScreenWait(WAIT_REGION_STABLE, step, path);
+          break;
+        case "FIND_IMAGE":
+          emitImageSearch(FIND_IMAGE, 0, 0, step, path);
+          break;
+        case "CLICK_IMAGE":
+          emitImageSearch(CLICK_IMAGE, buttonMask(step, path), Math.max(1, asInt(step, "count", path)), step, path);
+          break;
+        case "SET_MODE":
+        case "START":
+          add(NOP, 0, 0, null);
+          warn(path + ": " + type + " has no effect");
+          break;
+        default:
+          if (warnings == null) {
+            throw new IllegalArgumentException(path + ": unknown step type " + type);
+          }
+          add(NOP, 0, 0, null);
+          warn(path + ": unknown step type " + type + ", skipped");
+          break;
+      }
+      delay[size - 1] = stepDelay;
+      return 1;
+    }
+
+    private long emitRepeat(Map<String, Object> step, String path, int depth) {
+      Object nested = step.get("steps");
+      if (!(nested instanceof List)) {
+        throw new IllegalArgumentException(path + ": REPEAT requires a steps array");
+      }
+      int begin = beginRepeat(path, depth);
+      long body = emitAll((List<?>) nested, path + ".steps", depth + 1);
+      return endRepeat(begin, step, path, body);
+    }
+
+    // Opens a REPEAT; its count is filled in by endRepeat, since a streamed
+    // step may carry "count" after "steps".
+    int beginRepeat(String path, int depth) {
+      this.path = path;
+      stepCount++;
+      maxDepth = Math.max(maxDepth, depth + 1);
+      return add(REPEAT, 1, 0, null);
+    }
+
+    // Closes the REPEAT opened at begin. step holds its fields other than
+    // "steps"; body is what the nested steps execute once.
+    long endRepeat(int begin, Map<String, Object> step, String path, long body) {
+      int count = Math.max(1, asInt(step, "count", path));
+      this.path = path;
+      int end = add(END, 0, begin, null);
+      arg0[begin] = count;
+      arg1[begin] = end;
+      if (step.containsKey("delayMs")) {
+        delay[end] = Math.max(0, asInt(step, "delayMs", path));
+      }
+      return saturatedAdd(1, saturatedMultiply(body, count));
+    }
+
+    private void emitGlide(Map<String, Object> step, String path) {
+      int frames = frameCount(step, path);
+      int easing = easing(step, path);
+      int[] progress = new int[frames];
+      for (int i = 0; i < frames; i++) {
+        progress[i] = (int) Math.round(ease(easing, (i + 1) / (double) frames) * PROGRESS_ONE);
+      }
+      int at = add(MOUSE_GLIDE, requiredInt(step, "x", path), requiredInt(step, "y", path), null);
+      motion[at] = new Motion(frameNanos(step, path, frames), progress, null, null);
+    }
+
+    // Waypoints are joined by straight lines and traversed by distance, so
+    // the eased speed is the same on every leg.
+    private void emitPath(Map<String, Object> step, String path) {
+      int[][] waypoints = waypoints(step, path);
+      int[] wx = waypoints[0];
+      int[] wy = waypoints[1];
+      double[] along = new double[wx.length];
+      for (int i = 1; i < wx.length; i++) {
+        along[i] = along[i - 1] + Math.hypot(wx[i] - wx[i - 1], wy[i] - wy[i - 1]);
+      }
+      double length = along[wx.length - 1];
+      int frames = frameCount(step, path);
+      int easing = easing(step, path);
+      int[] xs = new int[frames + 1];
+      int[] ys = new int[frames + 1];
+      xs[0] = wx[0];
+      ys[0] = wy[0];
+      int leg = 0;
+      for (int i = 1; i <= frames; i++) {
+        double target = ease(easing, i / (double) frames) * length;
+        while (leg < wx.length - 2 && along[leg + 1] < target) {
+          leg++;
+        }
+        double legLength = along[leg + 1] - along[leg];
+        double t = legLength == 0 ? 1 : Math.min(1, Math.max(0, (target - along[leg]) / legLength));
+        xs[i] = (int) Math.round(wx[leg] + t * (wx[leg + 1] - wx[leg]));
+        ys[i] = (int) Math.round(wy[leg] + t * (wy[leg + 1] - wy[leg]));
+      }
+      int at = add(MOUSE_PATH, wx[wx.length - 1], wy[wy.length - 1], null);
+      motion[at] = new Motion(frameNanos(step, path, frames), null, xs, ys);
+    }
+
+    private void emitScreenWait(int op, Map<String, Object> step, String path) {
+      int x = asInt(step, "x", path);
+      int y = asInt(step, "y", path);
+      int width = 1;
+      int height = 1;
+      int color = 0;
+      int tolerance = 0;
+      long stableNanos = 0;
+      if (op == WAIT_PIXEL) {
+        color = color(step, path);
+        tolerance = Math.max(0, Math.min(255, asInt(step, "tolerance", path)));
+      } else {
+        width = asInt(step, "width", path);
+        height = asInt(step, "height", path);
+        if (width < 1 || height < 1 || (long) width * height > MAX_REGION_PIXELS) {
+          throw new IllegalArgumentException(path + ": width and height must be positive and cover at most "
+              + MAX_REGION_PIXELS + " pixels");
+        }
+        if (op == WAIT_REGION_STABLE) {
+          stableNanos = Pacing.millis(optionalInt(step, "stableMs", DEFAULT_STABLE_MS, path));
+        }
+      }
+      int intervalMs = Math.max(MIN_POLL_INTERVAL_MS,
+          optionalInt(step, "intervalMs", DEFAULT_POLL_INTERVAL_MS, path));
+      int timeoutMs = optionalInt(step, "timeoutMs", DEFAULT_WAIT_TIMEOUT_MS, path);
+      int at = add(op, x, y, null);
+      screenWait[at] = new ScreenWait(x, y, width, height, color, tolerance, stableNanos,
+          Pacing.millis(intervalMs), Pacing.millis(timeoutMs), failOn(step, "onTimeout", path));
+    }
+
+    private void emitImageSearch(int op, int button, int count, Map<String, Object> step, String path) {
+      int x = 0;
+      int y = 0;
+      int width = 0;
+      int height = 0;
+      Object region = step.get("region");
+      if (region instanceof Map) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> rect = (Map<String, Object>) region;
+        x = asInt(rect, "x", path + ".region");
+        y = asInt(rect, "y", path + ".region");
+        width = asInt(rect, "width", path + ".region");
+        height = asInt(rect, "height", path + ".region");
+        if (width < 1 || height < 1) {
+          throw new IllegalArgumentException(path + ": region width and height must be positive");
+        }
+      } else if (region != null) {
+        throw new IllegalArgumentException(path + ": region must be {x, y, width, height}");
+      }
+      double threshold = DEFAULT_MATCH_THRESHOLD;
+      if (step.get("threshold") instanceof Number) {
+        threshold = ((Number) step.get("threshold")).doubleValue();
+      } else if (step.get("threshold") != null) {
+        throw new IllegalArgumentException(path + ": threshold must be a number");
+      }
+      if (threshold <= 0 || threshold > 1) {
+        throw new IllegalArgumentException(path + ": threshold must be in (0, 1]");
+      }
+      TemplateMatcher.Template template = new TemplateMatcher.Template(image(step, path), scales(step, path));
+      int intervalMs = Math.max(MIN_POLL_INTERVAL_MS,
+          optionalInt(step, "intervalMs", DEFAULT_POLL_INTERVAL_MS, path));
+      int timeoutMs = optionalInt(step, "timeoutMs", 0, path);
+      int at = add(op, button, count, null);
+      imageSearch[at] = new ImageSearch(x, y, width, height, template, threshold,
+          Pacing.millis(intervalMs), Pacing.millis(timeoutMs), failOn(step, "onNotFound", path));
+    }
+
+    private void emitFetch(Map<String, Object> step, String path) {
+      String url = url(step, path);
+      if (!url.regionMatches(true, 0, "http://", 0, 7) && !url.regionMatches(true, 0, "https://", 0, 8)) {
+        throw new IllegalArgumentException(path + ": HTTP_FETCH url must be http or https");
+      }
+      String method = asString(step.get("method"));
+      method = method == null ? "GET" : method.toUpperCase();
+      if (!FETCH_METHODS.contains(method)) {
+        throw new IllegalArgumentException(path + ": method must be one of " + FETCH_METHODS);
+      }
+      Object value = step.get("body");
+      String body;
+      if (value == null || value instanceof String) {
+        body = (String) value;
+      } else {
+        // An object or array is sent as JSON.
+        try {
+          body = Json.MAPPER.writeValueAsString(value);
+        } catch (IOException e) {
+          throw new IllegalArgumentException(path + ": body cannot be written as JSON");
+        }
+      }
+      int at = add(HTTP_FETCH, 0, 0, url);
+      task[at] = new Task(async(step, path) ? handle(step, path) : -1, method, url, body, null,
+          Pacing.millis(optionalInt(step, "timeoutMs", DEFAULT_FETCH_TIMEOUT_MS, path)), true,
+          failOn(step, "onError", path));
+    }
+
+    // "command" is the program and its arguments; no shell is involved.
+    private void emitCommand(Map<String, Object> step, String path) {
+      Object value = step.get("command");
+      if (!(value instanceof List) || ((List<?>) value).isEmpty()) {
+        throw new IllegalArgumentException(path + ": RUN_COMMAND requires a command array");
+      }
+      List<String> command = new ArrayList<>();
+      for (Object part : (List<?>) value) {
+        if (!(part instanceof String)) {
+          throw new IllegalArgumentException(path + ": command must be an array of strings");
+        }
+        command.add((String) part);
+      }
+      int at = add(RUN_COMMAND, 0, 0, command.get(0));
+      task[at] = new Task(async(step, path) ? handle(step, path) : -1, null, null, null, List.copyOf(command),
+          Pacing.millis(optionalInt(step, "timeoutMs", DEFAULT_COMMAND_TIMEOUT_MS, path)), true,
+          failOn(step, "onError", path));
+    }
+
+    private void emitAwait(Map<String, Object> step, String path) {
+      String id = asString(step.get("id"));
+      Integer slot = id == null ? null : handles.ids.get(id);
+      if (slot == null) {
+        throw new IllegalArgumentException(path + ": AWAIT needs the id of an earlier async step");
+      }
+      int at = add(AWAIT, slot, 0, id);
+      task[at] = new Task(slot, null, null, null, null,
+          Pacing.millis(optionalInt(step, "timeoutMs", DEFAULT_AWAIT_TIMEOUT_MS, path)),
+          failOn(step, "onTimeout", path), failOn(step, "onError", path));
+    }
+
+    private boolean async(Map<String, Object> step, String path) {
+      Object async = step.get("async");
+      if (async != null && !(async instanceof Boolean)) {
+        throw new IllegalArgumentException(path + ": async must be true or false");
+      }
+      return Boolean.TRUE.equals(async) || step.get("id") != null;
+    }
+
+    // A step reusing an id (e.g. inside a REPEAT) reuses its slot.
+    private int handle(Map<String, Object> step, String path) {
+      Object id = step.get("id");
+      if (id == null) {
+        return handles.next++;
+      }
+      if (!(id instanceof String) || ((String) id).isBlank()) {
+        throw new IllegalArgumentException(path + ": id must be a non-empty string");
+      }
+      return handles.ids.computeIfAbsent((String) id, key -> handles.next++);
+    }
+
+    private void emitPressKey(Map<String, Object> step, String path) {
+      String key = asString(step.get("key"));
+      if (key == null || key.isBlank()) {
+        throw new IllegalArgumentException(path + ": PRESS_KEY requires a key");
+      }
+      switch (key.toUpperCase()) {
+        case "ENTER":
+          add(PRESS_KEY, KeyEvent.VK_ENTER, 0, null);
+          break;
+        case "ESCAPE":
+          add(PRESS_KEY, KeyEvent.VK_ESCAPE, 0, null);
+          break;
+        case "CTRL_L":
+          add(PRESS_KEY, KeyEvent.VK_L, KeyEvent.VK_CONTROL, null);
+          break;
+        default:
+          throw new IllegalArgumentException(path + ": unsupported key " + key);
+      }
+    }
+
+    private void warn(String warning) {
+      if (warnings != null) {
+        warnings.add(warning);
+      }
+    }
+
+    private int add(int op, int a, int b, String value) {
+      if (size == maxInstructions) {
+        throw new IllegalArgumentException("macro exceeds " + maxInstructions + " instructions");
+      }
+      if (size == ops.length) {
+        int capacity = size * 2;
+        ops = Arrays.copyOf(ops, capacity);
+        arg0 = Arrays.copyOf(arg0, capacity);
+        arg1 = Arrays.copyOf(arg1, capacity);
+        text = Arrays.copyOf(text, capacity);
+        delay = Arrays.copyOf(delay, capacity);
+        motion = Arrays.copyOf(motion, capacity);
+        screenWait = Arrays.copyOf(screenWait, capacity);
+        imageSearch = Arrays.copyOf(imageSearch, capacity);
+        task = Arrays.copyOf(task, capacity);
+        if (paths != null) {
+          paths = Arrays.copyOf(paths, capacity);
+        }
+      }
+      if (paths != null) {
+        paths[size] = path;
+      }
+      ops[size] = op;
+      arg0[size] = a;
+      arg1[size] = b;
+      text[size] = value;
+      delay[size] = -1;
+      return size++;
+    }
+
+    MacroProgram build(long totalSteps, Pacing pacing) {
+      return new MacroProgram(
+          Arrays.copyOf(ops, size),
+          Arrays.copyOf(arg0, size),
+          Arrays.copyOf(arg1, size),
+          Arrays.copyOf(text, size),
+          Arrays.copyOf(delay, size),
+          Arrays.copyOf(motion, size),
+          Arrays.copyOf(screenWait, size),
+          Arrays.copyOf(imageSearch, size),
+          Arrays.copyOf(task, size),
+          maxDepth,
+          stepCount,
+          totalSteps,
+          pacing);
+    }
+  }
+
+  private static long saturatedAdd(long a, long b) {
+    long sum = a + b;
+    return sum < 0 ? Long.MAX_VALUE : sum;
+  }
+
+  private static long saturatedMultiply(long a, long b) {
+    long high = Math.multiplyHigh(a, b);
+    long low = a * b;
+    return high != 0 || low < 0 ? Long.MAX_VALUE : low;
+  }
+
+  private static int frameCount(Map<String, Object> step, String path) {
+    int durationMs = asInt(step, "durationMs", path);
+    if (durationMs < 0) {
+      throw new IllegalArgumentException(path + ": durationMs must not be negative");
+    }
+    int fps = step.containsKey("fps") ? asInt(step, "fps", path) : DEFAULT_FPS;
+    if (fps < 1 || fps > MAX_FPS) {
+      throw new IllegalArgumentException(path + ": fps must be between 1 and " + MAX_FPS);
+    }
+    long frames = Math.max(1, Math.round(durationMs * (double) fps / 1000));
+    if (frames > MAX_FRAMES) {
+      throw new IllegalArgumentException(path + ": motion is too long (" + frames + " frames)");
+    }
+    return (int) frames;
+  }
+
+  // Spreads the duration evenly over the frames, so the last frame lands on
+  // durationMs exactly even when fps does not divide it.
+  private static long frameNanos(Map<String, Object> step, String path, int frames) {
+    return asInt(step, "durationMs", path) * 1_000_000L / frames;
+  }
+
+  private static int easing(Map<String, Object> step, String path) {
+    String easing = asString(step.get("easing"));
+    if (easing == null) {
+      return LINEAR;
+    }
+    switch (easing.toUpperCase()) {
+      case "LINEAR":
+        return LINEAR;
+      case "EASE_IN":
+        return EASE_IN;
+      case "EASE_OUT":
+        return EASE_OUT;
+      case "EASE_IN_OUT":
+        return EASE_IN_OUT;
+      default:
+        throw new IllegalArgumentException(path + ": unsupported easing " + easing);
+    }
+  }
+
+  // Cubic curves; each maps 0 to 0 and 1 to 1 and never goes backwards.
+  private static double ease(int easing, double t) {
+    switch (easing) {
+      case EASE_IN:
+        return t * t * t;
+      case EASE_OUT: {
+        double u = 1 - t;
+        return 1 - u * u * u;
+      }
+      case EASE_IN_OUT:
+        return t < 0.5 ? 4 * t * t * t : 1 - Math.pow(-2 * t + 2, 3) / 2;
+      default:
+        return t;
+    }
+  }
+
+  // Accepts [{"x":..,"y":..}, ...] or [[x, y], ...].
+  private static int[][] waypoints(Map<String, Object> step, String path) {
+    Object raw = step.get("points");
+    if (!(raw instanceof List) || ((List<?>) raw).isEmpty()) {
+      throw new IllegalArgumentException(path + ": MOUSE_PATH requires a non-empty points array");
+    }
+    List<?> points = (List<?>) raw;
+    int[] xs = new int[Math.max(2, points.size())];
+    int[] ys = new int[xs.length];
+    for (int i = 0; i < points.size(); i++) {
+      String pointPath = path + ".points[" + i + "]";
+      Object point = points.get(i);
+      if (point instanceof Map) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> xy = (Map<String, Object>) point;
+        xs[i] = requiredInt(xy, "x", pointPath);
+        ys[i] = requiredInt(xy, "y", pointPath);
+      } else if (point instanceof List && ((List<?>) point).size() == 2
+          && ((List<?>) point).get(0) instanceof Number && ((List<?>) point).get(1) instanceof Number) {
+        xs[i] = ((Number) ((List<?>) point).get(0)).intValue();
+        ys[i] = ((Number) ((List<?>) point).get(1)).intValue();
+      } else {
+        throw new IllegalArgumentException(pointPath + ": point must be {x, y} or [x, y]");
+      }
+    }
+    if (points.size() == 1) {
+      // A single waypoint is a path that stays put.
+      xs[1] = xs[0];
+      ys[1] = ys[0];
+    }
+    return new int[][] {xs, ys};
+  }
+
+  private static int optionalInt(Map<String, Object> step, String field, int fallback, String path) {
+    if (!step.containsKey(field)) {
+      return fallback;
+    }
+    int value = asInt(step, field, path);
+    if (value < 0) {
+      throw new IllegalArgumentException(path + ": " + field + " must not be negative");
+    }
+    return value;
+  }
+
+  // "#RRGGBB", "RRGGBB" or an integer 0xRRGGBB.
+  private static int color(Map<String, Object> step, String path) {
+    Object value = step.get("color");
+    if (value instanceof Number) {
+      return ((Number) value).intValue() & 0xFFFFFF;
+    }
+    String hex = asString(value);
+    if (hex != null) {
+      hex = hex.trim();
+      if (hex.startsWith("#")) {
+        hex = hex.substring(1);
+      }
+      if (hex.length() == 6) {
+        try {
+          return Integer.parseInt(hex, 16);
+        } catch (NumberFormatException ignored) {
+          // Fall through to the error below.
+        }
+      }
+    }
+    throw new IllegalArgumentException(path + ": color must be \"#RRGGBB\" or an integer");
+  }
+
+  private static boolean failOn(Map<String, Object> step, String field, String path) {
+    String value = asString(step.get(field));
+    if (value == null || "FAIL".equalsIgnoreCase(value)) {
+      return true;
+    }
+    if ("CONTINUE".equalsIgnoreCase(value)) {
+      return false;
+    }
+    throw new IllegalArgumentException(path + ": " + field + " must be FAIL or CONTINUE");
+  }
+
+  // "image" is a base64 PNG/JPEG/GIF/BMP, optionally as a data: URL.
+  private static TemplateMatcher.Gray image(Map<String, Object> step, String path) {
+    String data = asString(step.get("image"));
+    if (data == null || data.isBlank()) {
+      throw new IllegalArgumentException(path + ": image is required (base64 PNG)");
+    }
+    int comma = data.indexOf(',');
+    if (data.startsWith("data:") && comma > 0) {
+      data = data.substring(comma + 1);
+    }
+    BufferedImage image;
+    try {
+      image = ImageIO.read(new ByteArrayInputStream(Base64.getMimeDecoder().decode(data.trim())));
+    } catch (IllegalArgumentException | IOException e) {
+      image = null;
+    }
+    if (image == null) {
+      throw new IllegalArgumentException(path + ": image is not a readable base64 image");
+    }
+    if (image.getWidth() > MAX_TEMPLATE_SIDE || image.getHeight() > MAX_TEMPLATE_SIDE) {
+      throw new IllegalArgumentException(path + ": image must be at most " + MAX_TEMPLATE_SIDE + " pixels per side");
+    }
+    return TemplateMatcher.Gray.of(image);
+  }
+
+  private static double[] scales(Map<String, Object> step, String path) {
+    Object raw = step.get("scales");
+    if (raw == null) {
+      return new double[] {1.0};
+    }
+    if (!(raw instanceof List) || ((List<?>) raw).isEmpty() || ((List<?>) raw).size() > MAX_SCALES) {
+      throw new IllegalArgumentException(path + ": scales must be a list of 1 to " + MAX_SCALES + " numbers");
+    }
+    List<?> list = (List<?>) raw;
+    double[] scales = new double[list.size()];
+    for (int i = 0; i < scales.length; i++) {
+      Object value = list.get(i);
+      if (!(value instanceof Number) || ((Number) value).doubleValue() < 0.25 || ((Number) value).doubleValue() > 4) {
+        throw new IllegalArgumentException(path + ".scales[" + i + "]: scale must be between 0.25 and 4");
+      }
+      scales[i] = ((Number) value).doubleValue();
+    }
+    return scales;
+  }
+
+  private static int buttonMask(Map<String, Object> step, String path) {
+    String button = asString(step.get("button"));
+    if (button == null || "LEFT".equalsIgnoreCase(button)) {
+      return InputEvent.BUTTON1_DOWN_MASK;
+    }
+    if ("RIGHT".equalsIgnoreCase(button)) {
+      return InputEvent.BUTTON3_DOWN_MASK;
+    }
+    throw new IllegalArgumentException(path + ": unsupported button " + button);
+  }
+
+  private static int textMode(Map<String, Object> step, String path) {
+    String mode = asString(step.get("mode"));
+    if (mode == null || "AUTO".equalsIgnoreCase(mode)) {
+      return TEXT_AUTO;
+    }
+    if ("TYPE".equalsIgnoreCase(mode)) {
+      return TEXT_TYPE;
+    }
+    if ("PASTE".equalsIgnoreCase(mode)) {
+      return TEXT_PASTE;
+    }
+    throw new IllegalArgumentException(path + ": unsupported text mode " + mode);
+  }
+
+  private static int ctrlKeyCode(Map<String, Object> step, String path) {
+    String key = asString(step.get("key"));
+    if (key == null || key.isBlank()) {
+      throw new IllegalArgumentException(path + ": CTRL_KEY requires a key");
+    }
+    switch (key.toUpperCase()) {
+      case "A":
+        return KeyEvent.VK_A;
+      case "C":
+        return KeyEvent.VK_C;
+      case "V":
+        return KeyEvent.VK_V;
+      default:
+        throw new IllegalArgumentException(path + ": unsupported ctrl key " + key);
+    }
+  }
+
+  private static String url(Map<String, Object> step, String path) {
+    String url = asString(step.get("url"));
+    if (url == null || url.isBlank()) {
+      throw new IllegalArgumentException(path + ": " + step.get("type") + " requires a url");
+    }
+    try {
+      URI.create(url);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(path + ": invalid url " + url);
+    }
+    return url;
+  }
+
+  // For coordinates and offsets, where a missing value must not mean 0.
+  private static int requiredInt(Map<String, Object> step, String field, String path) {
+    if (step.get(field) == null) {
+      throw new IllegalArgumentException(path + ": " + field + " is required");
+    }
+    return asInt(step, field, path);
+  }
+
+  private static int asInt(Map<String, Object> step, String field, String path) {
+    Object value = step.get(field);
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof Number) {
+      return ((Number) value).intValue();
+    }
+    if (value instanceof String) {
+      try {
+        return Integer.parseInt(((String) value).trim());
+      } catch (NumberFormatException ignored) {
+        // Fall through to the error below.
+      }
+    }
+    throw new IllegalArgumentException(path + ": " + field + " must be an integer");
+  }
+
+  private static String asString(Object value) {
+    if (value == null) {
+      return null;
+    }
+    return value.toString();
+  }
+}
@@ -0,0 +1,330 @@
+package com.journeyhacks.server;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadConstraints;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Reads a /macros/run body straight from the request stream into a
+// MacroProgram. Steps go to the compiler one at a time as the parser reaches
+// them, so the only per-step garbage is a small field map; no String copy of
+// the body and no List/Map tree of the whole macro is built. JSON, Smile and
+// CBOR bodies are accepted, picked by Content-Type.
+final class MacroReader {
+  static final String SMILE_TYPE = "application/x-jackson-smile";
+  static final String CBOR_TYPE = "application/cbor";
+
+  // Thrown when the body exceeds a size limit; maps to 413.
+  static final class TooLarge extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    TooLarge(String message) {
+      super(message);
+    }
+  }
+
+  static final class Parsed {
+    final MacroProgram program;
+    final int steps;
+    final Integer priority;
+    final String mode;
+
+    Parsed(MacroProgram program, int steps, Integer priority, String mode) {
+      this.program = program;
+      this.steps = steps;
+      this.priority = priority;
+      this.mode = mode;
+    }
+  }
+
+  // A request read whole and run through MacroOptimizer; request.steps are
+  // the steps as sent.
+  static final class Optimized {
+    final MacroServer.MacroRequest request;
+    final MacroOptimizer.Result optimization;
+    final Parsed parsed;
+
+    Optimized(MacroServer.MacroRequest request, MacroOptimizer.Result optimization, Parsed parsed) {
+      this.request = request;
+      this.optimization = optimization;
+      this.parsed = parsed;
+    }
+  }
+
+  private final long maxBytes;
+  private final int maxDepth;
+  private final int maxInstructions;
+  private final ObjectMapper json;
+  private final ObjectMapper smile;
+  private final ObjectMapper cbor;
+
+  MacroReader(long maxBytes, int maxDepth, int maxInstructions) {
+    this.maxBytes = maxBytes;
+    this.maxDepth = maxDepth;
+    this.maxInstructions = maxInstructions;
+    // Each REPEAT level is an object inside an array; leave room for the
+    // values inside a step, such as MOUSE_PATH points.
+    StreamReadConstraints constraints = StreamReadConstraints.builder()
+        .maxNestingDepth(2 * maxDepth + 8)
+        .build();
+    this.json = new ObjectMapper(JsonFactory.builder().streamReadConstraints(constraints).build());
+    this.smile = new ObjectMapper(SmileFactory.builder().streamReadConstraints(constraints).build());
+    this.cbor = new ObjectMapper(CBORFactory.builder().streamReadConstraints(constraints).build());
+  }
+
+  // A compiler that collects problems as warnings; see MacroSimulator.
+  MacroProgram.Compiler lenientCompiler(List<String> warnings) {
+    return new MacroProgram.Compiler(maxInstructions, warnings);
+  }
+
+  long maxBytes() {
+    return maxBytes;
+  }
+
+  // Throws IllegalArgumentException for a well-formed body that is not a
+  // valid macro, TooLarge past a limit, and JsonProcessingException for a
+  // malformed body.
+  Parsed read(InputStream body, String contentType) throws IOException {
+    return read(body, contentType, new MacroProgram.Compiler(maxInstructions));
+  }
+
+  // Reads into the given compiler, e.g. a lenient one for simulation.
+  Parsed read(InputStream body, String contentType, MacroProgram.Compiler compiler) throws IOException {
+    try (JsonParser parser = mapper(contentType).createParser(new LimitedInputStream(body, maxBytes))) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IllegalArgumentException("request must be an object");
+      }
+      long totalSteps = 0;
+      int steps = 0;
+      Map<String, Object> pacing = null;
+      Integer priority = null;
+      String mode = null;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.currentName();
+        JsonToken token = parser.nextToken();
+        switch (field) {
+          case "steps":
+            if (token == JsonToken.VALUE_NULL) {
+              break;
+            }
+            expect(token, JsonToken.START_ARRAY, "steps");
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+              totalSteps = saturatedAdd(totalSteps, readStep(parser, compiler, "steps[" + steps + "]", 0));
+              steps++;
+            }
+            break;
+          case "pacing":
+            if (token != JsonToken.VALUE_NULL) {
+              expect(token, JsonToken.START_OBJECT, "pacing");
+              pacing = readObject(parser);
+            }
+            break;
+          case "priority":
+            priority = token == JsonToken.VALUE_NULL ? null : parser.getValueAsInt();
+            break;
+          case "mode":
+            mode = token == JsonToken.VALUE_NULL ? null : parser.getValueAsString();
+            break;
+          default:
+            parser.skipChildren();
+            break;
+        }
+      }
+      return new Parsed(compiler.build(totalSteps, Pacing.from(pacing)), steps, priority, mode);
+    }
+  }
+
+  // A library macro read whole, since the store keeps its steps as sent,
+  // and compiled under the same limits as /macros/run.
+  static final class Saved {
+    final MacroServer.SavedMacro request;
+    final MacroProgram program;
+
+    Saved(MacroServer.SavedMacro request, MacroProgram program) {
+      this.request = request;
+      this.program = program;
+    }
+  }
+
+  Saved readSaved(InputStream body, String contentType) throws IOException {
+    MacroServer.SavedMacro request = readWhole(body, contentType, MacroServer.SavedMacro.class);
+    if (request.steps == null) {
+      request.steps = List.of();
+    }
+    return new Saved(request, compile(request.steps, Pacing.from(request.pacing)));
+  }
+
+  // The optimizer needs the whole step list, so this builds the tree the
+  // streaming read avoids. Compile errors name the steps as sent, not as
+  // rewritten.
+  Optimized readOptimized(InputStream body, String contentType) throws IOException {
+    MacroServer.MacroRequest request = readWhole(body, contentType, MacroServer.MacroRequest.class);
+    Pacing pacing = Pacing.from(request.pacing);
+    MacroOptimizer.Result optimization = MacroOptimizer.optimize(request.steps, pacing);
+    MacroProgram program;
+    try {
+      program = compile(optimization.steps, pacing);
+    } catch (IllegalArgumentException e) {
+      compile(request.steps, pacing);
+      throw e;
+    }
+    return new Optimized(request, optimization,
+        new Parsed(program, optimization.steps.size(), request.priority, request.mode));
+  }
+
+  private <T> T readWhole(InputStream body, String contentType, Class<T> type) throws IOException {
+    T request;
+    try (JsonParser parser = mapper(contentType).createParser(new LimitedInputStream(body, maxBytes))) {
+      request = mapper(contentType).readerFor(type)
+          .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+          .readValue(parser);
+    }
+    if (request == null) {
+      throw new IllegalArgumentException("request must be an object");
+    }
+    return request;
+  }
+
+  private MacroProgram compile(List<Map<String, Object>> steps, Pacing pacing) {
+    MacroProgram.Compiler compiler = new MacroProgram.Compiler(maxInstructions);
+    MacroProgram program = compiler.build(compiler.emitSteps(steps), pacing);
+    if (program.maxDepth > maxDepth) {
+      throw new IllegalArgumentException("REPEAT nesting exceeds " + maxDepth + " levels");
+    }
+    return program;
+  }
+
+  private ObjectMapper mapper(String contentType) {
+    if (contentType != null && contentType.startsWith(SMILE_TYPE)) {
+      return smile;
+    }
+    if (contentType != null && contentType.startsWith(CBOR_TYPE)) {
+      return cbor;
+    }
+    return json;
+  }
+
+  // The parser is on the step's START_OBJECT. Scalar and small structured
+  // fields are collected into a map; a nested "steps" array is streamed into
+  // the compiler between beginRepeat and endRepeat.
+  private long readStep(JsonParser parser, MacroProgram.Compiler compiler, String path, int depth)
+      throws IOException {
+    if (parser.currentToken() != JsonToken.START_OBJECT) {
+      throw new IllegalArgumentException(path + ": step must be an object");
+    }
+    Map<String, Object> fields = new HashMap<>(8);
+    int begin = -1;
+    long body = 0;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.currentName();
+      JsonToken token = parser.nextToken();
+      if ("steps".equals(field) && token == JsonToken.START_ARRAY) {
+        Object type = fields.get("type");
+        if (type != null && !"REPEAT".equals(type)) {
+          throw new IllegalArgumentException(path + ": only REPEAT steps may contain steps");
+        }
+        if (begin >= 0) {
+          throw new IllegalArgumentException(path + ": duplicate steps array");
+        }
+        if (depth + 1 > maxDepth) {
+          throw new IllegalArgumentException(path + ": REPEAT nesting exceeds " + maxDepth + " levels");
+        }
+        begin = compiler.beginRepeat(path, depth);
+        int index = 0;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+          body = saturatedAdd(body, readStep(parser, compiler, path + ".steps[" + index + "]", depth + 1));
+          index++;
+        }
+      } else {
+        fields.put(field, readValue(parser, token));
+      }
+    }
+    if (begin < 0) {
+      return compiler.emit(fields, path, depth);
+    }
+    if (!"REPEAT".equals(fields.get("type"))) {
+      throw new IllegalArgumentException(path + ": only REPEAT steps may contain steps");
+    }
+    return compiler.endRepeat(begin, fields, path, body);
+  }
+
+  private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+    switch (token) {
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+      case VALUE_NUMBER_FLOAT:
+        return parser.getNumberValue();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NULL:
+        return null;
+      default:
+        return parser.readValueAs(Object.class);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> readObject(JsonParser parser) throws IOException {
+    return parser.readValueAs(Map.class);
+  }
+
+  private static void expect(JsonToken actual, JsonToken expected, String path) {
+    if (actual != expected) {
+      throw new IllegalArgumentException(path + ": expected " + (expected == JsonToken.START_ARRAY ? "an array" : "an object"));
+    }
+  }
+
+  private static long saturatedAdd(long a, long b) {
+    long sum = a + b;
+    return sum < 0 ? Long.MAX_VALUE : sum;
+  }
+
+  // Fails the read once more than limit bytes have come through.
+  private static final class LimitedInputStream extends FilterInputStream {
+    private final long limit;
+    private long count;
+
+    LimitedInputStream(InputStream in, long limit) {
+      super(in);
+      this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        count(read);
+      }
+      return read;
+    }
+
+    private void count(int read) throws TooLarge {
+      count += read;
+      if (count > limit) {
+        throw new TooLarge("request body exceeds " + limit + " bytes");
+      }
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package com.journeyhacks.server;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// One submitted macro. Each run owns its stop flag, so cancelling one run
+// can never leak into the next; state changes go through compareAndSet.
+// A streaming run has no program up front: segments are appended while it
+// executes (e.g. steps arriving from the model) until the feed is closed.
+final class MacroRun {
+  private static final MacroProgram END_OF_FEED = MacroProgram.compile(List.of());
+
+  enum State {
+    QUEUED,
+    RUNNING,
+    COMPLETED,
+    CANCELLED,
+    FAILED
+  }
+
+  final String id;
+  final MacroProgram program;
+  final int priority;
+  final boolean preempt;
+  final long sequence;
+  final AtomicBoolean running = new AtomicBoolean(true);
+  final AtomicLong executed = new AtomicLong();
+  final CompletableFuture<State> done = new CompletableFuture<>();
+  private final AtomicReference<State> state = new AtomicReference<>(State.QUEUED);
+  private final BlockingQueue<MacroProgram> feed;
+  private volatile long totalSteps;
+  private volatile int stepCount;
+  private final long submittedAt = System.currentTimeMillis();
+  private volatile long startedAt;
+  // System.nanoTime() at start, the origin for ExecutionTrace step times.
+  volatile long startedNanos;
+  private volatile long finishedAt;
+  private volatile String error;
+
+  MacroRun(String id, MacroProgram program, int priority, boolean preempt, long sequence, boolean streaming) {
+    this.id = id;
+    this.program = program;
+    this.priority = priority;
+    this.preempt = preempt;
+    this.sequence = sequence;
+    this.feed = streaming ? new LinkedBlockingQueue<>() : null;
+    this.totalSteps = program.totalSteps;
+    this.stepCount = program.stepCount;
+  }
+
+  boolean streaming() {
+    return feed != null;
+  }
+
+  synchronized void append(MacroProgram segment) {
+    totalSteps += segment.totalSteps;
+    stepCount += segment.stepCount;
+    feed.add(segment);
+  }
+
+  void closeFeed() {
+    feed.add(END_OF_FEED);
+  }
+
+  // Blocks until the next segment arrives. Returns null once the feed is
+  // closed or the run is stopped.
+  MacroProgram nextSegment() {
+    try {
+      while (running.get()) {
+        MacroProgram segment = feed.poll(50, TimeUnit.MILLISECONDS);
+        if (segment == END_OF_FEED) {
+          return null;
+        }
+        if (segment != null) {
+          return segment;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return null;
+  }
+
+  State state() {
+    return state.get();
+  }
+
+  boolean start() {
+    if (!running.get() || !state.compareAndSet(State.QUEUED, State.RUNNING)) {
+      return false;
+    }
+    startedAt = System.currentTimeMillis();
+    startedNanos = System.nanoTime();
+    return true;
+  }
+
+  void finish(State outcome, String message) {
+    State previous = state.get();
+    if (previous == State.COMPLETED || previous == State.CANCELLED || previous == State.FAILED) {
+      return;
+    }
+    if (!state.compareAndSet(previous, outcome)) {
+      return;
+    }
+    error = message;
+    finishedAt = System.currentTimeMillis();
+    running.set(false);
+    done.complete(outcome);
+  }
+
+  // Returns true if this call moved a queued run straight to CANCELLED. A
+  // running run only has its flag cleared; the worker records the outcome.
+  boolean cancel() {
+    running.set(false);
+    if (state.compareAndSet(State.QUEUED, State.CANCELLED)) {
+      finishedAt = System.currentTimeMillis();
+      done.complete(State.CANCELLED);
+      return true;
+    }
+    return false;
+  }
+
+  boolean isFinished() {
+    return done.isDone();
+  }
+
+  Map<String, Object> summary() {
+    Map<String, Object> summary = new LinkedHashMap<>();
+    long total = totalSteps;
+    long steps = executed.get();
+    long now = System.currentTimeMillis();
+    summary.put("id", id);
+    summary.put("state", state.get().name());
+    summary.put("priority", priority);
+    summary.put("mode", preempt ? "PREEMPT" : "ENQUEUE");
+    if (feed != null) {
+      summary.put("streaming", true);
+    }
+    summary.put("steps", stepCount);
+    summary.put("totalSteps", total);
+    summary.put("executedSteps", steps);
+    summary.put("progress", total == 0 ? 1.0 : Math.min(1.0, (double) steps / total));
+    summary.put("submittedAt", submittedAt);
+    if (startedAt != 0) {
+      summary.put("startedAt", startedAt);
+      summary.put("queuedMs", startedAt - submittedAt);
+      summary.put("elapsedMs", (finishedAt != 0 ? finishedAt : now) - startedAt);
+    }
+    if (finishedAt != 0) {
+      summary.put("finishedAt", finishedAt);
+    }
+    if (error != null) {
+      summary.put("error", error);
+    }
+    return summary;
+  }
+}
@@ -1,86 +1,352 @@
 package com.journeyhacks.server;
 
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import java.awt.AWTException;
-import java.awt.Desktop;
 import java.awt.MouseInfo;
 import java.awt.Point;
+import java.awt.PointerInfo;
 import java.awt.Robot;
-import java.awt.event.KeyEvent;
-import java.awt.event.InputEvent;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.net.URLDecoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class MacroServer {
   private static final String GEMINI_API_KEY = "OBFUSCATED";
   private static final String GEMINI_MODEL = "gemini-flash-latest";
-  private static final ObjectMapper MAPPER = new ObjectMapper()
-      .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+  private static final String GEMINI_BASE_URL = "https://generativelanguage.googleapis.com/v1beta";
+  private static final long STOP_TIMEOUT_MS = 1000;
+  private static final int HTTP_MAX_THREADS = 32;
+  // Pool threads beyond the slots, for control endpoints and 503 replies.
+  private static final int HTTP_SPARE_THREADS = 8;
+  private static final int HTTP_OVERFLOW_THREADS = 2;
+  private static final int TRACE_CAPACITY = 4096;
+  // Requests in flight outside the control endpoints; see route().
+  private static final Semaphore HTTP_SLOTS = new Semaphore(HTTP_MAX_THREADS);
+  private static final Metrics.Counter REJECTED = Metrics.counter(
+      "http_requests_rejected_total", "Requests answered 503 because every HTTP slot was busy.").labels();
+  private static final Metrics.Counter OVERFLOWED = Metrics.counter(
+      "http_requests_overflowed_total", "Requests handed to the overflow threads because the HTTP pool was full.")
+      .labels();
+  // True on the overflow threads, which only serve control endpoints and
+  // answer everything else 503.
+  private static final ThreadLocal<Boolean> OVERFLOW = ThreadLocal.withInitial(() -> false);
+  private static final String SYSTEM_PROMPT =
+      "You are a macro JSON generator. Output ONLY valid JSON with shape: "
+          + "{\"steps\":[...]}.\n"
+          + "Supported action types:\n"
+          + "- {\"kind\":\"ACTION\",\"type\":\"MOUSE_MOVE\",\"dx\":int,\"dy\":int}\n"
+          + "- {\"kind\":\"ACTION\",\"type\":\"MOUSE_MOVE_TO\",\"x\":int,\"y\":int}\n"
+          + "- {\"kind\":\"ACTION\",\"type\":\"MOUSE_GLIDE\",\"x\":int,\"y\":int,\"durationMs\":int,"
+          + "\"easing\":\"LINEAR|EASE_IN|EASE_OUT|EASE_IN_OUT\"}\n"
+          + "- {\"kind\":\"ACTION\",\"type\":\"MOUSE_PATH\",\"points\":[[x,y],...],\"durationMs\":int}\n"
+          + "- {\"kind\":\"ACTION\",\"type\":\"MOUSE_CLICK\",\"button\":\"LEFT|RIGHT\",\"count\":int}\n"
+          + "- {\"kind\":\"ACTION\",\"type\":\"TYPE_TEXT\",\"text\":\"...\"}\n"
+          + "- {\"kind\":\"ACTION\",\"type\":\"WAIT_MS\",\"ms\":int}\n"
+          + "- {\"kind\":\"ACTION\",\"type\":\"WAIT_UNTIL_PIXEL\",\"x\":int,\"y\":int,\"color\":\"#RRGGBB\","
+          + "\"timeoutMs\":int}\n"
+          + "- {\"kind\":\"ACTION\",\"type\":\"WAIT_UNTIL_REGION_CHANGES|WAIT_UNTIL_REGION_STABLE\",\"x\":int,"
+          + "\"y\":int,\"width\":int,\"height\":int,\"timeoutMs\":int}\n"
+          + "- {\"kind\":\"ACTION\",\"type\":\"PRESS_KEY\",\"key\":\"ENTER|ESCAPE|CTRL_L\"}\n"
+          + "- {\"kind\":\"ACTION\",\"type\":\"OPEN_URL\",\"url\":\"https://...\"}\n"
+          + "- {\"kind\":\"CONTROL\",\"type\":\"REPEAT\",\"count\":int,\"steps\":[...]}\n"
+          + "Use integers for coordinates and ms. No explanations.\n";
+  private static final String SYSTEM_PROMPT_VERSION = Integer.toHexString(SYSTEM_PROMPT.hashCode());
 
-  private final ExecutorService macroExecutor = Executors.newSingleThreadExecutor();
-  private final AtomicBoolean running = new AtomicBoolean(false);
-  private final AtomicReference<MacroRequest> lastRequest = new AtomicReference<>();
-  private final AtomicReference<Thread> macroThread = new AtomicReference<>();
-  private Robot robot;
-  private final HttpClient httpClient = HttpClient.newHttpClient();
+  private Lazy<RunQueue> runQueue;
+  private Lazy<AiResponseCache> aiCache;
+  private Lazy<PromptIndex> promptIndex;
+  private Lazy<MacroStore> macroStore;
+  private Lazy<AiLimiter> aiLimiter;
+  private Lazy<MacroReader> macroReader;
+  private MouseStream mouseStream;
+  private Lazy<ProgressStream> progressStream;
+  private final MouseRecorder mouseRecorder = new MouseRecorder(MacroServer::pointerLocation);
+  private final ExecutorService aiWorkers = Executors.newCachedThreadPool(daemonThreads("ai-worker"));
+  private Lazy<GeminiClient> gemini;
+  // Only in coordinator mode (--coordinator=on or --agents=...).
+  private Lazy<Coordinator> coordinator;
 
   public static void main(String[] args) throws Exception {
-    int port = 8080;
-    Path uiRoot = Paths.get("backend").toAbsolutePath().normalize();
+    ServerConfig config = ServerConfig.parse(args);
+    if (config.cdsTrain) {
+      new MacroServer().train(config);
+      System.exit(0);
+    }
+    new MacroServer().start(config);
+  }
 
-    for (String arg : args) {
-      if (arg.startsWith("--port=")) {
-        port = Integer.parseInt(arg.substring("--port=".length()));
-      } else if (arg.startsWith("--ui=")) {
-        uiRoot = Paths.get(arg.substring("--ui=".length())).toAbsolutePath().normalize();
+  // Subsystems are created on first use. By default they are all started
+  // before the port is bound, as before; with --fast-start the port is
+  // bound first and, unless --warm-up=off, they start on a background
+  // thread while the UI is already being served.
+  private HttpServer start(ServerConfig config) throws IOException {
+    int port = config.port;
+    Path uiRoot = config.uiRoot;
+    macroStore = new Lazy<>("macro store", () -> {
+      try {
+        return new MacroStore(config.dataDir);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
       }
+    });
+    macroReader = new Lazy<>("macro reader",
+        () -> new MacroReader(config.maxMacroBytes, config.maxMacroDepth, config.maxMacroSteps));
+    aiCache = new Lazy<>("AI cache",
+        () -> new AiResponseCache(config.aiCacheSize, config.aiCacheTtlSeconds, config.aiCacheFile));
+    promptIndex = new Lazy<>("prompt index", () -> new PromptIndex(config.aiSimilarSize,
+        config.aiSimilarThreshold, config.dataDir.resolve("prompt-index.json")));
+    aiLimiter = new Lazy<>("AI limiter",
+        () -> new AiLimiter(config.aiMaxConcurrent, config.aiMaxQueued, config.aiQueueTimeoutMs));
+    gemini = new Lazy<>("Gemini client", () -> new GeminiClient(HttpClient.newHttpClient(),
+        Stream.concat(Stream.of(geminiModel()), config.geminiFallbackModels.stream()).distinct()
+            .collect(Collectors.toList()),
+        config.gemini));
+    runQueue = new Lazy<>("Robot", () -> startRunQueue(config.allowCommands));
+    if (config.coordinator) {
+      coordinator = new Lazy<>("coordinator",
+          () -> new Coordinator(config.agents, config.agentTimeoutMs, config.agentStopTimeoutMs));
+    }
+    progressStream = new Lazy<>("progress stream", () -> new ProgressStream(runQueue.get().trace(),
+        runQueue.get()::current, Executors.newCachedThreadPool(daemonThreads("progress-writer"))));
+    if (!config.fastStart) {
+      try {
+        warmUp(false);
+      } catch (Lazy.Unavailable e) {
+        throw new IOException(e.getMessage(), e.getCause());
+      }
+    }
+
+    mouseStream = new MouseStream(MacroServer::pointerLocation, config.mouseSamplesPerSecond,
+        Executors.newCachedThreadPool(daemonThreads("mouse-writer")));
+
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+    route(server, "/macros", new MacroLibraryHandler());
+    route(server, "/macros/run", new RunHandler());
+    route(server, "/macros/simulate", new SimulateHandler());
+    route(server, "/macros/optimize", new OptimizeHandler());
+    control(server, "/macros/stop", new StopHandler());
+    control(server, "/macros/runs", new RunsHandler());
+    route(server, "/macros/progress", new ProgressHandler());
+    route(server, "/macros/record", new RecordHandler());
+    control(server, "/mouse/position", new MousePositionHandler());
+    route(server, "/mouse/stream", new MouseStreamHandler());
+    route(server, "/ai/generate", new AiGenerateHandler());
+    route(server, "/ai/generate/stream", new AiStreamHandler());
+    route(server, "/ai/models", new AiModelsHandler());
+    route(server, "/metrics", new MetricsHandler());
+    if (coordinator != null) {
+      route(server, "/agents", new AgentsHandler());
+    }
+    StaticHandler staticHandler = new StaticHandler(uiRoot);
+    if (config.uiCache) {
+      StaticAssets assets = new StaticAssets(uiRoot);
+      System.out.println("UI cache: " + assets.size() + " files");
+      staticHandler = new StaticHandler(uiRoot, assets, config.uiMaxAgeSeconds);
     }
+    route(server, "/", staticHandler);
+    // Every request gets a pool thread, so the dispatcher never runs a
+    // handler itself. Ordinary requests are capped at HTTP_MAX_THREADS in
+    // route() and answered 503 beyond that; the spare threads keep the
+    // control endpoints answering meanwhile. When a burst fills the pool
+    // too, requests queue for a couple of overflow threads that serve only
+    // control endpoints and answer the rest 503, so no burst creates more
+    // than a fixed number of threads.
+    ThreadPoolExecutor overflow = new ThreadPoolExecutor(HTTP_OVERFLOW_THREADS, HTTP_OVERFLOW_THREADS,
+        0, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), overflowThreads());
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(4, HTTP_MAX_THREADS + HTTP_SPARE_THREADS,
+        60, TimeUnit.SECONDS, new SynchronousQueue<>(), daemonThreads("http"), (task, pool) -> {
+          OVERFLOWED.inc();
+          overflow.execute(task);
+        });
+    server.setExecutor(executor);
+    registerGauges(executor, overflow);
+    server.start();
+    Startup.listening(server.getAddress().getPort());
 
-    new MacroServer().start(port, uiRoot);
+    System.out.println("Macro server running on http://localhost:" + port + "/");
+    System.out.println("UI root: " + uiRoot);
+    if (config.fastStart && config.warmUp) {
+      Thread warmer = new Thread(() -> {
+        long started = System.nanoTime();
+        warmUp(true);
+        System.out.println("Warm-up done in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+      }, "warm-up");
+      warmer.setDaemon(true);
+      warmer.start();
+    }
+    return server;
   }
 
-  private void start(int port, Path uiRoot) throws IOException {
+  private static RunQueue startRunQueue(boolean allowCommands) {
+    Robot robot;
     try {
       robot = new Robot();
-      robot.setAutoDelay(10);
     } catch (AWTException e) {
-      throw new IOException("Failed to initialize Robot. Are you running with a desktop session?", e);
+      throw new Lazy.Unavailable("Failed to initialize Robot. Are you running with a desktop session?", e);
     }
+    robot.setAutoDelay(10);
+    ExecutionTrace trace = new ExecutionTrace(TRACE_CAPACITY);
+    MacroEngine engine = new MacroEngine(new MeteredInputDevice(new RobotInputDevice(robot, allowCommands)),
+        StepScheduler::new, MacroEngine.METRICS.andThen(trace));
+    return new RunQueue(engine, trace);
+  }
 
-    HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-    server.createContext("/macros/run", new RunHandler());
-    server.createContext("/macros/stop", new StopHandler());
-    server.createContext("/mouse/position", new MousePositionHandler());
-    server.createContext("/ai/generate", new AiGenerateHandler());
-    server.createContext("/ai/models", new AiModelsHandler());
-    server.createContext("/", new StaticHandler(uiRoot));
-    server.setExecutor(Executors.newCachedThreadPool());
-    server.start();
+  // Starts every subsystem, JSON first since nearly every handler needs it.
+  // With tolerant set a failure is left for its first use to report.
+  private void warmUp(boolean tolerant) {
+    try {
+      Json.MAPPER.readValue(Json.MAPPER.writeValueAsBytes(Map.of("steps", List.of())), MacroRequest.class);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    List<Lazy<?>> subsystems = new ArrayList<>(List.of(macroStore, macroReader, aiCache, promptIndex, aiLimiter,
+        gemini, runQueue, progressStream));
+    if (coordinator != null) {
+      subsystems.add(0, coordinator);
+    }
+    for (Lazy<?> subsystem : subsystems) {
+      try {
+        subsystem.get();
+      } catch (Lazy.Unavailable e) {
+        if (!tolerant) {
+          throw e;
+        }
+      }
+    }
+  }
 
-    System.out.println("Macro server running on http://localhost:" + port + "/");
-    System.out.println("UI root: " + uiRoot);
+  // --cds-train=on: start on a free port, send each common request once and
+  // exit. Run under -XX:ArchiveClassesAtExit (see the cds profile in
+  // pom.xml) this records the classes they load into an AppCDS archive.
+  private void train(ServerConfig config) throws IOException, InterruptedException {
+    config.port = 0;
+    config.fastStart = true;
+    config.warmUp = false;
+    config.dataDir = Files.createTempDirectory("macro-cds");
+    config.aiCacheFile = null;
+    HttpServer server = start(config);
+    String base = "http://localhost:" + server.getAddress().getPort();
+    String macro = "{\"steps\":[{\"type\":\"MOUSE_MOVE_TO\",\"x\":10,\"y\":10},{\"type\":\"REPEAT\","
+        + "\"count\":2,\"steps\":[{\"type\":\"MOUSE_CLICK\"},{\"type\":\"TYPE_TEXT\",\"text\":\"hi\"}]}]}";
+    HttpClient client = gemini.get().http;
+    for (String[] call : new String[][] {
+        {"GET", "/", null},
+        {"POST", "/macros/simulate", macro},
+        {"POST", "/macros", "{\"name\":\"cds\"," + macro.substring(1)},
+        {"GET", "/macros", null},
+        {"GET", "/macros/runs", null},
+        {"GET", "/metrics", null}}) {
+      HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(base + call[1]));
+      request.method(call[0], call[2] == null
+          ? HttpRequest.BodyPublishers.noBody()
+          : HttpRequest.BodyPublishers.ofString(call[2]));
+      HttpResponse<String> response = client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+      System.out.println("CDS training " + call[0] + " " + call[1] + ": " + response.statusCode());
+    }
+    warmUp(true);
+    server.stop(0);
+    try (Stream<Path> files = Files.walk(config.dataDir)) {
+      files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  private static void route(HttpServer server, String path, HttpHandler handler) {
+    HttpHandler limited = exchange -> {
+      if (OVERFLOW.get() || !HTTP_SLOTS.tryAcquire()) {
+        REJECTED.inc();
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        sendJson(exchange, 503, Map.of("message", "Server busy, retry shortly."));
+        return;
+      }
+      try {
+        handler.handle(exchange);
+      } finally {
+        HTTP_SLOTS.release();
+      }
+    };
+    control(server, path, limited);
+  }
+
+  // Cheap endpoints that must answer even when every slot is taken.
+  private static void control(HttpServer server, String path, HttpHandler handler) {
+    HttpHandler guarded = exchange -> {
+      try {
+        handler.handle(exchange);
+      } catch (Lazy.Unavailable e) {
+        sendJson(exchange, 503, Map.of("message", e.getMessage()));
+      }
+    };
+    server.createContext(path, guarded).getFilters().add(new RequestMetrics(path));
+  }
+
+  // Gauges read subsystems only once they have started.
+  private void registerGauges(ThreadPoolExecutor executor, ThreadPoolExecutor overflow) {
+    Metrics.gauge("http_executor_active_threads", "HTTP pool threads running a request.",
+        executor::getActiveCount);
+    Metrics.gauge("http_executor_pool_size", "HTTP pool threads alive.", executor::getPoolSize);
+    Metrics.gauge("http_overflow_queued", "Requests waiting for an overflow thread.",
+        () -> overflow.getQueue().size());
+    Metrics.gauge("http_slots_in_use", "Requests holding one of the HTTP slots.",
+        () -> HTTP_MAX_THREADS - HTTP_SLOTS.availablePermits());
+    Metrics.gauge("http_slots_max", "Concurrent request limit outside the control endpoints.", () -> HTTP_MAX_THREADS);
+    Metrics.gauge("macro_runs_queued", "Macro runs waiting to start.",
+        () -> runQueue.ready() ? runQueue.get().queued() : 0);
+    Metrics.gauge("macro_run_active", "1 while a macro run is executing.",
+        () -> runQueue.ready() && runQueue.get().current() != null ? 1 : 0);
+    Metrics.gauge("ai_limiter_active", "Upstream AI calls in flight.",
+        () -> aiLimiter.ready() ? aiLimiter.get().active() : 0);
+    Metrics.gauge("ai_limiter_queued", "AI calls waiting for a slot.",
+        () -> aiLimiter.ready() ? aiLimiter.get().queued() : 0);
+    Metrics.gauge("gemini_breaker_state", "Gemini circuit breaker: 0 closed, 1 open, 2 probing.",
+        () -> gemini.ready() ? gemini.get().breakerState() : 0);
+    Metrics.gauge("mouse_stream_subscribers", "Open /mouse/stream connections.", mouseStream::subscribers);
+    Metrics.gauge("progress_stream_subscribers", "Open /macros/progress connections.",
+        () -> progressStream.ready() ? progressStream.get().subscribers() : 0);
+    Metrics.gauge("macro_store_entries", "Saved macros.", () -> macroStore.ready() ? macroStore.get().size() : 0);
+    Metrics.gauge("ai_cache_entries", "Entries in the AI response cache.",
+        () -> aiCache.ready() ? aiCache.get().size() : 0);
+    if (coordinator != null) {
+      Metrics.gauge("coordinator_agents", "Registered agents.",
+          () -> coordinator.ready() ? coordinator.get().size() : 0);
+    }
+    Metrics.gauge("ai_prompt_index_entries", "Prompts in the similarity index.",
+        () -> promptIndex.ready() ? promptIndex.get().size() : 0);
   }
 
   private class RunHandler implements HttpHandler {
@@ -94,25 +360,411 @@ public class MacroServer {
         return;
       }
 
+      // ?optimize=true runs the steps through MacroOptimizer first.
+      MacroReader.Optimized optimized = null;
+      MacroReader.Parsed request;
+      if ("true".equals(queryParams(exchange).get("optimize"))) {
+        optimized = readOptimized(exchange);
+        request = optimized == null ? null : optimized.parsed;
+      } else {
+        request = readMacro(exchange, null);
+      }
+      if (request == null) {
+        return;
+      }
+      boolean preempt;
+      try {
+        preempt = preempt(request.mode);
+      } catch (IllegalArgumentException e) {
+        sendJson(exchange, 400, Map.of("message", "Invalid macro.", "error", e.getMessage()));
+        return;
+      }
+      int priority = request.priority == null ? 0 : request.priority;
+      MacroRun run = runQueue.get().submit(request.program, priority, preempt);
+      sendRunStarted(exchange, run, preempt, request.steps,
+          optimized == null ? null : optimized.optimization.report());
+    }
+  }
+
+  // Steps are compiled as they are parsed from the body; see MacroReader.
+  // Returns null after sending the error response if the body is too large
+  // or not a valid macro. A null compiler means the default, strict one.
+  private MacroReader.Parsed readMacro(HttpExchange exchange, MacroProgram.Compiler compiler)
+      throws IOException {
+    if (declaredTooLarge(exchange)) {
+      return null;
+    }
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    try (InputStream body = exchange.getRequestBody()) {
+      return compiler == null ? macroReader.get().read(body, contentType) : macroReader.get().read(body, contentType, compiler);
+    } catch (MacroReader.TooLarge e) {
+      sendJson(exchange, 413, Map.of("message", "Macro too large.", "error", e.getMessage()));
+    } catch (JsonProcessingException e) {
+      sendJson(exchange, 400, Map.of("message", "Malformed request body.", "error", e.getOriginalMessage()));
+    } catch (IllegalArgumentException e) {
+      sendJson(exchange, 400, Map.of("message", "Invalid macro.", "error", e.getMessage()));
+    }
+    return null;
+  }
+
+  // Sends 413 when Content-Length is over the limit. The JDK server has
+  // already validated Content-Length when present.
+  private boolean declaredTooLarge(HttpExchange exchange) throws IOException {
+    String length = exchange.getRequestHeaders().getFirst("Content-Length");
+    if (length != null && Long.parseLong(length.trim()) > macroReader.get().maxBytes()) {
+      sendJson(exchange, 413, Map.of("message", "Macro too large.",
+          "error", "request body exceeds " + macroReader.get().maxBytes() + " bytes"));
+      return true;
+    }
+    return false;
+  }
+
+  // Like readMacro, but reads the whole request and optimizes its steps.
+  private MacroReader.Optimized readOptimized(HttpExchange exchange) throws IOException {
+    if (declaredTooLarge(exchange)) {
+      return null;
+    }
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    try (InputStream body = exchange.getRequestBody()) {
+      return macroReader.get().readOptimized(body, contentType);
+    } catch (MacroReader.TooLarge e) {
+      sendJson(exchange, 413, Map.of("message", "Macro too large.", "error", e.getMessage()));
+    } catch (JsonProcessingException e) {
+      sendJson(exchange, 400, Map.of("message", "Malformed request body.", "error", e.getOriginalMessage()));
+    } catch (IllegalArgumentException e) {
+      sendJson(exchange, 400, Map.of("message", "Invalid macro.", "error", e.getMessage()));
+    }
+    return null;
+  }
+
+  // Returns the request with its steps rewritten by MacroOptimizer, plus what
+  // was changed and the pacing time that saves. Nothing is run.
+  private class OptimizeHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      if (handleOptions(exchange)) {
+        return;
+      }
+      if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+        sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+        return;
+      }
+      MacroReader.Optimized optimized = readOptimized(exchange);
+      if (optimized == null) {
+        return;
+      }
+      MacroRequest request = optimized.request;
+      Map<String, Object> rewritten = new LinkedHashMap<>();
+      rewritten.put("steps", optimized.optimization.steps);
+      if (request.pacing != null) {
+        rewritten.put("pacing", request.pacing);
+      }
+      if (request.priority != null) {
+        rewritten.put("priority", request.priority);
+      }
+      if (request.mode != null) {
+        rewritten.put("mode", request.mode);
+      }
+      Map<String, Object> result = optimized.optimization.report();
+      result.put("request", rewritten);
+      sendJson(exchange, 200, result);
+    }
+  }
+
+  // Dry run on a virtual clock; nothing is sent to the desktop. Query
+  // options: x and y (starting pointer position, default 0,0) and maxEvents
+  // (timeline length).
+  private class SimulateHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      if (handleOptions(exchange)) {
+        return;
+      }
+      if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+        sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+        return;
+      }
+      Map<String, String> query = queryParams(exchange);
+      Point start;
+      int maxEvents;
+      try {
+        start = new Point(Integer.parseInt(query.getOrDefault("x", "0")), Integer.parseInt(query.getOrDefault("y", "0")));
+        maxEvents = Integer.parseInt(query.getOrDefault("maxEvents", Integer.toString(MacroSimulator.DEFAULT_MAX_EVENTS)));
+      } catch (NumberFormatException e) {
+        sendJson(exchange, 400, Map.of("message", "Invalid simulation options.", "error", e.getMessage()));
+        return;
+      }
+      List<String> warnings = new ArrayList<>();
+      MacroProgram.Compiler compiler = macroReader.get().lenientCompiler(warnings);
+      MacroReader.Parsed request = readMacro(exchange, compiler);
+      if (request == null) {
+        return;
+      }
+      long started = System.nanoTime();
+      Map<String, Object> result = MacroSimulator.run(request.program, compiler, warnings, start, maxEvents);
+      result.put("steps", request.steps);
+      result.put("simulationMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+      sendJson(exchange, 200, result);
+    }
+  }
+
+  private static void sendRunStarted(HttpExchange exchange, MacroRun run, boolean preempt, int steps)
+      throws IOException {
+    sendRunStarted(exchange, run, preempt, steps, null);
+  }
+
+  private static void sendRunStarted(HttpExchange exchange, MacroRun run, boolean preempt, int steps,
+      Map<String, Object> optimization) throws IOException {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("message", preempt ? "Run started." : "Run queued.");
+    result.put("steps", steps);
+    result.put("runId", run.id);
+    result.put("state", run.state().name());
+    if (optimization != null) {
+      result.put("optimization", optimization);
+    }
+    sendJson(exchange, 200, result);
+  }
+
+  // Saved macros: GET/POST /macros, GET/PUT/DELETE /macros/{id} and
+  // POST /macros/{id}/run. Saved bodies are /macros/run requests plus an
+  // optional "name".
+  private class MacroLibraryHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      if (handleOptions(exchange)) {
+        return;
+      }
+      String path = exchange.getRequestURI().getPath();
+      String rest = path.length() > "/macros/".length() ? path.substring("/macros/".length()) : "";
+      String method = exchange.getRequestMethod();
+
+      if (rest.isEmpty()) {
+        if ("GET".equalsIgnoreCase(method)) {
+          sendJson(exchange, 200, Map.of("macros", macroStore.get().list()));
+        } else if ("POST".equalsIgnoreCase(method)) {
+          save(exchange, null);
+        } else {
+          sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+        }
+        return;
+      }
+
+      if (rest.endsWith("/run")) {
+        if (!"POST".equalsIgnoreCase(method)) {
+          sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+          return;
+        }
+        run(exchange, rest.substring(0, rest.length() - "/run".length()));
+        return;
+      }
+      if (rest.indexOf('/') >= 0) {
+        sendJson(exchange, 404, Map.of("message", "Not found"));
+        return;
+      }
+
+      if ("GET".equalsIgnoreCase(method)) {
+        MacroStore.Stored stored = macroStore.get().get(rest);
+        if (stored == null) {
+          sendJson(exchange, 404, Map.of("message", "Unknown macro."));
+          return;
+        }
+        sendJson(exchange, 200, Map.of("macro", stored.entry, "request", stored.request));
+      } else if ("PUT".equalsIgnoreCase(method)) {
+        save(exchange, rest);
+      } else if ("DELETE".equalsIgnoreCase(method)) {
+        boolean deleted = macroStore.get().delete(rest);
+        sendJson(exchange, deleted ? 200 : 404, Map.of("message", deleted ? "Deleted." : "Unknown macro."));
+      } else {
+        sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+      }
+    }
+
+    // Read and compiled under the same limits as /macros/run.
+    private void save(HttpExchange exchange, String id) throws IOException {
+      if (declaredTooLarge(exchange)) {
+        return;
+      }
+      String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+      MacroStore.Stored stored;
+      try (InputStream body = exchange.getRequestBody()) {
+        MacroReader.Saved saved = macroReader.get().readSaved(body, contentType);
+        stored = macroStore.get().save(id, saved.request.name, saved.request, saved.program);
+      } catch (MacroReader.TooLarge e) {
+        sendJson(exchange, 413, Map.of("message", "Macro too large.", "error", e.getMessage()));
+        return;
+      } catch (JsonProcessingException e) {
+        sendJson(exchange, 400, Map.of("message", "Malformed request body.", "error", e.getOriginalMessage()));
+        return;
+      } catch (IllegalArgumentException e) {
+        sendJson(exchange, 400, Map.of("message", "Invalid macro.", "error", e.getMessage()));
+        return;
+      }
+      if (stored == null) {
+        sendJson(exchange, 404, Map.of("message", "Unknown macro."));
+        return;
+      }
+      sendJson(exchange, id == null ? 201 : 200, Map.of("macro", stored.entry));
+    }
+
+    // An optional body may override the saved "priority" and "mode".
+    private void run(HttpExchange exchange, String id) throws IOException {
+      MacroStore.Stored stored = macroStore.get().get(id);
+      if (stored == null) {
+        sendJson(exchange, 404, Map.of("message", "Unknown macro."));
+        return;
+      }
       String body = readBody(exchange);
-      MacroRequest request = MAPPER.readValue(body, MacroRequest.class);
-      if (request.steps == null) {
-        request.steps = List.of();
+      MacroRequest overrides = null;
+      try {
+        overrides = body.isBlank() ? null : Json.MAPPER.readValue(body, MacroRequest.class);
+      } catch (JsonProcessingException e) {
+        sendJson(exchange, 400, Map.of("message", "Malformed request body.", "error", e.getOriginalMessage()));
+        return;
       }
-      lastRequest.set(request);
-      running.set(false);
-      Thread current = macroThread.getAndSet(null);
-      if (current != null) {
-        current.interrupt();
+      if (overrides == null) {
+        overrides = new MacroRequest();
       }
-      running.set(true);
+      Integer priority = overrides.priority != null ? overrides.priority : stored.request.priority;
+      boolean preempt;
+      try {
+        preempt = preempt(overrides.mode != null ? overrides.mode : stored.request.mode);
+      } catch (IllegalArgumentException e) {
+        sendJson(exchange, 400, Map.of("message", "Invalid run options.", "error", e.getMessage()));
+        return;
+      }
+      MacroRun run = runQueue.get().submit(stored.program, priority == null ? 0 : priority, preempt);
+      sendRunStarted(exchange, run, preempt, stored.request.steps.size());
+    }
+  }
 
-      macroExecutor.submit(() -> runMacroSteps(request.steps, true));
+  // Coordinator mode: GET/POST /agents, DELETE /agents/{id}, POST
+  // /agents/run (fans a /macros/run body out to agents) and POST
+  // /agents/stop (stops every agent). Replies are completed from the
+  // HttpClient callbacks.
+  private class AgentsHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      if (handleOptions(exchange)) {
+        return;
+      }
+      String path = exchange.getRequestURI().getPath();
+      String rest = path.length() > "/agents/".length() ? path.substring("/agents/".length()) : "";
+      String method = exchange.getRequestMethod();
 
-      sendJson(exchange, 200, Map.of(
-          "message", "Run started.",
-          "steps", request.steps.size()
-      ));
+      if (rest.isEmpty()) {
+        if ("GET".equalsIgnoreCase(method)) {
+          sendJson(exchange, 200, Map.of("agents", coordinator.get().list()));
+        } else if ("POST".equalsIgnoreCase(method)) {
+          Map<String, Object> body;
+          try {
+            body = Json.MAPPER.readValue(readBody(exchange), Json.OBJECT);
+          } catch (JsonProcessingException e) {
+            sendJson(exchange, 400, Map.of("message", "Malformed request body.", "error", e.getOriginalMessage()));
+            return;
+          }
+          Object url = body == null ? null : body.get("url");
+          Object id = body == null ? null : body.get("id");
+          Coordinator.Agent agent;
+          try {
+            agent = coordinator.get().register(id == null ? null : id.toString(), url == null ? null : url.toString());
+          } catch (IllegalArgumentException e) {
+            sendJson(exchange, 400, Map.of("message", "Invalid agent.", "error", e.getMessage()));
+            return;
+          }
+          sendJson(exchange, 201, Map.of("agent", agent.summary()));
+        } else {
+          sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+        }
+        return;
+      }
+
+      if ("run".equals(rest) || "stop".equals(rest)) {
+        if (!"POST".equalsIgnoreCase(method)) {
+          sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+          return;
+        }
+        if ("run".equals(rest)) {
+          run(exchange);
+          return;
+        }
+        long started = System.nanoTime();
+        exchange.getRequestBody().close();
+        coordinator.get().stopAll().thenAccept(results -> sendFanOut(exchange, started, results));
+        return;
+      }
+
+      if (rest.indexOf('/') >= 0) {
+        sendJson(exchange, 404, Map.of("message", "Not found"));
+        return;
+      }
+      if ("DELETE".equalsIgnoreCase(method)) {
+        boolean removed = coordinator.get().remove(rest);
+        sendJson(exchange, removed ? 200 : 404, Map.of("message", removed ? "Removed." : "Unknown agent."));
+      } else {
+        sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+      }
+    }
+
+    // Query options: agents (comma-separated ids) or count (that many of the
+    // least busy agents; default all), simulate=true (POST to
+    // /macros/simulate instead), optimize=true (passed on), and waitMs (follow
+    // each run until it finishes, up to that long).
+    private void run(HttpExchange exchange) throws IOException {
+      Map<String, String> query = queryParams(exchange);
+      List<Coordinator.Agent> targets;
+      long waitMs;
+      try {
+        Integer count = query.containsKey("count") ? Integer.valueOf(query.get("count")) : null;
+        targets = coordinator.get().select(query.get("agents"), count);
+        waitMs = Long.parseLong(query.getOrDefault("waitMs", "0"));
+      } catch (IllegalArgumentException e) {
+        sendJson(exchange, 400, Map.of("message", "Invalid dispatch options.", "error", e.getMessage()));
+        return;
+      }
+      if (targets.isEmpty()) {
+        sendJson(exchange, 409, Map.of("message", "No agents registered."));
+        return;
+      }
+      boolean simulate = "true".equals(query.get("simulate"));
+      String target = (simulate ? "/macros/simulate" : "/macros/run")
+          + ("true".equals(query.get("optimize")) && !simulate ? "?optimize=true" : "");
+      if (declaredTooLarge(exchange)) {
+        return;
+      }
+      byte[] body;
+      try (InputStream in = exchange.getRequestBody()) {
+        body = in.readNBytes((int) Math.min(Integer.MAX_VALUE - 8, macroReader.get().maxBytes() + 1));
+      }
+      if (body.length > macroReader.get().maxBytes()) {
+        sendJson(exchange, 413, Map.of("message", "Macro too large.",
+            "error", "request body exceeds " + macroReader.get().maxBytes() + " bytes"));
+        return;
+      }
+      long started = System.nanoTime();
+      coordinator.get()
+          .dispatch(targets, target, body, exchange.getRequestHeaders().getFirst("Content-Type"), simulate ? 0 : waitMs)
+          .thenAccept(results -> sendFanOut(exchange, started, results));
+    }
+  }
+
+  private static void sendFanOut(HttpExchange exchange, long started, List<Map<String, Object>> results) {
+    int failed = 0;
+    for (Map<String, Object> result : results) {
+      Object status = result.get("status");
+      if (!(status instanceof Integer) || (Integer) status >= 300) {
+        failed++;
+      }
+    }
+    Map<String, Object> reply = new LinkedHashMap<>();
+    reply.put("agents", results.size());
+    reply.put("failed", failed);
+    reply.put("durationMs", Math.round((System.nanoTime() - started) / 10_000.0) / 100.0);
+    reply.put("results", results);
+    try {
+      sendJson(exchange, 200, reply);
+    } catch (IOException e) {
+      System.out.println("Agent results not delivered: " + e.getMessage());
     }
   }
 
@@ -127,12 +779,167 @@ public class MacroServer {
         return;
       }
 
-      running.set(false);
-      Thread current = macroThread.getAndSet(null);
-      if (current != null) {
-        current.interrupt();
+      long stopStart = System.nanoTime();
+      boolean stopped = runQueue.get().stopAll(STOP_TIMEOUT_MS);
+      double stopLatencyMs = (System.nanoTime() - stopStart) / 1_000_000.0;
+      sendJson(exchange, 200, Map.of(
+          "message", stopped ? "Stopped." : "Stop requested.",
+          "stopLatencyMs", stopLatencyMs
+      ));
+    }
+  }
+
+  private class RunsHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      if (handleOptions(exchange)) {
+        return;
+      }
+      String path = exchange.getRequestURI().getPath();
+      String rest = path.length() > "/macros/runs".length()
+          ? path.substring("/macros/runs".length() + 1)
+          : "";
+      String method = exchange.getRequestMethod();
+
+      if (rest.isEmpty()) {
+        if (!"GET".equalsIgnoreCase(method)) {
+          sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+          return;
+        }
+        MacroRun active = runQueue.get().current();
+        sendJson(exchange, 200, Map.of(
+            "current", active == null ? "" : active.id,
+            "queued", runQueue.get().queued(),
+            "runs", runQueue.get().list()
+        ));
+        return;
+      }
+
+      if (rest.endsWith("/cancel")) {
+        if (!"POST".equalsIgnoreCase(method)) {
+          sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+          return;
+        }
+        String id = rest.substring(0, rest.length() - "/cancel".length());
+        MacroRun run = runQueue.get().get(id);
+        if (run == null) {
+          sendJson(exchange, 404, Map.of("message", "Unknown run."));
+          return;
+        }
+        boolean cancelled = runQueue.get().cancel(id);
+        sendJson(exchange, 200, Map.of(
+            "message", cancelled ? "Cancel requested." : "Run already finished.",
+            "run", run.summary()
+        ));
+        return;
+      }
+
+      if (!"GET".equalsIgnoreCase(method)) {
+        sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+        return;
+      }
+      MacroRun run = runQueue.get().get(rest);
+      if (run == null) {
+        sendJson(exchange, 404, Map.of("message", "Unknown run."));
+        return;
+      }
+      sendJson(exchange, 200, run.summary());
+    }
+  }
+
+  // Server-sent "progress" events with the steps executed since the last
+  // event and the run's state. ?run=id follows one run and ends with "done".
+  private class ProgressHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      if (handleOptions(exchange)) {
+        return;
+      }
+      if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+        sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+        return;
+      }
+      String id = queryParams(exchange).get("run");
+      MacroRun run = null;
+      if (id != null) {
+        run = runQueue.get().get(id);
+        if (run == null) {
+          sendJson(exchange, 404, Map.of("message", "Unknown run."));
+          return;
+        }
+      }
+      progressStream.get().subscribe(SseStream.open(exchange), run);
+    }
+  }
+
+  // GET reports whether a recording is running; POST .../start begins one
+  // and POST .../stop returns it as a ready-to-run macro request.
+  private class RecordHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      if (handleOptions(exchange)) {
+        return;
       }
-      sendJson(exchange, 200, Map.of("message", "Stopped."));
+      String path = exchange.getRequestURI().getPath();
+      String method = exchange.getRequestMethod();
+      if ("/macros/record".equals(path)) {
+        if (!"GET".equalsIgnoreCase(method)) {
+          sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+          return;
+        }
+        sendJson(exchange, 200, mouseRecorder.status());
+        return;
+      }
+      if (!"POST".equalsIgnoreCase(method)) {
+        sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+        return;
+      }
+
+      if ("/macros/record/start".equals(path)) {
+        String body = readBody(exchange);
+        Map<String, Object> request;
+        try {
+          request = body.isBlank() ? null : Json.MAPPER.readValue(body, Json.OBJECT);
+        } catch (JsonProcessingException e) {
+          sendJson(exchange, 400, Map.of("message", "Malformed request body.", "error", e.getOriginalMessage()));
+          return;
+        }
+        if (request == null) {
+          request = Map.of();
+        }
+        Object rate = request.get("rate");
+        Object tolerance = request.get("tolerance");
+        Object maxSegmentMs = request.get("maxSegmentMs");
+        boolean started = mouseRecorder.start(
+            rate instanceof Number ? ((Number) rate).intValue() : MouseRecorder.DEFAULT_RATE,
+            tolerance instanceof Number ? ((Number) tolerance).doubleValue() : MouseRecorder.DEFAULT_TOLERANCE,
+            maxSegmentMs instanceof Number ? ((Number) maxSegmentMs).intValue() : MouseRecorder.DEFAULT_MAX_SEGMENT_MS);
+        if (!started) {
+          sendJson(exchange, 409, Map.of("message", "Already recording."));
+          return;
+        }
+        sendJson(exchange, 200, mouseRecorder.status());
+        return;
+      }
+
+      if ("/macros/record/stop".equals(path)) {
+        Map<String, Object> recording;
+        try {
+          recording = mouseRecorder.stop();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          sendJson(exchange, 500, Map.of("message", "Interrupted while stopping."));
+          return;
+        }
+        if (recording == null) {
+          sendJson(exchange, 409, Map.of("message", "Not recording."));
+          return;
+        }
+        sendJson(exchange, 200, recording);
+        return;
+      }
+
+      sendJson(exchange, 404, Map.of("message", "Unknown record action."));
     }
   }
 
@@ -152,6 +959,21 @@ public class MacroServer {
     }
   }
 
+  // Server-sent "position" events whenever the pointer moves.
+  private class MouseStreamHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      if (handleOptions(exchange)) {
+        return;
+      }
+      if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+        sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+        return;
+      }
+      mouseStream.subscribe(SseStream.open(exchange));
+    }
+  }
+
   private class AiGenerateHandler implements HttpHandler {
     @Override
     public void handle(HttpExchange exchange) throws IOException {
@@ -163,37 +985,270 @@ public class MacroServer {
         return;
       }
 
-      String apiKey = System.getenv("GEMINI_API_KEY");
+      String apiKey = geminiApiKey();
       if (apiKey == null || apiKey.isBlank()) {
-        apiKey = GEMINI_API_KEY;
+        sendJson(exchange, 500, Map.of("message", "Missing Gemini API key."));
+        return;
+      }
+
+      String body = readBody(exchange);
+      Map<String, Object> request = Json.MAPPER.readValue(body, Json.OBJECT);
+      String prompt = request.get("prompt") == null ? "" : request.get("prompt").toString();
+      if (prompt.isBlank()) {
+        sendJson(exchange, 400, Map.of("message", "Prompt is required."));
+        return;
+      }
+
+      // The exchange is completed from the HttpClient callback; this thread
+      // returns to the pool immediately.
+      boolean fresh = Boolean.TRUE.equals(request.get("fresh"));
+      boolean optimize = Boolean.TRUE.equals(request.get("optimize"));
+      String key = AiResponseCache.key(prompt, geminiModel(), SYSTEM_PROMPT_VERSION);
+      Map<String, Object> similar = fresh ? null : similarResponse(key, prompt);
+      if (similar != null) {
+        similar.put("cached", true);
+        similar.put("shared", false);
+        sendJson(exchange, 200, optimize ? optimizeSteps(similar) : similar);
+        return;
+      }
+      aiCache.get().get(key, fresh, () -> aiLimiter.get().submit(() -> callGemini(prompt, apiKey)))
+          .whenComplete((result, error) -> {
+            try {
+              if (error != null) {
+                sendAiError(exchange, error, "AI request failed.");
+                return;
+              }
+              if (!result.cached && !result.shared) {
+                promptIndex.get().add(prompt, promptScope(), result.value);
+              }
+              Map<String, Object> aiJson = new LinkedHashMap<>(result.value);
+              aiJson.put("cached", result.cached);
+              aiJson.put("shared", result.shared);
+              sendJson(exchange, 200, optimize ? optimizeSteps(aiJson) : aiJson);
+            } catch (IOException e) {
+              System.out.println("AI response not delivered: " + e.getMessage());
+            }
+          });
+    }
+  }
+
+  // Replaces the "steps" of an AI result with their optimized form and adds
+  // the report; the cached result itself is left as generated.
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> optimizeSteps(Map<String, Object> aiJson) {
+    if (aiJson.get("steps") instanceof List) {
+      MacroOptimizer.Result optimized =
+          MacroOptimizer.optimize((List<Map<String, Object>>) aiJson.get("steps"), Pacing.DEFAULT);
+      aiJson.put("steps", optimized.steps);
+      aiJson.put("optimization", optimized.report());
+    }
+    return aiJson;
+  }
+
+  private class AiStreamHandler implements HttpHandler {
+    @Override
+    @SuppressWarnings("unchecked")
+    public void handle(HttpExchange exchange) throws IOException {
+      if (handleOptions(exchange)) {
+        return;
+      }
+      if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+        sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+        return;
       }
+
+      String apiKey = geminiApiKey();
       if (apiKey == null || apiKey.isBlank()) {
         sendJson(exchange, 500, Map.of("message", "Missing Gemini API key."));
         return;
       }
 
       String body = readBody(exchange);
-      Map<String, Object> request = MAPPER.readValue(body, Map.class);
+      Map<String, Object> request = Json.MAPPER.readValue(body, Json.OBJECT);
       String prompt = request.get("prompt") == null ? "" : request.get("prompt").toString();
       if (prompt.isBlank()) {
         sendJson(exchange, 400, Map.of("message", "Prompt is required."));
         return;
       }
+      boolean fresh = Boolean.TRUE.equals(request.get("fresh"));
+      StreamedRun execution = null;
+      if (Boolean.TRUE.equals(request.get("execute"))) {
+        try {
+          Object pacing = request.get("pacing");
+          Object priority = request.get("priority");
+          execution = new StreamedRun(
+              Pacing.from(pacing instanceof Map ? (Map<String, Object>) pacing : null),
+              priority instanceof Number ? ((Number) priority).intValue() : 0,
+              preempt(request.get("mode") == null ? null : request.get("mode").toString()));
+        } catch (IllegalArgumentException e) {
+          sendJson(exchange, 400, Map.of("message", "Invalid run options.", "error", e.getMessage()));
+          return;
+        }
+      }
+
+      String key = AiResponseCache.key(prompt, geminiModel(), SYSTEM_PROMPT_VERSION);
+      Map<String, Object> cached = fresh ? null : aiCache.get().peek(key);
+      if (cached == null && !fresh) {
+        cached = similarResponse(key, prompt);
+      }
+      if (cached != null) {
+        streamGeneration(exchange, key, prompt, apiKey, cached, execution);
+        return;
+      }
+      // The upstream stream is read on an AI worker thread, and only once
+      // the limiter grants a slot; saturation is reported as plain JSON
+      // because the event stream has not been opened yet.
+      StreamedRun run = execution;
+      aiLimiter.get().submit(() -> CompletableFuture.runAsync(() -> {
+        try {
+          streamGeneration(exchange, key, prompt, apiKey, null, run);
+        } catch (IOException e) {
+          System.out.println("AI stream not delivered: " + e.getMessage());
+        }
+      }, aiWorkers)).whenComplete((ignored, error) -> {
+        if (error != null) {
+          try {
+            sendAiError(exchange, error, "AI request failed.");
+          } catch (IOException e) {
+            System.out.println("AI response not delivered: " + e.getMessage());
+          }
+        }
+      });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void streamGeneration(HttpExchange exchange, String key, String prompt, String apiKey,
+        Map<String, Object> cached, StreamedRun run) throws IOException {
+      try (SseStream events = SseStream.open(exchange)) {
+        int[] index = {0};
+        StepListener listener = step -> {
+          Map<String, Object> event = new LinkedHashMap<>();
+          event.put("index", index[0]++);
+          event.put("step", step);
+          if (run != null) {
+            String error = run.offer(step);
+            if (error != null) {
+              event.put("error", error);
+            }
+            event.put("runId", run.id());
+          }
+          events.send("step", event);
+        };
+        try {
+          Map<String, Object> result;
+          if (cached != null) {
+            for (Object step : (List<Object>) cached.get("steps")) {
+              if (step instanceof Map) {
+                listener.onStep((Map<String, Object>) step);
+              }
+            }
+            result = new LinkedHashMap<>(cached);
+          } else {
+            result = new LinkedHashMap<>(callGeminiStream(prompt, apiKey, listener));
+            aiCache.get().put(key, result);
+            promptIndex.get().add(prompt, promptScope(), result);
+          }
+          result.put("cached", cached != null);
+          if (run != null) {
+            run.finish();
+            result.put("runId", run.id());
+          }
+          events.send("done", result);
+        } catch (IOException e) {
+          System.out.println("AI stream failed: " + e.getMessage());
+          if (run != null) {
+            run.cancel();
+          }
+          events.send("error", Map.of("message", "AI request failed.", "error", String.valueOf(e.getMessage())));
+        } catch (AiLimiter.Saturated e) {
+          if (run != null) {
+            run.cancel();
+          }
+          events.send("error", Map.of("message", e.getMessage(), "retryAfterSeconds", e.retryAfterSeconds));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          if (run != null) {
+            run.cancel();
+          }
+          events.send("error", Map.of("message", "AI request interrupted."));
+        }
+      }
+    }
+  }
+
+  // The stored response for a near-identical earlier prompt, with its
+  // "similarity" score and "similarTo" prompt, or null. Exact repeats are
+  // left to the response cache.
+  private Map<String, Object> similarResponse(String key, String prompt) {
+    if (aiCache.get().peek(key) != null) {
+      return null;
+    }
+    PromptIndex.Match match = promptIndex.get().find(prompt, promptScope());
+    if (match == null) {
+      return null;
+    }
+    Map<String, Object> response = new LinkedHashMap<>(match.value);
+    response.put("similarity", Math.round(match.score * 1000) / 1000.0);
+    response.put("similarTo", match.prompt);
+    return response;
+  }
+
+  // Responses are only reused for the model and system prompt that made them.
+  private String promptScope() {
+    return geminiModel() + "|" + SYSTEM_PROMPT_VERSION;
+  }
 
+  // Lazily starts a streaming MacroRun on the first valid step, so nothing
+  // is preempted until there is something to execute.
+  private class StreamedRun {
+    private final Pacing pacing;
+    private final int priority;
+    private final boolean preempt;
+    // Shared by every step, so AWAIT and JOIN see what earlier steps started.
+    private final MacroProgram.Handles handles = new MacroProgram.Handles();
+    private MacroRun run;
+
+    StreamedRun(Pacing pacing, int priority, boolean preempt) {
+      this.pacing = pacing;
+      this.priority = priority;
+      this.preempt = preempt;
+    }
+
+    String offer(Map<String, Object> step) {
+      MacroProgram segment;
       try {
-        Map<String, Object> aiJson = callGemini(prompt, apiKey);
-        sendJson(exchange, 200, aiJson);
-      } catch (IOException e) {
-        System.out.println("AI request failed: " + e.getMessage());
-        sendJson(exchange, 500, Map.of("message", "AI request failed.", "error", e.getMessage()));
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
-        System.out.println("AI request interrupted.");
-        sendJson(exchange, 500, Map.of("message", "AI request interrupted."));
+        segment = MacroProgram.compile(List.of(step), pacing, handles);
+      } catch (IllegalArgumentException e) {
+        return e.getMessage();
+      }
+      if (run == null) {
+        run = runQueue.get().submitStreaming(MacroProgram.compile(List.of(), pacing), priority, preempt);
+      }
+      run.append(segment);
+      return null;
+    }
+
+    String id() {
+      return run == null ? "" : run.id;
+    }
+
+    void finish() {
+      if (run != null) {
+        run.closeFeed();
+      }
+    }
+
+    void cancel() {
+      if (run != null) {
+        runQueue.get().cancel(run.id);
       }
     }
   }
 
+  interface StepListener {
+    void onStep(Map<String, Object> step) throws IOException;
+  }
+
   private class AiModelsHandler implements HttpHandler {
     @Override
     public void handle(HttpExchange exchange) throws IOException {
@@ -205,34 +1260,57 @@ public class MacroServer {
         return;
       }
 
-      String apiKey = System.getenv("GEMINI_API_KEY");
-      if (apiKey == null || apiKey.isBlank()) {
-        apiKey = GEMINI_API_KEY;
-      }
+      String apiKey = geminiApiKey();
       if (apiKey == null || apiKey.isBlank()) {
         sendJson(exchange, 500, Map.of("message", "Missing Gemini API key."));
         return;
       }
 
-      try {
-        Map<String, Object> models = listGeminiModels(apiKey);
-        sendJson(exchange, 200, models);
-      } catch (IOException e) {
-        System.out.println("AI model list failed: " + e.getMessage());
-        sendJson(exchange, 500, Map.of("message", "Model list failed.", "error", e.getMessage()));
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
-        System.out.println("AI model list interrupted.");
-        sendJson(exchange, 500, Map.of("message", "Model list interrupted."));
+      aiLimiter.get().submit(() -> listGeminiModels(apiKey)).whenComplete((models, error) -> {
+        try {
+          if (error != null) {
+            sendAiError(exchange, error, "Model list failed.");
+            return;
+          }
+          sendJson(exchange, 200, models);
+        } catch (IOException e) {
+          System.out.println("AI model list not delivered: " + e.getMessage());
+        }
+      });
+    }
+  }
+
+  private static class MetricsHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+        sendJson(exchange, 405, Map.of("message", "Method not allowed"));
+        return;
+      }
+      byte[] data = Metrics.render().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, data.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(data);
       }
     }
   }
 
-  private static class StaticHandler implements HttpHandler {
+  static class StaticHandler implements HttpHandler {
     private final Path root;
+    private final StaticAssets assets;
+    private final String cacheControl;
+
+    StaticHandler(Path root) {
+      this(root, null, 0);
+    }
 
-    private StaticHandler(Path root) {
+    // With assets set, files are served from memory with ETags and gzip;
+    // otherwise every request reads the file from disk.
+    StaticHandler(Path root, StaticAssets assets, long maxAgeSeconds) {
       this.root = root;
+      this.assets = assets;
+      this.cacheControl = maxAgeSeconds > 0 ? "public, max-age=" + maxAgeSeconds : "no-cache";
     }
 
     @Override
@@ -248,9 +1326,16 @@ public class MacroServer {
         sendText(exchange, 403, "Forbidden");
         return;
       }
-      if (Files.isDirectory(file)) {
+      // The asset table knows the directories, so a cached request never
+      // touches the disk.
+      if (assets != null ? assets.isDirectory(file) : Files.isDirectory(file)) {
         file = file.resolve("index.html");
       }
+      StaticAssets.Asset asset = assets == null ? null : assets.get(file);
+      if (asset != null) {
+        sendAsset(exchange, asset);
+        return;
+      }
       if (!Files.exists(file)) {
         sendText(exchange, 404, "Not found");
         return;
@@ -266,6 +1351,81 @@ public class MacroServer {
         in.transferTo(out);
       }
     }
+
+    private void sendAsset(HttpExchange exchange, StaticAssets.Asset asset) throws IOException {
+      Headers request = exchange.getRequestHeaders();
+      boolean gzip = asset.gzip != null && acceptsGzip(request.getFirst("Accept-Encoding"));
+      String etag = gzip ? asset.gzipEtag : asset.etag;
+      Headers headers = exchange.getResponseHeaders();
+      headers.set("Content-Type", asset.contentType);
+      headers.set("Cache-Control", cacheControl);
+      headers.set("ETag", etag);
+      if (asset.gzip != null) {
+        headers.set("Vary", "Accept-Encoding");
+      }
+      if (matches(request.getFirst("If-None-Match"), asset)) {
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+        return;
+      }
+      byte[] body = gzip ? asset.gzip : asset.body;
+      if (gzip) {
+        headers.set("Content-Encoding", "gzip");
+      }
+      if ("HEAD".equalsIgnoreCase(exchange.getRequestMethod())) {
+        headers.set("Content-Length", Integer.toString(body.length));
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+        return;
+      }
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    }
+
+    // If-None-Match uses weak comparison, and either representation's tag
+    // validates the resource.
+    private static boolean matches(String ifNoneMatch, StaticAssets.Asset asset) {
+      if (ifNoneMatch == null) {
+        return false;
+      }
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if ("*".equals(tag) || tag.equals(asset.etag) || tag.equals(asset.gzipEtag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+      if (acceptEncoding == null) {
+        return false;
+      }
+      for (String part : acceptEncoding.split(",")) {
+        String[] fields = part.trim().split(";");
+        String coding = fields[0].trim();
+        if (!"gzip".equalsIgnoreCase(coding) && !"*".equals(coding)) {
+          continue;
+        }
+        for (int i = 1; i < fields.length; i++) {
+          String param = fields[i].trim();
+          if (param.startsWith("q=")) {
+            try {
+              return Double.parseDouble(param.substring(2)) > 0;
+            } catch (NumberFormatException e) {
+              return false;
+            }
+          }
+        }
+        return true;
+      }
+      return false;
+    }
   }
 
   private static boolean handleOptions(HttpExchange exchange) throws IOException {
@@ -274,18 +1434,18 @@ public class MacroServer {
     }
     Headers headers = exchange.getResponseHeaders();
     headers.add("Access-Control-Allow-Origin", "*");
-    headers.add("Access-Control-Allow-Methods", "POST, OPTIONS");
+    headers.add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
     headers.add("Access-Control-Allow-Headers", "Content-Type");
     exchange.sendResponseHeaders(204, -1);
     return true;
   }
 
   private static void sendJson(HttpExchange exchange, int status, Object payload) throws IOException {
-    byte[] data = MAPPER.writeValueAsBytes(payload);
+    byte[] data = Json.MAPPER.writeValueAsBytes(payload);
     Headers headers = exchange.getResponseHeaders();
     headers.set("Content-Type", "application/json; charset=utf-8");
     headers.add("Access-Control-Allow-Origin", "*");
-    headers.add("Access-Control-Allow-Methods", "POST, OPTIONS");
+    headers.add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
     headers.add("Access-Control-Allow-Headers", "Content-Type");
     exchange.sendResponseHeaders(status, data.length);
     try (OutputStream out = exchange.getResponseBody()) {
@@ -302,13 +1462,31 @@ public class MacroServer {
     }
   }
 
+  private static void sendAiError(HttpExchange exchange, Throwable error, String message) throws IOException {
+    Throwable cause = error;
+    while (cause instanceof CompletionException && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    if (cause instanceof AiLimiter.Saturated) {
+      AiLimiter.Saturated saturated = (AiLimiter.Saturated) cause;
+      exchange.getResponseHeaders().set("Retry-After", Long.toString(saturated.retryAfterSeconds));
+      sendJson(exchange, saturated.status, Map.of(
+          "message", saturated.getMessage(),
+          "retryAfterSeconds", saturated.retryAfterSeconds
+      ));
+      return;
+    }
+    System.out.println(message + " " + cause);
+    sendJson(exchange, 500, Map.of("message", message, "error", String.valueOf(cause.getMessage())));
+  }
+
   private static String readBody(HttpExchange exchange) throws IOException {
     try (InputStream in = exchange.getRequestBody()) {
       return new String(in.readAllBytes(), StandardCharsets.UTF_8);
     }
   }
 
-  private static String contentType(Path file) {
+  static String contentType(Path file) {
     String name = file.getFileName().toString().toLowerCase();
     if (name.endsWith(".html")) {
       return "text/html; charset=utf-8";
@@ -331,22 +1509,53 @@ public class MacroServer {
     return "application/octet-stream";
   }
 
-  private Map<String, Object> callGemini(String userPrompt, String apiKey)
-      throws IOException, InterruptedException {
-    String systemPrompt =
-        "You are a macro JSON generator. Output ONLY valid JSON with shape: "
-            + "{\"steps\":[...]}.\n"
-            + "Supported action types:\n"
-            + "- {\"kind\":\"ACTION\",\"type\":\"MOUSE_MOVE\",\"dx\":int,\"dy\":int}\n"
-            + "- {\"kind\":\"ACTION\",\"type\":\"MOUSE_MOVE_TO\",\"x\":int,\"y\":int}\n"
-            + "- {\"kind\":\"ACTION\",\"type\":\"MOUSE_CLICK\",\"button\":\"LEFT|RIGHT\",\"count\":int}\n"
-            + "- {\"kind\":\"ACTION\",\"type\":\"TYPE_TEXT\",\"text\":\"...\"}\n"
-            + "- {\"kind\":\"ACTION\",\"type\":\"WAIT_MS\",\"ms\":int}\n"
-            + "- {\"kind\":\"ACTION\",\"type\":\"PRESS_KEY\",\"key\":\"ENTER|ESCAPE|CTRL_L\"}\n"
-            + "- {\"kind\":\"ACTION\",\"type\":\"OPEN_URL\",\"url\":\"https://...\"}\n"
-            + "- {\"kind\":\"CONTROL\",\"type\":\"REPEAT\",\"count\":int,\"steps\":[...]}\n"
-            + "Use integers for coordinates and ms. No explanations.\n"
-            + "User request: " + userPrompt;
+  // Decoded query parameters; the last value wins for repeated names.
+  private static Map<String, String> queryParams(HttpExchange exchange) {
+    Map<String, String> params = new LinkedHashMap<>();
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query == null || query.isEmpty()) {
+      return params;
+    }
+    for (String pair : query.split("&")) {
+      int eq = pair.indexOf('=');
+      String name = eq < 0 ? pair : pair.substring(0, eq);
+      String value = eq < 0 ? "" : pair.substring(eq + 1);
+      params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+    }
+    return params;
+  }
+
+  private static Point pointerLocation() {
+    PointerInfo info = MouseInfo.getPointerInfo();
+    return info == null ? null : info.getLocation();
+  }
+
+  private static String geminiApiKey() {
+    String apiKey = System.getenv("GEMINI_API_KEY");
+    if (apiKey == null || apiKey.isBlank()) {
+      apiKey = GEMINI_API_KEY;
+    }
+    return apiKey;
+  }
+
+  private static String geminiModel() {
+    String model = System.getenv("GEMINI_MODEL");
+    if (model == null || model.isBlank()) {
+      model = GEMINI_MODEL;
+    }
+    return model;
+  }
+
+  private static String geminiBaseUrl() {
+    String baseUrl = System.getenv("GEMINI_BASE_URL");
+    if (baseUrl == null || baseUrl.isBlank()) {
+      baseUrl = GEMINI_BASE_URL;
+    }
+    return baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+  }
+
+  private CompletableFuture<Map<String, Object>> callGemini(String userPrompt, String apiKey) {
+    String systemPrompt = SYSTEM_PROMPT + "User request: " + userPrompt;
 
     Map<String, Object> payload = Map.of(
         "contents", List.of(Map.of(
@@ -354,54 +1563,129 @@ public class MacroServer {
             "parts", List.of(Map.of("text", systemPrompt))
         ))
     );
-    String requestBody = MAPPER.writeValueAsString(payload);
+    String requestBody;
+    try {
+      requestBody = Json.MAPPER.writeValueAsString(payload);
+    } catch (JsonProcessingException e) {
+      return CompletableFuture.failedFuture(e);
+    }
 
-    String model = System.getenv("GEMINI_MODEL");
-    if (model == null || model.isBlank()) {
-      model = GEMINI_MODEL;
+    return gemini.get().send("generate", model -> HttpRequest.newBuilder()
+            .uri(URI.create(geminiBaseUrl() + "/models/" + model + ":generateContent?key=" + apiKey))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(requestBody))
+            .build(), HttpResponse.BodyHandlers.ofString())
+        .thenApply(served -> {
+          HttpResponse<String> response = served.response;
+          try {
+            if (response.statusCode() < 200 || response.statusCode() >= 300) {
+              throw new IOException("Gemini error: " + response.statusCode() + " body=" + response.body());
+            }
+            Map<String, Object> json = Json.MAPPER.readValue(response.body(), Json.OBJECT);
+            return withModel(parseAiOutput(extractGeminiText(json)), served.model);
+          } catch (IOException e) {
+            throw new CompletionException(e);
+          }
+        });
+  }
+
+  // Same request as callGemini against the SSE streaming endpoint. Each step
+  // is handed to listener as soon as its closing brace arrives; the return
+  // value is the full parsed output, as callGemini would have produced it.
+  private Map<String, Object> callGeminiStream(String userPrompt, String apiKey, StepListener listener)
+      throws IOException, InterruptedException {
+    String systemPrompt = SYSTEM_PROMPT + "User request: " + userPrompt;
+    Map<String, Object> payload = Map.of(
+        "contents", List.of(Map.of(
+            "role", "user",
+            "parts", List.of(Map.of("text", systemPrompt))
+        ))
+    );
+    String requestBody = Json.MAPPER.writeValueAsString(payload);
+
+    // Retries and model fallback happen before any step is handed on; the
+    // latency metric covers the time to the response headers.
+    GeminiClient.Served<Stream<String>> served = GeminiClient.await(gemini.get().send("stream",
+        model -> HttpRequest.newBuilder()
+            .uri(URI.create(geminiBaseUrl() + "/models/" + model + ":streamGenerateContent?alt=sse&key=" + apiKey))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(requestBody))
+            .build(), HttpResponse.BodyHandlers.ofLines()));
+    HttpResponse<Stream<String>> response = served.response;
+    StepStreamParser parser = new StepStreamParser();
+    try (Stream<String> lines = response.body()) {
+      if (response.statusCode() < 200 || response.statusCode() >= 300) {
+        throw new IOException("Gemini error: " + response.statusCode()
+            + " body=" + lines.collect(Collectors.joining("\n")));
+      }
+      Iterator<String> it = lines.iterator();
+      while (it.hasNext()) {
+        String line = it.next();
+        if (!line.startsWith("data:")) {
+          continue;
+        }
+        String data = line.substring("data:".length()).trim();
+        if (data.isEmpty()) {
+          continue;
+        }
+        Map<String, Object> chunk = Json.MAPPER.readValue(data, Json.OBJECT);
+        for (String stepJson : parser.append(extractGeminiText(chunk))) {
+          Map<String, Object> step;
+          try {
+            step = Json.MAPPER.readValue(stepJson, Json.OBJECT);
+          } catch (JsonProcessingException e) {
+            continue;
+          }
+          listener.onStep(step);
+        }
+      }
     }
-    String endpoint = "https://generativelanguage.googleapis.com/v1beta/models/"
-        + model + ":generateContent?key=" + apiKey;
-    HttpRequest request = HttpRequest.newBuilder()
-        .uri(URI.create(endpoint))
-        .header("Content-Type", "application/json")
-        .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-        .build();
+    return withModel(parseAiOutput(parser.text()), served.model);
+  }
 
-    HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-    if (response.statusCode() < 200 || response.statusCode() >= 300) {
-      throw new IOException("Gemini error: " + response.statusCode() + " body=" + response.body());
+  // Names the model when a fallback answered instead of the configured one.
+  private static Map<String, Object> withModel(Map<String, Object> aiOutput, String model) {
+    if (model.equals(geminiModel())) {
+      return aiOutput;
     }
+    Map<String, Object> output = new LinkedHashMap<>(aiOutput);
+    output.put("model", model);
+    return output;
+  }
 
-    Map<String, Object> json = MAPPER.readValue(response.body(), Map.class);
-    String text = extractGeminiText(json);
+  private static Map<String, Object> parseAiOutput(String text) throws IOException {
     String jsonText = extractJsonObject(text);
     if (jsonText == null) {
       return Map.of("message", "No JSON found in AI response.", "raw", text);
     }
-    Map<String, Object> aiOutput = MAPPER.readValue(jsonText, Map.class);
+    Map<String, Object> aiOutput = Json.MAPPER.readValue(jsonText, Json.OBJECT);
     if (!aiOutput.containsKey("steps")) {
       aiOutput.put("steps", List.of());
     }
     return aiOutput;
   }
 
-  private Map<String, Object> listGeminiModels(String apiKey)
-      throws IOException, InterruptedException {
-    String endpoint = "https://generativelanguage.googleapis.com/v1beta/models?key=" + apiKey;
+  private CompletableFuture<Map<String, Object>> listGeminiModels(String apiKey) {
+    String endpoint = geminiBaseUrl() + "/models?key=" + apiKey;
     HttpRequest request = HttpRequest.newBuilder()
         .uri(URI.create(endpoint))
         .header("Content-Type", "application/json")
         .GET()
         .build();
-    HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-    if (response.statusCode() < 200 || response.statusCode() >= 300) {
-      throw new IOException("Gemini model list error: " + response.statusCode() + " body=" + response.body());
-    }
-    return MAPPER.readValue(response.body(), Map.class);
+    return gemini.get().send("models", request, HttpResponse.BodyHandlers.ofString())
+        .thenApply(response -> {
+          try {
+            if (response.statusCode() < 200 || response.statusCode() >= 300) {
+              throw new IOException("Gemini model list error: " + response.statusCode() + " body=" + response.body());
+            }
+            return Json.MAPPER.readValue(response.body(), Json.OBJECT);
+          } catch (IOException e) {
+            throw new CompletionException(e);
+          }
+        });
   }
 
-  private static String extractGeminiText(Map<String, Object> json) {
+  static String extractGeminiText(Map<String, Object> json) {
     Object candidates = json.get("candidates");
     if (!(candidates instanceof List) || ((List<?>) candidates).isEmpty()) {
       return "";
@@ -426,7 +1710,7 @@ public class MacroServer {
     return text == null ? "" : text.toString();
   }
 
-  private static String extractJsonObject(String text) {
+  static String extractJsonObject(String text) {
     if (text == null) {
       return null;
     }
@@ -438,244 +1722,48 @@ public class MacroServer {
     return text.substring(start, end + 1).trim();
   }
 
-  private void runMacroSteps(List<Map<String, Object>> steps, boolean topLevel) {
-    if (topLevel) {
-      macroThread.set(Thread.currentThread());
-    }
-    try {
-      for (Map<String, Object> step : steps) {
-        if (!running.get()) {
-          break;
-        }
-        String type = asString(step.get("type"));
-        if (type == null) {
-          continue;
-        }
-        switch (type) {
-          case "MOUSE_MOVE":
-            moveMouseBy(step);
-            break;
-          case "MOUSE_MOVE_TO":
-            moveMouseTo(step);
-            break;
-          case "MOUSE_CLICK":
-            clickMouse(step);
-            break;
-          case "TYPE_TEXT":
-            typeText(step);
-            break;
-          case "WAIT_MS":
-            waitMs(step);
-            break;
-          case "CTRL_KEY":
-            pressCtrlKey(step);
-            break;
-          case "PRESS_KEY":
-            pressKey(step);
-            break;
-          case "OPEN_URL":
-            openUrl(step);
-            break;
-          case "REPEAT":
-            repeatSteps(step);
-            break;
-          case "SET_MODE":
-          case "START":
-          default:
-            break;
-        }
-        sleepQuietly(20);
-      }
-    } finally {
-      if (topLevel) {
-        running.set(false);
-        macroThread.set(null);
-      }
-    }
-  }
-
-  private void moveMouseBy(Map<String, Object> step) {
-    Point point = MouseInfo.getPointerInfo().getLocation();
-    int dx = asInt(step.get("dx"));
-    int dy = asInt(step.get("dy"));
-    robot.mouseMove(point.x + dx, point.y + dy);
-  }
-
-  private void moveMouseTo(Map<String, Object> step) {
-    int x = asInt(step.get("x"));
-    int y = asInt(step.get("y"));
-    robot.mouseMove(x, y);
-  }
-
-  private void clickMouse(Map<String, Object> step) {
-    String button = asString(step.get("button"));
-    int count = Math.max(1, asInt(step.get("count")));
-    int mask = InputEvent.BUTTON1_DOWN_MASK;
-    if ("RIGHT".equalsIgnoreCase(button)) {
-      mask = InputEvent.BUTTON3_DOWN_MASK;
-    }
-    for (int i = 0; i < count && running.get(); i++) {
-      robot.mousePress(mask);
-      robot.mouseRelease(mask);
-      sleepQuietly(60);
-    }
-  }
-
-  private void typeText(Map<String, Object> step) {
-    String text = asString(step.get("text"));
-    if (text == null || text.isEmpty()) {
-      return;
-    }
-    for (char ch : text.toCharArray()) {
-      if (!running.get()) {
-        break;
-      }
-      typeChar(ch);
-    }
-  }
-
-  private void waitMs(Map<String, Object> step) {
-    int ms = Math.max(0, asInt(step.get("ms")));
-    sleepQuietly(ms);
-  }
-
-  private void pressCtrlKey(Map<String, Object> step) {
-    String key = asString(step.get("key"));
-    if (key == null || key.isBlank()) {
-      return;
-    }
-    int keyCode = mapKeyCode(key);
-    if (keyCode == KeyEvent.VK_UNDEFINED) {
-      return;
-    }
-    robot.keyPress(KeyEvent.VK_CONTROL);
-    robot.keyPress(keyCode);
-    robot.keyRelease(keyCode);
-    robot.keyRelease(KeyEvent.VK_CONTROL);
-  }
-
-  private void pressKey(Map<String, Object> step) {
-    String key = asString(step.get("key"));
-    if (key == null || key.isBlank()) {
-      return;
-    }
-    if ("CTRL_L".equalsIgnoreCase(key)) {
-      robot.keyPress(KeyEvent.VK_CONTROL);
-      robot.keyPress(KeyEvent.VK_L);
-      robot.keyRelease(KeyEvent.VK_L);
-      robot.keyRelease(KeyEvent.VK_CONTROL);
-      return;
-    }
-    int keyCode;
-    switch (key.toUpperCase()) {
-      case "ENTER":
-        keyCode = KeyEvent.VK_ENTER;
-        break;
-      case "ESCAPE":
-        keyCode = KeyEvent.VK_ESCAPE;
-        break;
-      default:
-        keyCode = KeyEvent.VK_UNDEFINED;
-        break;
-    }
-    if (keyCode == KeyEvent.VK_UNDEFINED) {
-      return;
-    }
-    robot.keyPress(keyCode);
-    robot.keyRelease(keyCode);
-  }
-
-  private void openUrl(Map<String, Object> step) {
-    String url = asString(step.get("url"));
-    if (url == null || url.isBlank()) {
-      return;
-    }
-    try {
-      if (Desktop.isDesktopSupported()) {
-        Desktop.getDesktop().browse(URI.create(url));
-      }
-    } catch (Exception ignored) {
-      // Best-effort only.
-    }
-  }
-
-  @SuppressWarnings("unchecked")
-  private void repeatSteps(Map<String, Object> step) {
-    int count = Math.max(1, asInt(step.get("count")));
-    Object nested = step.get("steps");
-    if (!(nested instanceof List)) {
-      return;
-    }
-    List<Map<String, Object>> nestedSteps = (List<Map<String, Object>>) nested;
-    for (int i = 0; i < count && running.get(); i++) {
-      runMacroSteps(nestedSteps, false);
-    }
+  private static ThreadFactory overflowThreads() {
+    ThreadFactory threads = daemonThreads("http-overflow");
+    return runnable -> threads.newThread(() -> {
+      OVERFLOW.set(true);
+      runnable.run();
+    });
   }
 
-  private static int mapKeyCode(String key) {
-    switch (key.toUpperCase()) {
-      case "A":
-        return KeyEvent.VK_A;
-      case "C":
-        return KeyEvent.VK_C;
-      case "V":
-        return KeyEvent.VK_V;
-      default:
-        return KeyEvent.VK_UNDEFINED;
-    }
+  private static ThreadFactory daemonThreads(String prefix) {
+    AtomicInteger counter = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
   }
 
-  private void typeChar(char ch) {
-    int keyCode = KeyEvent.getExtendedKeyCodeForChar(ch);
-    if (keyCode == KeyEvent.VK_UNDEFINED) {
-      return;
-    }
-    boolean upper = Character.isUpperCase(ch) || isShiftRequired(ch);
-    if (upper) {
-      robot.keyPress(KeyEvent.VK_SHIFT);
+  private static boolean preempt(String mode) {
+    if (mode == null || "PREEMPT".equalsIgnoreCase(mode)) {
+      return true;
     }
-    robot.keyPress(keyCode);
-    robot.keyRelease(keyCode);
-    if (upper) {
-      robot.keyRelease(KeyEvent.VK_SHIFT);
+    if ("ENQUEUE".equalsIgnoreCase(mode)) {
+      return false;
     }
-    sleepQuietly(20);
+    throw new IllegalArgumentException("mode must be PREEMPT or ENQUEUE");
   }
 
-  private static boolean isShiftRequired(char ch) {
-    return "~!@#$%^&*()_+{}|:\"<>?".indexOf(ch) >= 0;
-  }
-
-  private static int asInt(Object value) {
-    if (value instanceof Number) {
-      return ((Number) value).intValue();
-    }
-    if (value instanceof String) {
-      try {
-        return Integer.parseInt((String) value);
-      } catch (NumberFormatException ignored) {
-        return 0;
-      }
-    }
-    return 0;
+  public static class MacroRequest {
+    public List<Map<String, Object>> steps;
+    public Map<String, Object> pacing;
+    public Integer priority;
+    public String mode;
   }
 
-  private static String asString(Object value) {
-    if (value == null) {
-      return null;
-    }
-    return value.toString();
-  }
+  // The name is kept in the library entry, not in the stored request.
+  public static class SavedMacro extends MacroRequest {
+    @JsonIgnore
+    public String name;
 
-  private static void sleepQuietly(long millis) {
-    try {
-      Thread.sleep(millis);
-    } catch (InterruptedException ignored) {
-      Thread.currentThread().interrupt();
+    @JsonProperty("name")
+    public void setName(String name) {
+      this.name = name;
     }
   }
-
-  public static class MacroRequest {
-    public List<Map<String, Object>> steps;
-  }
 }
@@ -0,0 +1,341 @@
+package com.journeyhacks.server;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Dry runs. The engine executes the program exactly as it would for
+// /macros/run, but against a device that records events instead of sending
+// them, and on a virtual clock: delays and Robot's auto-delay advance the
+// clock rather than wait, so a long macro simulates in milliseconds.
+final class MacroSimulator {
+  static final int DEFAULT_MAX_EVENTS = 10_000;
+  static final int MAX_EVENTS = 100_000;
+  // Bounds the work for programs with huge REPEAT counts.
+  private static final long MAX_STEPS = 1_000_000;
+  private static final int MAX_WARNINGS = 100;
+
+  private MacroSimulator() {
+  }
+
+  // compiler is the (lenient) compiler that built program; it maps
+  // instructions back to step paths for warnings, which are added to
+  // warnings after any it already collected.
+  static Map<String, Object> run(MacroProgram program, MacroProgram.Compiler compiler, List<String> warnings,
+      Point start, int maxEvents) {
+    Session session = new Session(program, compiler, warnings, start, Math.max(0, Math.min(maxEvents, MAX_EVENTS)));
+    AtomicBoolean running = new AtomicBoolean(true);
+    boolean complete;
+    String error = null;
+    try {
+      // Async steps run in place, so their events land on the timeline in
+      // step order.
+      complete = new MacroEngine(session, session::scheduler, session, Runnable::run).run(program, running);
+    } catch (RuntimeException e) {
+      // What would fail the real run, e.g. a WAIT_UNTIL_* timeout.
+      complete = false;
+      error = e.getMessage();
+    }
+    Map<String, Object> result = session.result(complete);
+    if (error != null) {
+      result.put("error", error);
+    }
+    return result;
+  }
+
+  private static final class Session implements InputDevice, MacroEngine.StepListener {
+    private final MacroProgram program;
+    private final MacroProgram.Compiler compiler;
+    private final List<String> warnings;
+    private final int maxEvents;
+    private final Point pointer;
+    private final List<Map<String, Object>> timeline = new ArrayList<>();
+    private final long[] opNanos = new long[MacroProgram.opCount()];
+    private final long[] opCounts = new long[MacroProgram.opCount()];
+    private final Set<String> warned = new HashSet<>();
+    private StepScheduler.Virtual clock;
+    private long autoDelayNanos;
+    private long events;
+    private long executed;
+    private long lastFinished;
+    private long pacingNanos;
+    // Timeline index where the next step's marker goes, ahead of its events.
+    private int stepMark;
+    private boolean offScreen;
+    private boolean screenRead;
+    private boolean fetched;
+    private boolean commandRun;
+    private boolean timelineFull;
+    private boolean stepLimitHit;
+    private int droppedWarnings;
+
+    Session(MacroProgram program, MacroProgram.Compiler compiler, List<String> warnings, Point start, int maxEvents) {
+      this.program = program;
+      this.compiler = compiler;
+      this.warnings = warnings;
+      this.pointer = new Point(start);
+      this.maxEvents = maxEvents;
+    }
+
+    StepScheduler scheduler(AtomicBoolean running) {
+      clock = new StepScheduler.Virtual(running);
+      return clock;
+    }
+
+    @Override
+    public void step(int pc, int op, long started, long finished, int outcome) {
+      pacingNanos += started - lastFinished;
+      lastFinished = finished;
+      if (++executed >= MAX_STEPS && !stepLimitHit) {
+        stepLimitHit = true;
+        clock.running.set(false);
+      }
+      if (op == MacroProgram.END) {
+        // The REPEAT as a whole; its body has been counted step by step.
+        stepMark = timeline.size();
+        return;
+      }
+      opNanos[op] += finished - started;
+      opCounts[op]++;
+      if (timeline.size() >= maxEvents) {
+        timelineFull = true;
+      } else {
+        Map<String, Object> marker = event(started, "step");
+        marker.put("type", MacroProgram.opName(op));
+        marker.put("step", compiler.path(pc));
+        marker.put("durationMs", millis(finished - started));
+        timeline.add(stepMark, marker);
+      }
+      stepMark = timeline.size();
+      if (offScreen) {
+        offScreen = false;
+        warnOnce(pc, "moves the pointer to negative coordinates");
+      }
+      if (screenRead) {
+        screenRead = false;
+        warnOnce(pc, op == MacroProgram.FIND_IMAGE || op == MacroProgram.CLICK_IMAGE
+            ? "looks for an image on the screen, which is not simulated; the pointer does not move"
+            : "reads the screen, which is not simulated; assumed ready at the first check");
+      }
+      if (fetched) {
+        fetched = false;
+        warnOnce(pc, "sends an HTTP request, which is not simulated; assumed to answer 200");
+      }
+      if (commandRun) {
+        commandRun = false;
+        warnOnce(pc, "runs a local command, which is not simulated; assumed to exit 0");
+      }
+      if (op == MacroProgram.TYPE_TEXT) {
+        checkTypedText(pc);
+      }
+    }
+
+    // Characters with no key mapping are skipped when typed (not pasted).
+    private void checkTypedText(int pc) {
+      String text = program.text[pc];
+      if (MacroEngine.pastes(text, program.arg0[pc], program.pacing)) {
+        return;
+      }
+      int skipped = 0;
+      for (int i = 0; i < text.length(); i++) {
+        if (Keystrokes.lookup(text, i) == Keystrokes.UNDEFINED) {
+          skipped++;
+        }
+      }
+      if (skipped > 0) {
+        warnOnce(pc, skipped + " character(s) have no key mapping and are not typed");
+      }
+    }
+
+    private void warnOnce(int pc, String message) {
+      String warning = compiler.path(pc) + ": " + message;
+      if (warned.add(warning)) {
+        warn(warning);
+      }
+    }
+
+    private void warn(String warning) {
+      if (warnings.size() < MAX_WARNINGS) {
+        warnings.add(warning);
+      } else {
+        droppedWarnings++;
+      }
+    }
+
+    private Map<String, Object> event(long at, String name) {
+      Map<String, Object> event = new LinkedHashMap<>();
+      event.put("atMs", millis(at));
+      event.put("event", name);
+      return event;
+    }
+
+    // Records an input event, then lets Robot's auto-delay pass.
+    private Map<String, Object> record(String name) {
+      return record(name, autoDelayNanos);
+    }
+
+    private Map<String, Object> record(String name, long delayNanos) {
+      events++;
+      Map<String, Object> event = null;
+      if (timeline.size() < maxEvents) {
+        event = event(clock.now(), name);
+        timeline.add(event);
+      } else {
+        timelineFull = true;
+      }
+      clock.advance(delayNanos);
+      return event == null ? new LinkedHashMap<>() : event;
+    }
+
+    @Override
+    public void mouseMove(int x, int y) {
+      pointer.setLocation(x, y);
+      if (x < 0 || y < 0) {
+        offScreen = true;
+      }
+      Map<String, Object> event = record("mouseMove");
+      event.put("x", x);
+      event.put("y", y);
+    }
+
+    @Override
+    public void mousePress(int buttons) {
+      record("mousePress").put("button", buttonName(buttons));
+    }
+
+    @Override
+    public void mouseRelease(int buttons) {
+      record("mouseRelease").put("button", buttonName(buttons));
+    }
+
+    @Override
+    public void keyPress(int keyCode) {
+      record("keyPress").put("key", KeyEvent.getKeyText(keyCode));
+    }
+
+    @Override
+    public void keyRelease(int keyCode) {
+      record("keyRelease").put("key", KeyEvent.getKeyText(keyCode));
+    }
+
+    @Override
+    public Point pointerLocation() {
+      return new Point(pointer);
+    }
+
+    @Override
+    public void setAutoDelay(int ms) {
+      autoDelayNanos = Pacing.millis(ms);
+    }
+
+    @Override
+    public boolean setClipboard(String text) {
+      record("setClipboard").put("length", text.length());
+      return true;
+    }
+
+    @Override
+    public String clipboardText() {
+      return "";
+    }
+
+    @Override
+    public void openUrl(String url) {
+      record("openUrl").put("url", url);
+    }
+
+    @Override
+    public int fetch(String method, String url, String body, long timeoutNanos) {
+      fetched = true;
+      // Not an input event, so no auto-delay.
+      Map<String, Object> event = record("fetch", 0);
+      event.put("method", method);
+      event.put("url", url);
+      return 200;
+    }
+
+    @Override
+    public int runCommand(List<String> command, long timeoutNanos) {
+      commandRun = true;
+      record("runCommand", 0).put("command", command);
+      return 0;
+    }
+
+    @Override
+    public int pixelColor(int x, int y) {
+      screenRead = true;
+      return -1;
+    }
+
+    @Override
+    public BufferedImage capture(int x, int y, int width, int height) {
+      screenRead = true;
+      return null;
+    }
+
+    @Override
+    public Dimension screenSize() {
+      return new Dimension(1920, 1080);
+    }
+
+    private static String buttonName(int buttons) {
+      if (buttons == InputEvent.BUTTON1_DOWN_MASK) {
+        return "LEFT";
+      }
+      if (buttons == InputEvent.BUTTON3_DOWN_MASK) {
+        return "RIGHT";
+      }
+      if (buttons == InputEvent.BUTTON2_DOWN_MASK) {
+        return "MIDDLE";
+      }
+      return Integer.toString(buttons);
+    }
+
+    Map<String, Object> result(boolean complete) {
+      long duration = clock.now();
+      // The delay after the last step still passes before the run ends.
+      pacingNanos += duration - lastFinished;
+      if (stepLimitHit) {
+        warn("simulation stopped after " + MAX_STEPS + " steps; the timing covers only that part");
+      }
+      if (droppedWarnings > 0) {
+        warnings.add(droppedWarnings + " more warning(s) not shown");
+      }
+
+      Map<String, Object> breakdown = new LinkedHashMap<>();
+      for (int op = 0; op < opCounts.length; op++) {
+        if (opCounts[op] > 0) {
+          breakdown.put(MacroProgram.opName(op), Map.of("count", opCounts[op], "ms", millis(opNanos[op])));
+        }
+      }
+      breakdown.put("pacing", Map.of("ms", millis(pacingNanos)));
+
+      Map<String, Object> result = new LinkedHashMap<>();
+      result.put("complete", complete);
+      result.put("durationMs", millis(duration));
+      result.put("executedSteps", executed);
+      result.put("events", events);
+      result.put("breakdown", breakdown);
+      result.put("warnings", warnings);
+      result.put("timeline", timeline);
+      if (timelineFull) {
+        result.put("timelineTruncated", true);
+      }
+      return result;
+    }
+
+    // Milliseconds with microsecond precision.
+    private static double millis(long nanos) {
+      return Math.round(nanos / 1_000.0) / 1_000.0;
+    }
+  }
+}
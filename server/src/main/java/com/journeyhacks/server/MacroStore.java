@@ -0,0 +1,353 @@
+package com.journeyhacks.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+// Saved macros. Every save or delete appends a checksummed record to
+// macros.log; macros.idx maps each live id to its record and notes how much
+// of the log it covers, so startup reads the index and only scans records
+// written after it. A torn record at the end of the log (a crash mid-write)
+// fails its length or checksum test and is cut off. Recently used macros are
+// kept parsed and compiled in memory so they start without touching disk.
+final class MacroStore {
+  private static final int MAGIC = 0x4D41434F;
+  private static final int HEADER_BYTES = 13;
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+  private static final int CACHED_PROGRAMS = 128;
+  // Rewrite the log at startup once dead records outweigh live ones by this.
+  private static final long COMPACT_MIN_DEAD_BYTES = 1024 * 1024;
+
+  static final class Entry {
+    public String id;
+    public String name;
+    public long savedAt;
+    public long offset;
+    public int length;
+    public int steps;
+  }
+
+  static final class Index {
+    public long logLength;
+    public List<Entry> entries;
+  }
+
+  static final class Stored {
+    final Entry entry;
+    final MacroServer.MacroRequest request;
+    final MacroProgram program;
+
+    Stored(Entry entry, MacroServer.MacroRequest request, MacroProgram program) {
+      this.entry = entry;
+      this.request = request;
+      this.program = program;
+    }
+  }
+
+  // The body of a PUT record.
+  static final class Record {
+    public String id;
+    public String name;
+    public long savedAt;
+    public MacroServer.MacroRequest request;
+  }
+
+  private final Path logFile;
+  private final Path indexFile;
+  private FileChannel log;
+  private final Map<String, Entry> entries = new LinkedHashMap<>();
+  private final LinkedHashMap<String, Stored> programs = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Stored> eldest) {
+      return size() > CACHED_PROGRAMS;
+    }
+  };
+  private long logLength;
+  private long deadBytes;
+
+  MacroStore(Path dataDir) throws IOException {
+    Files.createDirectories(dataDir);
+    this.logFile = dataDir.resolve("macros.log");
+    this.indexFile = dataDir.resolve("macros.idx");
+    this.log = FileChannel.open(logFile,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    long start = loadIndex();
+    boolean dirty = replay(start) || start != logLength;
+    if (deadBytes > COMPACT_MIN_DEAD_BYTES && deadBytes > logLength - deadBytes) {
+      compact();
+    } else if (dirty) {
+      writeIndex();
+    }
+    System.out.println("Macro store: " + entries.size() + " macros in " + dataDir);
+  }
+
+  synchronized List<Entry> list() {
+    return new ArrayList<>(entries.values());
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  // Returns null for an unknown id.
+  synchronized Stored get(String id) throws IOException {
+    Stored stored = programs.get(id);
+    if (stored != null) {
+      return stored;
+    }
+    Entry entry = entries.get(id);
+    if (entry == null) {
+      return null;
+    }
+    Record record = Json.MAPPER.readValue(readPayload(entry.offset, entry.length), Record.class);
+    stored = new Stored(entry, record.request, compile(record.request));
+    programs.put(id, stored);
+    return stored;
+  }
+
+  // Saves a new macro when id is null, otherwise replaces an existing one
+  // (returns null if it does not exist). program is request compiled, e.g.
+  // by MacroReader.readSaved. Throws MacroReader.TooLarge if the record
+  // would be over the size replay() accepts; nothing is written in that case.
+  synchronized Stored save(String id, String name, MacroServer.MacroRequest request, MacroProgram program)
+      throws IOException {
+    if (request.steps == null) {
+      request.steps = List.of();
+    }
+    if (id == null) {
+      id = newId();
+    } else if (!entries.containsKey(id)) {
+      return null;
+    }
+    Record record = new Record();
+    record.id = id;
+    record.name = name == null || name.isBlank() ? "Untitled" : name;
+    record.savedAt = System.currentTimeMillis();
+    record.request = request;
+    byte[] payload = Json.MAPPER.writeValueAsBytes(record);
+    if (payload.length > MAX_RECORD_BYTES) {
+      throw new MacroReader.TooLarge("saved macro exceeds " + MAX_RECORD_BYTES + " bytes");
+    }
+
+    Entry entry = new Entry();
+    entry.id = id;
+    entry.name = record.name;
+    entry.savedAt = record.savedAt;
+    entry.offset = append(PUT, payload);
+    entry.length = payload.length;
+    entry.steps = request.steps.size();
+    Entry previous = entries.put(id, entry);
+    if (previous != null) {
+      deadBytes += HEADER_BYTES + previous.length;
+    }
+    writeIndex();
+    Stored stored = new Stored(entry, request, program);
+    programs.put(id, stored);
+    return stored;
+  }
+
+  synchronized boolean delete(String id) throws IOException {
+    Entry entry = entries.get(id);
+    if (entry == null) {
+      return false;
+    }
+    byte[] payload = id.getBytes(StandardCharsets.UTF_8);
+    append(DELETE, payload);
+    entries.remove(id);
+    programs.remove(id);
+    deadBytes += 2L * HEADER_BYTES + entry.length + payload.length;
+    writeIndex();
+    return true;
+  }
+
+  private static MacroProgram compile(MacroServer.MacroRequest request) {
+    return MacroProgram.compile(request.steps == null ? List.of() : request.steps, Pacing.from(request.pacing));
+  }
+
+  private String newId() {
+    String id;
+    do {
+      id = String.format("m%08x", ThreadLocalRandom.current().nextInt());
+    } while (entries.containsKey(id));
+    return id;
+  }
+
+  // Returns the payload offset of the new record.
+  private long append(byte op, byte[] payload) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+    buffer.putInt(MAGIC).putInt(payload.length).putInt((int) crc.getValue()).put(op).put(payload).flip();
+    long position = logLength;
+    while (buffer.hasRemaining()) {
+      position += log.write(buffer, position);
+    }
+    log.force(false);
+    long payloadOffset = logLength + HEADER_BYTES;
+    logLength = position;
+    return payloadOffset;
+  }
+
+  private byte[] readPayload(long offset, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    long position = offset;
+    while (buffer.hasRemaining()) {
+      int read = log.read(buffer, position);
+      if (read < 0) {
+        throw new IOException("Macro log ends inside a record at " + offset);
+      }
+      position += read;
+    }
+    return buffer.array();
+  }
+
+  // Reads the index and returns the log offset to replay from: where the
+  // index ends, or 0 if it is missing, unreadable or ahead of the log.
+  private long loadIndex() throws IOException {
+    long size = log.size();
+    if (Files.exists(indexFile)) {
+      try {
+        Index index = Json.MAPPER.readValue(indexFile.toFile(), Index.class);
+        if (index.logLength <= size && index.entries != null) {
+          long live = 0;
+          for (Entry entry : index.entries) {
+            entries.put(entry.id, entry);
+            live += HEADER_BYTES + entry.length;
+          }
+          logLength = index.logLength;
+          deadBytes = logLength - live;
+          return logLength;
+        }
+      } catch (IOException e) {
+        System.out.println("Macro index unreadable, rebuilding: " + e.getMessage());
+      }
+    }
+    entries.clear();
+    logLength = 0;
+    deadBytes = 0;
+    return 0;
+  }
+
+  // Applies records from start to the end of the log. A record that is cut
+  // short or fails its checksum ends the log there. Returns true if any
+  // record was applied or the log was truncated.
+  private boolean replay(long start) throws IOException {
+    long size = log.size();
+    long position = start;
+    boolean changed = false;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    while (position < size) {
+      header.clear();
+      if (size - position < HEADER_BYTES || log.read(header, position) < HEADER_BYTES) {
+        break;
+      }
+      header.flip();
+      int magic = header.getInt();
+      int length = header.getInt();
+      int checksum = header.getInt();
+      byte op = header.get();
+      if (magic != MAGIC || length < 0 || length > MAX_RECORD_BYTES
+          || position + HEADER_BYTES + length > size || (op != PUT && op != DELETE)) {
+        break;
+      }
+      byte[] payload = readPayload(position + HEADER_BYTES, length);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      apply(op, payload, position + HEADER_BYTES);
+      position += HEADER_BYTES + length;
+      changed = true;
+    }
+    if (position < size) {
+      System.out.println("Macro log: dropping " + (size - position) + " bytes of incomplete data at " + position);
+      log.truncate(position);
+      log.force(true);
+      changed = true;
+    }
+    logLength = position;
+    return changed;
+  }
+
+  private void apply(byte op, byte[] payload, long offset) throws IOException {
+    if (op == DELETE) {
+      Entry removed = entries.remove(new String(payload, StandardCharsets.UTF_8));
+      deadBytes += HEADER_BYTES + payload.length + (removed == null ? 0 : HEADER_BYTES + removed.length);
+      return;
+    }
+    Record record = Json.MAPPER.readValue(payload, Record.class);
+    Entry entry = new Entry();
+    entry.id = record.id;
+    entry.name = record.name;
+    entry.savedAt = record.savedAt;
+    entry.offset = offset;
+    entry.length = payload.length;
+    entry.steps = record.request == null || record.request.steps == null ? 0 : record.request.steps.size();
+    Entry previous = entries.put(entry.id, entry);
+    if (previous != null) {
+      deadBytes += HEADER_BYTES + previous.length;
+    }
+  }
+
+  private void writeIndex() throws IOException {
+    Index index = new Index();
+    index.logLength = logLength;
+    index.entries = new ArrayList<>(entries.values());
+    Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+    Json.MAPPER.writeValue(temp.toFile(), index);
+    Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // Copies live records into a fresh log and swaps it in. Runs before the
+  // store is shared, so no locking is needed beyond the constructor.
+  private void compact() throws IOException {
+    Path temp = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+    Map<String, Entry> moved = new LinkedHashMap<>();
+    long position = 0;
+    try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      for (Entry entry : entries.values()) {
+        byte[] payload = readPayload(entry.offset, entry.length);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        buffer.putInt(MAGIC).putInt(payload.length).putInt((int) crc.getValue()).put(PUT).put(payload).flip();
+        Entry copy = new Entry();
+        copy.id = entry.id;
+        copy.name = entry.name;
+        copy.savedAt = entry.savedAt;
+        copy.offset = position + HEADER_BYTES;
+        copy.length = entry.length;
+        copy.steps = entry.steps;
+        while (buffer.hasRemaining()) {
+          position += out.write(buffer, position);
+        }
+        moved.put(copy.id, copy);
+      }
+      out.force(true);
+    }
+    System.out.println("Macro log compacted: " + logLength + " -> " + position + " bytes");
+    log.close();
+    Files.move(temp, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    log = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    entries.clear();
+    entries.putAll(moved);
+    logLength = position;
+    deadBytes = 0;
+    writeIndex();
+  }
+}
@@ -0,0 +1,144 @@
+package com.journeyhacks.server;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+// Records how long each call into the underlying device takes. With Robot
+// this includes its auto-delay, which is usually the dominant cost.
+final class MeteredInputDevice implements InputDevice {
+  private static final Metrics.HistogramFamily CALLS = Metrics.histogram(
+      "input_call_duration_seconds", "Latency of input device (Robot) calls.", "call");
+
+  private final InputDevice delegate;
+  private final Metrics.Histogram mouseMove = CALLS.labels("mouseMove");
+  private final Metrics.Histogram mousePress = CALLS.labels("mousePress");
+  private final Metrics.Histogram mouseRelease = CALLS.labels("mouseRelease");
+  private final Metrics.Histogram keyPress = CALLS.labels("keyPress");
+  private final Metrics.Histogram keyRelease = CALLS.labels("keyRelease");
+  private final Metrics.Histogram pointerLocation = CALLS.labels("pointerLocation");
+  private final Metrics.Histogram setClipboard = CALLS.labels("setClipboard");
+  private final Metrics.Histogram clipboardText = CALLS.labels("clipboardText");
+  private final Metrics.Histogram openUrl = CALLS.labels("openUrl");
+  private final Metrics.Histogram fetch = CALLS.labels("fetch");
+  private final Metrics.Histogram runCommand = CALLS.labels("runCommand");
+  private final Metrics.Histogram pixelColor = CALLS.labels("pixelColor");
+  private final Metrics.Histogram capture = CALLS.labels("capture");
+
+  MeteredInputDevice(InputDevice delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void mouseMove(int x, int y) {
+    long started = System.nanoTime();
+    delegate.mouseMove(x, y);
+    mouseMove.observeSince(started);
+  }
+
+  @Override
+  public void mousePress(int buttons) {
+    long started = System.nanoTime();
+    delegate.mousePress(buttons);
+    mousePress.observeSince(started);
+  }
+
+  @Override
+  public void mouseRelease(int buttons) {
+    long started = System.nanoTime();
+    delegate.mouseRelease(buttons);
+    mouseRelease.observeSince(started);
+  }
+
+  @Override
+  public void keyPress(int keyCode) {
+    long started = System.nanoTime();
+    delegate.keyPress(keyCode);
+    keyPress.observeSince(started);
+  }
+
+  @Override
+  public void keyRelease(int keyCode) {
+    long started = System.nanoTime();
+    delegate.keyRelease(keyCode);
+    keyRelease.observeSince(started);
+  }
+
+  @Override
+  public Point pointerLocation() {
+    long started = System.nanoTime();
+    Point point = delegate.pointerLocation();
+    pointerLocation.observeSince(started);
+    return point;
+  }
+
+  @Override
+  public void setAutoDelay(int ms) {
+    delegate.setAutoDelay(ms);
+  }
+
+  @Override
+  public boolean setClipboard(String text) {
+    long started = System.nanoTime();
+    boolean set = delegate.setClipboard(text);
+    setClipboard.observeSince(started);
+    return set;
+  }
+
+  @Override
+  public String clipboardText() {
+    long started = System.nanoTime();
+    String text = delegate.clipboardText();
+    clipboardText.observeSince(started);
+    return text;
+  }
+
+  @Override
+  public void openUrl(String url) {
+    long started = System.nanoTime();
+    delegate.openUrl(url);
+    openUrl.observeSince(started);
+  }
+
+  @Override
+  public int fetch(String method, String url, String body, long timeoutNanos) {
+    long started = System.nanoTime();
+    try {
+      return delegate.fetch(method, url, body, timeoutNanos);
+    } finally {
+      fetch.observeSince(started);
+    }
+  }
+
+  @Override
+  public int runCommand(List<String> command, long timeoutNanos) {
+    long started = System.nanoTime();
+    try {
+      return delegate.runCommand(command, timeoutNanos);
+    } finally {
+      runCommand.observeSince(started);
+    }
+  }
+
+  @Override
+  public int pixelColor(int x, int y) {
+    long started = System.nanoTime();
+    int color = delegate.pixelColor(x, y);
+    pixelColor.observeSince(started);
+    return color;
+  }
+
+  @Override
+  public BufferedImage capture(int x, int y, int width, int height) {
+    long started = System.nanoTime();
+    BufferedImage image = delegate.capture(x, y, width, height);
+    capture.observeSince(started);
+    return image;
+  }
+
+  @Override
+  public Dimension screenSize() {
+    return delegate.screenSize();
+  }
+}
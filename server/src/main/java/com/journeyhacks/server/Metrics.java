@@ -0,0 +1,226 @@
+package com.journeyhacks.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+// Process-wide metrics in Prometheus text format. Counters and histogram
+// buckets are LongAdders, so recording is a few uncontended adds and is
+// safe to leave on in the step loop. Hot paths should resolve labelled
+// children once (labels(...)) and keep the reference.
+final class Metrics {
+  // Upper bounds in nanoseconds: 50us .. 30s.
+  private static final long[] LATENCY_BOUNDS = {
+      50_000L, 100_000L, 250_000L, 500_000L,
+      1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L,
+      100_000_000L, 250_000_000L, 500_000_000L,
+      1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L, 30_000_000_000L
+  };
+
+  private static final List<Family> FAMILIES = new CopyOnWriteArrayList<>();
+
+  private Metrics() {
+  }
+
+  static final class Counter {
+    private final LongAdder value = new LongAdder();
+
+    void inc() {
+      value.increment();
+    }
+
+    long get() {
+      return value.sum();
+    }
+  }
+
+  static final class Histogram {
+    private final LongAdder[] buckets = new LongAdder[LATENCY_BOUNDS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    private Histogram() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void observeNanos(long nanos) {
+      int i = 0;
+      while (i < LATENCY_BOUNDS.length && nanos > LATENCY_BOUNDS[i]) {
+        i++;
+      }
+      buckets[i].increment();
+      sumNanos.add(nanos);
+    }
+
+    void observeSince(long startNanos) {
+      observeNanos(System.nanoTime() - startNanos);
+    }
+  }
+
+  private abstract static class Family {
+    final String name;
+    final String help;
+    final String type;
+
+    Family(String name, String help, String type) {
+      this.name = name;
+      this.help = help;
+      this.type = type;
+    }
+
+    abstract void render(StringBuilder out);
+  }
+
+  // A metric with a fixed set of label names; one child per label value
+  // combination, created on first use.
+  abstract static class Labelled<T> extends Family {
+    private final String[] labelNames;
+    private final Map<String, T> children = new ConcurrentHashMap<>();
+
+    Labelled(String name, String help, String type, String[] labelNames) {
+      super(name, help, type);
+      this.labelNames = labelNames;
+    }
+
+    T labels(String... values) {
+      if (values.length != labelNames.length) {
+        throw new IllegalArgumentException(name + " takes " + labelNames.length + " labels");
+      }
+      StringBuilder key = new StringBuilder();
+      for (int i = 0; i < values.length; i++) {
+        if (i > 0) {
+          key.append(',');
+        }
+        key.append(labelNames[i]).append("=\"").append(escape(values[i])).append('"');
+      }
+      return children.computeIfAbsent(key.toString(), ignored -> create());
+    }
+
+    abstract T create();
+
+    @Override
+    void render(StringBuilder out) {
+      children.entrySet().stream()
+          .sorted(Map.Entry.comparingByKey())
+          .forEach(entry -> renderChild(out, entry.getKey(), entry.getValue()));
+    }
+
+    abstract void renderChild(StringBuilder out, String labels, T child);
+  }
+
+  static final class CounterFamily extends Labelled<Counter> {
+    CounterFamily(String name, String help, String[] labelNames) {
+      super(name, help, "counter", labelNames);
+    }
+
+    @Override
+    Counter create() {
+      return new Counter();
+    }
+
+    @Override
+    void renderChild(StringBuilder out, String labels, Counter child) {
+      sample(out, name, labels, child.get());
+    }
+  }
+
+  static final class HistogramFamily extends Labelled<Histogram> {
+    HistogramFamily(String name, String help, String[] labelNames) {
+      super(name, help, "histogram", labelNames);
+    }
+
+    @Override
+    Histogram create() {
+      return new Histogram();
+    }
+
+    @Override
+    void renderChild(StringBuilder out, String labels, Histogram child) {
+      String prefix = labels.isEmpty() ? "" : labels + ",";
+      long cumulative = 0;
+      for (int i = 0; i < child.buckets.length; i++) {
+        cumulative += child.buckets[i].sum();
+        String le = i < LATENCY_BOUNDS.length ? seconds(LATENCY_BOUNDS[i]) : "+Inf";
+        sample(out, name + "_bucket", prefix + "le=\"" + le + "\"", cumulative);
+      }
+      out.append(name).append("_sum");
+      if (!labels.isEmpty()) {
+        out.append('{').append(labels).append('}');
+      }
+      out.append(' ').append(seconds(child.sumNanos.sum())).append('\n');
+      sample(out, name + "_count", labels, cumulative);
+    }
+  }
+
+  private static final class Gauge extends Family {
+    private final DoubleSupplier value;
+
+    Gauge(String name, String help, DoubleSupplier value) {
+      super(name, help, "gauge");
+      this.value = value;
+    }
+
+    @Override
+    void render(StringBuilder out) {
+      double current = value.getAsDouble();
+      out.append(name).append(' ');
+      if (current == Math.rint(current) && !Double.isInfinite(current)) {
+        out.append((long) current);
+      } else {
+        out.append(current);
+      }
+      out.append('\n');
+    }
+  }
+
+  static CounterFamily counter(String name, String help, String... labelNames) {
+    return register(new CounterFamily(name, help, labelNames));
+  }
+
+  static HistogramFamily histogram(String name, String help, String... labelNames) {
+    return register(new HistogramFamily(name, help, labelNames));
+  }
+
+  // Gauges are sampled at scrape time. Registering a name again replaces
+  // the previous supplier, so a restarted component does not leave a stale
+  // one behind.
+  static void gauge(String name, String help, DoubleSupplier value) {
+    FAMILIES.removeIf(family -> family.name.equals(name));
+    register(new Gauge(name, help, value));
+  }
+
+  private static <T extends Family> T register(T family) {
+    FAMILIES.add(family);
+    return family;
+  }
+
+  static String render() {
+    StringBuilder out = new StringBuilder(4096);
+    for (Family family : FAMILIES) {
+      out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+      out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+      family.render(out);
+    }
+    return out.toString();
+  }
+
+  private static void sample(StringBuilder out, String name, String labels, long value) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+
+  private static String seconds(long nanos) {
+    return Double.toString(nanos / 1e9);
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,280 @@
+package com.journeyhacks.server;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+// Records the pointer into a macro. A sampler thread reads the pointer at a
+// fixed rate and stores only changed positions in a preallocated chunk of
+// primitive arrays. Each full chunk is simplified with Ramer-Douglas-Peucker
+// before its space is reused, so memory grows with the shape of the path,
+// not with its duration.
+//
+// Simplification measures the distance to where the pointer would be at the
+// same moment on the simplified path (not just the distance to the line), so
+// speed changes survive along with the shape. Points where the pointer
+// rested are always kept, and no kept segment spans more than maxSegmentMs,
+// since replay jumps from point to point.
+final class MouseRecorder {
+  static final int DEFAULT_RATE = 250;
+  static final double DEFAULT_TOLERANCE = 2.0;
+  static final int DEFAULT_MAX_SEGMENT_MS = 100;
+  private static final int CHUNK = 4096;
+  private static final int MAX_POINTS = 200_000;
+  // A rest this long becomes its own WAIT_MS step.
+  private static final int WAIT_STEP_MS = 250;
+
+  private final Supplier<Point> pointer;
+  private Session session;
+
+  MouseRecorder(Supplier<Point> pointer) {
+    this.pointer = pointer;
+  }
+
+  synchronized boolean start(int samplesPerSecond, double tolerance, int maxSegmentMs) {
+    if (session != null) {
+      return false;
+    }
+    session = new Session(samplesPerSecond, tolerance, maxSegmentMs);
+    session.thread.start();
+    return true;
+  }
+
+  // Returns null if no recording was in progress.
+  synchronized Map<String, Object> stop() throws InterruptedException {
+    Session current = session;
+    if (current == null) {
+      return null;
+    }
+    current.running = false;
+    LockSupport.unpark(current.thread);
+    current.thread.join();
+    session = null;
+    return current.result();
+  }
+
+  synchronized Map<String, Object> status() {
+    Map<String, Object> status = new LinkedHashMap<>();
+    status.put("recording", session != null);
+    if (session != null) {
+      status.put("rate", session.rate);
+      status.put("elapsedMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - session.startedAt));
+    }
+    return status;
+  }
+
+  private final class Session {
+    final int rate;
+    final double tolerance;
+    final long periodNanos;
+    final long restNanos;
+    final long maxSegmentNanos;
+    final long startedAt = System.nanoTime();
+    final Thread thread = new Thread(this::sample, "mouse-recorder");
+    volatile boolean running = true;
+
+    // Raw samples of the current chunk; times are nanos since startedAt.
+    final int[] xs = new int[CHUNK];
+    final int[] ys = new int[CHUNK];
+    final long[] times = new long[CHUNK];
+    int count;
+    // Scratch space for simplifying a chunk.
+    final boolean[] keep = new boolean[CHUNK];
+    final int[] stack = new int[2 * CHUNK];
+
+    // Simplified path so far.
+    int[] pathX = new int[256];
+    int[] pathY = new int[256];
+    long[] pathTime = new long[256];
+    int pathSize;
+    long samples;
+    boolean truncated;
+
+    Session(int samplesPerSecond, double tolerance, int maxSegmentMs) {
+      this.rate = Math.max(1, Math.min(samplesPerSecond, 1000));
+      this.tolerance = Math.max(0, tolerance);
+      this.maxSegmentNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, maxSegmentMs));
+      this.periodNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+      // A gap of a few periods between changes means the pointer was still.
+      this.restNanos = Math.max(3 * periodNanos, TimeUnit.MILLISECONDS.toNanos(30));
+      thread.setDaemon(true);
+    }
+
+    private void sample() {
+      long deadline = startedAt;
+      while (running) {
+        Point point;
+        try {
+          point = pointer.get();
+        } catch (RuntimeException e) {
+          point = null;
+        }
+        long now = System.nanoTime();
+        if (point != null && (count == 0 || point.x != xs[count - 1] || point.y != ys[count - 1])) {
+          if (count == CHUNK) {
+            flush(false);
+            if (pathSize >= MAX_POINTS) {
+              truncated = true;
+              return;
+            }
+          }
+          xs[count] = point.x;
+          ys[count] = point.y;
+          times[count] = now - startedAt;
+          count++;
+          samples++;
+        }
+        // Absolute deadlines, as in StepScheduler, so the rate does not drift.
+        deadline += periodNanos;
+        long wait = deadline - System.nanoTime();
+        if (wait > 0) {
+          LockSupport.parkNanos(this, wait);
+        } else if (wait < -50 * periodNanos) {
+          deadline = System.nanoTime();
+        }
+      }
+    }
+
+    // Simplifies the buffered samples into the path. Unless this is the last
+    // chunk, the final sample stays behind as the start of the next chunk so
+    // the path has no seam.
+    private void flush(boolean last) {
+      if (count == 0) {
+        return;
+      }
+      Arrays.fill(keep, 0, count, false);
+      keep[0] = true;
+      keep[count - 1] = true;
+      int from = 0;
+      for (int i = 1; i < count; i++) {
+        boolean rested = i < count - 1 && times[i + 1] - times[i] >= restNanos;
+        if (rested || i == count - 1) {
+          keep[i] = true;
+          simplify(from, i);
+          from = i;
+        }
+      }
+      // The first sample of a later chunk is already in the path.
+      int start = pathSize > 0 && pathTime[pathSize - 1] == times[0] ? 1 : 0;
+      int end = last ? count : count - 1;
+      for (int i = start; i < end; i++) {
+        if (keep[i]) {
+          append(xs[i], ys[i], times[i]);
+        }
+      }
+      if (!last) {
+        append(xs[count - 1], ys[count - 1], times[count - 1]);
+        xs[0] = xs[count - 1];
+        ys[0] = ys[count - 1];
+        times[0] = times[count - 1];
+        count = 1;
+      } else {
+        count = 0;
+      }
+    }
+
+    // Iterative Ramer-Douglas-Peucker over [first, last]; both ends are
+    // already kept.
+    private void simplify(int first, int last) {
+      int top = 0;
+      stack[top++] = first;
+      stack[top++] = last;
+      while (top > 0) {
+        int b = stack[--top];
+        int a = stack[--top];
+        double worst = -1;
+        int index = -1;
+        long span = times[b] - times[a];
+        for (int i = a + 1; i < b; i++) {
+          double distance = syncDistance(i, a, b, span);
+          if (distance > worst) {
+            worst = distance;
+            index = i;
+          }
+        }
+        if (index >= 0 && worst <= tolerance && span > maxSegmentNanos) {
+          index = (a + b) >>> 1;
+          worst = Double.MAX_VALUE;
+        }
+        if (index >= 0 && worst > tolerance) {
+          keep[index] = true;
+          stack[top++] = a;
+          stack[top++] = index;
+          stack[top++] = index;
+          stack[top++] = b;
+        }
+      }
+    }
+
+    // Distance from sample i to the point the segment a-b passes through at
+    // the same time.
+    private double syncDistance(int i, int a, int b, long span) {
+      double ratio = span == 0 ? 0 : (double) (times[i] - times[a]) / span;
+      double ex = xs[a] + ratio * (xs[b] - xs[a]) - xs[i];
+      double ey = ys[a] + ratio * (ys[b] - ys[a]) - ys[i];
+      return Math.sqrt(ex * ex + ey * ey);
+    }
+
+    private void append(int x, int y, long time) {
+      if (pathSize == pathX.length) {
+        int capacity = pathSize * 2;
+        pathX = Arrays.copyOf(pathX, capacity);
+        pathY = Arrays.copyOf(pathY, capacity);
+        pathTime = Arrays.copyOf(pathTime, capacity);
+      }
+      pathX[pathSize] = x;
+      pathY[pathSize] = y;
+      pathTime[pathSize] = time;
+      pathSize++;
+    }
+
+    // Called after the sampler thread has exited.
+    Map<String, Object> result() {
+      flush(true);
+      long durationNanos = System.nanoTime() - startedAt;
+      List<Map<String, Object>> steps = new ArrayList<>();
+      // Delays are rounded to whole milliseconds with the remainder carried
+      // forward, so the total replay time matches the recording.
+      long carriedNanos = 0;
+      for (int i = 0; i < pathSize; i++) {
+        long gap = (i + 1 < pathSize ? pathTime[i + 1] : pathTime[i]) - pathTime[i] + carriedNanos;
+        long gapMs = gap / 1_000_000L;
+        carriedNanos = gap - gapMs * 1_000_000L;
+        Map<String, Object> move = new LinkedHashMap<>();
+        move.put("type", "MOUSE_MOVE_TO");
+        move.put("x", pathX[i]);
+        move.put("y", pathY[i]);
+        if (gapMs >= WAIT_STEP_MS) {
+          move.put("delayMs", 0);
+          steps.add(move);
+          Map<String, Object> wait = new LinkedHashMap<>();
+          wait.put("type", "WAIT_MS");
+          wait.put("ms", gapMs);
+          wait.put("delayMs", 0);
+          steps.add(wait);
+        } else {
+          move.put("delayMs", gapMs);
+          steps.add(move);
+        }
+      }
+
+      Map<String, Object> result = new LinkedHashMap<>();
+      result.put("steps", steps);
+      // Replay with no added delays so only the recorded gaps apply.
+      result.put("pacing", Map.of("profile", "MAX_THROUGHPUT"));
+      result.put("samples", samples);
+      result.put("points", pathSize);
+      result.put("durationMs", TimeUnit.NANOSECONDS.toMillis(durationNanos));
+      if (truncated) {
+        result.put("truncated", true);
+      }
+      return result;
+    }
+  }
+}
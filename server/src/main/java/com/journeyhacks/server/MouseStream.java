@@ -0,0 +1,135 @@
+package com.journeyhacks.server;
+
+import java.awt.Point;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+// Fans the pointer position out to SSE subscribers. One sampler thread
+// reads the pointer at a fixed rate while anyone is subscribed and
+// publishes only changes. Each subscriber has a single pending slot, so a
+// slow client skips intermediate positions instead of queueing them, and at
+// most one write per subscriber is in flight on the writer pool.
+final class MouseStream {
+  private static final long HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(15);
+  private static final Object HEARTBEAT = new Object();
+
+  private final Supplier<Point> pointer;
+  private final long periodNanos;
+  private final Executor writers;
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+  private final Thread sampler;
+  private volatile Point last;
+
+  MouseStream(Supplier<Point> pointer, int samplesPerSecond, Executor writers) {
+    this.pointer = pointer;
+    this.periodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, Math.min(samplesPerSecond, 1000));
+    this.writers = writers;
+    this.sampler = new Thread(this::sample, "mouse-sampler");
+    this.sampler.setDaemon(true);
+    this.sampler.start();
+  }
+
+  int subscribers() {
+    return subscribers.size();
+  }
+
+  // Takes ownership of events; it is closed when the client goes away.
+  void subscribe(SseStream events) {
+    Subscriber subscriber = new Subscriber(events);
+    subscribers.add(subscriber);
+    Point current = last;
+    if (current != null) {
+      subscriber.offer(current);
+    }
+    LockSupport.unpark(sampler);
+  }
+
+  private void sample() {
+    long nextHeartbeat = System.nanoTime() + HEARTBEAT_NANOS;
+    while (true) {
+      if (subscribers.isEmpty()) {
+        // Forget the last position so a new subscriber gets a fresh one.
+        last = null;
+        LockSupport.park(this);
+        continue;
+      }
+      Point point;
+      try {
+        point = pointer.get();
+      } catch (RuntimeException e) {
+        // MouseInfo can fail transiently, e.g. while the display changes.
+        point = null;
+      }
+      if (point != null && !point.equals(last)) {
+        last = point;
+        for (Subscriber subscriber : subscribers) {
+          subscriber.offer(point);
+        }
+      }
+      long now = System.nanoTime();
+      if (now >= nextHeartbeat) {
+        nextHeartbeat = now + HEARTBEAT_NANOS;
+        for (Subscriber subscriber : subscribers) {
+          subscriber.offer(HEARTBEAT);
+        }
+      }
+      LockSupport.parkNanos(this, periodNanos);
+    }
+  }
+
+  private final class Subscriber {
+    private final SseStream events;
+    private final AtomicReference<Object> pending = new AtomicReference<>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+
+    Subscriber(SseStream events) {
+      this.events = events;
+    }
+
+    void offer(Object update) {
+      if (update == HEARTBEAT) {
+        // Never replace a real position with a heartbeat.
+        pending.compareAndSet(null, HEARTBEAT);
+      } else {
+        pending.set(update);
+      }
+      if (writing.compareAndSet(false, true)) {
+        writers.execute(this::drain);
+      }
+    }
+
+    private void drain() {
+      try {
+        do {
+          Object update;
+          while ((update = pending.getAndSet(null)) != null) {
+            if (update == HEARTBEAT) {
+              events.comment("keep-alive");
+            } else {
+              Point point = (Point) update;
+              events.send("position", Map.of("x", point.x, "y", point.y));
+            }
+          }
+          writing.set(false);
+          // An offer may have landed after the last getAndSet but before
+          // writing was cleared; pick it up rather than strand it.
+        } while (pending.get() != null && writing.compareAndSet(false, true));
+      } catch (IOException e) {
+        subscribers.remove(this);
+        try {
+          events.close();
+        } catch (IOException ignored) {
+          // The client is already gone.
+        }
+      }
+    }
+  }
+}
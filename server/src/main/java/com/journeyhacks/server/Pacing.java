@@ -0,0 +1,99 @@
+package com.journeyhacks.server;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Delays the engine inserts between input events. DEFAULT keeps the original
+// sleep lengths, but each is now the gap between deadlines rather than a
+// sleep after the event, so Robot's auto-delay is absorbed into it: a typed
+// character takes about 20 ms rather than the original 40 ms, and a step
+// about stepDelayMs rather than stepDelayMs plus its events' auto-delay.
+// MAX_THROUGHPUT removes every artificial delay. TYPE_TEXT steps longer than
+// pasteThreshold go through the clipboard.
+final class Pacing {
+  static final int DEFAULT_PASTE_THRESHOLD = 64;
+  static final Pacing DEFAULT = new Pacing(millis(20), millis(60), millis(20), 10, DEFAULT_PASTE_THRESHOLD);
+  static final Pacing MAX_THROUGHPUT = new Pacing(0, 0, 0, 0, DEFAULT_PASTE_THRESHOLD);
+
+  final long stepDelayNanos;
+  final long clickDelayNanos;
+  final long charDelayNanos;
+  final int inputDelayMs;
+  final int pasteThreshold;
+
+  Pacing(long stepDelayNanos, long clickDelayNanos, long charDelayNanos, int inputDelayMs, int pasteThreshold) {
+    this.stepDelayNanos = stepDelayNanos;
+    this.clickDelayNanos = clickDelayNanos;
+    this.charDelayNanos = charDelayNanos;
+    this.inputDelayMs = inputDelayMs;
+    this.pasteThreshold = pasteThreshold;
+  }
+
+  static Pacing from(Map<String, Object> spec) {
+    if (spec == null || spec.isEmpty()) {
+      return DEFAULT;
+    }
+    Pacing base = profile(spec.get("profile"));
+    int inputDelayMs = count(spec, "inputDelayMs", base.inputDelayMs);
+    if (inputDelayMs > 60_000) {
+      throw new IllegalArgumentException("pacing: inputDelayMs must be at most 60000");
+    }
+    long charDelay = override(spec, "charDelayMs", base.charDelayNanos);
+    Object keysPerSecond = spec.get("keysPerSecond");
+    if (keysPerSecond != null) {
+      if (!(keysPerSecond instanceof Number) || ((Number) keysPerSecond).doubleValue() <= 0) {
+        throw new IllegalArgumentException("pacing: keysPerSecond must be a positive number");
+      }
+      charDelay = (long) (1_000_000_000L / ((Number) keysPerSecond).doubleValue());
+    }
+    return new Pacing(
+        override(spec, "stepDelayMs", base.stepDelayNanos),
+        override(spec, "clickDelayMs", base.clickDelayNanos),
+        charDelay,
+        inputDelayMs,
+        count(spec, "pasteThreshold", base.pasteThreshold));
+  }
+
+  private static Pacing profile(Object name) {
+    if (name == null) {
+      return DEFAULT;
+    }
+    switch (name.toString().toUpperCase()) {
+      case "DEFAULT":
+        return DEFAULT;
+      case "MAX_THROUGHPUT":
+        return MAX_THROUGHPUT;
+      default:
+        throw new IllegalArgumentException("pacing: unknown profile " + name);
+    }
+  }
+
+  private static long override(Map<String, Object> spec, String field, long fallback) {
+    Object value = spec.get(field);
+    if (value == null) {
+      return fallback;
+    }
+    if (value instanceof Number) {
+      double ms = ((Number) value).doubleValue();
+      if (ms >= 0) {
+        return (long) (ms * 1_000_000L);
+      }
+    }
+    throw new IllegalArgumentException("pacing: " + field + " must be a non-negative number");
+  }
+
+  private static int count(Map<String, Object> spec, String field, int fallback) {
+    Object value = spec.get(field);
+    if (value == null) {
+      return fallback;
+    }
+    if (value instanceof Number && ((Number) value).longValue() >= 0) {
+      return (int) Math.min(Integer.MAX_VALUE, ((Number) value).longValue());
+    }
+    throw new IllegalArgumentException("pacing: " + field + " must be a non-negative integer");
+  }
+
+  static long millis(long ms) {
+    return TimeUnit.MILLISECONDS.toNanos(ms);
+  }
+}
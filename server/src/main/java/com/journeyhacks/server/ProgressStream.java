@@ -0,0 +1,247 @@
+package com.journeyhacks.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+// Tails the ExecutionTrace for /macros/progress subscribers. A poller thread
+// wakes a few times a second while anyone is subscribed and publishes the
+// steps recorded since its last look, together with the run's state. As in
+// MouseStream, each subscriber has a single pending slot: a slow client
+// skips whole batches (reported as "dropped") rather than queueing them,
+// and the input thread never waits on a client.
+final class ProgressStream {
+  private static final long PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+  private static final long HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(15);
+  // Steps per event; older ones in a burst are counted as dropped.
+  private static final int MAX_BATCH = 256;
+  private static final String[] OUTCOMES = {"OK", "STOPPED", "FAILED"};
+  private static final Batch HEARTBEAT = new Batch(null, List.of(), 0);
+
+  private static final class Batch {
+    final MacroRun run;
+    final List<ExecutionTrace.Record> steps;
+    final long dropped;
+
+    Batch(MacroRun run, List<ExecutionTrace.Record> steps, long dropped) {
+      this.run = run;
+      this.steps = steps;
+      this.dropped = dropped;
+    }
+  }
+
+  private final ExecutionTrace trace;
+  private final Supplier<MacroRun> current;
+  private final Executor writers;
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+  private final Thread poller;
+  private volatile MacroRun lastRun;
+
+  ProgressStream(ExecutionTrace trace, Supplier<MacroRun> current, Executor writers) {
+    this.trace = trace;
+    this.current = current;
+    this.writers = writers;
+    this.poller = new Thread(this::poll, "progress-poller");
+    this.poller.setDaemon(true);
+    this.poller.start();
+  }
+
+  int subscribers() {
+    return subscribers.size();
+  }
+
+  // Takes ownership of events. With only set, the client sees just that
+  // run's steps and the stream ends once the run has finished.
+  void subscribe(SseStream events, MacroRun only) {
+    Subscriber subscriber = new Subscriber(events, only);
+    subscribers.add(subscriber);
+    MacroRun active = current.get();
+    subscriber.offer(new Batch(active != null ? active : lastRun, List.of(), 0));
+    if (only != null) {
+      // A run cancelled while queued never becomes current, so the poller
+      // would not see it finish.
+      only.done.whenComplete((state, error) -> subscriber.offer(new Batch(only, List.of(), 0)));
+    }
+    LockSupport.unpark(poller);
+  }
+
+  private void poll() {
+    long cursor = trace.head();
+    MacroRun.State lastState = null;
+    long nextHeartbeat = System.nanoTime() + HEARTBEAT_NANOS;
+    while (true) {
+      if (subscribers.isEmpty()) {
+        LockSupport.park(this);
+        // Nobody saw what ran meanwhile; start from now.
+        cursor = trace.head();
+        continue;
+      }
+      long head = trace.head();
+      MacroRun active = current.get();
+      MacroRun run = active != null ? active : lastRun;
+      if (head != cursor || run != lastRun || (run != null && run.state() != lastState)) {
+        long from = Math.max(cursor, head - MAX_BATCH);
+        long dropped = from - cursor;
+        List<ExecutionTrace.Record> steps = new ArrayList<>((int) (head - from));
+        for (long sequence = from; sequence < head; sequence++) {
+          ExecutionTrace.Record record = trace.read(sequence);
+          if (record == null) {
+            dropped++;
+          } else {
+            steps.add(record);
+          }
+        }
+        cursor = head;
+        if (active == null && !steps.isEmpty()) {
+          run = steps.get(steps.size() - 1).run;
+        }
+        lastRun = run;
+        lastState = run == null ? null : run.state();
+        Batch batch = new Batch(run, steps, dropped);
+        for (Subscriber subscriber : subscribers) {
+          subscriber.offer(batch);
+        }
+      }
+      long now = System.nanoTime();
+      if (now >= nextHeartbeat) {
+        nextHeartbeat = now + HEARTBEAT_NANOS;
+        for (Subscriber subscriber : subscribers) {
+          subscriber.offer(HEARTBEAT);
+        }
+      }
+      LockSupport.parkNanos(this, PERIOD_NANOS);
+    }
+  }
+
+  private static Map<String, Object> step(ExecutionTrace.Record record) {
+    Map<String, Object> step = new LinkedHashMap<>();
+    step.put("seq", record.sequence);
+    step.put("run", record.run.id);
+    step.put("step", record.program.stepPath(record.pc));
+    step.put("type", MacroProgram.opName(record.op));
+    step.put("atMs", millis(record.started - record.run.startedNanos));
+    step.put("durationMs", millis(record.finished - record.started));
+    step.put("outcome", OUTCOMES[record.outcome]);
+    return step;
+  }
+
+  private static double millis(long nanos) {
+    return Math.round(nanos / 1_000.0) / 1_000.0;
+  }
+
+  private final class Subscriber {
+    private final SseStream events;
+    private final MacroRun only;
+    private final AtomicReference<Batch> pending = new AtomicReference<>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private volatile boolean closed;
+    // Steps in batches replaced before they were written.
+    private final AtomicLong skipped = new AtomicLong();
+    // Writer-side only: the run state last sent.
+    private MacroRun.State sent;
+
+    Subscriber(SseStream events, MacroRun only) {
+      this.events = events;
+      this.only = only;
+    }
+
+    void offer(Batch batch) {
+      if (closed) {
+        return;
+      }
+      if (batch == HEARTBEAT) {
+        // Never replace real progress with a heartbeat.
+        pending.compareAndSet(null, HEARTBEAT);
+      } else {
+        Batch replaced = pending.getAndSet(batch);
+        if (replaced != null) {
+          skipped.addAndGet(count(replaced));
+        }
+      }
+      if (writing.compareAndSet(false, true)) {
+        writers.execute(this::drain);
+      }
+    }
+
+    private void drain() {
+      try {
+        do {
+          Batch batch;
+          while ((batch = pending.getAndSet(null)) != null) {
+            if (batch == HEARTBEAT) {
+              events.comment("keep-alive");
+            } else if (write(batch)) {
+              close();
+              return;
+            }
+          }
+          writing.set(false);
+          // An offer may have landed after the last getAndSet but before
+          // writing was cleared; pick it up rather than strand it.
+        } while (pending.get() != null && writing.compareAndSet(false, true));
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    private long count(Batch batch) {
+      long count = batch.dropped;
+      for (ExecutionTrace.Record record : batch.steps) {
+        if (only == null || record.run == only) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    // Returns true once the stream is done (its run has finished).
+    private boolean write(Batch batch) throws IOException {
+      MacroRun run = only != null ? only : batch.run;
+      List<Map<String, Object>> steps = new ArrayList<>(batch.steps.size());
+      for (ExecutionTrace.Record record : batch.steps) {
+        if (only == null || record.run == only) {
+          steps.add(step(record));
+        }
+      }
+      MacroRun.State state = run == null ? null : run.state();
+      long dropped = batch.dropped + skipped.getAndSet(0);
+      if (steps.isEmpty() && dropped == 0 && state == sent && only != null) {
+        return false;
+      }
+      sent = state;
+      Map<String, Object> payload = new LinkedHashMap<>();
+      payload.put("run", run == null ? null : run.summary());
+      payload.put("steps", steps);
+      if (dropped > 0) {
+        payload.put("dropped", dropped);
+      }
+      events.send("progress", payload);
+      if (only != null && only.isFinished()) {
+        events.send("done", only.summary());
+        return true;
+      }
+      return false;
+    }
+
+    private void close() {
+      closed = true;
+      subscribers.remove(this);
+      try {
+        events.close();
+      } catch (IOException ignored) {
+        // The client is already gone.
+      }
+    }
+  }
+}
@@ -0,0 +1,310 @@
+package com.journeyhacks.server;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Past prompt -> response pairs, searched by similarity so a rephrased
+// prompt ("open gmail then compose" after "open gmail and click compose")
+// can reuse the steps generated before. Prompts are compared as TF-IDF
+// weighted character trigram vectors by cosine similarity; an inverted
+// index from trigram to entries keeps a lookup proportional to the entries
+// that share text with the prompt. Numbers and quoted text must match
+// exactly, so "move to 100,200" never reuses the steps for "move to 300,400".
+// Entries are kept in insertion order up to maxEntries and mirrored to a
+// JSON file.
+final class PromptIndex {
+  private static final Pattern LITERAL = Pattern.compile("\"[^\"]*\"|'[^']*'|\\d+");
+  private static final Set<String> FILLER = Set.of("a", "an", "the", "and", "then", "please");
+
+  static final class Match {
+    final String prompt;
+    final double score;
+    final Map<String, Object> value;
+
+    Match(String prompt, double score, Map<String, Object> value) {
+      this.prompt = prompt;
+      this.score = score;
+      this.value = value;
+    }
+  }
+
+  static final class Entry {
+    public String prompt;
+    public String scope;
+    public long storedAt;
+    public Map<String, Object> value;
+  }
+
+  // An entry with its features; counts[i] is the frequency of grams[i].
+  private static final class Doc {
+    final Entry entry;
+    final long[] grams;
+    final int[] counts;
+    final List<String> literals;
+    // Vector length under the IDF weights of index generation normGeneration.
+    double norm;
+    long normGeneration = -1;
+
+    Doc(Entry entry, Features features) {
+      this.entry = entry;
+      this.grams = features.grams;
+      this.counts = features.counts;
+      this.literals = features.literals;
+    }
+  }
+
+  private static final class Features {
+    final String normalized;
+    final long[] grams;
+    final int[] counts;
+    final List<String> literals;
+
+    Features(String normalized, long[] grams, int[] counts, List<String> literals) {
+      this.normalized = normalized;
+      this.grams = grams;
+      this.counts = counts;
+      this.literals = literals;
+    }
+  }
+
+  private final int maxEntries;
+  private final double threshold;
+  private final Path file;
+  // scope + "|" + normalized prompt -> entry, oldest first.
+  private final LinkedHashMap<String, Doc> docs = new LinkedHashMap<>();
+  // trigram -> entries containing it.
+  private final Map<Long, List<Doc>> postings = new HashMap<>();
+  private final Object saveLock = new Object();
+  // Bumped whenever entries change, which changes every IDF weight.
+  private long generation;
+  private long version;
+  private long savedVersion;
+
+  PromptIndex(int maxEntries, double threshold, Path file) {
+    this.maxEntries = Math.max(0, maxEntries);
+    this.threshold = threshold;
+    this.file = file;
+    load();
+  }
+
+  synchronized int size() {
+    return docs.size();
+  }
+
+  // The most similar stored prompt in scope, if it reaches the threshold.
+  Match find(String prompt, String scope) {
+    Features query = features(prompt);
+    synchronized (this) {
+      int total = docs.size();
+      if (total == 0 || query.grams.length == 0) {
+        return null;
+      }
+      Map<Doc, Double> dots = new HashMap<>();
+      double queryNorm = 0;
+      for (int i = 0; i < query.grams.length; i++) {
+        List<Doc> posting = postings.get(query.grams[i]);
+        double idf = idf(total, posting);
+        double weight = query.counts[i] * idf;
+        queryNorm += weight * weight;
+        if (posting != null) {
+          for (Doc doc : posting) {
+            if (doc.entry.scope.equals(scope) && doc.literals.equals(query.literals)) {
+              dots.merge(doc, weight * count(doc, query.grams[i]) * idf, Double::sum);
+            }
+          }
+        }
+      }
+      Doc best = null;
+      double bestScore = 0;
+      for (Map.Entry<Doc, Double> candidate : dots.entrySet()) {
+        Doc doc = candidate.getKey();
+        double score = candidate.getValue() / Math.sqrt(queryNorm) / norm(doc, total);
+        if (score > bestScore) {
+          best = doc;
+          bestScore = score;
+        }
+      }
+      if (best == null || bestScore < threshold) {
+        return null;
+      }
+      return new Match(best.entry.prompt, Math.min(1.0, bestScore), best.entry.value);
+    }
+  }
+
+  void add(String prompt, String scope, Map<String, Object> value) {
+    if (maxEntries == 0 || !AiResponseCache.cacheable(value)) {
+      return;
+    }
+    Entry entry = new Entry();
+    entry.prompt = prompt;
+    entry.scope = scope;
+    entry.storedAt = System.currentTimeMillis();
+    entry.value = value;
+    List<Entry> snapshot;
+    long snapshotVersion;
+    synchronized (this) {
+      insert(entry);
+      snapshot = file == null ? null : entries();
+      snapshotVersion = ++version;
+    }
+    if (snapshot != null) {
+      save(snapshot, snapshotVersion);
+    }
+  }
+
+  private double norm(Doc doc, int total) {
+    if (doc.normGeneration != generation) {
+      double sum = 0;
+      for (int i = 0; i < doc.grams.length; i++) {
+        double weight = doc.counts[i] * idf(total, postings.get(doc.grams[i]));
+        sum += weight * weight;
+      }
+      doc.norm = Math.sqrt(sum);
+      doc.normGeneration = generation;
+    }
+    return doc.norm;
+  }
+
+  private void insert(Entry entry) {
+    generation++;
+    Features features = features(entry.prompt);
+    String key = entry.scope + "|" + features.normalized;
+    Doc previous = docs.remove(key);
+    if (previous != null) {
+      unindex(previous);
+    }
+    Doc doc = new Doc(entry, features);
+    docs.put(key, doc);
+    for (long gram : doc.grams) {
+      postings.computeIfAbsent(gram, ignored -> new ArrayList<>(4)).add(doc);
+    }
+    Iterator<Doc> oldest = docs.values().iterator();
+    while (docs.size() > maxEntries) {
+      Doc evicted = oldest.next();
+      oldest.remove();
+      unindex(evicted);
+    }
+  }
+
+  private void unindex(Doc doc) {
+    for (long gram : doc.grams) {
+      List<Doc> posting = postings.get(gram);
+      posting.remove(doc);
+      if (posting.isEmpty()) {
+        postings.remove(gram);
+      }
+    }
+  }
+
+  private List<Entry> entries() {
+    List<Entry> entries = new ArrayList<>(docs.size());
+    for (Doc doc : docs.values()) {
+      entries.add(doc.entry);
+    }
+    return entries;
+  }
+
+  // Smoothed, so a trigram in every entry still counts a little.
+  private static double idf(int total, List<Doc> posting) {
+    return Math.log((total + 1.0) / ((posting == null ? 0 : posting.size()) + 1.0)) + 1.0;
+  }
+
+  private static int count(Doc doc, long gram) {
+    for (int i = 0; i < doc.grams.length; i++) {
+      if (doc.grams[i] == gram) {
+        return doc.counts[i];
+      }
+    }
+    return 0;
+  }
+
+  // Lower-cased words without punctuation or filler words, padded with
+  // spaces so word starts and ends form their own trigrams.
+  private static Features features(String prompt) {
+    List<String> literals = new ArrayList<>();
+    Matcher matcher = LITERAL.matcher(prompt);
+    while (matcher.find()) {
+      literals.add(matcher.group());
+    }
+    StringBuilder normalized = new StringBuilder();
+    for (String word : prompt.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+      if (!word.isEmpty() && !FILLER.contains(word)) {
+        if (normalized.length() > 0) {
+          normalized.append(' ');
+        }
+        normalized.append(word);
+      }
+    }
+    String padded = " " + normalized + " ";
+    Map<Long, Integer> counts = new LinkedHashMap<>();
+    for (int i = 0; i + 3 <= padded.length(); i++) {
+      long gram = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+      counts.merge(gram, 1, Integer::sum);
+    }
+    if (normalized.length() == 0) {
+      counts.clear();
+    }
+    long[] grams = new long[counts.size()];
+    int[] frequencies = new int[counts.size()];
+    int i = 0;
+    for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+      grams[i] = entry.getKey();
+      frequencies[i] = entry.getValue();
+      i++;
+    }
+    return new Features(normalized.toString(), grams, frequencies, literals);
+  }
+
+  private void load() {
+    if (file == null || !Files.exists(file)) {
+      return;
+    }
+    try {
+      List<Entry> stored = Json.MAPPER.readValue(file.toFile(), new TypeReference<List<Entry>>() {});
+      synchronized (this) {
+        for (Entry entry : stored) {
+          if (entry.prompt != null && entry.scope != null && entry.value != null) {
+            insert(entry);
+          }
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("Prompt index file ignored: " + e.getMessage());
+    }
+  }
+
+  // Same scheme as AiResponseCache: written outside the index lock, and a
+  // snapshot older than the last one written is dropped.
+  private void save(List<Entry> snapshot, long snapshotVersion) {
+    synchronized (saveLock) {
+      if (snapshotVersion <= savedVersion) {
+        return;
+      }
+      savedVersion = snapshotVersion;
+      try {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+          Files.createDirectories(parent);
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Json.MAPPER.writeValue(temp.toFile(), snapshot);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        System.out.println("Prompt index save failed: " + e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.journeyhacks.server;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Times each exchange on a context and counts responses by status. Handlers
+// that answer from a callback (the AI endpoints) have not responded when
+// doFilter returns, so those are recorded when the response body is closed.
+final class RequestMetrics extends Filter {
+  private static final Metrics.HistogramFamily LATENCY = Metrics.histogram(
+      "http_request_duration_seconds", "Time from request to completed response.", "endpoint");
+  private static final Metrics.CounterFamily RESPONSES = Metrics.counter(
+      "http_responses_total", "HTTP responses by status code.", "endpoint", "code");
+
+  private final String endpoint;
+  private final Metrics.Histogram latency;
+
+  RequestMetrics(String endpoint) {
+    this.endpoint = endpoint;
+    this.latency = LATENCY.labels(endpoint);
+  }
+
+  @Override
+  public String description() {
+    return "request metrics for " + endpoint;
+  }
+
+  @Override
+  public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+    long started = System.nanoTime();
+    AtomicBoolean recorded = new AtomicBoolean();
+    OutputStream body = exchange.getResponseBody();
+    exchange.setStreams(null, new FilterOutputStream(body) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          record(exchange, started, recorded);
+        }
+      }
+    });
+    try {
+      chain.doFilter(exchange);
+    } finally {
+      if (exchange.getResponseCode() != -1) {
+        record(exchange, started, recorded);
+      }
+    }
+  }
+
+  private void record(HttpExchange exchange, long started, AtomicBoolean recorded) {
+    if (recorded.compareAndSet(false, true)) {
+      latency.observeSince(started);
+      Startup.responded(endpoint);
+      RESPONSES.labels(endpoint, Integer.toString(exchange.getResponseCode())).inc();
+    }
+  }
+}
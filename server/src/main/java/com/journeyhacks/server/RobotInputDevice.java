@@ -0,0 +1,182 @@
+package com.journeyhacks.server;
+
+import java.awt.Desktop;
+import java.awt.Dimension;
+import java.awt.HeadlessException;
+import java.awt.MouseInfo;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.Toolkit;
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.StringSelection;
+import java.awt.datatransfer.UnsupportedFlavorException;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+final class RobotInputDevice implements InputDevice {
+  // Created on the first HTTP_FETCH.
+  private static final class Http {
+    static final HttpClient CLIENT = HttpClient.newBuilder()
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .connectTimeout(Duration.ofSeconds(5))
+        .build();
+  }
+
+  private final Robot robot;
+  private final boolean allowCommands;
+
+  RobotInputDevice(Robot robot, boolean allowCommands) {
+    this.robot = robot;
+    this.allowCommands = allowCommands;
+  }
+
+  @Override
+  public void mouseMove(int x, int y) {
+    robot.mouseMove(x, y);
+  }
+
+  @Override
+  public void mousePress(int buttons) {
+    robot.mousePress(buttons);
+  }
+
+  @Override
+  public void mouseRelease(int buttons) {
+    robot.mouseRelease(buttons);
+  }
+
+  @Override
+  public void keyPress(int keyCode) {
+    robot.keyPress(keyCode);
+  }
+
+  @Override
+  public void keyRelease(int keyCode) {
+    robot.keyRelease(keyCode);
+  }
+
+  @Override
+  public Point pointerLocation() {
+    return MouseInfo.getPointerInfo().getLocation();
+  }
+
+  @Override
+  public void setAutoDelay(int ms) {
+    if (robot.getAutoDelay() != ms) {
+      robot.setAutoDelay(ms);
+    }
+  }
+
+  @Override
+  public boolean setClipboard(String text) {
+    try {
+      StringSelection selection = new StringSelection(text);
+      Toolkit.getDefaultToolkit().getSystemClipboard().setContents(selection, selection);
+      return true;
+    } catch (IllegalStateException | HeadlessException e) {
+      // Clipboard busy or unavailable; the caller falls back to typing.
+      return false;
+    }
+  }
+
+  @Override
+  public String clipboardText() {
+    try {
+      Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+      DataFlavor[] flavors = clipboard.getAvailableDataFlavors();
+      if (flavors.length == 0) {
+        return "";
+      }
+      // Copied out now: a Transferable from getContents may read the
+      // system clipboard lazily, after it has been overwritten.
+      return clipboard.isDataFlavorAvailable(DataFlavor.stringFlavor)
+          ? (String) clipboard.getData(DataFlavor.stringFlavor)
+          : null;
+    } catch (IllegalStateException | HeadlessException | UnsupportedFlavorException | IOException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public void openUrl(String url) {
+    try {
+      if (Desktop.isDesktopSupported()) {
+        Desktop.getDesktop().browse(URI.create(url));
+      }
+    } catch (Exception ignored) {
+      // Best-effort only.
+    }
+  }
+
+  @Override
+  public int fetch(String method, String url, String body, long timeoutNanos) {
+    HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+        .timeout(Duration.ofNanos(Math.max(1, timeoutNanos)))
+        .method(method, body == null
+            ? HttpRequest.BodyPublishers.noBody()
+            : HttpRequest.BodyPublishers.ofString(body))
+        .build();
+    try {
+      return Http.CLIENT.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    } catch (IOException e) {
+      throw new IllegalStateException(method + " " + url + " failed: " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(method + " " + url + " interrupted", e);
+    }
+  }
+
+  // No shell: command[0] is the program and the rest its arguments. Output
+  // is discarded so a chatty command cannot block on a full pipe.
+  @Override
+  public int runCommand(List<String> command, long timeoutNanos) {
+    if (!allowCommands) {
+      throw new IllegalStateException("RUN_COMMAND is disabled; start the server with --allow-commands=on");
+    }
+    Process process;
+    try {
+      process = new ProcessBuilder(command)
+          .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+          .redirectError(ProcessBuilder.Redirect.DISCARD)
+          .start();
+    } catch (IOException e) {
+      throw new IllegalStateException("cannot run " + command.get(0) + ": " + e.getMessage(), e);
+    }
+    try {
+      if (!process.waitFor(timeoutNanos, TimeUnit.NANOSECONDS)) {
+        process.destroyForcibly();
+        throw new IllegalStateException(command.get(0) + " still running after "
+            + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms; killed");
+      }
+      return process.exitValue();
+    } catch (InterruptedException e) {
+      process.destroyForcibly();
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(command.get(0) + " interrupted; killed", e);
+    }
+  }
+
+  @Override
+  public int pixelColor(int x, int y) {
+    return robot.getPixelColor(x, y).getRGB() & 0xFFFFFF;
+  }
+
+  @Override
+  public BufferedImage capture(int x, int y, int width, int height) {
+    return robot.createScreenCapture(new Rectangle(x, y, width, height));
+  }
+
+  @Override
+  public Dimension screenSize() {
+    return Toolkit.getDefaultToolkit().getScreenSize();
+  }
+}
@@ -0,0 +1,241 @@
+package com.journeyhacks.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Runs submitted macros one at a time on a single input thread. Preempting
+// runs jump the queue and cancel whatever is executing; the rest are taken in
+// priority order (higher first), then submission order.
+final class RunQueue {
+  private static final int HISTORY = 100;
+  private static final Comparator<MacroRun> ORDER = Comparator
+      .comparing((MacroRun run) -> !run.preempt)
+      .thenComparing(run -> -run.priority)
+      .thenComparingLong(run -> run.sequence);
+
+  private final MacroEngine engine;
+  private final ExecutionTrace trace;
+  private final PriorityBlockingQueue<MacroRun> queue = new PriorityBlockingQueue<>(16, ORDER);
+  private final Map<String, MacroRun> runs = new ConcurrentHashMap<>();
+  private final Deque<MacroRun> finished = new ConcurrentLinkedDeque<>();
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicReference<MacroRun> current = new AtomicReference<>();
+  private final Thread worker;
+
+  // engine must report its steps to trace.
+  RunQueue(MacroEngine engine, ExecutionTrace trace) {
+    this.engine = engine;
+    this.trace = trace;
+    this.worker = new Thread(this::work, "macro-runner");
+    this.worker.setDaemon(true);
+    this.worker.start();
+  }
+
+  MacroRun submit(MacroProgram program, int priority, boolean preempt) {
+    return submit(program, priority, preempt, false);
+  }
+
+  // The returned run executes segments passed to MacroRun.append until
+  // MacroRun.closeFeed; program only supplies the pacing.
+  MacroRun submitStreaming(MacroProgram program, int priority, boolean preempt) {
+    return submit(program, priority, preempt, true);
+  }
+
+  private MacroRun submit(MacroProgram program, int priority, boolean preempt, boolean streaming) {
+    long seq = sequence.incrementAndGet();
+    MacroRun run = new MacroRun("run-" + seq, program, priority, preempt, seq, streaming);
+    runs.put(run.id, run);
+    queue.add(run);
+    if (preempt) {
+      // The worker may already have picked this run up; only cancel runs
+      // that were submitted before it. A run the worker has taken but not
+      // yet published in current is caught by the worker's own check.
+      MacroRun active = current.get();
+      if (active != null && active.sequence < seq) {
+        stop(active);
+      }
+    }
+    return run;
+  }
+
+  ExecutionTrace trace() {
+    return trace;
+  }
+
+  MacroRun get(String id) {
+    return runs.get(id);
+  }
+
+  MacroRun current() {
+    return current.get();
+  }
+
+  int queued() {
+    return queue.size();
+  }
+
+  boolean cancel(String id) {
+    MacroRun run = runs.get(id);
+    if (run == null || run.isFinished()) {
+      return false;
+    }
+    stop(run);
+    return true;
+  }
+
+  // Cancels every queued run and the active one, then waits up to timeoutMs
+  // for the active run to release the input thread. The queue is drained
+  // first so the worker cannot take, and briefly start, a run this has not
+  // reached yet. Every submitted run is in runs until it retires, including
+  // one the worker has just taken off the queue, so none can start after
+  // this returns.
+  boolean stopAll(long timeoutMs) {
+    List<MacroRun> pending = new ArrayList<>();
+    queue.drainTo(pending);
+    for (MacroRun run : pending) {
+      stop(run);
+    }
+    for (MacroRun run : runs.values()) {
+      if (!run.isFinished()) {
+        stop(run);
+      }
+    }
+    // Re-read after cancelling: a run that started meanwhile is current.
+    MacroRun active = current.get();
+    if (active == null) {
+      return true;
+    }
+    stop(active);
+    try {
+      active.done.get(timeoutMs, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (Exception e) {
+      return true;
+    }
+  }
+
+  List<Map<String, Object>> list() {
+    List<Map<String, Object>> result = new ArrayList<>();
+    MacroRun active = current.get();
+    if (active != null) {
+      result.add(active.summary());
+    }
+    MacroRun[] pending = queue.toArray(new MacroRun[0]);
+    Arrays.sort(pending, ORDER);
+    for (MacroRun run : pending) {
+      result.add(run.summary());
+    }
+    for (MacroRun run : finished) {
+      result.add(run.summary());
+    }
+    return result;
+  }
+
+  private void stop(MacroRun run) {
+    if (run.cancel()) {
+      queue.remove(run);
+      retire(run);
+    } else {
+      interrupt(run);
+    }
+  }
+
+  // Interrupts the worker while it executes run: that wakes it from the
+  // scheduler and ends a blocking step (an AWAIT, a fetch, a command) at
+  // once. Under the same lock as release, so an interrupt meant for one run
+  // never reaches the next.
+  private synchronized void interrupt(MacroRun run) {
+    if (current.get() == run) {
+      worker.interrupt();
+    }
+  }
+
+  private synchronized void release(MacroRun run) {
+    current.compareAndSet(run, null);
+    Thread.interrupted();
+  }
+
+  private void work() {
+    while (true) {
+      MacroRun run;
+      try {
+        run = queue.take();
+      } catch (InterruptedException e) {
+        continue;
+      }
+      // Published before it starts, so a stop or preempt that no longer
+      // finds the run in the queue finds it here.
+      current.set(run);
+      if (!run.start()) {
+        release(run);
+        continue;
+      }
+      // A preempting run submitted between take() and current.set() did
+      // not see this one; it is at the head of the queue.
+      MacroRun next = queue.peek();
+      if (next != null && next.preempt && next.sequence > run.sequence) {
+        run.cancel();
+      }
+      try {
+        boolean completed;
+        if (run.streaming()) {
+          completed = runSegments(run);
+        } else {
+          trace.enter(run, run.program);
+          completed = engine.run(run.program, run.running, run.executed);
+        }
+        run.finish(completed ? MacroRun.State.COMPLETED : MacroRun.State.CANCELLED, null);
+      } catch (RuntimeException e) {
+        System.out.println("Macro run " + run.id + " failed: " + e);
+        run.finish(MacroRun.State.FAILED, e.toString());
+      } finally {
+        release(run);
+        retire(run);
+      }
+    }
+  }
+
+  // Async steps started by one segment may be awaited by a later one; they
+  // are cancelled when the run ends.
+  private boolean runSegments(MacroRun run) {
+    MacroEngine.AsyncSteps async = new MacroEngine.AsyncSteps();
+    try {
+      MacroProgram segment;
+      while ((segment = run.nextSegment()) != null) {
+        trace.enter(run, segment);
+        if (!engine.run(segment, run.running, run.executed, async)) {
+          return false;
+        }
+      }
+      return run.running.get();
+    } finally {
+      async.cancelAll();
+    }
+  }
+
+  private void retire(MacroRun run) {
+    finished.addFirst(run);
+    while (finished.size() > HISTORY) {
+      MacroRun old = finished.pollLast();
+      if (old != null) {
+        runs.remove(old.id, old);
+      }
+    }
+  }
+}
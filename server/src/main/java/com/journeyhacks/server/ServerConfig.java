@@ -0,0 +1,136 @@
+package com.journeyhacks.server;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+// Command-line options. Each is "--name=value"; unknown arguments are ignored.
+final class ServerConfig {
+  int port = 8080;
+  Path uiRoot = Paths.get("backend").toAbsolutePath().normalize();
+  boolean uiCache = true;
+  long uiMaxAgeSeconds;
+  Path dataDir = Paths.get("data").toAbsolutePath().normalize();
+  int mouseSamplesPerSecond = 30;
+  int aiCacheSize = 256;
+  long aiCacheTtlSeconds = 24 * 60 * 60;
+  Path aiCacheFile;
+  int aiSimilarSize = 1024;
+  double aiSimilarThreshold = 0.85;
+  int aiMaxConcurrent = 4;
+  int aiMaxQueued = 16;
+  long aiQueueTimeoutMs = 30_000;
+  long maxMacroBytes = 64L * 1024 * 1024;
+  int maxMacroDepth = 32;
+  int maxMacroSteps = 5_000_000;
+  boolean fastStart;
+  boolean warmUp = true;
+  boolean cdsTrain;
+  boolean coordinator;
+  // RUN_COMMAND steps start local programs, so they are off unless asked for.
+  boolean allowCommands;
+  List<String> agents = new ArrayList<>();
+  long agentTimeoutMs = 5_000;
+  long agentStopTimeoutMs = 1_000;
+  List<String> geminiFallbackModels = new ArrayList<>();
+  GeminiClient.Options gemini = new GeminiClient.Options();
+
+  static ServerConfig parse(String[] args) {
+    ServerConfig config = new ServerConfig();
+    for (String arg : args) {
+      if (arg.startsWith("--port=")) {
+        config.port = Integer.parseInt(value(arg));
+      } else if (arg.startsWith("--ui=")) {
+        config.uiRoot = path(value(arg));
+      } else if (arg.startsWith("--ui-cache=")) {
+        config.uiCache = on(value(arg));
+      } else if (arg.startsWith("--ui-max-age=")) {
+        config.uiMaxAgeSeconds = Long.parseLong(value(arg));
+      } else if (arg.startsWith("--data-dir=")) {
+        config.dataDir = path(value(arg));
+      } else if (arg.startsWith("--mouse-rate=")) {
+        config.mouseSamplesPerSecond = Integer.parseInt(value(arg));
+      } else if (arg.startsWith("--ai-cache-size=")) {
+        config.aiCacheSize = Integer.parseInt(value(arg));
+      } else if (arg.startsWith("--ai-cache-ttl=")) {
+        config.aiCacheTtlSeconds = Long.parseLong(value(arg));
+      } else if (arg.startsWith("--ai-cache-file=")) {
+        config.aiCacheFile = path(value(arg));
+      } else if (arg.startsWith("--ai-similar-size=")) {
+        config.aiSimilarSize = Integer.parseInt(value(arg));
+      } else if (arg.startsWith("--ai-similar-threshold=")) {
+        config.aiSimilarThreshold = Double.parseDouble(value(arg));
+      } else if (arg.startsWith("--ai-max-concurrent=")) {
+        config.aiMaxConcurrent = Integer.parseInt(value(arg));
+      } else if (arg.startsWith("--ai-max-queued=")) {
+        config.aiMaxQueued = Integer.parseInt(value(arg));
+      } else if (arg.startsWith("--ai-queue-timeout=")) {
+        config.aiQueueTimeoutMs = Long.parseLong(value(arg));
+      } else if (arg.startsWith("--max-macro-bytes=")) {
+        config.maxMacroBytes = Long.parseLong(value(arg));
+      } else if (arg.startsWith("--max-macro-depth=")) {
+        config.maxMacroDepth = Integer.parseInt(value(arg));
+      } else if (arg.startsWith("--max-macro-steps=")) {
+        config.maxMacroSteps = Integer.parseInt(value(arg));
+      } else if (arg.startsWith("--fast-start=")) {
+        config.fastStart = on(value(arg));
+      } else if (arg.startsWith("--warm-up=")) {
+        config.warmUp = on(value(arg));
+      } else if (arg.startsWith("--cds-train=")) {
+        config.cdsTrain = on(value(arg));
+      } else if (arg.startsWith("--allow-commands=")) {
+        config.allowCommands = on(value(arg));
+      } else if (arg.startsWith("--coordinator=")) {
+        config.coordinator = on(value(arg));
+      } else if (arg.startsWith("--agents=")) {
+        // Implies --coordinator=on.
+        config.coordinator = true;
+        for (String url : value(arg).split(",")) {
+          if (!url.isBlank()) {
+            config.agents.add(url.trim());
+          }
+        }
+      } else if (arg.startsWith("--agent-timeout=")) {
+        config.agentTimeoutMs = Long.parseLong(value(arg));
+      } else if (arg.startsWith("--agent-stop-timeout=")) {
+        config.agentStopTimeoutMs = Long.parseLong(value(arg));
+      } else if (arg.startsWith("--gemini-fallback-models=")) {
+        for (String model : value(arg).split(",")) {
+          if (!model.isBlank()) {
+            config.geminiFallbackModels.add(model.trim());
+          }
+        }
+      } else if (arg.startsWith("--gemini-rpm=")) {
+        config.gemini.requestsPerMinute = Integer.parseInt(value(arg));
+      } else if (arg.startsWith("--gemini-burst=")) {
+        config.gemini.burst = Integer.parseInt(value(arg));
+      } else if (arg.startsWith("--gemini-retries=")) {
+        config.gemini.maxRetries = Integer.parseInt(value(arg));
+      } else if (arg.startsWith("--gemini-backoff=")) {
+        config.gemini.backoffMs = Long.parseLong(value(arg));
+      } else if (arg.startsWith("--gemini-backoff-max=")) {
+        config.gemini.maxBackoffMs = Long.parseLong(value(arg));
+      } else if (arg.startsWith("--gemini-max-wait=")) {
+        config.gemini.maxWaitMs = Long.parseLong(value(arg));
+      } else if (arg.startsWith("--gemini-breaker-failures=")) {
+        config.gemini.breakerFailures = Integer.parseInt(value(arg));
+      } else if (arg.startsWith("--gemini-breaker-open=")) {
+        config.gemini.breakerOpenMs = Long.parseLong(value(arg));
+      }
+    }
+    return config;
+  }
+
+  private static String value(String arg) {
+    return arg.substring(arg.indexOf('=') + 1);
+  }
+
+  private static boolean on(String value) {
+    return !"off".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value);
+  }
+
+  private static Path path(String value) {
+    return Paths.get(value).toAbsolutePath().normalize();
+  }
+}
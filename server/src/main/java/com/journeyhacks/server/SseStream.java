@@ -0,0 +1,42 @@
+package com.journeyhacks.server;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Server-sent events over a chunked HttpExchange response.
+final class SseStream implements Closeable {
+  private final OutputStream out;
+
+  private SseStream(OutputStream out) {
+    this.out = out;
+  }
+
+  static SseStream open(HttpExchange exchange) throws IOException {
+    Headers headers = exchange.getResponseHeaders();
+    headers.set("Content-Type", "text/event-stream; charset=utf-8");
+    headers.set("Cache-Control", "no-cache");
+    headers.add("Access-Control-Allow-Origin", "*");
+    exchange.sendResponseHeaders(200, 0);
+    return new SseStream(exchange.getResponseBody());
+  }
+
+  void send(String event, Object payload) throws IOException {
+    String data = Json.MAPPER.writeValueAsString(payload);
+    out.write(("event: " + event + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+    out.flush();
+  }
+
+  void comment(String text) throws IOException {
+    out.write((": " + text + "\n\n").getBytes(StandardCharsets.UTF_8));
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+}
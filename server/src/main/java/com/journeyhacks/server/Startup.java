@@ -0,0 +1,38 @@
+package com.journeyhacks.server;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Time from JVM launch to the port being bound and to the first completed
+// response, printed once and exported as gauges.
+final class Startup {
+  private static final long JVM_STARTED = ProcessHandle.current().info().startInstant()
+      .map(Instant::toEpochMilli)
+      .orElse(System.currentTimeMillis());
+  private static final AtomicBoolean RESPONDED = new AtomicBoolean();
+  private static volatile long listeningMs = -1;
+  private static volatile long firstResponseMs = -1;
+
+  private Startup() {
+  }
+
+  static long elapsedMs() {
+    return System.currentTimeMillis() - JVM_STARTED;
+  }
+
+  static void listening(int port) {
+    listeningMs = elapsedMs();
+    System.out.println("Listening on port " + port + " " + listeningMs + " ms after JVM start");
+    Metrics.gauge("startup_listening_seconds", "Time from JVM start until the port was bound.",
+        () -> listeningMs < 0 ? Double.NaN : listeningMs / 1000.0);
+    Metrics.gauge("startup_first_response_seconds", "Time from JVM start until the first response.",
+        () -> firstResponseMs < 0 ? Double.NaN : firstResponseMs / 1000.0);
+  }
+
+  static void responded(String endpoint) {
+    if (RESPONDED.compareAndSet(false, true)) {
+      firstResponseMs = elapsedMs();
+      System.out.println("First response (" + endpoint + ") " + firstResponseMs + " ms after JVM start");
+    }
+  }
+}
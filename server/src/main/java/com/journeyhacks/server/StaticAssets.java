@@ -0,0 +1,196 @@
+package com.journeyhacks.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+// In-memory copy of the UI root. Each file is read once, hashed for a
+// strong ETag and, for text types, gzipped ahead of time. A watcher thread
+// drops entries when files under the root change; they are reloaded on the
+// next request. Files over MAX_CACHED_BYTES are not cached (get returns
+// null) and are served from disk by the caller.
+final class StaticAssets implements AutoCloseable {
+  static final int MAX_CACHED_BYTES = 8 * 1024 * 1024;
+  // Below this gzip rarely pays for the extra header and CPU on the client.
+  private static final int MIN_GZIP_BYTES = 512;
+
+  static final class Asset {
+    final byte[] body;
+    final byte[] gzip;
+    final String etag;
+    final String gzipEtag;
+    final String contentType;
+
+    private Asset(byte[] body, byte[] gzip, String etag, String contentType) {
+      this.body = body;
+      this.gzip = gzip;
+      this.etag = "\"" + etag + "\"";
+      // Each representation gets its own strong validator.
+      this.gzipEtag = gzip == null ? null : "\"" + etag + "-gz\"";
+      this.contentType = contentType;
+    }
+  }
+
+  // Marks a path that exists but is too large to hold in memory.
+  private static final Asset UNCACHED = new Asset(new byte[0], null, "", "");
+
+  private final Path root;
+  private final Map<Path, Asset> assets = new ConcurrentHashMap<>();
+  // Every watched directory, so requests for one need no disk access.
+  private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+  private final WatchService watcher;
+
+  StaticAssets(Path root) throws IOException {
+    this.root = root;
+    this.watcher = FileSystems.getDefault().newWatchService();
+    if (Files.isDirectory(root)) {
+      try (Stream<Path> files = Files.walk(root)) {
+        for (Path file : (Iterable<Path>) files::iterator) {
+          if (Files.isDirectory(file)) {
+            register(file);
+          } else {
+            load(file);
+          }
+        }
+      }
+    }
+    Thread thread = new Thread(this::watch, "ui-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  int size() {
+    return assets.size();
+  }
+
+  // file must already be normalized and inside the root.
+  boolean isDirectory(Path file) {
+    return directories.contains(file);
+  }
+
+  // file must already be normalized and inside the root. Returns null for
+  // missing or uncached files.
+  Asset get(Path file) throws IOException {
+    Asset asset = assets.get(file);
+    if (asset == null) {
+      asset = load(file);
+    }
+    return asset == UNCACHED ? null : asset;
+  }
+
+  private Asset load(Path file) throws IOException {
+    byte[] body;
+    try {
+      if (!Files.isRegularFile(file)) {
+        return null;
+      }
+      if (Files.size(file) > MAX_CACHED_BYTES) {
+        assets.put(file, UNCACHED);
+        return UNCACHED;
+      }
+      body = Files.readAllBytes(file);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+    String contentType = MacroServer.contentType(file);
+    byte[] gzip = compressible(contentType) && body.length >= MIN_GZIP_BYTES ? gzip(body) : null;
+    if (gzip != null && gzip.length >= body.length) {
+      gzip = null;
+    }
+    Asset asset = new Asset(body, gzip, hash(body), contentType);
+    assets.put(file, asset);
+    return asset;
+  }
+
+  private void watch() {
+    try {
+      while (true) {
+        WatchKey key = watcher.take();
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            assets.clear();
+            continue;
+          }
+          Path changed = dir.resolve((Path) event.context());
+          // A renamed or deleted directory takes its files with it.
+          assets.keySet().removeIf(path -> path.startsWith(changed));
+          if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+            directories.removeIf(path -> path.startsWith(changed));
+          }
+          if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+            registerTree(changed);
+          }
+        }
+        key.reset();
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // Shutting down.
+    }
+  }
+
+  private void registerTree(Path dir) {
+    try (Stream<Path> dirs = Files.walk(dir)) {
+      dirs.filter(Files::isDirectory).forEach(this::register);
+    } catch (IOException e) {
+      System.out.println("UI watch failed for " + dir + ": " + e.getMessage());
+    }
+  }
+
+  private void register(Path dir) {
+    directories.add(dir);
+    try {
+      dir.register(watcher,
+          StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE,
+          StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch (IOException e) {
+      System.out.println("UI watch failed for " + dir + ": " + e.getMessage());
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    watcher.close();
+  }
+
+  private static boolean compressible(String contentType) {
+    return contentType.startsWith("text/")
+        || contentType.startsWith("application/javascript")
+        || contentType.startsWith("application/json")
+        || contentType.startsWith("image/svg+xml");
+  }
+
+  private static byte[] gzip(byte[] body) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 3 + 32);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(body);
+    }
+    return out.toByteArray();
+  }
+
+  private static String hash(byte[] body) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+      return HexFormat.of().formatHex(digest, 0, 16);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package com.journeyhacks.server;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+// Paces a run against absolute System.nanoTime() deadlines. Each delay moves
+// the deadline forward rather than sleeping "from now", so oversleeping on
+// one step is paid back on the next instead of accumulating. Waits park the
+// thread and spin only for the last stretch, and return as soon as the run
+// is stopped: RunQueue clears the flag and interrupts the parked thread. An
+// interrupt while the run is still going is ignored.
+class StepScheduler {
+  private static final long SPIN_NANOS = 100_000;
+  // If a step overruns its slot by more than this (a slow Robot call, a GC
+  // pause), re-anchor on "now" instead of firing a burst of catch-up events.
+  private static final long MAX_LAG_NANOS = 50_000_000;
+
+  final AtomicBoolean running;
+  private long deadline;
+
+  StepScheduler(AtomicBoolean running) {
+    this.running = running;
+    this.deadline = System.nanoTime();
+  }
+
+  long now() {
+    return System.nanoTime();
+  }
+
+  boolean delay(long nanos) {
+    long now = System.nanoTime();
+    if (now - deadline > MAX_LAG_NANOS) {
+      deadline = now;
+    }
+    deadline += nanos;
+    return awaitDeadline();
+  }
+
+  private boolean awaitDeadline() {
+    while (running.get()) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return true;
+      }
+      if (remaining > SPIN_NANOS) {
+        LockSupport.parkNanos(this, remaining - SPIN_NANOS);
+        if (Thread.interrupted() && !running.get()) {
+          return false;
+        }
+      } else {
+        Thread.onSpinWait();
+      }
+    }
+    return false;
+  }
+
+  // Virtual time for simulated runs. Deadlines work as above, but reaching
+  // one moves the clock forward instead of waiting, and time spent in steps
+  // (e.g. Robot's auto-delay) is added with advance.
+  static final class Virtual extends StepScheduler {
+    private long now;
+    private long deadline;
+
+    Virtual(AtomicBoolean running) {
+      super(running);
+    }
+
+    @Override
+    long now() {
+      return now;
+    }
+
+    void advance(long nanos) {
+      now += nanos;
+    }
+
+    @Override
+    boolean delay(long nanos) {
+      if (now - deadline > MAX_LAG_NANOS) {
+        deadline = now;
+      }
+      deadline += nanos;
+      now = Math.max(now, deadline);
+      return running.get();
+    }
+  }
+}
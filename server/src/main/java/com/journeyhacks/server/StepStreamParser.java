@@ -0,0 +1,84 @@
+package com.journeyhacks.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Pulls complete elements of the top-level "steps" array out of model output
+// as it arrives. Text is appended chunk by chunk; each call returns the raw
+// JSON of any step objects that closed since the previous call. Nested REPEAT
+// bodies come out as part of their enclosing step.
+final class StepStreamParser {
+  private static final Pattern STEPS_START = Pattern.compile("\"steps\"\\s*:\\s*\\[");
+
+  private final StringBuilder text = new StringBuilder();
+  private boolean inArray;
+  private boolean done;
+  private int pos;
+  private int depth;
+  private int elementStart = -1;
+  private boolean inString;
+  private boolean escaped;
+
+  List<String> append(String chunk) {
+    text.append(chunk);
+    List<String> completed = new ArrayList<>();
+    if (done) {
+      return completed;
+    }
+    if (!inArray) {
+      Matcher matcher = STEPS_START.matcher(text);
+      if (!matcher.find(0)) {
+        return completed;
+      }
+      inArray = true;
+      pos = matcher.end();
+    }
+    for (; pos < text.length() && !done; pos++) {
+      char ch = text.charAt(pos);
+      if (inString) {
+        if (escaped) {
+          escaped = false;
+        } else if (ch == '\\') {
+          escaped = true;
+        } else if (ch == '"') {
+          inString = false;
+        }
+        continue;
+      }
+      switch (ch) {
+        case '"':
+          inString = true;
+          break;
+        case '{':
+        case '[':
+          if (depth == 0 && ch == '{') {
+            elementStart = pos;
+          }
+          depth++;
+          break;
+        case '}':
+        case ']':
+          if (depth == 0) {
+            // The closing bracket of "steps" itself.
+            done = true;
+            break;
+          }
+          depth--;
+          if (depth == 0 && elementStart >= 0) {
+            completed.add(text.substring(elementStart, pos + 1));
+            elementStart = -1;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return completed;
+  }
+
+  String text() {
+    return text.toString();
+  }
+}
@@ -0,0 +1,457 @@
+package com.journeyhacks.server;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Finds a template image in a screen capture by zero-mean normalized
+// cross-correlation (ZNCC), which ignores uniform changes in brightness and
+// contrast; 1.0 is a perfect match. Both images are reduced to grayscale
+// pyramids (each level half the size of the one below). The top level is
+// searched exhaustively, split by rows across the fork-join pool, and the
+// best few candidates are then refined level by level in a small window, so
+// full-resolution scores are only computed near likely matches. A template
+// can be prepared at several scales to match UI drawn at another zoom.
+final class TemplateMatcher {
+  // The template at the top pyramid level keeps at least this much detail.
+  private static final int MIN_SIDE = 4;
+  private static final int MIN_PIXELS = 64;
+  private static final int MAX_LEVEL = 4;
+  private static final int CANDIDATES = 64;
+  // Search radius around a candidate when moving down one level.
+  private static final int REFINE_RADIUS = 2;
+  // Rows per fork-join leaf are chosen so a leaf does about this much work.
+  private static final long LEAF_WORK = 1 << 18;
+
+  // A grayscale image; pixels are 0..255.
+  static final class Gray {
+    final int width;
+    final int height;
+    final byte[] pixels;
+
+    Gray(int width, int height, byte[] pixels) {
+      this.width = width;
+      this.height = height;
+      this.pixels = pixels;
+    }
+
+    static Gray of(BufferedImage image) {
+      int width = image.getWidth();
+      int height = image.getHeight();
+      int[] rgb;
+      if (image.getType() == BufferedImage.TYPE_INT_RGB && image.getRaster().getDataBuffer() instanceof DataBufferInt
+          && ((DataBufferInt) image.getRaster().getDataBuffer()).getData().length == width * height) {
+        // Robot captures: read the raster directly instead of copying it.
+        rgb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+      } else {
+        rgb = image.getRGB(0, 0, width, height, null, 0, width);
+      }
+      byte[] pixels = new byte[width * height];
+      for (int i = 0; i < pixels.length; i++) {
+        int p = rgb[i];
+        pixels[i] = (byte) ((((p >> 16) & 0xFF) * 77 + ((p >> 8) & 0xFF) * 150 + (p & 0xFF) * 29) >> 8);
+      }
+      return new Gray(width, height, pixels);
+    }
+
+    int at(int x, int y) {
+      return pixels[y * width + x] & 0xFF;
+    }
+
+    Gray half() {
+      int w = width / 2;
+      int h = height / 2;
+      byte[] out = new byte[w * h];
+      for (int y = 0; y < h; y++) {
+        int row = 2 * y * width;
+        for (int x = 0; x < w; x++) {
+          int i = row + 2 * x;
+          int sum = (pixels[i] & 0xFF) + (pixels[i + 1] & 0xFF)
+              + (pixels[i + width] & 0xFF) + (pixels[i + width + 1] & 0xFF);
+          out[y * w + x] = (byte) ((sum + 2) >> 2);
+        }
+      }
+      return new Gray(w, h, out);
+    }
+
+    // Bilinear resize, used to prepare scaled templates.
+    Gray scaled(double scale) {
+      int w = Math.max(1, (int) Math.round(width * scale));
+      int h = Math.max(1, (int) Math.round(height * scale));
+      byte[] out = new byte[w * h];
+      for (int y = 0; y < h; y++) {
+        double sy = Math.min(height - 1, Math.max(0, (y + 0.5) / scale - 0.5));
+        int y0 = (int) sy;
+        int y1 = Math.min(height - 1, y0 + 1);
+        double fy = sy - y0;
+        for (int x = 0; x < w; x++) {
+          double sx = Math.min(width - 1, Math.max(0, (x + 0.5) / scale - 0.5));
+          int x0 = (int) sx;
+          int x1 = Math.min(width - 1, x0 + 1);
+          double fx = sx - x0;
+          double top = at(x0, y0) * (1 - fx) + at(x1, y0) * fx;
+          double bottom = at(x0, y1) * (1 - fx) + at(x1, y1) * fx;
+          out[y * w + x] = (byte) Math.round(top * (1 - fy) + bottom * fy);
+        }
+      }
+      return new Gray(w, h, out);
+    }
+  }
+
+  // One pyramid level of a template. Values stay integers so the inner
+  // loops are int multiply-adds; the mean is taken out afterwards.
+  private static final class Pattern {
+    final int width;
+    final int height;
+    final int[] values;
+    final long sum;
+    final double norm;
+
+    Pattern(Gray image) {
+      this.width = image.width;
+      this.height = image.height;
+      int n = width * height;
+      values = new int[n];
+      long total = 0;
+      long squares = 0;
+      for (int i = 0; i < n; i++) {
+        int v = image.pixels[i] & 0xFF;
+        values[i] = v;
+        total += v;
+        squares += (long) v * v;
+      }
+      sum = total;
+      norm = Math.sqrt(Math.max(0, squares - (double) total * total / n));
+    }
+  }
+
+  // A template prepared at one or more scales. patterns[s][level].
+  static final class Template {
+    final int width;
+    final int height;
+    final double[] scales;
+    private final Pattern[][] patterns;
+
+    Template(Gray image, double[] scales) {
+      this.width = image.width;
+      this.height = image.height;
+      this.scales = scales;
+      this.patterns = new Pattern[scales.length][];
+      for (int s = 0; s < scales.length; s++) {
+        Gray scaled = scales[s] == 1.0 ? image : image.scaled(scales[s]);
+        int levels = 1;
+        while (levels <= MAX_LEVEL && (scaled.width >> levels) >= MIN_SIDE && (scaled.height >> levels) >= MIN_SIDE
+            && (scaled.width >> levels) * (scaled.height >> levels) >= MIN_PIXELS) {
+          levels++;
+        }
+        patterns[s] = new Pattern[levels];
+        for (int level = 0; level < levels; level++) {
+          patterns[s][level] = new Pattern(scaled);
+          if (level + 1 < levels) {
+            scaled = scaled.half();
+          }
+        }
+      }
+    }
+
+    int levels() {
+      int levels = 0;
+      for (Pattern[] pyramid : patterns) {
+        levels = Math.max(levels, pyramid.length);
+      }
+      return levels;
+    }
+  }
+
+  // Top-left corner of the match within the searched image.
+  static final class Match {
+    final int x;
+    final int y;
+    final int width;
+    final int height;
+    final int scale;
+    final double score;
+
+    Match(int x, int y, int width, int height, int scale, double score) {
+      this.x = x;
+      this.y = y;
+      this.width = width;
+      this.height = height;
+      this.scale = scale;
+      this.score = score;
+    }
+
+    int centerX() {
+      return x + width / 2;
+    }
+
+    int centerY() {
+      return y + height / 2;
+    }
+  }
+
+  private TemplateMatcher() {
+  }
+
+  // Returns the best match, or null if the template does not fit. The
+  // caller compares score against its threshold.
+  static Match find(Gray screen, Template template) {
+    int levels = template.levels();
+    Gray[] pyramid = new Gray[levels];
+    pyramid[0] = screen;
+    for (int level = 1; level < levels; level++) {
+      pyramid[level] = pyramid[level - 1].half();
+    }
+    Match best = null;
+    for (int s = 0; s < template.scales.length; s++) {
+      Match match = find(pyramid, template.patterns[s], s);
+      if (match != null && (best == null || match.score > best.score)) {
+        best = match;
+      }
+    }
+    return best;
+  }
+
+  // Scores previous near the given match (within one pixel), so a template
+  // that has not moved is confirmed without a full search. Returns null if
+  // it no longer fits.
+  static Match verify(Gray screen, Template template, Match previous) {
+    Pattern pattern = template.patterns[previous.scale][0];
+    Match best = null;
+    for (int y = previous.y - 1; y <= previous.y + 1; y++) {
+      for (int x = previous.x - 1; x <= previous.x + 1; x++) {
+        if (x >= 0 && y >= 0 && x + pattern.width <= screen.width && y + pattern.height <= screen.height) {
+          double score = score(screen, pattern, x, y);
+          if (best == null || score > best.score) {
+            best = new Match(x, y, pattern.width, pattern.height, previous.scale, score);
+          }
+        }
+      }
+    }
+    return best;
+  }
+
+  private static Match find(Gray[] pyramid, Pattern[] patterns, int scale) {
+    int top = patterns.length - 1;
+    Gray image = pyramid[top];
+    Pattern pattern = patterns[top];
+    if (pattern.width > image.width || pattern.height > image.height) {
+      return null;
+    }
+    Candidates candidates = ForkJoinPool.commonPool().invoke(
+        new CoarseSearch(image, integral(image), pattern, 0, image.height - pattern.height + 1));
+    Match best = null;
+    for (int c = 0; c < candidates.size; c++) {
+      int x = candidates.xs[c];
+      int y = candidates.ys[c];
+      double score = candidates.scores[c];
+      for (int level = top - 1; level >= 0; level--) {
+        Gray below = pyramid[level];
+        Pattern fine = patterns[level];
+        double bestScore = Double.NEGATIVE_INFINITY;
+        int bestX = -1;
+        int bestY = -1;
+        for (int dy = -REFINE_RADIUS; dy <= REFINE_RADIUS; dy++) {
+          for (int dx = -REFINE_RADIUS; dx <= REFINE_RADIUS; dx++) {
+            int fx = 2 * x + dx;
+            int fy = 2 * y + dy;
+            if (fx < 0 || fy < 0 || fx + fine.width > below.width || fy + fine.height > below.height) {
+              continue;
+            }
+            double s = score(below, fine, fx, fy);
+            if (s > bestScore) {
+              bestScore = s;
+              bestX = fx;
+              bestY = fy;
+            }
+          }
+        }
+        if (bestX < 0) {
+          score = Double.NEGATIVE_INFINITY;
+          break;
+        }
+        x = bestX;
+        y = bestY;
+        score = bestScore;
+      }
+      if (score > Double.NEGATIVE_INFINITY && (best == null || score > best.score)) {
+        best = new Match(x, y, patterns[0].width, patterns[0].height, scale, score);
+      }
+    }
+    return best;
+  }
+
+  // ZNCC at one position, summing the window directly.
+  private static double score(Gray image, Pattern pattern, int x, int y) {
+    long products = 0;
+    long sum = 0;
+    long squares = 0;
+    int[] values = pattern.values;
+    byte[] pixels = image.pixels;
+    for (int row = 0; row < pattern.height; row++) {
+      int base = (y + row) * image.width + x;
+      int t = row * pattern.width;
+      int rowProducts = 0;
+      int rowSum = 0;
+      int rowSquares = 0;
+      for (int col = 0; col < pattern.width; col++) {
+        int v = pixels[base + col] & 0xFF;
+        rowProducts += v * values[t + col];
+        rowSum += v;
+        rowSquares += v * v;
+      }
+      products += rowProducts;
+      sum += rowSum;
+      squares += rowSquares;
+    }
+    return zncc(products, sum, squares, pattern);
+  }
+
+  // products is sum(I * T) over the window; subtracting the means turns it
+  // into the covariance. Flat windows or a flat pattern score 0.
+  private static double zncc(long products, long sum, long squares, Pattern pattern) {
+    int n = pattern.width * pattern.height;
+    double variance = squares - (double) sum * sum / n;
+    if (variance < 1e-6 || pattern.norm < 1e-6) {
+      return 0;
+    }
+    double covariance = products - (double) sum * pattern.sum / n;
+    return covariance / (Math.sqrt(variance) * pattern.norm);
+  }
+
+  // Summed-area tables of the pixels and their squares, (w+1) x (h+1).
+  private static long[][] integral(Gray image) {
+    int w = image.width + 1;
+    long[] sum = new long[w * (image.height + 1)];
+    long[] squares = new long[sum.length];
+    for (int y = 0; y < image.height; y++) {
+      long rowSum = 0;
+      long rowSquares = 0;
+      for (int x = 0; x < image.width; x++) {
+        int v = image.pixels[y * image.width + x] & 0xFF;
+        rowSum += v;
+        rowSquares += v * v;
+        sum[(y + 1) * w + x + 1] = sum[y * w + x + 1] + rowSum;
+        squares[(y + 1) * w + x + 1] = squares[y * w + x + 1] + rowSquares;
+      }
+    }
+    return new long[][] {sum, squares};
+  }
+
+  private static long window(long[] table, int stride, int x, int y, int width, int height) {
+    return table[(y + height) * stride + x + width] - table[y * stride + x + width]
+        - table[(y + height) * stride + x] + table[y * stride + x];
+  }
+
+  // The best few positions, at least half a template apart from each other.
+  private static final class Candidates {
+    final int[] xs = new int[CANDIDATES];
+    final int[] ys = new int[CANDIDATES];
+    final double[] scores = new double[CANDIDATES];
+    final int minDx;
+    final int minDy;
+    int size;
+
+    Candidates(Pattern pattern) {
+      this.minDx = Math.max(1, pattern.width / 2);
+      this.minDy = Math.max(1, pattern.height / 2);
+    }
+
+    void offer(int x, int y, double score) {
+      if (size == CANDIDATES && score <= scores[size - 1]) {
+        return;
+      }
+      for (int i = 0; i < size; i++) {
+        if (Math.abs(xs[i] - x) < minDx && Math.abs(ys[i] - y) < minDy) {
+          if (score <= scores[i]) {
+            return;
+          }
+          remove(i);
+          break;
+        }
+      }
+      int at = size == CANDIDATES ? size - 1 : size++;
+      while (at > 0 && scores[at - 1] < score) {
+        xs[at] = xs[at - 1];
+        ys[at] = ys[at - 1];
+        scores[at] = scores[at - 1];
+        at--;
+      }
+      xs[at] = x;
+      ys[at] = y;
+      scores[at] = score;
+    }
+
+    private void remove(int i) {
+      System.arraycopy(xs, i + 1, xs, i, size - i - 1);
+      System.arraycopy(ys, i + 1, ys, i, size - i - 1);
+      System.arraycopy(scores, i + 1, scores, i, size - i - 1);
+      size--;
+    }
+
+    Candidates merge(Candidates other) {
+      for (int i = 0; i < other.size; i++) {
+        offer(other.xs[i], other.ys[i], other.scores[i]);
+      }
+      return this;
+    }
+  }
+
+  // Exhaustive ZNCC over rows [from, to) of the top level.
+  private static final class CoarseSearch extends RecursiveTask<Candidates> {
+    private static final long serialVersionUID = 1L;
+
+    private final Gray image;
+    private final long[][] integral;
+    private final Pattern pattern;
+    private final int from;
+    private final int to;
+
+    CoarseSearch(Gray image, long[][] integral, Pattern pattern, int from, int to) {
+      this.image = image;
+      this.integral = integral;
+      this.pattern = pattern;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Candidates compute() {
+      long rowWork = (long) (image.width - pattern.width + 1) * pattern.width * pattern.height;
+      if (to - from <= 1 || (to - from) * rowWork <= LEAF_WORK) {
+        return scan();
+      }
+      int middle = (from + to) >>> 1;
+      CoarseSearch upper = new CoarseSearch(image, integral, pattern, from, middle);
+      upper.fork();
+      Candidates lower = new CoarseSearch(image, integral, pattern, middle, to).compute();
+      return upper.join().merge(lower);
+    }
+
+    private Candidates scan() {
+      Candidates found = new Candidates(pattern);
+      int stride = image.width + 1;
+      int[] values = pattern.values;
+      byte[] pixels = image.pixels;
+      for (int y = from; y < to; y++) {
+        for (int x = 0; x + pattern.width <= image.width; x++) {
+          long sum = window(integral[0], stride, x, y, pattern.width, pattern.height);
+          long squares = window(integral[1], stride, x, y, pattern.width, pattern.height);
+          long products = 0;
+          for (int row = 0; row < pattern.height; row++) {
+            int base = (y + row) * image.width + x;
+            int t = row * pattern.width;
+            int rowProducts = 0;
+            for (int col = 0; col < pattern.width; col++) {
+              rowProducts += (pixels[base + col] & 0xFF) * values[t + col];
+            }
+            products += rowProducts;
+          }
+          found.offer(x, y, zncc(products, sum, squares, pattern));
+        }
+      }
+      return found;
+    }
+  }
+}
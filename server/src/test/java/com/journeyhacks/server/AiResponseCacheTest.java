@@ -0,0 +1,145 @@
+package com.journeyhacks.server;
+
+import static com.journeyhacks.server.MacroOptimizerTest.step;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AiResponseCacheTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  void evictsTheLeastRecentlyUsedEntry() {
+    AiResponseCache cache = new AiResponseCache(2, 0, null);
+    cache.put("a", response("a"));
+    cache.put("b", response("b"));
+    // Reading a makes b the eldest.
+    assertEquals(response("a"), cache.peek("a"));
+
+    cache.put("c", response("c"));
+
+    assertEquals(2, cache.size());
+    assertNull(cache.peek("b"));
+    assertEquals(response("a"), cache.peek("a"));
+    assertEquals(response("c"), cache.peek("c"));
+  }
+
+  @Test
+  void dropsEntriesOlderThanTheTtl() throws Exception {
+    AiResponseCache cache = new AiResponseCache(10, 1, null);
+    cache.put("a", response("a"));
+    assertEquals(response("a"), cache.peek("a"));
+
+    Thread.sleep(1100);
+
+    assertNull(cache.peek("a"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  void concurrentGetsShareOneLoaderCall() throws Exception {
+    AiResponseCache cache = new AiResponseCache(10, 0, null);
+    AtomicInteger calls = new AtomicInteger();
+    CompletableFuture<Map<String, Object>> upstream = new CompletableFuture<>();
+
+    CompletableFuture<AiResponseCache.Result> leader = cache.get("k", false, () -> {
+      calls.incrementAndGet();
+      return upstream;
+    });
+    CompletableFuture<AiResponseCache.Result> follower = cache.get("k", false, () -> {
+      calls.incrementAndGet();
+      return new CompletableFuture<>();
+    });
+    assertFalse(follower.isDone());
+    upstream.complete(response("k"));
+
+    assertEquals(1, calls.get());
+    AiResponseCache.Result first = leader.get(1, TimeUnit.SECONDS);
+    AiResponseCache.Result second = follower.get(1, TimeUnit.SECONDS);
+    assertFalse(first.cached || first.shared);
+    assertTrue(second.shared);
+    assertSame(first.value, second.value);
+
+    AiResponseCache.Result hit = cache.get("k", false, () -> {
+      throw new AssertionError("loader called on a hit");
+    }).get(1, TimeUnit.SECONDS);
+    assertTrue(hit.cached);
+  }
+
+  @Test
+  void failedLoadIsSharedButNotCached() throws Exception {
+    AiResponseCache cache = new AiResponseCache(10, 0, null);
+    CompletableFuture<Map<String, Object>> upstream = new CompletableFuture<>();
+    CompletableFuture<AiResponseCache.Result> leader = cache.get("k", false, () -> upstream);
+    CompletableFuture<AiResponseCache.Result> follower = cache.get("k", false, CompletableFuture::new);
+
+    upstream.completeExceptionally(new IllegalStateException("upstream down"));
+
+    assertThrows(ExecutionException.class, () -> leader.get(1, TimeUnit.SECONDS));
+    assertThrows(ExecutionException.class, () -> follower.get(1, TimeUnit.SECONDS));
+    AiResponseCache.Result retry = cache.get("k", false,
+        () -> CompletableFuture.completedFuture(response("k"))).get(1, TimeUnit.SECONDS);
+    assertFalse(retry.cached);
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  void reloadsLiveEntriesFromTheFile() throws Exception {
+    Path file = dir.resolve("ai-cache.json");
+    AiResponseCache cache = new AiResponseCache(10, 3600, file);
+    cache.get("a", false, () -> CompletableFuture.completedFuture(response("a"))).get(1, TimeUnit.SECONDS);
+    cache.put("b", response("b"));
+    assertTrue(Files.exists(file));
+
+    AiResponseCache reopened = new AiResponseCache(10, 3600, file);
+
+    assertEquals(2, reopened.size());
+    assertEquals(response("a"), reopened.peek("a"));
+    assertEquals(response("b"), reopened.peek("b"));
+    // Entries stored longer ago than the TTL are not loaded.
+    Files.writeString(file, Files.readString(file).replaceAll("\"storedAt\":\\d+", "\"storedAt\":1"));
+    assertEquals(0, new AiResponseCache(10, 3600, file).size());
+  }
+
+  @Test
+  void rawResponsesAreNotCached() throws Exception {
+    Map<String, Object> raw = Map.of("steps", List.of(), "raw", "not json");
+    assertFalse(AiResponseCache.cacheable(raw));
+    assertFalse(AiResponseCache.cacheable(Map.of("message", "no steps")));
+    assertTrue(AiResponseCache.cacheable(response("a")));
+
+    AiResponseCache cache = new AiResponseCache(10, 0, null);
+    cache.put("a", raw);
+    AiResponseCache.Result loaded = cache.get("b", false, () -> CompletableFuture.completedFuture(raw))
+        .get(1, TimeUnit.SECONDS);
+
+    assertSame(raw, loaded.value);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  void keyIgnoresWhitespaceDifferences() {
+    assertEquals(AiResponseCache.key("click  the\nbutton ", "m", "v1"),
+        AiResponseCache.key(" click the button", "m", "v1"));
+    assertFalse(AiResponseCache.key("click", "m", "v1").equals(AiResponseCache.key("click", "m", "v2")));
+  }
+
+  private static Map<String, Object> response(String name) {
+    return Map.of("steps", List.of(step("type", "WAIT_MS", "ms", 1)), "name", name);
+  }
+}
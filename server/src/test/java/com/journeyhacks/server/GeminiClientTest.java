@@ -0,0 +1,222 @@
+package com.journeyhacks.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class GeminiClientTest {
+  private HttpServer server;
+  private String base;
+  // Statuses to answer with, in order, then 200. "429:2" adds Retry-After: 2.
+  private final Queue<String> script = new ConcurrentLinkedQueue<>();
+  private final List<String> paths = new CopyOnWriteArrayList<>();
+  private final GeminiClient.Options options = new GeminiClient.Options();
+
+  @BeforeEach
+  void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", exchange -> {
+      String path = exchange.getRequestURI().getPath();
+      paths.add(path);
+      String next = path.contains("missing") ? "404" : script.poll();
+      int status = 200;
+      if (next != null) {
+        String[] parts = next.split(":");
+        status = Integer.parseInt(parts[0]);
+        if (parts.length > 1) {
+          exchange.getResponseHeaders().set("Retry-After", parts[1]);
+        }
+      }
+      byte[] body = ("{\"status\":" + status + "}").getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(status, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    server.start();
+    base = "http://127.0.0.1:" + server.getAddress().getPort();
+    options.backoffMs = 1;
+    options.maxBackoffMs = 5;
+  }
+
+  @AfterEach
+  void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  void retriesServerErrorsUntilOneSucceeds() throws Exception {
+    script.addAll(List.of("500", "503", "502"));
+
+    assertEquals(200, call(client("m")).statusCode());
+    assertEquals(4, paths.size());
+  }
+
+  @Test
+  void returnsLastErrorOnceRetriesRunOut() throws Exception {
+    options.maxRetries = 2;
+    script.addAll(List.of("500", "500", "500", "500"));
+
+    assertEquals(500, call(client("m")).statusCode());
+    assertEquals(3, paths.size());
+  }
+
+  @Test
+  void doesNotRetryClientErrors() throws Exception {
+    script.add("400");
+
+    assertEquals(400, call(client("m")).statusCode());
+    assertEquals(1, paths.size());
+  }
+
+  @Test
+  void waitsForRetryAfterBeforeRetryingQuotaErrors() throws Exception {
+    script.add("429:1");
+    long started = System.nanoTime();
+
+    assertEquals(200, call(client("m")).statusCode());
+
+    assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(950));
+    assertEquals(2, paths.size());
+  }
+
+  @Test
+  void refusesRetryAfterLongerThanMaxWait() {
+    options.maxWaitMs = 500;
+    script.add("429:30");
+
+    AiLimiter.Saturated refused = refusal(client("m"));
+
+    assertEquals(429, refused.status);
+    assertEquals(30, refused.retryAfterSeconds);
+    assertEquals(1, paths.size());
+  }
+
+  @Test
+  void refusesCallsPastTheRateLimitWithoutSendingThem() throws Exception {
+    options.requestsPerMinute = 1;
+    options.burst = 1;
+    options.maxWaitMs = 100;
+    GeminiClient client = client("m");
+
+    assertEquals(200, call(client).statusCode());
+    AiLimiter.Saturated refused = refusal(client);
+
+    assertEquals(429, refused.status);
+    assertEquals(1, paths.size());
+  }
+
+  @Test
+  void breakerOpensAfterConsecutiveFailuresAndClosesOnSuccessfulProbe() throws Exception {
+    options.maxRetries = 0;
+    options.breakerFailures = 3;
+    options.breakerOpenMs = 200;
+    script.addAll(List.of("500", "500", "500"));
+    GeminiClient client = client("m");
+    for (int i = 0; i < 3; i++) {
+      assertEquals(500, call(client).statusCode());
+    }
+
+    assertEquals(1, client.breakerState());
+    AiLimiter.Saturated refused = refusal(client);
+    assertEquals(503, refused.status);
+    assertEquals(3, paths.size());
+
+    Thread.sleep(250);
+    assertEquals(200, call(client).statusCode());
+    assertEquals(0, client.breakerState());
+    assertEquals(4, paths.size());
+  }
+
+  @Test
+  void failedProbeReopensTheBreaker() throws Exception {
+    options.maxRetries = 0;
+    options.breakerFailures = 1;
+    options.breakerOpenMs = 200;
+    script.addAll(List.of("500", "503"));
+    GeminiClient client = client("m");
+    call(client);
+    assertEquals(1, client.breakerState());
+
+    Thread.sleep(250);
+    assertEquals(503, call(client).statusCode());
+
+    assertEquals(1, client.breakerState());
+    assertEquals(503, refusal(client).status);
+    assertEquals(2, paths.size());
+  }
+
+  @Test
+  void successResetsTheFailureCount() throws Exception {
+    options.maxRetries = 0;
+    options.breakerFailures = 2;
+    script.addAll(List.of("500", "200", "500"));
+    GeminiClient client = client("m");
+    for (int i = 0; i < 3; i++) {
+      call(client);
+    }
+
+    assertEquals(0, client.breakerState());
+  }
+
+  @Test
+  void movesToFallbackModelOnNotFoundAndSkipsTheMissingOneAfterwards() throws Exception {
+    GeminiClient client = client("missing", "fallback");
+
+    GeminiClient.Served<String> first = client.send("test", this::request, HttpResponse.BodyHandlers.ofString()).get();
+    GeminiClient.Served<String> second = client.send("test", this::request, HttpResponse.BodyHandlers.ofString()).get();
+
+    assertEquals("fallback", first.model);
+    assertEquals(200, first.response.statusCode());
+    assertEquals("fallback", second.model);
+    assertEquals(List.of("/models/missing", "/models/fallback", "/models/fallback"), paths);
+    assertEquals(0, client.breakerState());
+  }
+
+  @Test
+  void notFoundOnTheLastModelIsReturned() throws Exception {
+    GeminiClient client = client("missing");
+
+    GeminiClient.Served<String> served =
+        client.send("test", this::request, HttpResponse.BodyHandlers.ofString()).get();
+
+    assertEquals(404, served.response.statusCode());
+    assertEquals(1, paths.size());
+  }
+
+  private GeminiClient client(String... models) {
+    return new GeminiClient(HttpClient.newHttpClient(), List.of(models), options);
+  }
+
+  private HttpRequest request(String model) {
+    return HttpRequest.newBuilder(URI.create(base + "/models/" + model)).build();
+  }
+
+  private HttpResponse<String> call(GeminiClient client) throws Exception {
+    return client.send("test", request("m"), HttpResponse.BodyHandlers.ofString()).get(10, TimeUnit.SECONDS);
+  }
+
+  private AiLimiter.Saturated refusal(GeminiClient client) {
+    ExecutionException e = assertThrows(ExecutionException.class,
+        () -> client.send("test", request("m"), HttpResponse.BodyHandlers.ofString()).get(10, TimeUnit.SECONDS));
+    return assertInstanceOf(AiLimiter.Saturated.class, e.getCause());
+  }
+}
@@ -0,0 +1,101 @@
+package com.journeyhacks.server;
+
+import static com.journeyhacks.server.MacroOptimizerTest.step;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Point;
+import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+class KeystrokesTest {
+  @Test
+  void mapsLettersAndDigitsWithoutShift() {
+    assertKey('a', KeyEvent.VK_A, false);
+    assertKey('z', KeyEvent.VK_Z, false);
+    assertKey('0', KeyEvent.VK_0, false);
+    assertKey(' ', KeyEvent.VK_SPACE, false);
+  }
+
+  @Test
+  void shiftsUpperCaseAndShiftedSymbols() {
+    assertKey('A', KeyEvent.VK_A, true);
+    assertKey('Q', KeyEvent.VK_Q, true);
+    assertKey('!', KeyEvent.VK_1, true);
+    assertKey('%', KeyEvent.VK_5, true);
+    assertKey(')', KeyEvent.VK_0, true);
+    assertKey('?', KeyEvent.VK_SLASH, true);
+    assertKey('"', KeyEvent.VK_QUOTE, true);
+    assertKey('~', KeyEvent.VK_BACK_QUOTE, true);
+    assertKey('/', KeyEvent.VK_SLASH, false);
+    assertKey('-', KeyEvent.VK_MINUS, false);
+  }
+
+  @Test
+  void everyPrintableAsciiCharacterHasAKey() {
+    for (char ch = ' '; ch <= '~'; ch++) {
+      assertTrue(Keystrokes.lookup(ch) != Keystrokes.UNDEFINED, "no key for " + ch);
+    }
+  }
+
+  @Test
+  void mapsWhitespaceControls() {
+    assertKey('\n', KeyEvent.VK_ENTER, false);
+    assertKey('\r', KeyEvent.VK_ENTER, false);
+    assertKey('\t', KeyEvent.VK_TAB, false);
+  }
+
+  @Test
+  void skipsCarriageReturnOfACrLfPair() {
+    String text = "a\r\nb\rc\r";
+
+    assertEquals(Keystrokes.SKIP, Keystrokes.lookup(text, 1));
+    assertKey(Keystrokes.lookup(text, 2), KeyEvent.VK_ENTER);
+    // A lone '\r', old Mac style or at the very end, is still Enter.
+    assertKey(Keystrokes.lookup(text, 4), KeyEvent.VK_ENTER);
+    assertKey(Keystrokes.lookup(text, 6), KeyEvent.VK_ENTER);
+  }
+
+  @Test
+  void reportsCharactersWithoutAKey() {
+    assertEquals(Keystrokes.UNDEFINED, Keystrokes.lookup('\u0001'));
+    assertEquals(Keystrokes.UNDEFINED, Keystrokes.lookup("x\u0001", 1));
+  }
+
+  @Test
+  void typesOneEnterPerCrLfLine() {
+    MacroProgram.Compiler compiler = new MacroProgram.Compiler(1000, new ArrayList<>());
+    List<Map<String, Object>> steps = List.of(step("type", "TYPE_TEXT", "text", "a\r\nB\r\n", "mode", "TYPE"));
+    MacroProgram program = compiler.build(compiler.emitSteps(steps), Pacing.MAX_THROUGHPUT);
+
+    Map<String, Object> result = MacroSimulator.run(program, compiler, new ArrayList<>(), new Point(), 100);
+
+    @SuppressWarnings("unchecked")
+    List<Map<String, Object>> timeline = (List<Map<String, Object>>) result.get("timeline");
+    List<Object> pressed = timeline.stream()
+        .filter(event -> "keyPress".equals(event.get("event")))
+        .map(event -> event.get("key"))
+        .collect(Collectors.toList());
+    String enter = KeyEvent.getKeyText(KeyEvent.VK_ENTER);
+    String shift = KeyEvent.getKeyText(KeyEvent.VK_SHIFT);
+    assertEquals(List.of(KeyEvent.getKeyText(KeyEvent.VK_A), enter, shift, KeyEvent.getKeyText(KeyEvent.VK_B), enter),
+        pressed);
+    assertEquals(List.of(), result.get("warnings"));
+  }
+
+  private static void assertKey(char ch, int keyCode, boolean shift) {
+    int entry = Keystrokes.lookup(ch);
+    assertEquals(keyCode, Keystrokes.keyCode(entry));
+    assertEquals(shift, Keystrokes.shift(entry));
+  }
+
+  private static void assertKey(int entry, int keyCode) {
+    assertEquals(keyCode, Keystrokes.keyCode(entry));
+    assertFalse(Keystrokes.shift(entry));
+  }
+}
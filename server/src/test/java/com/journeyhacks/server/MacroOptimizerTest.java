@@ -0,0 +1,171 @@
+package com.journeyhacks.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class MacroOptimizerTest {
+  @Test
+  void sumsConsecutiveRelativeMoves() {
+    MacroOptimizer.Result result = optimize(
+        step("type", "MOUSE_MOVE", "dx", 5, "dy", 1),
+        step("type", "MOUSE_MOVE", "dx", -2, "dy", 3),
+        step("type", "MOUSE_MOVE", "dx", 1, "dy", 0));
+
+    assertEquals(List.of(step("type", "MOUSE_MOVE", "dx", 4, "dy", 4)), result.steps);
+    assertEquals(3, result.before);
+    assertEquals(1, result.after);
+    // Each merged move saves its step delay and its Robot auto-delay.
+    assertEquals(2 * (20 + 10), millis(result));
+  }
+
+  @Test
+  void foldsRelativeMoveIntoPrecedingAbsoluteMove() {
+    MacroOptimizer.Result result = optimize(
+        step("type", "MOUSE_MOVE_TO", "x", 100, "y", 200),
+        step("type", "MOUSE_MOVE", "dx", 10, "dy", -20));
+
+    assertEquals(List.of(step("type", "MOUSE_MOVE_TO", "x", 110, "y", 180)), result.steps);
+  }
+
+  @Test
+  void dropsMoveOverriddenByAbsoluteMoveOrPath() {
+    Map<String, Object> path = step("type", "MOUSE_PATH", "points", List.of(List.of(0, 0), List.of(5, 5)));
+    MacroOptimizer.Result result = optimize(
+        step("type", "MOUSE_MOVE", "dx", 3, "dy", 3),
+        step("type", "MOUSE_MOVE_TO", "x", 1, "y", 1),
+        step("type", "MOUSE_MOVE_TO", "x", 7, "y", 8),
+        path);
+
+    assertEquals(List.of(path), result.steps);
+  }
+
+  @Test
+  void leavesMovesMissingAnOperandForTheCompilerToReject() {
+    List<Map<String, Object>> steps = List.of(
+        step("type", "MOUSE_MOVE_TO", "x", 100, "y", 200),
+        step("type", "MOUSE_MOVE", "dx", 10),
+        step("type", "MOUSE_MOVE"));
+
+    assertEquals(steps, MacroOptimizer.optimize(steps, Pacing.DEFAULT).steps);
+  }
+
+  @Test
+  void sumsConsecutiveWaits() {
+    MacroOptimizer.Result result = optimize(
+        step("type", "WAIT_MS", "ms", 100),
+        step("type", "WAIT_MS", "ms", 250));
+
+    assertEquals(List.of(step("type", "WAIT_MS", "ms", 350)), result.steps);
+    assertEquals(20, millis(result));
+  }
+
+  @Test
+  void removesStepsWithoutEffect() {
+    Map<String, Object> click = step("type", "MOUSE_CLICK", "button", "LEFT");
+    MacroOptimizer.Result result = optimize(
+        step("type", "START"),
+        step("type", "SET_MODE", "mode", "FAST"),
+        step("type", "MOUSE_MOVE", "dx", 0, "dy", 0),
+        step("type", "WAIT_MS", "ms", 0),
+        step("type", "TYPE_TEXT", "text", ""),
+        click);
+
+    assertEquals(List.of(click), result.steps);
+    assertEquals(6, result.before);
+    assertEquals(5, result.rewrites.size());
+  }
+
+  @Test
+  void inlinesSingleRepeatAndRemovesEmptyOne() {
+    Map<String, Object> click = step("type", "MOUSE_CLICK", "button", "LEFT");
+    MacroOptimizer.Result result = optimize(
+        step("type", "REPEAT", "count", 1, "steps", List.of(click)),
+        step("type", "REPEAT", "count", 5, "steps", List.of(step("type", "WAIT_MS", "ms", 0))));
+
+    assertEquals(List.of(click), result.steps);
+    assertEquals(4, result.before);
+    assertEquals(1, result.after);
+  }
+
+  @Test
+  void optimizesRepeatBodiesAndScalesSavingsByIterations() {
+    MacroOptimizer.Result result = optimize(
+        step("type", "REPEAT", "count", 10, "steps", List.of(
+            step("type", "WAIT_MS", "ms", 5),
+            step("type", "WAIT_MS", "ms", 5))));
+
+    assertEquals(List.of(step("type", "REPEAT", "count", 10, "steps",
+        List.of(step("type", "WAIT_MS", "ms", 10)))), result.steps);
+    assertEquals(10 * 20, millis(result));
+  }
+
+  @Test
+  void leavesStepsWithOwnDelayOrUnknownFieldsAlone() {
+    List<Map<String, Object>> steps = List.of(
+        step("type", "MOUSE_MOVE", "dx", 1, "dy", 1, "delayMs", 500),
+        step("type", "MOUSE_MOVE", "dx", 1, "dy", 1),
+        step("type", "WAIT_MS", "ms", 1, "note", "keep"),
+        step("type", "WAIT_MS", "ms", 1),
+        step("type", "WAIT_MS", "ms", 0, "delayMs", 50));
+
+    MacroOptimizer.Result result = MacroOptimizer.optimize(steps, Pacing.DEFAULT);
+
+    // The last wait keeps its delay but absorbs the plain wait before it.
+    assertEquals(List.of(steps.get(0), steps.get(1), steps.get(2),
+        step("type", "WAIT_MS", "ms", 1, "delayMs", 50)), result.steps);
+    assertEquals(1, result.rewrites.size());
+  }
+
+  @Test
+  void doesNotModifyItsInput() {
+    List<Map<String, Object>> steps = new ArrayList<>(List.of(
+        step("type", "MOUSE_MOVE", "dx", 1, "dy", 2),
+        step("type", "MOUSE_MOVE", "dx", 3, "dy", 4)));
+    List<Map<String, Object>> copy = new ArrayList<>();
+    for (Map<String, Object> step : steps) {
+      copy.add(new LinkedHashMap<>(step));
+    }
+
+    MacroOptimizer.optimize(steps, Pacing.DEFAULT);
+
+    assertEquals(copy, steps);
+  }
+
+  @Test
+  void optimizedStepsCompileToTheSameFinalPointer() {
+    List<Map<String, Object>> steps = List.of(
+        step("type", "MOUSE_MOVE_TO", "x", 10, "y", 10),
+        step("type", "MOUSE_MOVE", "dx", 5, "dy", 0),
+        step("type", "MOUSE_MOVE", "dx", 0, "dy", 7));
+
+    MacroOptimizer.Result result = MacroOptimizer.optimize(steps, Pacing.MAX_THROUGHPUT);
+
+    MacroProgram program = MacroProgram.compile(result.steps);
+    assertEquals(1, program.ops.length);
+    assertEquals(MacroProgram.MOUSE_MOVE_TO, program.ops[0]);
+    assertEquals(15, program.arg0[0]);
+    assertEquals(17, program.arg1[0]);
+  }
+
+  @SafeVarargs
+  private static MacroOptimizer.Result optimize(Map<String, Object>... steps) {
+    return MacroOptimizer.optimize(List.of(steps), Pacing.DEFAULT);
+  }
+
+  private static long millis(MacroOptimizer.Result result) {
+    return Math.round(result.savedNanos / 1_000_000.0);
+  }
+
+  static Map<String, Object> step(Object... fields) {
+    Map<String, Object> step = new LinkedHashMap<>();
+    for (int i = 0; i < fields.length; i += 2) {
+      step.put((String) fields[i], fields[i + 1]);
+    }
+    return step;
+  }
+}
@@ -0,0 +1,88 @@
+package com.journeyhacks.server;
+
+import static com.journeyhacks.server.MacroOptimizerTest.step;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class MacroProgramTest {
+  @Test
+  void repeatAndEndPointAtEachOther() {
+    MacroProgram program = MacroProgram.compile(List.of(
+        step("type", "MOUSE_CLICK", "button", "LEFT"),
+        step("type", "REPEAT", "count", 3, "steps", List.of(
+            step("type", "WAIT_MS", "ms", 1),
+            step("type", "REPEAT", "count", 2, "steps", List.of(step("type", "WAIT_MS", "ms", 2))))),
+        step("type", "WAIT_MS", "ms", 3)));
+
+    assertArrayEquals(new int[] {MacroProgram.MOUSE_CLICK, MacroProgram.REPEAT, MacroProgram.WAIT_MS,
+        MacroProgram.REPEAT, MacroProgram.WAIT_MS, MacroProgram.END, MacroProgram.END, MacroProgram.WAIT_MS},
+        program.ops);
+    // REPEAT: count, then the pc of its END. END: the pc of its REPEAT.
+    assertEquals(3, program.arg0[1]);
+    assertEquals(6, program.arg1[1]);
+    assertEquals(2, program.arg0[3]);
+    assertEquals(5, program.arg1[3]);
+    assertEquals(3, program.arg1[5]);
+    assertEquals(1, program.arg1[6]);
+    assertEquals("steps[1].steps[1]", program.stepPath(5));
+    assertEquals("steps[1]", program.stepPath(6));
+    assertEquals("steps[2]", program.stepPath(7));
+  }
+
+  @Test
+  void repeatWithoutAPositiveCountRunsOnce() {
+    MacroProgram program = MacroProgram.compile(List.of(
+        step("type", "REPEAT", "steps", List.of(step("type", "WAIT_MS", "ms", 1))),
+        step("type", "REPEAT", "count", 0, "steps", List.of(step("type", "WAIT_MS", "ms", 1)))));
+
+    assertEquals(1, program.arg0[0]);
+    assertEquals(2, program.arg1[0]);
+    assertEquals(1, program.arg0[3]);
+    assertEquals(5, program.arg1[3]);
+  }
+
+  @Test
+  void mouseMovesRequireTheirOperands() {
+    assertRejected("steps[0]: dy is required", step("type", "MOUSE_MOVE", "dx", 5));
+    assertRejected("steps[0]: dx is required", step("type", "MOUSE_MOVE", "dx", null, "dy", 5));
+    assertRejected("steps[0]: x is required", step("type", "MOUSE_MOVE_TO", "y", 5));
+    assertRejected("steps[0]: y is required", step("type", "MOUSE_MOVE_TO", "x", 5));
+    assertRejected("steps[0]: x is required", step("type", "MOUSE_GLIDE", "y", 5, "durationMs", 100));
+    assertRejected("steps[0].points[1]: y is required",
+        step("type", "MOUSE_PATH", "points", List.of(Map.of("x", 0, "y", 0), Map.of("x", 5))));
+    assertRejected("steps[0].steps[1]: x is required", step("type", "REPEAT", "count", 2, "steps", List.of(
+        step("type", "WAIT_MS", "ms", 1), step("type", "MOUSE_MOVE_TO"))));
+  }
+
+  @Test
+  void lenientCompilerStillRejectsMissingOperands() {
+    MacroProgram.Compiler compiler = new MacroProgram.Compiler(1000, new ArrayList<>());
+
+    IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+        () -> compiler.emitSteps(List.of(step("type", "MOUSE_MOVE_TO", "x", 5))));
+
+    assertEquals("steps[0]: y is required", e.getMessage());
+  }
+
+  @Test
+  void zeroOperandsAreStillAccepted() {
+    MacroProgram program = MacroProgram.compile(List.of(
+        step("type", "MOUSE_MOVE", "dx", 0, "dy", 0),
+        step("type", "MOUSE_MOVE_TO", "x", 0, "y", "0")));
+
+    assertArrayEquals(new int[] {0, 0}, program.arg0);
+    assertArrayEquals(new int[] {0, 0}, program.arg1);
+  }
+
+  private static void assertRejected(String message, Map<String, Object> step) {
+    IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+        () -> MacroProgram.compile(List.of(step)));
+    assertEquals(message, e.getMessage());
+  }
+}
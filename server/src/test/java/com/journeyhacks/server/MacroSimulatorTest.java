@@ -0,0 +1,98 @@
+package com.journeyhacks.server;
+
+import static com.journeyhacks.server.MacroOptimizerTest.step;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class MacroSimulatorTest {
+  @Test
+  void nestedRepeatsAddUpOnTheVirtualClock() {
+    // Three outer passes of 100 ms plus two 10 ms inner passes: 360 ms.
+    List<Map<String, Object>> steps = List.of(step("type", "REPEAT", "count", 3, "steps", List.of(
+        step("type", "WAIT_MS", "ms", 100),
+        step("type", "REPEAT", "count", 2, "steps", List.of(step("type", "WAIT_MS", "ms", 10))))));
+    long started = System.nanoTime();
+
+    Map<String, Object> result = simulate(Pacing.MAX_THROUGHPUT, steps, new ArrayList<>());
+
+    assertTrue(System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(300));
+    assertEquals(true, result.get("complete"));
+    assertEquals(360.0, result.get("durationMs"));
+    assertEquals(Map.of("count", 9L, "ms", 360.0), breakdown(result).get("WAIT_MS"));
+    List<Map<String, Object>> timeline = timeline(result);
+    assertEquals(9, timeline.size());
+    assertEquals("steps[0].steps[1].steps[0]", timeline.get(1).get("step"));
+    assertEquals(240.0, timeline.get(6).get("atMs"));
+  }
+
+  @Test
+  void breaksDurationDownByStepTypeAndPacing() {
+    List<Map<String, Object>> steps = List.of(
+        step("type", "MOUSE_MOVE_TO", "x", 5, "y", 5),
+        step("type", "MOUSE_CLICK", "button", "LEFT"),
+        step("type", "TYPE_TEXT", "text", "ab", "mode", "TYPE"),
+        step("type", "WAIT_MS", "ms", 100));
+
+    Map<String, Object> result = simulate(Pacing.DEFAULT, steps, new ArrayList<>());
+
+    Map<String, Map<String, Object>> breakdown = breakdown(result);
+    assertEquals(Map.of("count", 1L, "ms", 10.0), breakdown.get("MOUSE_MOVE_TO"));
+    assertEquals(Map.of("count", 1L, "ms", 60.0), breakdown.get("MOUSE_CLICK"));
+    // Two keys, a press and a release each at the input delay.
+    assertEquals(Map.of("count", 1L, "ms", 40.0), breakdown.get("TYPE_TEXT"));
+    assertEquals(Map.of("count", 1L, "ms", 100.0), breakdown.get("WAIT_MS"));
+    // The step delays between the four steps.
+    assertEquals(Map.of("ms", 70.0), breakdown.get("pacing"));
+    assertEquals(280.0, result.get("durationMs"));
+    assertEquals(4L, result.get("executedSteps"));
+    assertEquals(7L, result.get("events"));
+  }
+
+  @Test
+  void lenientCompilerAndSimulatorWarnInsteadOfFailing() {
+    List<String> warnings = new ArrayList<>();
+    List<Map<String, Object>> steps = List.of(
+        step("type", "START"),
+        step("type", "JUMP", "to", 3),
+        step("type", "TYPE_TEXT", "text", "a\u0001b", "mode", "TYPE"),
+        step("type", "MOUSE_MOVE_TO", "x", -5, "y", 5),
+        step("type", "HTTP_FETCH", "url", "http://example.invalid/"));
+
+    Map<String, Object> result = simulate(Pacing.DEFAULT, steps, warnings);
+
+    assertEquals(List.of(
+        "steps[0]: START has no effect",
+        "steps[1]: unknown step type JUMP, skipped",
+        "steps[2]: 1 character(s) have no key mapping and are not typed",
+        "steps[3]: moves the pointer to negative coordinates",
+        "steps[4]: sends an HTTP request, which is not simulated; assumed to answer 200"),
+        result.get("warnings"));
+    assertEquals(true, result.get("complete"));
+    // Both skipped steps still take a slot, as NOPs.
+    assertEquals(Map.of("count", 2L, "ms", 0.0), breakdown(result).get("NOP"));
+  }
+
+  private static Map<String, Object> simulate(Pacing pacing, List<Map<String, Object>> steps,
+      List<String> warnings) {
+    MacroProgram.Compiler compiler = new MacroProgram.Compiler(1000, warnings);
+    MacroProgram program = compiler.build(compiler.emitSteps(steps), pacing);
+    return MacroSimulator.run(program, compiler, warnings, new Point(), 100);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Map<String, Object>> breakdown(Map<String, Object> result) {
+    return (Map<String, Map<String, Object>>) result.get("breakdown");
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Map<String, Object>> timeline(Map<String, Object> result) {
+    return (List<Map<String, Object>>) result.get("timeline");
+  }
+}
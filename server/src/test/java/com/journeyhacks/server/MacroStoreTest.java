@@ -0,0 +1,159 @@
+package com.journeyhacks.server;
+
+import static com.journeyhacks.server.MacroOptimizerTest.step;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MacroStoreTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  void reopenedStoreServesSavedMacrosFromTheIndex() throws IOException {
+    MacroStore store = new MacroStore(dir);
+    String id = save(store, null, "click", step("type", "MOUSE_CLICK", "button", "LEFT")).entry.id;
+
+    MacroStore reopened = new MacroStore(dir);
+
+    assertEquals(1, reopened.size());
+    MacroStore.Stored stored = reopened.get(id);
+    assertEquals("click", stored.entry.name);
+    assertEquals(List.of(step("type", "MOUSE_CLICK", "button", "LEFT")), stored.request.steps);
+    assertEquals(MacroProgram.MOUSE_CLICK, stored.program.ops[0]);
+  }
+
+  @Test
+  void replaysRecordsWrittenAfterTheIndex() throws IOException {
+    MacroStore store = new MacroStore(dir);
+    String first = save(store, null, "first", step("type", "WAIT_MS", "ms", 1)).entry.id;
+    Path staleIndex = dir.resolve("stale.idx");
+    Files.copy(dir.resolve("macros.idx"), staleIndex);
+    String second = save(store, null, "second", step("type", "WAIT_MS", "ms", 2)).entry.id;
+    save(store, first, "first renamed", step("type", "WAIT_MS", "ms", 3));
+    // A crash between appending to the log and rewriting the index.
+    Files.move(staleIndex, dir.resolve("macros.idx"), StandardCopyOption.REPLACE_EXISTING);
+
+    MacroStore reopened = new MacroStore(dir);
+
+    assertEquals(2, reopened.size());
+    assertEquals("first renamed", reopened.get(first).entry.name);
+    assertEquals(List.of(step("type", "WAIT_MS", "ms", 3)), reopened.get(first).request.steps);
+    assertEquals("second", reopened.get(second).entry.name);
+  }
+
+  @Test
+  void truncatesTornRecordAtTheEndOfTheLog() throws IOException {
+    MacroStore store = new MacroStore(dir);
+    String kept = save(store, null, "kept", step("type", "WAIT_MS", "ms", 1)).entry.id;
+    long intact = Files.size(dir.resolve("macros.log"));
+    Path staleIndex = dir.resolve("stale.idx");
+    Files.copy(dir.resolve("macros.idx"), staleIndex);
+    save(store, null, "torn", step("type", "WAIT_MS", "ms", 2));
+    Files.move(staleIndex, dir.resolve("macros.idx"), StandardCopyOption.REPLACE_EXISTING);
+    truncate(dir.resolve("macros.log"), Files.size(dir.resolve("macros.log")) - 3);
+
+    MacroStore reopened = new MacroStore(dir);
+
+    assertEquals(1, reopened.size());
+    assertEquals("kept", reopened.get(kept).entry.name);
+    assertEquals(intact, Files.size(dir.resolve("macros.log")));
+    // The next save lands where the torn record was cut off.
+    save(reopened, null, "after", step("type", "WAIT_MS", "ms", 4));
+    assertEquals(2, new MacroStore(dir).size());
+  }
+
+  @Test
+  void dropsTrailingGarbageAfterTheIndexedLog() throws IOException {
+    MacroStore store = new MacroStore(dir);
+    String id = save(store, null, "kept", step("type", "WAIT_MS", "ms", 1)).entry.id;
+    long intact = Files.size(dir.resolve("macros.log"));
+    Files.write(dir.resolve("macros.log"), new byte[] {0x4D, 0x41, 0x43}, StandardOpenOption.APPEND);
+
+    MacroStore reopened = new MacroStore(dir);
+
+    assertEquals(1, reopened.size());
+    assertEquals("kept", reopened.get(id).entry.name);
+    assertEquals(intact, Files.size(dir.resolve("macros.log")));
+  }
+
+  @Test
+  void rebuildsFromTheLogWhenTheIndexIsMissingOrUnreadable() throws IOException {
+    MacroStore store = new MacroStore(dir);
+    String first = save(store, null, "first", step("type", "WAIT_MS", "ms", 1)).entry.id;
+    String second = save(store, null, "second", step("type", "WAIT_MS", "ms", 2)).entry.id;
+    store.delete(first);
+
+    Files.delete(dir.resolve("macros.idx"));
+    MacroStore rebuilt = new MacroStore(dir);
+    assertEquals(1, rebuilt.size());
+    assertNull(rebuilt.get(first));
+    assertEquals("second", rebuilt.get(second).entry.name);
+
+    Files.writeString(dir.resolve("macros.idx"), "{not json");
+    MacroStore recovered = new MacroStore(dir);
+    assertEquals(1, recovered.size());
+    assertEquals("second", recovered.get(second).entry.name);
+  }
+
+  @Test
+  void deleteSurvivesRestart() throws IOException {
+    MacroStore store = new MacroStore(dir);
+    String id = save(store, null, "gone", step("type", "WAIT_MS", "ms", 1)).entry.id;
+
+    assertTrue(store.delete(id));
+    assertFalse(store.delete(id));
+
+    MacroStore reopened = new MacroStore(dir);
+    assertEquals(0, reopened.size());
+    assertNull(reopened.get(id));
+  }
+
+  @Test
+  void replacingUnknownIdWritesNothing() throws IOException {
+    MacroStore store = new MacroStore(dir);
+
+    assertNull(save(store, "m00000000", "missing", step("type", "WAIT_MS", "ms", 1)));
+    assertEquals(0, Files.size(dir.resolve("macros.log")));
+  }
+
+  @Test
+  void rejectsRecordsReplayWouldDiscard() throws IOException {
+    MacroStore store = new MacroStore(dir);
+    String id = save(store, null, "small", step("type", "WAIT_MS", "ms", 1)).entry.id;
+    long before = Files.size(dir.resolve("macros.log"));
+
+    assertThrows(MacroReader.TooLarge.class,
+        () -> save(store, id, "huge", step("type", "TYPE_TEXT", "text", "x".repeat(16 * 1024 * 1024))));
+
+    assertEquals(before, Files.size(dir.resolve("macros.log")));
+    assertEquals("small", new MacroStore(dir).get(id).entry.name);
+  }
+
+  @SafeVarargs
+  private static MacroStore.Stored save(MacroStore store, String id, String name, Map<String, Object>... steps)
+      throws IOException {
+    MacroServer.MacroRequest request = new MacroServer.MacroRequest();
+    request.steps = List.of(steps);
+    return store.save(id, name, request, MacroProgram.compile(request.steps));
+  }
+
+  private static void truncate(Path file, long size) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(size);
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package com.journeyhacks.server;
+
+import static com.journeyhacks.server.MacroOptimizerTest.step;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PromptIndexTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  void rephrasedPromptReusesTheClosestEntry() {
+    PromptIndex index = new PromptIndex(10, 0.6, null);
+    index.add("open gmail and click compose", "m", response("compose"));
+    index.add("open the calendar and create an event", "m", response("event"));
+
+    PromptIndex.Match match = index.find("Open Gmail, then compose", "m");
+
+    assertEquals("open gmail and click compose", match.prompt);
+    assertEquals(response("compose"), match.value);
+    assertTrue(match.score >= 0.6 && match.score < 1.0, "score " + match.score);
+  }
+
+  @Test
+  void fillerWordsCaseAndPunctuationDoNotCount() {
+    PromptIndex index = new PromptIndex(10, 0.99, null);
+    index.add("open gmail and click compose", "m", response("compose"));
+
+    assertEquals(1.0, index.find("Please open Gmail, then click: compose!", "m").score, 1e-9);
+  }
+
+  @Test
+  void unrelatedPromptFallsBelowTheThreshold() {
+    PromptIndex index = new PromptIndex(10, 0.6, null);
+    index.add("open gmail and click compose", "m", response("compose"));
+
+    assertNull(index.find("scroll down to the footer", "m"));
+    assertNull(index.find("", "m"));
+  }
+
+  @Test
+  void numbersQuotedTextAndScopeMustMatchExactly() {
+    PromptIndex index = new PromptIndex(10, 0.5, null);
+    index.add("move to 100,200 and type \"hello\"", "m", response("hello"));
+
+    assertEquals(response("hello"), index.find("move to 100,200 and type \"hello\"", "m").value);
+    assertNull(index.find("move to 300,400 and type \"hello\"", "m"));
+    assertNull(index.find("move to 100,200 and type \"goodbye\"", "m"));
+    assertNull(index.find("move to 100,200 and type \"hello\"", "other model"));
+  }
+
+  @Test
+  void keepsTheNewestEntriesAndReplacesTheSamePrompt() {
+    PromptIndex index = new PromptIndex(2, 0.99, null);
+    index.add("open gmail", "m", response("gmail"));
+    index.add("open calendar", "m", response("calendar"));
+    index.add("Open Gmail!", "m", response("gmail again"));
+    index.add("open drive", "m", response("drive"));
+
+    assertEquals(2, index.size());
+    assertNull(index.find("open calendar", "m"));
+    assertEquals(response("gmail again"), index.find("open gmail", "m").value);
+    assertEquals(response("drive"), index.find("open drive", "m").value);
+  }
+
+  @Test
+  void skipsResponsesThatAreNotCacheable() {
+    PromptIndex index = new PromptIndex(10, 0.5, null);
+    index.add("open gmail", "m", Map.of("steps", List.of(), "raw", "not json"));
+
+    assertEquals(0, index.size());
+    assertNull(index.find("open gmail", "m"));
+  }
+
+  @Test
+  void reloadsEntriesFromTheFileInOrder() {
+    Path file = dir.resolve("prompts.json");
+    PromptIndex index = new PromptIndex(10, 0.6, file);
+    index.add("open gmail and click compose", "m", response("compose"));
+    index.add("open calendar", "m", response("calendar"));
+    index.add("open drive", "other", response("drive"));
+
+    PromptIndex reopened = new PromptIndex(10, 0.6, file);
+
+    assertEquals(3, reopened.size());
+    assertEquals(response("compose"), reopened.find("open gmail then compose", "m").value);
+    assertEquals(response("drive"), reopened.find("open drive", "other").value);
+    // Reopened with room for fewer entries, the oldest go first.
+    PromptIndex smaller = new PromptIndex(2, 0.6, file);
+    assertEquals(2, smaller.size());
+    assertNull(smaller.find("open gmail and click compose", "m"));
+    assertEquals(response("calendar"), smaller.find("open calendar", "m").value);
+  }
+
+  private static Map<String, Object> response(String name) {
+    return Map.of("steps", List.of(step("type", "WAIT_MS", "ms", 1)), "name", name);
+  }
+}
@@ -0,0 +1,281 @@
+package com.journeyhacks.server;
+
+import static com.journeyhacks.server.MacroOptimizerTest.step;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RunQueueTest {
+  // About ten seconds of waiting unless cancelled.
+  private static final MacroProgram LONG = MacroProgram.compile(List.of(
+      step("type", "REPEAT", "count", 100, "steps", List.of(step("type", "WAIT_MS", "ms", 100)))));
+  private static final MacroProgram SHORT = MacroProgram.compile(List.of(step("type", "WAIT_MS", "ms", 1)));
+
+  private final StandInDevice device = new StandInDevice();
+  private RunQueue queue;
+
+  @BeforeEach
+  void setUp() {
+    ExecutionTrace trace = new ExecutionTrace(64);
+    queue = new RunQueue(new MacroEngine(device, StepScheduler::new, MacroEngine.METRICS.andThen(trace)),
+        trace);
+  }
+
+  @Test
+  void preemptCancelsActiveRunAndJumpsTheQueue() throws Exception {
+    MacroRun active = queue.submit(LONG, 0, false);
+    awaitState(active, MacroRun.State.RUNNING);
+    MacroRun waiting = queue.submit(SHORT, 10, false);
+    MacroRun preempting = queue.submit(LONG, 0, true);
+
+    assertEquals(MacroRun.State.CANCELLED, active.done.get(2, TimeUnit.SECONDS));
+    awaitState(preempting, MacroRun.State.RUNNING);
+    assertEquals(MacroRun.State.QUEUED, waiting.state());
+
+    assertTrue(queue.cancel(preempting.id));
+    assertEquals(MacroRun.State.CANCELLED, preempting.done.get(2, TimeUnit.SECONDS));
+    assertEquals(MacroRun.State.COMPLETED, waiting.done.get(2, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void preemptSubmittedWhileIdleRunsNormally() throws Exception {
+    MacroRun run = queue.submit(SHORT, 0, true);
+
+    assertEquals(MacroRun.State.COMPLETED, run.done.get(2, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void takesQueuedRunsByPriorityThenSubmissionOrder() throws Exception {
+    List<String> order = new CopyOnWriteArrayList<>();
+    MacroRun blocker = queue.submit(LONG, 0, false);
+    awaitState(blocker, MacroRun.State.RUNNING);
+    MacroRun lowFirst = queue.submit(SHORT, 0, false);
+    MacroRun high = queue.submit(SHORT, 5, false);
+    MacroRun lowSecond = queue.submit(SHORT, 0, false);
+    MacroRun middle = queue.submit(SHORT, 2, false);
+    for (MacroRun run : List.of(lowFirst, high, lowSecond, middle)) {
+      run.done.thenRun(() -> order.add(run.id));
+    }
+
+    assertEquals(List.of(blocker.id, high.id, middle.id, lowFirst.id, lowSecond.id),
+        queue.list().stream().map(summary -> summary.get("id")).collect(Collectors.toList()));
+
+    queue.cancel(blocker.id);
+    lowSecond.done.get(2, TimeUnit.SECONDS);
+    assertEquals(List.of(high.id, middle.id, lowFirst.id, lowSecond.id), order);
+  }
+
+  @Test
+  void cancelledQueuedRunNeverStarts() throws Exception {
+    MacroRun blocker = queue.submit(LONG, 0, false);
+    awaitState(blocker, MacroRun.State.RUNNING);
+    MacroRun queued = queue.submit(SHORT, 0, false);
+
+    assertTrue(queue.cancel(queued.id));
+    assertEquals(MacroRun.State.CANCELLED, queued.state());
+    assertFalse(queue.cancel(queued.id));
+
+    queue.cancel(blocker.id);
+    blocker.done.get(2, TimeUnit.SECONDS);
+    MacroRun after = queue.submit(SHORT, 0, false);
+    after.done.get(2, TimeUnit.SECONDS);
+    assertEquals(0, queued.executed.get());
+    assertEquals(MacroRun.State.CANCELLED, queued.state());
+  }
+
+  @Test
+  void stopAllCancelsQueuedRunsAndTheActiveOne() throws Exception {
+    MacroRun active = queue.submit(LONG, 0, false);
+    awaitState(active, MacroRun.State.RUNNING);
+    MacroRun queued = queue.submit(LONG, 0, false);
+    MacroRun preempting = queue.submit(LONG, 0, true);
+
+    assertTrue(queue.stopAll(2000));
+
+    assertEquals(MacroRun.State.CANCELLED, active.state());
+    assertEquals(MacroRun.State.CANCELLED, queued.state());
+    assertEquals(MacroRun.State.CANCELLED, preempting.done.get(2, TimeUnit.SECONDS));
+    awaitTrue(() -> queue.current() == null);
+    assertEquals(0, queue.queued());
+    assertEquals(0, queued.executed.get());
+
+    MacroRun next = queue.submit(SHORT, 0, false);
+    assertEquals(MacroRun.State.COMPLETED, next.done.get(2, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void stopEndsRunBlockedInAwait() throws Exception {
+    MacroRun run = queue.submit(MacroProgram.compile(List.of(
+        step("type", "HTTP_FETCH", "url", "http://127.0.0.1:9/never", "id", "f", "timeoutMs", 60_000),
+        step("type", "AWAIT", "id", "f", "timeoutMs", 60_000))), 0, false);
+    awaitTrue(() -> run.executed.get() == 1);
+    // Past the step delay and into the AWAIT.
+    Thread.sleep(100);
+
+    long started = System.nanoTime();
+    assertTrue(queue.stopAll(1000));
+
+    assertEquals(MacroRun.State.CANCELLED, run.done.get(1, TimeUnit.SECONDS));
+    assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(1));
+    // Cancelling the run also cancels the fetch it was waiting for.
+    awaitTrue(() -> device.interrupted.get() == 1);
+  }
+
+  @Test
+  void stopEndsBlockingStepsOnTheInputThread() throws Exception {
+    MacroRun fetch = queue.submit(MacroProgram.compile(List.of(
+        step("type", "HTTP_FETCH", "url", "http://127.0.0.1:9/never", "timeoutMs", 60_000))), 0, false);
+    awaitState(fetch, MacroRun.State.RUNNING);
+    Thread.sleep(100);
+
+    assertTrue(queue.cancel(fetch.id));
+    assertEquals(MacroRun.State.CANCELLED, fetch.done.get(1, TimeUnit.SECONDS));
+
+    MacroRun command = queue.submit(MacroProgram.compile(List.of(
+        step("type", "RUN_COMMAND", "command", List.of("sleep", "60"), "onError", "continue"))), 0, false);
+    awaitState(command, MacroRun.State.RUNNING);
+    Thread.sleep(100);
+
+    assertTrue(queue.stopAll(1000));
+    assertEquals(MacroRun.State.CANCELLED, command.done.get(1, TimeUnit.SECONDS));
+    assertEquals(2, device.interrupted.get());
+
+    // The interrupts were for the stopped runs only.
+    MacroRun next = queue.submit(SHORT, 0, false);
+    assertEquals(MacroRun.State.COMPLETED, next.done.get(2, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void stopAllHaltsALongWaitWellWithinItsTimeout() throws Exception {
+    MacroRun run = queue.submit(MacroProgram.compile(List.of(step("type", "WAIT_MS", "ms", 60_000))), 0, false);
+    awaitState(run, MacroRun.State.RUNNING);
+    Thread.sleep(50);
+
+    long started = System.nanoTime();
+    assertTrue(queue.stopAll(1000));
+
+    assertTrue(System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(100));
+    assertEquals(MacroRun.State.CANCELLED, run.state());
+  }
+
+  @Test
+  void stopAllWithNothingRunningReturnsAtOnce() {
+    assertTrue(queue.stopAll(0));
+    assertNull(queue.current());
+  }
+
+  private static void awaitState(MacroRun run, MacroRun.State state) throws InterruptedException {
+    awaitTrue(() -> run.state() == state);
+  }
+
+  private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() > deadline) {
+        fail("condition not reached within 2 s");
+      }
+      Thread.sleep(5);
+    }
+  }
+
+  // Accepts every event and does nothing; the programs here only wait.
+  private static final class StandInDevice implements InputDevice {
+    final AtomicInteger interrupted = new AtomicInteger();
+
+    @Override
+    public void mouseMove(int x, int y) {
+    }
+
+    @Override
+    public void mousePress(int buttons) {
+    }
+
+    @Override
+    public void mouseRelease(int buttons) {
+    }
+
+    @Override
+    public void keyPress(int keyCode) {
+    }
+
+    @Override
+    public void keyRelease(int keyCode) {
+    }
+
+    @Override
+    public Point pointerLocation() {
+      return new Point();
+    }
+
+    @Override
+    public void setAutoDelay(int ms) {
+    }
+
+    @Override
+    public boolean setClipboard(String text) {
+      return true;
+    }
+
+    @Override
+    public String clipboardText() {
+      return "";
+    }
+
+    @Override
+    public void openUrl(String url) {
+    }
+
+    // Like a server that never answers and a command that never exits:
+    // both block until the timeout or an interrupt, which RobotInputDevice
+    // treats as cancellation.
+    @Override
+    public int fetch(String method, String url, String body, long timeoutNanos) {
+      return block("fetch " + url, timeoutNanos);
+    }
+
+    @Override
+    public int runCommand(List<String> command, long timeoutNanos) {
+      return block(command.get(0), timeoutNanos);
+    }
+
+    private int block(String what, long timeoutNanos) {
+      try {
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+      } catch (InterruptedException e) {
+        interrupted.incrementAndGet();
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(what + " interrupted", e);
+      }
+      throw new IllegalStateException(what + " timed out");
+    }
+
+    @Override
+    public int pixelColor(int x, int y) {
+      return -1;
+    }
+
+    @Override
+    public BufferedImage capture(int x, int y, int width, int height) {
+      return null;
+    }
+
+    @Override
+    public Dimension screenSize() {
+      return new Dimension(1920, 1080);
+    }
+  }
+}
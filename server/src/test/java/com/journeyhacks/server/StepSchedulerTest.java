@@ -0,0 +1,73 @@
+package com.journeyhacks.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+class StepSchedulerTest {
+  @Test
+  void delaysAgainstAbsoluteDeadlines() {
+    StepScheduler scheduler = new StepScheduler(new AtomicBoolean(true));
+    long started = System.nanoTime();
+
+    for (int i = 0; i < 10; i++) {
+      assertTrue(scheduler.delay(Pacing.millis(10)));
+    }
+
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    assertTrue(elapsed >= 100 && elapsed < 200, "took " + elapsed + " ms");
+  }
+
+  @Test
+  void stopEndsAWaitWithinMilliseconds() throws Exception {
+    AtomicBoolean running = new AtomicBoolean(true);
+    StepScheduler scheduler = new StepScheduler(running);
+    CompletableFuture<Boolean> waited = new CompletableFuture<>();
+    Thread thread = new Thread(() -> waited.complete(scheduler.delay(Pacing.millis(60_000))));
+    thread.start();
+    Thread.sleep(50);
+
+    long stopped = System.nanoTime();
+    running.set(false);
+    thread.interrupt();
+
+    assertFalse(waited.get(1, TimeUnit.SECONDS));
+    assertTrue(System.nanoTime() - stopped < TimeUnit.MILLISECONDS.toNanos(100));
+  }
+
+  @Test
+  void strayInterruptDoesNotCutAWaitShort() throws Exception {
+    CompletableFuture<Long> waited = new CompletableFuture<>();
+    Thread thread = new Thread(() -> {
+      long started = System.nanoTime();
+      StepScheduler scheduler = new StepScheduler(new AtomicBoolean(true));
+      scheduler.delay(Pacing.millis(200));
+      waited.complete(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    });
+    thread.start();
+    Thread.sleep(50);
+
+    thread.interrupt();
+
+    assertTrue(waited.get(1, TimeUnit.SECONDS) >= 195);
+  }
+
+  @Test
+  void virtualClockAdvancesWithoutWaiting() {
+    StepScheduler.Virtual scheduler = new StepScheduler.Virtual(new AtomicBoolean(true));
+    long started = System.nanoTime();
+
+    scheduler.delay(Pacing.millis(60_000));
+    scheduler.advance(Pacing.millis(5));
+    scheduler.delay(Pacing.millis(10));
+
+    // Time spent in a step counts toward the delay after it.
+    assertEquals(Pacing.millis(60_010), scheduler.now());
+    assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(1));
+  }
+}
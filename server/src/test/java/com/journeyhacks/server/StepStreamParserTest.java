@@ -0,0 +1,56 @@
+package com.journeyhacks.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class StepStreamParserTest {
+  private static final String CLICK = "{\"type\":\"MOUSE_CLICK\",\"button\":\"LEFT\"}";
+  private static final String TYPE = "{\"type\":\"TYPE_TEXT\",\"text\":\"a } ] \\\" { [\"}";
+  private static final String REPEAT =
+      "{\"type\":\"REPEAT\",\"count\":2,\"steps\":[{\"type\":\"WAIT_MS\",\"ms\":5},{\"type\":\"KEY_PRESS\",\"key\":\"A\"}]}";
+  private static final String OUTPUT =
+      "```json\n{\"name\":\"demo\",\"steps\": [\n  " + CLICK + ",\n  " + TYPE + ",\n  " + REPEAT + "\n],"
+      + "\"notes\":{\"extra\":[1,2]}}\n```";
+
+  @Test
+  void emitsEachTopLevelStepOnceItCloses() {
+    StepStreamParser parser = new StepStreamParser();
+
+    assertEquals(List.of(CLICK, TYPE, REPEAT), parser.append(OUTPUT));
+    assertEquals(OUTPUT, parser.text());
+  }
+
+  @Test
+  void chunkBoundariesDoNotChangeTheResult() {
+    for (int size = 1; size <= 7; size++) {
+      StepStreamParser parser = new StepStreamParser();
+      List<String> steps = new ArrayList<>();
+      for (int i = 0; i < OUTPUT.length(); i += size) {
+        steps.addAll(parser.append(OUTPUT.substring(i, Math.min(OUTPUT.length(), i + size))));
+      }
+      assertEquals(List.of(CLICK, TYPE, REPEAT), steps, "chunk size " + size);
+    }
+  }
+
+  @Test
+  void holdsBackAStepUntilItCloses() {
+    StepStreamParser parser = new StepStreamParser();
+
+    assertEquals(List.of(), parser.append("{\"ste"));
+    assertEquals(List.of(), parser.append("ps\":[" + CLICK.substring(0, 10)));
+    assertEquals(List.of(CLICK), parser.append(CLICK.substring(10) + "," + REPEAT.substring(0, 60)));
+    assertEquals(List.of(REPEAT), parser.append(REPEAT.substring(60) + "]}"));
+  }
+
+  @Test
+  void ignoresTextOutsideTheStepsArray() {
+    StepStreamParser parser = new StepStreamParser();
+
+    assertEquals(List.of(), parser.append("{\"name\":{\"a\":1},\"tags\":[{\"x\":2}],"));
+    assertEquals(List.of(CLICK), parser.append("\"steps\":[" + CLICK + "]"));
+    assertEquals(List.of(), parser.append(",\"more\":[" + CLICK + "]}"));
+  }
+}
@@ -0,0 +1,249 @@
+package com.journeyhacks.server;
+
+import static com.journeyhacks.server.MacroOptimizerTest.step;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+
+class TemplateMatcherTest {
+  private static final int SIDE = 32;
+  // 4x4 blocks of random gray, so a scaled copy keeps its structure.
+  private static final BufferedImage TEMPLATE = blocks(SIDE, SIDE, 4, new Random(1));
+
+  @Test
+  void findsTheTemplateAtItsOffset() {
+    BufferedImage screen = screen(2);
+    plant(screen, TEMPLATE, 71, 43);
+
+    TemplateMatcher.Match match = TemplateMatcher.find(gray(screen), template(1.0));
+
+    assertEquals(71, match.x);
+    assertEquals(43, match.y);
+    assertEquals(0, match.scale);
+    assertEquals(71 + SIDE / 2, match.centerX());
+    assertTrue(match.score > 0.999, "score " + match.score);
+  }
+
+  @Test
+  void findsTheTemplateDrawnAtASecondScale() {
+    BufferedImage screen = screen(3);
+    plant(screen, scaled(TEMPLATE, 6), 100, 60);
+
+    TemplateMatcher.Match match = TemplateMatcher.find(gray(screen), template(1.0, 1.5));
+
+    assertEquals(1, match.scale);
+    assertEquals(48, match.width);
+    assertTrue(Math.abs(match.x - 100) <= 1 && Math.abs(match.y - 60) <= 1, match.x + "," + match.y);
+    assertTrue(match.score >= MacroProgram.DEFAULT_MATCH_THRESHOLD, "score " + match.score);
+  }
+
+  @Test
+  void bestScoreBelowTheThresholdIsNotFound() throws IOException {
+    BufferedImage screen = screen(4);
+    TemplateMatcher.Match best = TemplateMatcher.find(gray(screen), template(1.0));
+    assertTrue(best.score < MacroProgram.DEFAULT_MATCH_THRESHOLD, "score " + best.score);
+
+    ScreenDevice device = new ScreenDevice(screen);
+    MacroProgram skip = MacroProgram.compile(List.of(findImage("onNotFound", "CONTINUE")));
+    assertTrue(engine(device).run(skip, new AtomicBoolean(true)));
+    assertEquals(List.of(), device.moves);
+    assertNull(skip.imageSearch[0].last);
+
+    MacroProgram fail = MacroProgram.compile(List.of(findImage()));
+    IllegalStateException e = assertThrows(IllegalStateException.class,
+        () -> engine(new ScreenDevice(screen)).run(fail, new AtomicBoolean(true)));
+    assertTrue(e.getMessage().startsWith("image not found"), e.getMessage());
+  }
+
+  @Test
+  void lastMatchIsConfirmedBeforeAFullSearch() throws IOException {
+    BufferedImage first = screen(5);
+    plant(first, TEMPLATE, 71, 43);
+    // The template moved one pixel and picked up some noise, and a perfect
+    // copy appeared elsewhere. A full search prefers the copy.
+    BufferedImage second = screen(5);
+    plant(second, noisy(TEMPLATE, new Random(6)), 72, 43);
+    plant(second, TEMPLATE, 150, 100);
+    TemplateMatcher.Match full = TemplateMatcher.find(gray(second), template(1.0));
+    assertEquals(150, full.x);
+    // Only the copy is left, so the cached position misses.
+    BufferedImage third = screen(5);
+    plant(third, TEMPLATE, 150, 100);
+    ScreenDevice device = new ScreenDevice(first, second, third);
+    MacroProgram program = MacroProgram.compile(List.of(
+        step("type", "REPEAT", "count", 3, "steps", List.of(findImage()))));
+    MacroProgram.ImageSearch search = program.imageSearch[1];
+
+    assertTrue(engine(device).run(program, new AtomicBoolean(true)));
+
+    assertEquals(List.of(new Point(87, 59), new Point(88, 59), new Point(166, 116)), device.moves);
+    assertEquals(150, search.last.x);
+    assertEquals(100, search.last.y);
+  }
+
+  private static Map<String, Object> findImage(Object... fields) throws IOException {
+    ByteArrayOutputStream png = new ByteArrayOutputStream();
+    ImageIO.write(TEMPLATE, "png", png);
+    Map<String, Object> step = step("type", "FIND_IMAGE", "image", Base64.getEncoder().encodeToString(png.toByteArray()));
+    for (int i = 0; i < fields.length; i += 2) {
+      step.put((String) fields[i], fields[i + 1]);
+    }
+    return step;
+  }
+
+  private static MacroEngine engine(InputDevice device) {
+    return new MacroEngine(device, StepScheduler.Virtual::new, MacroEngine.METRICS);
+  }
+
+  private static TemplateMatcher.Template template(double... scales) {
+    return new TemplateMatcher.Template(gray(TEMPLATE), scales);
+  }
+
+  private static TemplateMatcher.Gray gray(BufferedImage image) {
+    return TemplateMatcher.Gray.of(image);
+  }
+
+  private static BufferedImage screen(long seed) {
+    return blocks(240, 160, 4, new Random(seed));
+  }
+
+  private static BufferedImage blocks(int width, int height, int block, Random random) {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    for (int by = 0; by < height; by += block) {
+      for (int bx = 0; bx < width; bx += block) {
+        int rgb = random.nextInt(256) * 0x010101;
+        for (int y = by; y < Math.min(height, by + block); y++) {
+          for (int x = bx; x < Math.min(width, bx + block); x++) {
+            image.setRGB(x, y, rgb);
+          }
+        }
+      }
+    }
+    return image;
+  }
+
+  // Each 4x4 block of image drawn as block x block pixels.
+  private static BufferedImage scaled(BufferedImage image, int block) {
+    BufferedImage out = new BufferedImage(image.getWidth() / 4 * block, image.getHeight() / 4 * block,
+        BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < out.getHeight(); y++) {
+      for (int x = 0; x < out.getWidth(); x++) {
+        out.setRGB(x, y, image.getRGB(x / block * 4, y / block * 4));
+      }
+    }
+    return out;
+  }
+
+  private static BufferedImage noisy(BufferedImage image, Random random) {
+    BufferedImage out = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < out.getHeight(); y++) {
+      for (int x = 0; x < out.getWidth(); x++) {
+        int v = Math.max(0, Math.min(255, (image.getRGB(x, y) & 0xFF) + random.nextInt(41) - 20));
+        out.setRGB(x, y, v * 0x010101);
+      }
+    }
+    return out;
+  }
+
+  private static void plant(BufferedImage screen, BufferedImage image, int x, int y) {
+    screen.getGraphics().drawImage(image, x, y, null);
+  }
+
+  // Hands out one screen per capture; moves are recorded.
+  private static final class ScreenDevice implements InputDevice {
+    final Deque<BufferedImage> screens = new ArrayDeque<>();
+    final List<Point> moves = new ArrayList<>();
+
+    ScreenDevice(BufferedImage... screens) {
+      this.screens.addAll(List.of(screens));
+    }
+
+    @Override
+    public void mouseMove(int x, int y) {
+      moves.add(new Point(x, y));
+    }
+
+    @Override
+    public void mousePress(int buttons) {
+    }
+
+    @Override
+    public void mouseRelease(int buttons) {
+    }
+
+    @Override
+    public void keyPress(int keyCode) {
+    }
+
+    @Override
+    public void keyRelease(int keyCode) {
+    }
+
+    @Override
+    public Point pointerLocation() {
+      return new Point();
+    }
+
+    @Override
+    public void setAutoDelay(int ms) {
+    }
+
+    @Override
+    public boolean setClipboard(String text) {
+      return true;
+    }
+
+    @Override
+    public String clipboardText() {
+      return "";
+    }
+
+    @Override
+    public void openUrl(String url) {
+    }
+
+    @Override
+    public int fetch(String method, String url, String body, long timeoutNanos) {
+      return 200;
+    }
+
+    @Override
+    public int runCommand(List<String> command, long timeoutNanos) {
+      return 0;
+    }
+
+    @Override
+    public int pixelColor(int x, int y) {
+      return -1;
+    }
+
+    // The last screen stays up once the rest are used.
+    @Override
+    public BufferedImage capture(int x, int y, int width, int height) {
+      return screens.size() > 1 ? screens.poll() : screens.peek();
+    }
+
+    @Override
+    public Dimension screenSize() {
+      BufferedImage screen = screens.peek();
+      return new Dimension(screen.getWidth(), screen.getHeight());
+    }
+  }
+}